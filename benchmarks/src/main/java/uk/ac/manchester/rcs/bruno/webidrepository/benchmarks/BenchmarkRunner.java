@@ -0,0 +1,61 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.benchmarks;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once for each of the given thread counts.
+ * <p>
+ * Usage: <code>java -jar benchmarks.jar [threads] [include]</code>, where
+ * <code>threads</code> is a comma-separated list of thread counts (default:
+ * "1,4") and <code>include</code> a regular expression selecting the
+ * benchmarks to run (default: all).
+ * </p>
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        String threads = args.length > 0 ? args[0] : "1,4";
+        String include = args.length > 1 ? args[1] : ".*";
+
+        for (String threadCount : threads.split(",")) {
+            new Runner(new OptionsBuilder().include(include).threads(
+                    Integer.parseInt(threadCount.trim())).forks(1).build())
+                    .run();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.benchmarks;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.openssl.PEMReader;
+import org.bouncycastle.openssl.PEMWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import uk.ac.manchester.rcs.bruno.keygenapp.base.MiniCaCertGen;
+
+/**
+ * Reading the PEM certificate stored in a profile and encoding it in PEM and
+ * DER, as done by CertificateResource for each download.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class CertificateEncodingBenchmark {
+    @Param( { "RSA", "EC" })
+    public String keyAlgorithm;
+
+    private X509Certificate certificate;
+    private String pemCertificate;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        KeyPair caKeyPair = ProfileFixtures.generateKeyPair("RSA");
+        KeyPair keyPair = ProfileFixtures.generateKeyPair(this.keyAlgorithm);
+        this.certificate = MiniCaCertGen.createCert(caKeyPair.getPublic(),
+                caKeyPair.getPrivate(), keyPair.getPublic(), new X509Name(
+                        "CN=Benchmark"), new X509Name("CN=Benchmark CA"),
+                null, null, ProfileFixtures.PROFILE_BASE + "encoding/#me",
+                BigInteger.ONE);
+        this.pemCertificate = toPem();
+    }
+
+    @Benchmark
+    public Object fromPem() throws Exception {
+        PEMReader pemReader = new PEMReader(new StringReader(
+                this.pemCertificate));
+        try {
+            return pemReader.readObject();
+        } finally {
+            pemReader.close();
+        }
+    }
+
+    @Benchmark
+    public String toPem() throws Exception {
+        StringWriter sw = new StringWriter();
+        PEMWriter pemWriter = new PEMWriter(sw);
+        pemWriter.writeObject(this.certificate);
+        pemWriter.close();
+        return sw.toString();
+    }
+
+    @Benchmark
+    public byte[] toDer() throws Exception {
+        return this.certificate.getEncoded();
+    }
+}
@@ -0,0 +1,113 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.benchmarks;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.x509.X509Name;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import uk.ac.manchester.rcs.bruno.keygenapp.base.CertificateVerificationPolicy;
+import uk.ac.manchester.rcs.bruno.keygenapp.base.MiniCaCertGen;
+
+/**
+ * Issuing a certificate from SPKAC data or a PEM certification request, with
+ * CA and certified keys of each algorithm (RSA 2048 or EC P-256), and each
+ * verification mode.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class CertificateIssuanceBenchmark {
+    @Param( { "RSA", "EC" })
+    public String caAlgorithm;
+
+    @Param( { "RSA", "EC" })
+    public String keyAlgorithm;
+
+    @Param( { "ALWAYS", "STRUCTURAL" })
+    public CertificateVerificationPolicy.Mode verification;
+
+    private KeyPair caKeyPair;
+    private X509Name issuer;
+    private X509Name subject;
+    private String spkac;
+    private String pemCsr;
+    private CertificateVerificationPolicy verificationPolicy;
+    private final AtomicLong serialNumber = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.caKeyPair = ProfileFixtures.generateKeyPair(this.caAlgorithm);
+        this.issuer = new X509Name("CN=Benchmark CA");
+        this.subject = new X509Name("CN=Benchmark");
+        KeyPair keyPair = ProfileFixtures.generateKeyPair(this.keyAlgorithm);
+        this.spkac = ProfileFixtures.createSpkac(keyPair);
+        this.pemCsr = ProfileFixtures.createPemCsr(keyPair);
+        this.verificationPolicy = new CertificateVerificationPolicy(
+                this.verification, 1);
+    }
+
+    @Benchmark
+    public X509Certificate fromSpkac() throws Exception {
+        return MiniCaCertGen.createCertFromSpkac(this.caKeyPair.getPublic(),
+                this.caKeyPair.getPrivate(), this.spkac, this.subject,
+                this.issuer, null, null, ProfileFixtures.PROFILE_BASE
+                        + "issuance/#me", BigInteger.valueOf(this.serialNumber
+                        .incrementAndGet()), this.verificationPolicy);
+    }
+
+    @Benchmark
+    public X509Certificate fromPemCsr() throws Exception {
+        return MiniCaCertGen.createCertFromPemCsr(this.caKeyPair.getPublic(),
+                this.caKeyPair.getPrivate(), this.pemCsr, this.subject,
+                this.issuer, null, null, ProfileFixtures.PROFILE_BASE
+                        + "issuance/#me", BigInteger.valueOf(this.serialNumber
+                        .incrementAndGet()), this.verificationPolicy);
+    }
+}
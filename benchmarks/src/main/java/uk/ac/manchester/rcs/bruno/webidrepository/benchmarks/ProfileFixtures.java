@@ -0,0 +1,190 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.jce.netscape.NetscapeCertRequest;
+import org.bouncycastle.openssl.PEMWriter;
+import org.bouncycastle.util.encoders.Base64;
+import org.openrdf.model.BNode;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.Rio;
+
+import uk.ac.manchester.rcs.bruno.keygenapp.base.KeyPairPool;
+import uk.ac.manchester.rcs.bruno.keygenapp.base.MiniCaCertGen;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer.SerialisationFormat;
+import uk.ac.manchester.rcs.bruno.webidrepository.WebidModule;
+
+/**
+ * Builds the profiles, keys and certification requests used by the
+ * benchmarks.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public final class ProfileFixtures {
+    public static final String PROFILE_BASE = "http://localhost/webid/profile/";
+
+    private ProfileFixtures() {
+    }
+
+    /**
+     * Serialises a profile: a foaf:Person with a given and family name (as
+     * created by the service), and a number of foaf:knows relations to named
+     * people, as in profiles that have been edited afterwards.
+     * 
+     * @param context
+     *            URI of the profile document.
+     * @param knownPeople
+     *            number of foaf:knows relations (3 statements each).
+     * @param format
+     *            serialisation format.
+     * @return serialised profile.
+     * @throws RDFHandlerException
+     */
+    public static byte[] createProfile(String context, int knownPeople,
+            SerialisationFormat format) throws RDFHandlerException {
+        ValueFactory vf = ValueFactoryImpl.getInstance();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        RDFWriter writer = Rio.createWriter(format.getRdfFormat(),
+                outputStream);
+        URI me = vf.createURI(context + "#me");
+        URI knows = vf.createURI(WebidModule.FOAF_NS, "knows");
+        URI name = vf.createURI(WebidModule.FOAF_NS, "name");
+        URI person = vf.createURI(WebidModule.FOAF_NS, "Person");
+
+        writer.startRDF();
+        writer.handleNamespace("foaf", WebidModule.FOAF_NS);
+        writer.handleStatement(vf.createStatement(me, RDF.TYPE, person));
+        writer.handleStatement(vf.createStatement(me, vf.createURI(
+                WebidModule.FOAF_NS, "givenName"), vf.createLiteral("Alice")));
+        writer.handleStatement(vf.createStatement(me, vf.createURI(
+                WebidModule.FOAF_NS, "familyName"), vf
+                .createLiteral("Benchmark")));
+        for (int i = 0; i < knownPeople; i++) {
+            BNode friend = vf.createBNode("friend" + i);
+            writer.handleStatement(vf.createStatement(me, knows, friend));
+            writer.handleStatement(vf.createStatement(friend, RDF.TYPE,
+                    person));
+            writer.handleStatement(vf.createStatement(friend, name, vf
+                    .createLiteral("Friend " + i)));
+        }
+        writer.endRDF();
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Builds a (detached) document container for a profile.
+     */
+    public static RdfDocumentContainer createContainer(String context,
+            int knownPeople, SerialisationFormat format)
+            throws RDFHandlerException {
+        RdfDocumentContainer container = new RdfDocumentContainer();
+        container.setId(context);
+        container.updateRdfData(createProfile(context, knownPeople, format),
+                format);
+        return container;
+    }
+
+    /**
+     * @param algorithm
+     *            "RSA" (2048 bits) or "EC" (P-256).
+     */
+    public static KeyPair generateKeyPair(String algorithm)
+            throws GeneralSecurityException {
+        return KeyPairPool.createKeyPairGenerator(algorithm,
+                "EC".equals(algorithm) ? 256 : 2048).generateKeyPair();
+    }
+
+    /**
+     * Creates a self-signed CA certificate.
+     */
+    public static X509Certificate createCaCertificate(KeyPair caKeyPair,
+            X509Name issuer) throws GeneralSecurityException {
+        return MiniCaCertGen.createCert(caKeyPair.getPublic(), caKeyPair
+                .getPrivate(), caKeyPair.getPublic(), issuer, issuer, null,
+                null, null, BigInteger.ONE);
+    }
+
+    /**
+     * Creates the SPKAC data a browser would send from the KEYGEN tag.
+     */
+    public static String createSpkac(KeyPair keyPair)
+            throws GeneralSecurityException {
+        DERObjectIdentifier signatureOid = "EC".equals(keyPair.getPublic()
+                .getAlgorithm()) ? X9ObjectIdentifiers.ecdsa_with_SHA256
+                : PKCSObjectIdentifiers.sha256WithRSAEncryption;
+        NetscapeCertRequest spkac = new NetscapeCertRequest("TheChallenge1",
+                new AlgorithmIdentifier(signatureOid), keyPair.getPublic());
+        spkac.sign(keyPair.getPrivate());
+        return new String(Base64.encode(spkac.toASN1Object().getDEREncoded()));
+    }
+
+    /**
+     * Creates a PEM-encoded PKCS#10 certification request.
+     */
+    public static String createPemCsr(KeyPair keyPair)
+            throws GeneralSecurityException, IOException {
+        String signatureAlgorithm = "EC".equals(keyPair.getPublic()
+                .getAlgorithm()) ? "SHA256withECDSA" : "SHA256withRSA";
+        PKCS10CertificationRequest csr = new PKCS10CertificationRequest(
+                signatureAlgorithm, new X500Principal("CN=Benchmark"), keyPair
+                        .getPublic(), null, keyPair.getPrivate());
+        StringWriter sw = new StringWriter();
+        PEMWriter pemWriter = new PEMWriter(sw);
+        pemWriter.writeObject(csr);
+        pemWriter.close();
+        return sw.toString();
+    }
+}
@@ -0,0 +1,137 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openrdf.model.URI;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.sail.memory.MemoryStore;
+
+import uk.ac.manchester.rcs.bruno.webidrepository.ProfileLookup;
+import uk.ac.manchester.rcs.bruno.webidrepository.QueryRegistry;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfGraphCache;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer.SerialisationFormat;
+
+/**
+ * Looking up the fields of a profile already loaded in the repository, as
+ * done by WebidPageResource.toHtml, with each {@link ProfileLookup.Mode}.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ProfileQueryBenchmark {
+    @State(Scope.Benchmark)
+    public static class Profile {
+        @Param( { "0", "100", "1000" })
+        public int knownPeople;
+
+        @Param( { "QUERY", "STATEMENTS" })
+        public ProfileLookup.Mode mode;
+
+        public Repository repository;
+        public URI context;
+        public ProfileLookup profileLookup;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            String contextUri = ProfileFixtures.PROFILE_BASE + "query/";
+            RdfDocumentContainer container = ProfileFixtures
+                    .createContainer(contextUri, this.knownPeople,
+                            SerialisationFormat.NTRIPLES);
+            this.repository = new SailRepository(new MemoryStore());
+            this.repository.initialize();
+            this.context = this.repository.getValueFactory().createURI(
+                    contextUri);
+            RepositoryConnection connection = this.repository
+                    .getConnection();
+            try {
+                connection.add(RdfGraphCache.parse(container), this.context);
+            } finally {
+                connection.close();
+            }
+            this.profileLookup = new ProfileLookup(this.mode,
+                    new QueryRegistry());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.repository.shutDown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        public RepositoryConnection connection;
+
+        @Setup(Level.Trial)
+        public void setUp(Profile profile) throws Exception {
+            this.connection = profile.repository.getConnection();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.connection.close();
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> lookupProfile(Profile profile,
+            Connection connection) throws Exception {
+        return profile.profileLookup.lookupProfile(connection.connection,
+                profile.context);
+    }
+
+    @Benchmark
+    public Map<String, String> lookupPerson(Profile profile,
+            Connection connection) throws Exception {
+        return profile.profileLookup.lookupPerson(connection.connection,
+                profile.context);
+    }
+}
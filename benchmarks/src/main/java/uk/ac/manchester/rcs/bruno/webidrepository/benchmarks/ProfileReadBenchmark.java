@@ -0,0 +1,164 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openrdf.model.URI;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.sail.memory.MemoryStore;
+
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentDelta;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentStore;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfGraphCache;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfSerialisationCache;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer.SerialisationFormat;
+
+/**
+ * Reading profiles already loaded into the shared repository through the
+ * {@link RdfDocumentStore} in memory mode (a version check against the
+ * database, then a read of the context), as done for each request. Running
+ * it with one thread and with one thread per processor (see
+ * {@link BenchmarkRunner}) shows how reads scale.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ProfileReadBenchmark {
+    private static final int PROFILES = 32;
+    private static final int KNOWN_PEOPLE = 50;
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        public SessionFactory sessionFactory;
+        public RdfDocumentStore store;
+        public URI[] contexts = new URI[PROFILES];
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            AnnotationConfiguration configuration = new AnnotationConfiguration()
+                    .addPackage("uk.ac.manchester.rcs.bruno.webidrepository")
+                    .addAnnotatedClass(RdfDocumentContainer.class)
+                    .addAnnotatedClass(RdfDocumentDelta.class);
+            configuration.setProperty("hibernate.connection.url",
+                    "jdbc:derby:target/profilereadbenchdb;create=true");
+            configuration.setProperty("hibernate.connection.driver_class",
+                    "org.apache.derby.jdbc.EmbeddedDriver");
+            configuration.setProperty("hibernate.dialect",
+                    "org.hibernate.dialect.DerbyDialect");
+            configuration.setProperty("hibernate.hbm2ddl.auto", "create");
+            this.sessionFactory = configuration.buildSessionFactory();
+
+            Repository repository = new SailRepository(new MemoryStore());
+            repository.initialize();
+            this.store = new RdfDocumentStore(repository,
+                    RdfDocumentStore.StorageMode.MEMORY, new RdfGraphCache(
+                            1000, 1000000L), new RdfSerialisationCache(1000,
+                            1024L * 1024L), SerialisationFormat.NTRIPLES);
+
+            Session session = this.sessionFactory.openSession();
+            try {
+                session.beginTransaction();
+                for (int i = 0; i < PROFILES; i++) {
+                    String contextUri = ProfileFixtures.PROFILE_BASE + "read"
+                            + i + "/";
+                    session.save(ProfileFixtures.createContainer(contextUri,
+                            KNOWN_PEOPLE, SerialisationFormat.NTRIPLES));
+                    this.contexts[i] = repository.getValueFactory()
+                            .createURI(contextUri);
+                }
+                session.getTransaction().commit();
+            } finally {
+                session.close();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.sessionFactory.close();
+            this.store.getRepository().shutDown();
+        }
+    }
+
+    /**
+     * Each thread reads the profiles in turn, starting from a different one.
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+        public int next;
+
+        @Setup(Level.Trial)
+        public void setUp(Store store) {
+            this.next = store.threadCount.getAndIncrement();
+        }
+    }
+
+    @Benchmark
+    public long readProfile(Store store, Reader reader) throws Exception {
+        URI context = store.contexts[reader.next++ % PROFILES];
+        RepositoryConnection connection = store.store.getRepository()
+                .getConnection();
+        Session session = store.sessionFactory.openSession();
+        try {
+            session.beginTransaction();
+            if (!store.store.loadContext(session, connection, context)) {
+                throw new IllegalStateException(context + " not found.");
+            }
+            long size = connection.size(context);
+            session.getTransaction().commit();
+            return size;
+        } finally {
+            session.close();
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.sail.memory.MemoryStore;
+
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfGraphCache;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer.SerialisationFormat;
+
+/**
+ * Parsing a stored profile and loading it into its context in the memory
+ * store, as done when a profile that is not in the graph cache is requested.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RdfLoadBenchmark {
+    @State(Scope.Benchmark)
+    public static class Profile {
+        @Param( { "0", "100", "1000" })
+        public int knownPeople;
+
+        @Param( { "RDFXML", "NTRIPLES", "TURTLE" })
+        public SerialisationFormat format;
+
+        public RdfDocumentContainer container;
+        public Repository repository;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            this.container = ProfileFixtures.createContainer(
+                    ProfileFixtures.PROFILE_BASE + "load/", this.knownPeople,
+                    this.format);
+            this.repository = new SailRepository(new MemoryStore());
+            this.repository.initialize();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.repository.shutDown();
+        }
+    }
+
+    /**
+     * Each thread loads the profile into its own context.
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        public RepositoryConnection connection;
+        public URI context;
+
+        @Setup(Level.Trial)
+        public void setUp(Profile profile) throws Exception {
+            this.connection = profile.repository.getConnection();
+            this.context = profile.repository.getValueFactory().createURI(
+                    ProfileFixtures.PROFILE_BASE + "load"
+                            + profile.threadCount.incrementAndGet() + "/");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.connection.close();
+        }
+    }
+
+    @Benchmark
+    public int parse(Profile profile) throws Exception {
+        return RdfGraphCache.parse(profile.container).size();
+    }
+
+    @Benchmark
+    public int parseAndLoad(Profile profile, Connection connection)
+            throws Exception {
+        List<Statement> statements = RdfGraphCache.parse(profile.container);
+        connection.connection.clear(connection.context);
+        connection.connection.add(statements, connection.context);
+        return statements.size();
+    }
+}
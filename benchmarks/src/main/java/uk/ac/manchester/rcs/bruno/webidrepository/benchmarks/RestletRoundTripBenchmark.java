@@ -0,0 +1,223 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.benchmarks;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.InitialContext;
+import javax.naming.NameNotFoundException;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.restlet.Component;
+import org.restlet.Context;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Preference;
+
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfSerialisationCache;
+import uk.ac.manchester.rcs.corypha.core.CoryphaRootApplication;
+
+/**
+ * Requests handled by the whole application (Restlet component, Hibernate
+ * filter, RDF store and mini CA), in-process without any connector, using an
+ * embedded Derby database as in FoafsslLocalTest.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RestletRoundTripBenchmark {
+    public static final String BASE_URI = "http://localhost/webid/";
+
+    @State(Scope.Benchmark)
+    public static class Application {
+        /**
+         * "HTML" or the name of a {@link RdfSerialisationCache.Variant}.
+         */
+        @Param( { "HTML", "RDFXML", "TURTLE" })
+        public String variant;
+
+        private Component component;
+        private String profileUri;
+        private String pemCsr;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            KeyPair caKeyPair = ProfileFixtures.generateKeyPair("RSA");
+            X509Name issuer = new X509Name("CN=Benchmark CA");
+            bindJndiResources(caKeyPair, issuer);
+
+            this.component = new Component();
+            CoryphaRootApplication rootApplication = new CoryphaRootApplication();
+            rootApplication.setContext(this.component.getContext()
+                    .createChildContext());
+            Context rootAppContext = rootApplication.getContext();
+            rootAppContext.getParameters().add(
+                    CoryphaRootApplication.MODULE_CLASSES_CTX_PARAM,
+                    "uk.ac.manchester.rcs.bruno.webidrepository.WebidModule");
+            this.component.getDefaultHost().attachDefault(rootApplication);
+            this.component.start();
+
+            this.profileUri = createProfile(this.component);
+            this.pemCsr = ProfileFixtures.createPemCsr(ProfileFixtures
+                    .generateKeyPair("RSA"));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.component.stop();
+        }
+
+        private void bindJndiResources(KeyPair caKeyPair, X509Name issuer)
+                throws Exception {
+            System.setProperty(javax.naming.Context.INITIAL_CONTEXT_FACTORY,
+                    org.eclipse.jetty.jndi.InitialContextFactory.class
+                            .getName());
+            javax.naming.Context ctx = null;
+            try {
+                ctx = (javax.naming.Context) new InitialContext()
+                        .lookup("java:comp");
+                try {
+                    ctx = (javax.naming.Context) ctx.lookup("env");
+                } catch (NameNotFoundException e) {
+                    ctx = ctx.createSubcontext("env");
+                }
+                javax.naming.Context envCtx = ctx;
+                try {
+                    ctx = (javax.naming.Context) envCtx
+                            .lookup("webiddirectory");
+                } catch (NameNotFoundException e) {
+                    ctx = envCtx.createSubcontext("webiddirectory");
+                }
+                ctx.rebind("signingCertificate", ProfileFixtures
+                        .createCaCertificate(caKeyPair, issuer));
+                ctx.rebind("signingPrivateKey", caKeyPair.getPrivate());
+                ctx.rebind("issuerName", issuer.toString());
+
+                try {
+                    ctx = (javax.naming.Context) envCtx.lookup("jdbc");
+                } catch (NameNotFoundException e) {
+                    ctx = envCtx.createSubcontext("jdbc");
+                }
+                EmbeddedDataSource ds = new EmbeddedDataSource();
+                ds.setDatabaseName("target/benchdb");
+                ds.setCreateDatabase("true");
+                ctx.rebind("webiddirectoryDS", ds);
+            } finally {
+                if (ctx != null) {
+                    ctx.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A profile with no certificate yet, created before each certificate
+     * request so that the profile does not grow with the iterations.
+     */
+    @State(Scope.Thread)
+    public static class FreshProfile {
+        private String profileUri;
+
+        @Setup(Level.Invocation)
+        public void setUp(Application application) {
+            this.profileUri = createProfile(application.component);
+        }
+    }
+
+    private static String createProfile(Component component) {
+        Form form = new Form();
+        form.add("givenName", "Alice");
+        form.add("familyName", "Benchmark");
+        Request request = new Request(Method.POST, BASE_URI, form
+                .getWebRepresentation());
+        Response response = handle(component, request);
+        return response.getLocationRef().toString();
+    }
+
+    private static Response handle(Component component, Request request) {
+        Response response = new Response(request);
+        component.handle(request, response);
+        if (!response.getStatus().isSuccess()) {
+            throw new IllegalStateException(request.getMethod() + " "
+                    + request.getResourceRef() + ": " + response.getStatus());
+        }
+        if (response.isEntityAvailable()) {
+            response.getEntity().release();
+        }
+        return response;
+    }
+
+    @Benchmark
+    public Response getProfile(Application application) {
+        Request request = new Request(Method.GET, application.profileUri);
+        MediaType mediaType = "HTML".equals(application.variant) ? MediaType.TEXT_HTML
+                : RdfSerialisationCache.Variant.valueOf(application.variant)
+                        .getMediaType();
+        request.getClientInfo().getAcceptedMediaTypes().add(
+                new Preference<MediaType>(mediaType));
+        return handle(application.component, request);
+    }
+
+    @Benchmark
+    public String postCreateProfile(Application application) {
+        return createProfile(application.component);
+    }
+
+    @Benchmark
+    public Response postCertificateRequest(Application application,
+            FreshProfile profile) {
+        Form form = new Form();
+        form.add("cn", "Alice Benchmark");
+        form.add("csrdata", application.pemCsr);
+        Request request = new Request(Method.POST, profile.profileUri, form
+                .getWebRepresentation());
+        return handle(application.component, request);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+
+Copyright (c) 2008-2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+ 
+ */
+package uk.ac.manchester.rcs.bruno.keygenapp.base;
+
+import java.math.BigInteger;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.asn1.x509.X509Name;
+
+/**
+ * This class issues batches of certificates for the mini CA, splitting each
+ * batch across a fixed number of signing threads. Each thread reuses its
+ * certificate generator and source of randomness, and the signature
+ * algorithm is determined once, when the issuer is created.
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class BatchCertificateIssuer {
+    private final static Logger LOGGER = Logger
+            .getLogger(BatchCertificateIssuer.class.getName());
+
+    /**
+     * Request for a certificate in a batch.
+     */
+    public static class Request {
+        private final String subjAltNameURI;
+        private final X509Name subject;
+        private final PublicKey publicKey;
+
+        /**
+         * @param subjAltNameURI
+         *            URI to be placed in subjectAltName (WebID).
+         * @param subject
+         *            subject DN.
+         * @param publicKey
+         *            public key to certify.
+         */
+        public Request(String subjAltNameURI, X509Name subject,
+                PublicKey publicKey) {
+            this.subjAltNameURI = subjAltNameURI;
+            this.subject = subject;
+            this.publicKey = publicKey;
+        }
+
+        public String getSubjAltNameURI() {
+            return this.subjAltNameURI;
+        }
+
+        public X509Name getSubject() {
+            return this.subject;
+        }
+
+        public PublicKey getPublicKey() {
+            return this.publicKey;
+        }
+    }
+
+    /**
+     * Outcome of a request: either a certificate or the exception that
+     * prevented it from being issued.
+     */
+    public static class Result {
+        private final Request request;
+        private final X509Certificate certificate;
+        private final Exception exception;
+
+        private Result(Request request, X509Certificate certificate,
+                Exception exception) {
+            this.request = request;
+            this.certificate = certificate;
+            this.exception = exception;
+        }
+
+        public Request getRequest() {
+            return this.request;
+        }
+
+        public X509Certificate getCertificate() {
+            return this.certificate;
+        }
+
+        public Exception getException() {
+            return this.exception;
+        }
+
+        public boolean isSuccessful() {
+            return this.certificate != null;
+        }
+    }
+
+    private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    private final MiniCaConfiguration configuration;
+    private final String signatureAlgorithm;
+    private final int signingThreads;
+    private final ExecutorService executor;
+
+    /**
+     * @param configuration
+     *            configuration of the mini CA (keys, issuer name, validity,
+     *            serial numbers and verification policy).
+     * @param signingThreads
+     *            number of threads across which each batch is split.
+     */
+    public BatchCertificateIssuer(MiniCaConfiguration configuration,
+            int signingThreads) {
+        this.configuration = configuration;
+        this.signatureAlgorithm = configuration.getSignatureAlgorithm();
+        this.signingThreads = signingThreads;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(signingThreads,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                "batch-certificate-signer-"
+                                        + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Issues a certificate for each request. All the certificates of a
+     * batch have the same validity period.
+     * 
+     * @param requests
+     *            requests.
+     * @return results, in the same order as the requests.
+     * @throws InterruptedException
+     */
+    public List<Result> issue(final List<Request> requests)
+            throws InterruptedException {
+        final Result[] results = new Result[requests.size()];
+        final Date startDate = new Date();
+        final Date endDate = new Date(startDate.getTime()
+                + this.configuration.getCertificateValidityDays() * 24L * 60L
+                * 60L * 1000L);
+
+        int chunkSize = (requests.size() + this.signingThreads - 1)
+                / this.signingThreads;
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int start = 0; start < requests.size(); start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(start + chunkSize, requests.size());
+            futures.add(this.executor.submit(new Callable<Void>() {
+                public Void call() {
+                    for (int i = from; i < to; i++) {
+                        results[i] = issue(requests.get(i), startDate,
+                                endDate);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private Result issue(Request request, Date startDate, Date endDate) {
+        try {
+            BigInteger serialNumber = this.configuration
+                    .nextCertificateSerialNumber();
+            X509Certificate cert = MiniCaCertGen.createCert(MiniCaCertGen
+                    .getThreadGenerator(), this.signatureAlgorithm, RANDOM
+                    .get(), this.configuration
+                            .getCaPublicKey(), this.configuration
+                            .getCaPrivKey(), request.getPublicKey(), request
+                            .getSubject(), this.configuration
+                            .getIssuerName(), startDate, endDate, request
+                            .getSubjAltNameURI(), serialNumber,
+                    this.configuration.getVerificationPolicy());
+            return new Result(request, cert, null);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, String.format(
+                    "Unable to issue certificate for %s.", request
+                            .getSubjAltNameURI()), e);
+            return new Result(request, null, e);
+        }
+    }
+
+    /**
+     * Stops the signing threads once the current batches are done.
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                this.executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+
+Copyright (c) 2008-2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+ 
+ */
+package uk.ac.manchester.rcs.bruno.keygenapp.base;
+
+import java.math.BigInteger;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.asn1.x509.X509Name;
+
+/**
+ * This class signs certificates for the mini CA on a dedicated, bounded pool
+ * of threads, so that bursts of certificate requests don't tie up the
+ * threads serving the other requests. Requests are queued up to a fixed
+ * capacity, beyond which they are rejected.
+ * 
+ * It also keeps track of the number of certificates issued and of the time
+ * spent waiting in the queue and signing.
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class CertificateIssuanceService {
+    private final static Logger LOGGER = Logger
+            .getLogger(CertificateIssuanceService.class.getName());
+
+    private final MiniCaConfiguration configuration;
+    private final String signatureAlgorithm;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong issuedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong totalSigningNanos = new AtomicLong();
+    private final AtomicLong maxSigningNanos = new AtomicLong();
+
+    /**
+     * @param configuration
+     *            configuration of the mini CA (keys, issuer name and
+     *            validity).
+     * @param signingThreads
+     *            number of signing threads.
+     * @param queueCapacity
+     *            maximum number of requests waiting for a signing thread.
+     */
+    public CertificateIssuanceService(MiniCaConfiguration configuration,
+            int signingThreads, int queueCapacity) {
+        this.configuration = configuration;
+        this.signatureAlgorithm = configuration.getSignatureAlgorithm();
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(signingThreads,
+                signingThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "certificate-signer-"
+                                + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Queues the signing of a certificate. The certificate is valid from the
+     * time it is signed, for the validity period of the configuration.
+     * 
+     * @param spkacData
+     *            SPKAC data obtained from the KEYGEN tag (if null or empty,
+     *            pemCsrData is used instead).
+     * @param pemCsrData
+     *            PEM-encoded PKCS#10 certification request.
+     * @param subject
+     *            subject DN.
+     * @param subjAltNameURI
+     *            URI to be placed in subjectAltName (WebID).
+     * @return future certificate.
+     * @throws RejectedExecutionException
+     *             if the queue is full.
+     */
+    public Future<X509Certificate> submit(String spkacData,
+            String pemCsrData, X509Name subject, String subjAltNameURI)
+            throws RejectedExecutionException {
+        return submit(spkacData, pemCsrData, null, subject, subjAltNameURI);
+    }
+
+    /**
+     * Queues the signing of a certificate for a public key (for example,
+     * generated by the server). The certificate is valid from the time it is
+     * signed, for the validity period of the configuration.
+     * 
+     * @param certPubKey
+     *            public key to certify.
+     * @param subject
+     *            subject DN.
+     * @param subjAltNameURI
+     *            URI to be placed in subjectAltName (WebID).
+     * @return future certificate.
+     * @throws RejectedExecutionException
+     *             if the queue is full.
+     */
+    public Future<X509Certificate> submit(PublicKey certPubKey,
+            X509Name subject, String subjAltNameURI)
+            throws RejectedExecutionException {
+        return submit(null, null, certPubKey, subject, subjAltNameURI);
+    }
+
+    private Future<X509Certificate> submit(final String spkacData,
+            final String pemCsrData, final PublicKey certPubKey,
+            final X509Name subject, final String subjAltNameURI)
+            throws RejectedExecutionException {
+        final long submittedAt = System.nanoTime();
+        try {
+            return this.executor.submit(new Callable<X509Certificate>() {
+                public X509Certificate call() throws Exception {
+                    long startedAt = System.nanoTime();
+                    totalQueueNanos.addAndGet(startedAt - submittedAt);
+                    try {
+                        X509Certificate cert = sign(spkacData, pemCsrData,
+                                certPubKey, subject, subjAltNameURI);
+                        issuedCount.incrementAndGet();
+                        return cert;
+                    } catch (Exception e) {
+                        failedCount.incrementAndGet();
+                        throw e;
+                    } finally {
+                        recordSigningTime(System.nanoTime() - startedAt);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.rejectedCount.incrementAndGet();
+            LOGGER.log(Level.WARNING, String.format(
+                    "Certificate request rejected (queue depth: %d).",
+                    getQueueDepth()));
+            throw e;
+        }
+    }
+
+    private X509Certificate sign(String spkacData, String pemCsrData,
+            PublicKey certPubKey, X509Name subject, String subjAltNameURI)
+            throws Exception {
+        Date startDate = new Date();
+        Date endDate = new Date(startDate.getTime()
+                + this.configuration.getCertificateValidityDays() * 24L * 60L
+                * 60L * 1000L);
+        BigInteger serialNumber = this.configuration
+                .nextCertificateSerialNumber();
+        CertificateVerificationPolicy verificationPolicy = this.configuration
+                .getVerificationPolicy();
+
+        if (certPubKey == null) {
+            if ((spkacData == null) || spkacData.isEmpty()) {
+                certPubKey = MiniCaCertGen.getPublicKeyFromPemCsr(pemCsrData);
+            } else {
+                certPubKey = MiniCaCertGen.getPublicKeyFromSpkac(spkacData);
+            }
+        }
+        X509Certificate cert = MiniCaCertGen.createCert(MiniCaCertGen
+                .getThreadGenerator(), this.signatureAlgorithm, null,
+                this.configuration.getCaPublicKey(), this.configuration
+                        .getCaPrivKey(), certPubKey, subject,
+                this.configuration.getIssuerName(), startDate, endDate,
+                subjAltNameURI, serialNumber, verificationPolicy);
+        return cert;
+    }
+
+    private void recordSigningTime(long nanos) {
+        this.totalSigningNanos.addAndGet(nanos);
+        long max = this.maxSigningNanos.get();
+        while ((nanos > max)
+                && !this.maxSigningNanos.compareAndSet(max, nanos)) {
+            max = this.maxSigningNanos.get();
+        }
+    }
+
+    /**
+     * @return number of requests waiting for a signing thread.
+     */
+    public int getQueueDepth() {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * @return number of requests being signed.
+     */
+    public int getActiveCount() {
+        return this.executor.getActiveCount();
+    }
+
+    public int getSigningThreads() {
+        return this.executor.getCorePoolSize();
+    }
+
+    public long getIssuedCount() {
+        return this.issuedCount.get();
+    }
+
+    public long getFailedCount() {
+        return this.failedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * @return average time spent waiting in the queue, in milliseconds.
+     */
+    public double getAverageQueueMillis() {
+        long count = this.issuedCount.get() + this.failedCount.get();
+        return (count > 0) ? (this.totalQueueNanos.get() / 1e6 / count) : 0;
+    }
+
+    /**
+     * @return average time spent signing, in milliseconds.
+     */
+    public double getAverageSigningMillis() {
+        long count = this.issuedCount.get() + this.failedCount.get();
+        return (count > 0) ? (this.totalSigningNanos.get() / 1e6 / count) : 0;
+    }
+
+    /**
+     * @return maximum time spent signing, in milliseconds.
+     */
+    public double getMaxSigningMillis() {
+        return this.maxSigningNanos.get() / 1e6;
+    }
+
+    /**
+     * Stops accepting requests and waits (for a limited time) for the queued
+     * requests to be processed.
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                this.executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.log(Level.INFO, toString());
+    }
+
+    @Override
+    public String toString() {
+        return String
+                .format(
+                        "CertificateIssuanceService [threads=%d, queueDepth=%d, active=%d, issued=%d, failed=%d, rejected=%d, avgQueueMs=%.2f, avgSigningMs=%.2f, maxSigningMs=%.2f]",
+                        getSigningThreads(), getQueueDepth(),
+                        getActiveCount(), getIssuedCount(), getFailedCount(),
+                        getRejectedCount(), getAverageQueueMillis(),
+                        getAverageSigningMillis(), getMaxSigningMillis());
+    }
+}
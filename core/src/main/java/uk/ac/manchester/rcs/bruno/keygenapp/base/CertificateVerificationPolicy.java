@@ -0,0 +1,183 @@
+/*
+
+Copyright (c) 2008-2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+ 
+ */
+package uk.ac.manchester.rcs.bruno.keygenapp.base;
+
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class determines how a certificate that has just been signed by the
+ * mini CA is checked before it is returned.
+ * <ul>
+ * <li>{@link Mode#ALWAYS}: the signature of every certificate is verified
+ * against the CA public key.</li>
+ * <li>{@link Mode#SAMPLED}: the signature of one certificate in every
+ * <i>sampleInterval</i> is verified; the others get the structural check.</li>
+ * <li>{@link Mode#STRUCTURAL}: only checks that the certificate carries the
+ * expected public key and serial number and that it is signed, which doesn't
+ * require any public-key operation.</li>
+ * <li>{@link Mode#NEVER}: no check.</li>
+ * </ul>
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class CertificateVerificationPolicy {
+    public static enum Mode {
+        ALWAYS, SAMPLED, STRUCTURAL, NEVER
+    }
+
+    public static final CertificateVerificationPolicy ALWAYS = new CertificateVerificationPolicy(
+            Mode.ALWAYS, 1);
+
+    private final Mode mode;
+    private final int sampleInterval;
+    private final AtomicLong counter = new AtomicLong();
+
+    /**
+     * @param mode
+     *            verification mode.
+     * @param sampleInterval
+     *            in {@link Mode#SAMPLED} mode, one certificate in
+     *            sampleInterval has its signature verified.
+     */
+    public CertificateVerificationPolicy(Mode mode, int sampleInterval) {
+        if (sampleInterval < 1) {
+            throw new IllegalArgumentException(
+                    "The sample interval must be at least 1.");
+        }
+        this.mode = mode;
+        this.sampleInterval = sampleInterval;
+    }
+
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    public int getSampleInterval() {
+        return this.sampleInterval;
+    }
+
+    /**
+     * Checks a certificate that has just been generated, according to this
+     * policy.
+     * 
+     * @param cert
+     *            certificate to check.
+     * @param caPubKey
+     *            public key of the CA that signed it.
+     * @param certPubKey
+     *            public key that was to be certified.
+     * @param serialNumber
+     *            serial number that was requested.
+     * @throws InvalidKeyException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchProviderException
+     * @throws SignatureException
+     * @throws CertificateException
+     */
+    public void check(X509Certificate cert, PublicKey caPubKey,
+            PublicKey certPubKey, BigInteger serialNumber)
+            throws InvalidKeyException, NoSuchAlgorithmException,
+            NoSuchProviderException, SignatureException, CertificateException {
+        switch (this.mode) {
+        case ALWAYS:
+            cert.verify(caPubKey);
+            break;
+        case SAMPLED:
+            if (this.counter.incrementAndGet() % this.sampleInterval == 0) {
+                cert.verify(caPubKey);
+            } else {
+                checkStructure(cert, certPubKey, serialNumber);
+            }
+            break;
+        case STRUCTURAL:
+            checkStructure(cert, certPubKey, serialNumber);
+            break;
+        case NEVER:
+            break;
+        }
+    }
+
+    /**
+     * Checks the content of the certificate, without verifying its
+     * signature.
+     * 
+     * @param cert
+     *            certificate to check.
+     * @param certPubKey
+     *            public key that was to be certified.
+     * @param serialNumber
+     *            serial number that was requested.
+     * @throws CertificateException
+     */
+    public static void checkStructure(X509Certificate cert,
+            PublicKey certPubKey, BigInteger serialNumber)
+            throws CertificateException {
+        /*
+         * The keys may come from different providers, so their encodings are
+         * compared.
+         */
+        if (!Arrays.equals(certPubKey.getEncoded(), cert.getPublicKey()
+                .getEncoded())) {
+            throw new CertificateException(
+                    "The certificate doesn't contain the requested public key.");
+        }
+        if (!serialNumber.equals(cert.getSerialNumber())) {
+            throw new CertificateException(
+                    "The certificate doesn't have the requested serial number.");
+        }
+        byte[] signature = cert.getSignature();
+        if ((signature == null) || (signature.length == 0)) {
+            throw new CertificateException("The certificate is not signed.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (this.mode == Mode.SAMPLED) {
+            return String.format("%s (1 in %d)", this.mode,
+                    this.sampleInterval);
+        } else {
+            return this.mode.toString();
+        }
+    }
+}
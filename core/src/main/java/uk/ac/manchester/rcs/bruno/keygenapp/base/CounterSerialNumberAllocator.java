@@ -0,0 +1,120 @@
+/*
+
+Copyright (c) 2008-2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+ 
+ */
+package uk.ac.manchester.rcs.bruno.keygenapp.base;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This allocator builds serial numbers from a node identifier (16 bits), the
+ * time at which the allocator was created (48 bits, in milliseconds) and a
+ * counter (64 bits). The counter is striped: stripe <i>i</i> of <i>n</i> only
+ * hands out values congruent to <i>i</i> modulo <i>n</i>, and each thread
+ * uses the stripe chosen by its identifier, so that threads don't contend on
+ * the same counter and no two stripes can return the same value.
+ * 
+ * Serial numbers are unique across nodes as long as each node of a
+ * deployment has its own identifier, and unique across restarts of a node as
+ * long as its clock doesn't go backwards.
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class CounterSerialNumberAllocator implements SerialNumberAllocator {
+    public static final int MAX_NODE_ID = 0xffff;
+
+    /**
+     * Values are spread over the stripes so that the counters of different
+     * stripes are in different cache lines.
+     */
+    private static final int STRIPE_SPACING = 8;
+
+    private final int nodeId;
+    private final long startTime;
+    private final int stripes;
+    private final BigInteger prefix;
+    private final AtomicLongArray counters;
+
+    /**
+     * @param nodeId
+     *            identifier of this node in the deployment (0 to
+     *            {@link #MAX_NODE_ID}).
+     * @param stripes
+     *            number of counters (typically the number of signing
+     *            threads).
+     */
+    public CounterSerialNumberAllocator(int nodeId, int stripes) {
+        this(nodeId, stripes, System.currentTimeMillis());
+    }
+
+    CounterSerialNumberAllocator(int nodeId, int stripes, long startTime) {
+        if ((nodeId < 0) || (nodeId > MAX_NODE_ID)) {
+            throw new IllegalArgumentException(String.format(
+                    "Node identifier must be between 0 and %d.", MAX_NODE_ID));
+        }
+        if (stripes < 1) {
+            throw new IllegalArgumentException(
+                    "There must be at least one stripe.");
+        }
+        this.nodeId = nodeId;
+        this.startTime = startTime & 0xffffffffffffL;
+        this.stripes = stripes;
+        this.prefix = BigInteger.valueOf(nodeId).shiftLeft(48).or(
+                BigInteger.valueOf(this.startTime)).shiftLeft(64);
+        this.counters = new AtomicLongArray(stripes * STRIPE_SPACING);
+    }
+
+    public int getNodeId() {
+        return this.nodeId;
+    }
+
+    public BigInteger nextSerialNumber() {
+        int stripe = (int) (Thread.currentThread().getId() % this.stripes);
+        long count = this.counters.getAndIncrement(stripe * STRIPE_SPACING);
+        /*
+         * The value of the counter starts at 1, so that the serial number is
+         * never 0 even for node 0.
+         */
+        long value = count * this.stripes + stripe + 1;
+        if (value < 0) {
+            throw new IllegalStateException("Serial number counter exhausted.");
+        }
+        return this.prefix.or(BigInteger.valueOf(value));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("counter(node=%d, start=%d, stripes=%d)",
+                this.nodeId, this.startTime, this.stripes);
+    }
+}
@@ -0,0 +1,265 @@
+/*
+
+Copyright (c) 2008-2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+ 
+ */
+package uk.ac.manchester.rcs.bruno.keygenapp.base;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509CRL;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.openssl.PEMWriter;
+import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.bouncycastle.x509.extension.AuthorityKeyIdentifierStructure;
+
+/**
+ * Publishes the CRL of the mini CA, signed in advance from the
+ * {@link RevocationIndex}. The CRL is regenerated by a background thread
+ * (when the index has changed, or half-way through the validity of the
+ * current CRL), so that serving it only costs copying bytes.
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class CrlPublisher {
+    private final static Logger LOGGER = Logger.getLogger(CrlPublisher.class
+            .getName());
+
+    /**
+     * Signed CRL, already encoded in DER and PEM (neither of which must be
+     * modified).
+     */
+    public static class Crl {
+        private final byte[] der;
+        private final byte[] pem;
+        private final Date thisUpdate;
+        private final Date nextUpdate;
+        private final int entryCount;
+
+        private Crl(X509CRL crl, int entryCount) throws IOException,
+                GeneralSecurityException {
+            this.der = crl.getEncoded();
+            StringWriter sw = new StringWriter();
+            PEMWriter pemWriter = new PEMWriter(sw);
+            pemWriter.writeObject(crl);
+            pemWriter.close();
+            this.pem = sw.toString().getBytes(Charset.forName("US-ASCII"));
+            this.thisUpdate = crl.getThisUpdate();
+            this.nextUpdate = crl.getNextUpdate();
+            this.entryCount = entryCount;
+        }
+
+        public byte[] getDer() {
+            return this.der;
+        }
+
+        public byte[] getPem() {
+            return this.pem;
+        }
+
+        public Date getThisUpdate() {
+            return this.thisUpdate;
+        }
+
+        public Date getNextUpdate() {
+            return this.nextUpdate;
+        }
+
+        public int getEntryCount() {
+            return this.entryCount;
+        }
+    }
+
+    private final MiniCaConfiguration configuration;
+    private final RevocationIndex revocationIndex;
+    private final long updateIntervalMillis;
+    private final long validityMillis;
+    private final ScheduledExecutorService executor;
+    private final Runnable refreshTask = new Runnable() {
+        public void run() {
+            try {
+                update();
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Unable to publish the CRL.", e);
+            }
+        }
+    };
+
+    private volatile Crl crl;
+    /**
+     * Only used by the publishing thread (and {@link #start()}).
+     */
+    private long publishedModificationCount = -1;
+    private long lastCrlNumber = 0;
+
+    /**
+     * @param configuration
+     *            configuration of the mini CA (issuer name and keys).
+     * @param revocationIndex
+     *            index of the revoked certificates.
+     * @param updateIntervalMillis
+     *            interval at which the index is checked for changes.
+     * @param validityMillis
+     *            time until the next update announced in each CRL.
+     */
+    public CrlPublisher(MiniCaConfiguration configuration,
+            RevocationIndex revocationIndex, long updateIntervalMillis,
+            long validityMillis) {
+        this.configuration = configuration;
+        this.revocationIndex = revocationIndex;
+        this.updateIntervalMillis = updateIntervalMillis;
+        this.validityMillis = validityMillis;
+        this.executor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "crl-publisher");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Publishes the first CRL and starts the background updates.
+     */
+    public void start() throws GeneralSecurityException, IOException {
+        synchronized (this) {
+            publish(new Date());
+        }
+        this.executor.scheduleWithFixedDelay(this.refreshTask,
+                this.updateIntervalMillis, this.updateIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the current CRL (null before {@link #start()}).
+     */
+    public Crl getCrl() {
+        return this.crl;
+    }
+
+    /**
+     * Asks for the CRL to be regenerated soon (for example, after a
+     * revocation), without waiting for it.
+     */
+    public void requestUpdate() {
+        try {
+            this.executor.execute(this.refreshTask);
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.FINE, "CRL publisher stopped.", e);
+        }
+    }
+
+    /**
+     * Regenerates the CRL now, if the revocations have changed or if it is
+     * half-way through its validity (this is otherwise done by the
+     * background thread).
+     */
+    public synchronized void update() throws GeneralSecurityException,
+            IOException {
+        Date now = new Date();
+        this.revocationIndex.prune(now);
+        Crl crl = this.crl;
+        if ((crl == null)
+                || (this.revocationIndex.getModificationCount() != this.publishedModificationCount)
+                || (now.getTime() >= crl.thisUpdate.getTime()
+                        + this.validityMillis / 2)) {
+            publish(now);
+        }
+    }
+
+    private void publish(Date now) throws GeneralSecurityException,
+            IOException {
+        long modificationCount = this.revocationIndex.getModificationCount();
+        List<RevocationIndex.Entry> revocations = this.revocationIndex
+                .getRevocations(now);
+
+        X509V2CRLGenerator crlGenerator = new X509V2CRLGenerator();
+        crlGenerator.setIssuerDN(this.configuration.getIssuerName());
+        crlGenerator.setThisUpdate(now);
+        crlGenerator.setNextUpdate(new Date(now.getTime()
+                + this.validityMillis));
+        crlGenerator.setSignatureAlgorithm(this.configuration
+                .getSignatureAlgorithm());
+        for (RevocationIndex.Entry entry : revocations) {
+            crlGenerator.addCRLEntry(entry.getSerialNumber(), entry
+                    .getRevocationDate(), entry.getReason());
+        }
+        /*
+         * The CRL number is based on the time, so that it keeps increasing
+         * across restarts.
+         */
+        long crlNumber = Math.max(now.getTime(), this.lastCrlNumber + 1);
+        crlGenerator.addExtension(X509Extensions.CRLNumber, false,
+                new CRLNumber(BigInteger.valueOf(crlNumber)));
+        crlGenerator.addExtension(X509Extensions.AuthorityKeyIdentifier,
+                false, new AuthorityKeyIdentifierStructure(this.configuration
+                        .getCaCertificate()));
+
+        this.crl = new Crl(crlGenerator.generate(this.configuration
+                .getCaPrivKey(), "BC"), revocations.size());
+        this.lastCrlNumber = crlNumber;
+        this.publishedModificationCount = modificationCount;
+        LOGGER.log(Level.FINE, String.format(
+                "CRL %d published with %d entries.", crlNumber, revocations
+                        .size()));
+    }
+
+    /**
+     * Stops the background updates.
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        Crl crl = this.crl;
+        return String.format("CrlPublisher [entries=%d, thisUpdate=%s, %s]",
+                (crl != null) ? crl.entryCount : 0,
+                (crl != null) ? crl.thisUpdate : null, this.revocationIndex);
+    }
+}
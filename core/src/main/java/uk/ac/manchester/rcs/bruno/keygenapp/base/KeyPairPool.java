@@ -0,0 +1,266 @@
+/*
+
+Copyright (c) 2008-2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+ 
+ */
+package uk.ac.manchester.rcs.bruno.keygenapp.base;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * This class keeps a pool of pre-generated key pairs, for the server-side
+ * generation of keys, since generating a key pair (RSA in particular) is too
+ * slow to be done while the client waits.
+ * 
+ * A background thread fills the pool up to the high watermark whenever it
+ * falls to the low watermark. Taking a key pair never generates one inline:
+ * if the pool is empty, the caller waits up to a given time for the
+ * background thread.
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class KeyPairPool {
+    static {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    private final static Logger LOGGER = Logger.getLogger(KeyPairPool.class
+            .getName());
+
+    private final String algorithm;
+    private final int keySize;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final KeyPairGenerator keyPairGenerator;
+    private final LinkedBlockingQueue<KeyPair> keyPairs;
+    private final Object fillSignal = new Object();
+    private final Thread fillerThread;
+    private volatile boolean running = true;
+
+    private final AtomicLong generatedCount = new AtomicLong();
+    private final AtomicLong takenCount = new AtomicLong();
+    private final AtomicLong exhaustedCount = new AtomicLong();
+
+    /**
+     * @param algorithm
+     *            "RSA" or "EC".
+     * @param keySize
+     *            size of the keys in bits (for EC, 256, 384 or 521, using
+     *            the corresponding NIST curve).
+     * @param lowWatermark
+     *            number of key pairs left in the pool at which it is filled
+     *            up again.
+     * @param highWatermark
+     *            number of key pairs the pool is filled up to.
+     * @throws GeneralSecurityException
+     *             if the algorithm or key size is not supported.
+     */
+    public KeyPairPool(String algorithm, int keySize, int lowWatermark,
+            int highWatermark) throws GeneralSecurityException {
+        if ((highWatermark < 1) || (lowWatermark < 0)
+                || (lowWatermark >= highWatermark)) {
+            throw new IllegalArgumentException(
+                    "The watermarks must be such that 0 <= low < high.");
+        }
+        this.algorithm = algorithm.toUpperCase();
+        this.keySize = keySize;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.keyPairGenerator = createKeyPairGenerator(this.algorithm,
+                keySize);
+        this.keyPairs = new LinkedBlockingQueue<KeyPair>(highWatermark);
+
+        this.fillerThread = new Thread(new Runnable() {
+            public void run() {
+                fill();
+            }
+        }, "key-pair-pool-" + this.algorithm);
+        this.fillerThread.setDaemon(true);
+        this.fillerThread.setPriority(Thread.MIN_PRIORITY);
+        this.fillerThread.start();
+    }
+
+    /**
+     * Creates a key pair generator for the given algorithm and key size.
+     * 
+     * @param algorithm
+     *            "RSA" or "EC".
+     * @param keySize
+     *            size of the keys in bits.
+     * @return key pair generator.
+     * @throws GeneralSecurityException
+     */
+    public static KeyPairGenerator createKeyPairGenerator(String algorithm,
+            int keySize) throws GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator;
+        if ("EC".equalsIgnoreCase(algorithm)) {
+            keyPairGenerator = KeyPairGenerator.getInstance("EC",
+                    BouncyCastleProvider.PROVIDER_NAME);
+            keyPairGenerator.initialize(new ECGenParameterSpec("P-"
+                    + keySize), new SecureRandom());
+        } else {
+            keyPairGenerator = KeyPairGenerator.getInstance(algorithm);
+            keyPairGenerator.initialize(keySize, new SecureRandom());
+        }
+        return keyPairGenerator;
+    }
+
+    private void fill() {
+        while (this.running) {
+            try {
+                synchronized (this.fillSignal) {
+                    while (this.running
+                            && (this.keyPairs.size() > this.lowWatermark)) {
+                        this.fillSignal.wait();
+                    }
+                }
+                while (this.running
+                        && (this.keyPairs.size() < this.highWatermark)) {
+                    KeyPair keyPair = this.keyPairGenerator
+                            .generateKeyPair();
+                    this.generatedCount.incrementAndGet();
+                    if (!this.keyPairs.offer(keyPair)) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Unable to generate key pair.", e);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a key pair from the pool.
+     * 
+     * @param timeout
+     *            maximum time to wait if the pool is empty.
+     * @param unit
+     *            unit of the timeout.
+     * @return a key pair, or null if none was available in time.
+     * @throws InterruptedException
+     */
+    public KeyPair take(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        KeyPair keyPair = this.keyPairs.poll();
+        if (keyPair == null) {
+            this.exhaustedCount.incrementAndGet();
+            signalFiller();
+            keyPair = this.keyPairs.poll(timeout, unit);
+        }
+        if (this.keyPairs.size() <= this.lowWatermark) {
+            signalFiller();
+        }
+        if (keyPair != null) {
+            this.takenCount.incrementAndGet();
+        }
+        return keyPair;
+    }
+
+    private void signalFiller() {
+        synchronized (this.fillSignal) {
+            this.fillSignal.notifyAll();
+        }
+    }
+
+    public String getAlgorithm() {
+        return this.algorithm;
+    }
+
+    public int getKeySize() {
+        return this.keySize;
+    }
+
+    /**
+     * @return number of key pairs currently available.
+     */
+    public int getAvailable() {
+        return this.keyPairs.size();
+    }
+
+    public long getGeneratedCount() {
+        return this.generatedCount.get();
+    }
+
+    public long getTakenCount() {
+        return this.takenCount.get();
+    }
+
+    /**
+     * @return number of times a key pair was requested while the pool was
+     *         empty.
+     */
+    public long getExhaustedCount() {
+        return this.exhaustedCount.get();
+    }
+
+    /**
+     * Stops the background generation of key pairs and discards the
+     * remaining ones.
+     */
+    public void shutdown() {
+        this.running = false;
+        this.fillerThread.interrupt();
+        this.keyPairs.clear();
+        LOGGER.log(Level.INFO, toString());
+    }
+
+    @Override
+    public String toString() {
+        return String
+                .format(
+                        "KeyPairPool [algorithm=%s, keySize=%d, low=%d, high=%d, available=%d, generated=%d, taken=%d, exhausted=%d]",
+                        getAlgorithm(), getKeySize(), this.lowWatermark,
+                        this.highWatermark, getAvailable(),
+                        getGeneratedCount(), getTakenCount(),
+                        getExhaustedCount());
+    }
+}
@@ -32,16 +32,21 @@ POSSIBILITY OF SUCH DAMAGE.
  */
 package uk.ac.manchester.rcs.bruno.keygenapp.base;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.math.BigInteger;
 import java.security.InvalidKeyException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.Security;
 import java.security.SignatureException;
+import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Date;
@@ -85,6 +90,45 @@ public class MiniCaCertGen {
     private final static Logger LOGGER = Logger.getLogger(MiniCaCertGen.class
             .getName());
 
+    public final static String DEFAULT_SIGNATURE_DIGEST = "SHA256";
+
+    /*
+     * Extensions common to all the certificates (these are immutable).
+     */
+    private final static BasicConstraints BASIC_CONSTRAINTS = new BasicConstraints(
+            false);
+    private final static KeyUsage KEY_USAGE = new KeyUsage(
+            KeyUsage.digitalSignature | KeyUsage.nonRepudiation
+                    | KeyUsage.keyEncipherment | KeyUsage.keyAgreement
+                    | KeyUsage.keyCertSign);
+    /*
+     * EC keys can't be used for key encipherment.
+     */
+    private final static KeyUsage EC_KEY_USAGE = new KeyUsage(
+            KeyUsage.digitalSignature | KeyUsage.nonRepudiation
+                    | KeyUsage.keyAgreement | KeyUsage.keyCertSign);
+    private final static NetscapeCertType NETSCAPE_CERT_TYPE = new NetscapeCertType(
+            NetscapeCertType.sslClient | NetscapeCertType.smime);
+
+    /**
+     * Certificate generator of each signing thread, reset before each use.
+     */
+    private final static ThreadLocal<X509V3CertificateGenerator> THREAD_GENERATOR = new ThreadLocal<X509V3CertificateGenerator>() {
+        @Override
+        protected X509V3CertificateGenerator initialValue() {
+            return new X509V3CertificateGenerator();
+        }
+    };
+
+    /**
+     * @return the certificate generator of the current thread, to be passed
+     *         to the createCert methods that take a generator (which reset
+     *         it).
+     */
+    static X509V3CertificateGenerator getThreadGenerator() {
+        return THREAD_GENERATOR.get();
+    }
+
     /**
      * Creates a certificate, containing a subjectAltName URI.
      * 
@@ -123,9 +167,151 @@ public class MiniCaCertGen {
             throws InvalidKeyException, IllegalStateException,
             NoSuchAlgorithmException, SignatureException, CertificateException,
             NoSuchProviderException {
+        return createCert(caPubKey, caPrivKey, certPubKey, subject, issuer,
+                startDate, endDate, subjAltNameURI, serialNumber,
+                CertificateVerificationPolicy.ALWAYS);
+    }
+
+    /**
+     * Creates a certificate, containing a subjectAltName URI, and checks it
+     * according to the given policy.
+     * 
+     * @param caPubKey
+     *            CA public key
+     * @param caPrivKey
+     *            CA private key
+     * @param certPubKey
+     *            certificate public key
+     * @param subject
+     *            subject (and issuer) DN for this certificate, RFC 2253 format
+     *            preferred.
+     * @param startDate
+     *            date from and until which the certificate will be valid
+     *            (defaults to current date and time if null)
+     * @param endDate
+     *            date until which the certificate will be valid (defaults to
+     *            365 days after start date if null)
+     * @param subjAltNameURI
+     *            URI to be placed in subjectAltName
+     * @param serialNumber
+     *            certificate serial number
+     * @param verificationPolicy
+     *            how to check the certificate once it has been signed
+     * @return certificate
+     * @throws InvalidKeyException
+     * @throws SignatureException
+     * @throws NoSuchAlgorithmException
+     * @throws IllegalStateException
+     * @throws NoSuchProviderException
+     * @throws CertificateException
+     */
+    public static X509Certificate createCert(PublicKey caPubKey,
+            PrivateKey caPrivKey, PublicKey certPubKey, X509Name subject,
+            X509Name issuer, Date startDate, Date endDate,
+            String subjAltNameURI, BigInteger serialNumber,
+            CertificateVerificationPolicy verificationPolicy)
+            throws InvalidKeyException, IllegalStateException,
+            NoSuchAlgorithmException, SignatureException, CertificateException,
+            NoSuchProviderException {
+        return createCert(new X509V3CertificateGenerator(),
+                getSignatureAlgorithm(caPubKey), null, caPubKey, caPrivKey,
+                certPubKey, subject, issuer, startDate, endDate,
+                subjAltNameURI, serialNumber, verificationPolicy);
+    }
 
-        X509V3CertificateGenerator certGenerator = new X509V3CertificateGenerator();
+    /**
+     * Returns the signature algorithm to use with a given CA key, with the
+     * default digest ({@value #DEFAULT_SIGNATURE_DIGEST}).
+     * 
+     * @param caPubKey
+     *            CA public key
+     * @return name of the signature algorithm
+     */
+    public static String getSignatureAlgorithm(PublicKey caPubKey) {
+        return getSignatureAlgorithm(caPubKey, DEFAULT_SIGNATURE_DIGEST);
+    }
 
+    /**
+     * Returns the signature algorithm to use with a given CA key (DSA, RSA or
+     * EC) and digest.
+     * 
+     * @param caPubKey
+     *            CA public key
+     * @param digest
+     *            digest algorithm (e.g. "SHA256", "SHA384", "SHA1")
+     * @return name of the signature algorithm
+     */
+    public static String getSignatureAlgorithm(PublicKey caPubKey,
+            String digest) {
+        String pubKeyAlgorithm = caPubKey.getAlgorithm();
+        if (pubKeyAlgorithm.equals("DSA")) {
+            return digest + "WithDSA";
+        } else if (pubKeyAlgorithm.equals("RSA")) {
+            return digest + "WithRSAEncryption";
+        } else if (pubKeyAlgorithm.equals("EC")
+                || pubKeyAlgorithm.equals("ECDSA")) {
+            return digest + "WithECDSA";
+        } else {
+            RuntimeException re = new RuntimeException(
+                    "Algorithm not recognised: " + pubKeyAlgorithm);
+            LOGGER.log(Level.SEVERE, re.getMessage(), re);
+            throw re;
+        }
+    }
+
+    /**
+     * Creates a certificate, containing a subjectAltName URI, using a given
+     * generator, signature algorithm and source of randomness, which can be
+     * reused by callers issuing many certificates (one generator per
+     * thread).
+     * 
+     * @param certGenerator
+     *            generator to use (it is reset first)
+     * @param signatureAlgorithm
+     *            signature algorithm (see
+     *            {@link #getSignatureAlgorithm(PublicKey)})
+     * @param random
+     *            source of randomness for the signature (may be null)
+     * @param caPubKey
+     *            CA public key
+     * @param caPrivKey
+     *            CA private key
+     * @param certPubKey
+     *            certificate public key
+     * @param subject
+     *            subject DN for this certificate
+     * @param issuer
+     *            issuer DN for this certificate
+     * @param startDate
+     *            date from and until which the certificate will be valid
+     *            (defaults to current date and time if null)
+     * @param endDate
+     *            date until which the certificate will be valid (defaults to
+     *            365 days after start date if null)
+     * @param subjAltNameURI
+     *            URI to be placed in subjectAltName
+     * @param serialNumber
+     *            certificate serial number
+     * @param verificationPolicy
+     *            how to check the certificate once it has been signed
+     * @return certificate
+     * @throws InvalidKeyException
+     * @throws SignatureException
+     * @throws NoSuchAlgorithmException
+     * @throws IllegalStateException
+     * @throws NoSuchProviderException
+     * @throws CertificateException
+     */
+    public static X509Certificate createCert(
+            X509V3CertificateGenerator certGenerator,
+            String signatureAlgorithm, SecureRandom random,
+            PublicKey caPubKey, PrivateKey caPrivKey, PublicKey certPubKey,
+            X509Name subject, X509Name issuer, Date startDate, Date endDate,
+            String subjAltNameURI, BigInteger serialNumber,
+            CertificateVerificationPolicy verificationPolicy)
+            throws InvalidKeyException, IllegalStateException,
+            NoSuchAlgorithmException, SignatureException, CertificateException,
+            NoSuchProviderException {
         certGenerator.reset();
         /*
          * Sets up the subject distinguished name. Since it's a self-signed
@@ -158,38 +344,25 @@ public class MiniCaCertGen {
         /*
          * Sets the signature algorithm.
          */
-        String pubKeyAlgorithm = caPubKey.getAlgorithm();
-        if (pubKeyAlgorithm.equals("DSA")) {
-            certGenerator.setSignatureAlgorithm("SHA1WithDSA");
-        } else if (pubKeyAlgorithm.equals("RSA")) {
-            certGenerator.setSignatureAlgorithm("SHA1WithRSAEncryption");
-        } else {
-            RuntimeException re = new RuntimeException(
-                    "Algorithm not recognised: " + pubKeyAlgorithm);
-            LOGGER.log(Level.SEVERE, re.getMessage(), re);
-            throw re;
-        }
+        certGenerator.setSignatureAlgorithm(signatureAlgorithm);
 
         /*
          * Adds the Basic Constraint (CA: false) extension.
          */
         certGenerator.addExtension(X509Extensions.BasicConstraints, true,
-                new BasicConstraints(false));
+                BASIC_CONSTRAINTS);
 
         /*
          * Adds the Key Usage extension.
          */
-        certGenerator.addExtension(X509Extensions.KeyUsage, true, new KeyUsage(
-                KeyUsage.digitalSignature | KeyUsage.nonRepudiation
-                        | KeyUsage.keyEncipherment | KeyUsage.keyAgreement
-                        | KeyUsage.keyCertSign));
+        certGenerator.addExtension(X509Extensions.KeyUsage, true, (certPubKey
+                .getAlgorithm().startsWith("EC")) ? EC_KEY_USAGE : KEY_USAGE);
 
         /*
          * Adds the Netscape certificate type extension.
          */
         certGenerator.addExtension(MiscObjectIdentifiers.netscapeCertType,
-                false, new NetscapeCertType(NetscapeCertType.sslClient
-                        | NetscapeCertType.smime));
+                false, NETSCAPE_CERT_TYPE);
 
         /*
          * Adds the subject key identifier extension.
@@ -214,12 +387,18 @@ public class MiniCaCertGen {
          * to the public key of the certificate (hence the name
          * "self-signed certificate").
          */
-        X509Certificate cert = certGenerator.generate(caPrivKey);
+        X509Certificate cert;
+        if (random != null) {
+            cert = certGenerator.generate(caPrivKey, random);
+        } else {
+            cert = certGenerator.generate(caPrivKey);
+        }
 
         /*
-         * Checks that this certificate has indeed been correctly signed.
+         * Checks that this certificate has indeed been correctly signed (or
+         * at least correctly built, depending on the policy).
          */
-        cert.verify(caPubKey);
+        verificationPolicy.check(cert, caPubKey, certPubKey, serialNumber);
 
         return cert;
     }
@@ -262,9 +441,56 @@ public class MiniCaCertGen {
             InvalidKeyException, IllegalStateException,
             NoSuchAlgorithmException, SignatureException, CertificateException,
             NoSuchProviderException {
+        return createCert(caPubKey, caPrivKey, netscapeCertReq, subject,
+                issuer, startDate, endDate, subjAltNameURI, serialNumber,
+                CertificateVerificationPolicy.ALWAYS);
+    }
+
+    /**
+     * Creates a certificate, containing a subjectAltName URI, and checks it
+     * according to the given policy.
+     * 
+     * @param caPubKey
+     *            CA public key
+     * @param caPrivKey
+     *            CA private key
+     * @param netscapeCertReq
+     *            NetscapeCertRequest object build from the SPKAC data
+     * @param subject
+     *            subject (and issuer) DN for this certificate, RFC 2253 format
+     *            preferred.
+     * @param startDate
+     *            date from and until which the certificate will be valid
+     *            (defaults to current date and time if null)
+     * @param endDate
+     *            date until which the certificate will be valid (defaults to
+     *            365 days after start date if null)
+     * @param subjAltNameURI
+     *            URI to be placed in subjectAltName
+     * @param serialNumber
+     *            certificate serial number
+     * @param verificationPolicy
+     *            how to check the certificate once it has been signed
+     * @return certificate
+     * @throws IOException
+     * @throws InvalidKeyException
+     * @throws IllegalStateException
+     * @throws NoSuchAlgorithmException
+     * @throws SignatureException
+     * @throws CertificateException
+     * @throws NoSuchProviderException
+     */
+    public static X509Certificate createCert(PublicKey caPubKey,
+            PrivateKey caPrivKey, NetscapeCertRequest netscapeCertReq,
+            X509Name subject, X509Name issuer, Date startDate, Date endDate,
+            String subjAltNameURI, BigInteger serialNumber,
+            CertificateVerificationPolicy verificationPolicy)
+            throws IOException, InvalidKeyException, IllegalStateException,
+            NoSuchAlgorithmException, SignatureException, CertificateException,
+            NoSuchProviderException {
         return createCert(caPubKey, caPrivKey, netscapeCertReq.getPublicKey(),
                 subject, issuer, startDate, endDate, subjAltNameURI,
-                serialNumber);
+                serialNumber, verificationPolicy);
     }
 
     /**
@@ -306,9 +532,57 @@ public class MiniCaCertGen {
             InvalidKeyException, IllegalStateException,
             NoSuchAlgorithmException, SignatureException, CertificateException,
             NoSuchProviderException {
+        return createCert(caPubKey, caPrivKey, pkcs10csr, subject, issuer,
+                startDate, endDate, subjAltNameURI, serialNumber,
+                CertificateVerificationPolicy.ALWAYS);
+    }
+
+    /**
+     * Creates a certificate, containing a subjectAltName URI, and checks it
+     * according to the given policy.
+     * 
+     * @param caPubKey
+     *            CA public key
+     * @param caPrivKey
+     *            CA private key
+     * @param pkcs10csr
+     *            PKCS10CertificationRequest object (representing the
+     *            certification request)
+     * @param subject
+     *            subject (and issuer) DN for this certificate, RFC 2253 format
+     *            preferred.
+     * @param startDate
+     *            date from and until which the certificate will be valid
+     *            (defaults to current date and time if null)
+     * @param endDate
+     *            date until which the certificate will be valid (defaults to
+     *            365 days after start date if null)
+     * @param subjAltNameURI
+     *            URI to be placed in subjectAltName
+     * @param serialNumber
+     *            certificate serial number
+     * @param verificationPolicy
+     *            how to check the certificate once it has been signed
+     * @return certificate
+     * @throws IOException
+     * @throws InvalidKeyException
+     * @throws IllegalStateException
+     * @throws NoSuchAlgorithmException
+     * @throws SignatureException
+     * @throws CertificateException
+     * @throws NoSuchProviderException
+     */
+    public static X509Certificate createCert(PublicKey caPubKey,
+            PrivateKey caPrivKey, PKCS10CertificationRequest pkcs10csr,
+            X509Name subject, X509Name issuer, Date startDate, Date endDate,
+            String subjAltNameURI, BigInteger serialNumber,
+            CertificateVerificationPolicy verificationPolicy)
+            throws IOException, InvalidKeyException, IllegalStateException,
+            NoSuchAlgorithmException, SignatureException, CertificateException,
+            NoSuchProviderException {
         return createCert(caPubKey, caPrivKey, pkcs10csr.getPublicKey(),
                 subject, issuer, startDate, endDate, subjAltNameURI,
-                serialNumber);
+                serialNumber, verificationPolicy);
     }
 
     /**
@@ -349,9 +623,56 @@ public class MiniCaCertGen {
             InvalidKeyException, IllegalStateException,
             NoSuchAlgorithmException, SignatureException, CertificateException,
             NoSuchProviderException {
+        return createCertFromSpkac(caPubKey, caPrivKey, spkacData, subject,
+                issuer, startDate, endDate, subjAltNameURI, serialNumber,
+                CertificateVerificationPolicy.ALWAYS);
+    }
+
+    /**
+     * Creates a certificate, containing a subjectAltName URI, and checks it
+     * according to the given policy.
+     * 
+     * @param caPubKey
+     *            CA public key
+     * @param caPrivKey
+     *            CA private key
+     * @param spkacData
+     *            SPKAC data obtained from the KEYGEN tag
+     * @param subject
+     *            subject (and issuer) DN for this certificate, RFC 2253 format
+     *            preferred.
+     * @param startDate
+     *            date from and until which the certificate will be valid
+     *            (defaults to current date and time if null)
+     * @param endDate
+     *            date until which the certificate will be valid (defaults to
+     *            365 days after start date if null)
+     * @param subjAltNameURI
+     *            URI to be placed in subjectAltName
+     * @param serialNumber
+     *            certificate serial number
+     * @param verificationPolicy
+     *            how to check the certificate once it has been signed
+     * @return certificate
+     * @throws IOException
+     * @throws InvalidKeyException
+     * @throws IllegalStateException
+     * @throws NoSuchAlgorithmException
+     * @throws SignatureException
+     * @throws CertificateException
+     * @throws NoSuchProviderException
+     */
+    public static X509Certificate createCertFromSpkac(PublicKey caPubKey,
+            PrivateKey caPrivKey, String spkacData, X509Name subject,
+            X509Name issuer, Date startDate, Date endDate,
+            String subjAltNameURI, BigInteger serialNumber,
+            CertificateVerificationPolicy verificationPolicy)
+            throws IOException, InvalidKeyException, IllegalStateException,
+            NoSuchAlgorithmException, SignatureException, CertificateException,
+            NoSuchProviderException {
         return createCert(caPubKey, caPrivKey, new NetscapeCertRequest(Base64
                 .decode(spkacData)), subject, issuer, startDate, endDate,
-                subjAltNameURI, serialNumber);
+                subjAltNameURI, serialNumber, verificationPolicy);
     }
 
     /**
@@ -392,6 +713,53 @@ public class MiniCaCertGen {
             InvalidKeyException, IllegalStateException,
             NoSuchAlgorithmException, SignatureException, CertificateException,
             NoSuchProviderException {
+        return createCertFromPemCsr(caPubKey, caPrivKey, pemCsr, subject,
+                issuer, startDate, endDate, subjAltNameURI, serialNumber,
+                CertificateVerificationPolicy.ALWAYS);
+    }
+
+    /**
+     * Creates a certificate, containing a subjectAltName URI, and checks it
+     * according to the given policy.
+     * 
+     * @param caPubKey
+     *            CA public key
+     * @param caPrivKey
+     *            CA private key
+     * @param spkacData
+     *            SPKAC data obtained from the KEYGEN tag
+     * @param subject
+     *            subject (and issuer) DN for this certificate, RFC 2253 format
+     *            preferred.
+     * @param startDate
+     *            date from and until which the certificate will be valid
+     *            (defaults to current date and time if null)
+     * @param endDate
+     *            date until which the certificate will be valid (defaults to
+     *            365 days after start date if null)
+     * @param subjAltNameURI
+     *            URI to be placed in subjectAltName
+     * @param serialNumber
+     *            certificate serial number
+     * @param verificationPolicy
+     *            how to check the certificate once it has been signed
+     * @return certificate
+     * @throws IOException
+     * @throws InvalidKeyException
+     * @throws IllegalStateException
+     * @throws NoSuchAlgorithmException
+     * @throws SignatureException
+     * @throws CertificateException
+     * @throws NoSuchProviderException
+     */
+    public static X509Certificate createCertFromPemCsr(PublicKey caPubKey,
+            PrivateKey caPrivKey, String pemCsr, X509Name subject,
+            X509Name issuer, Date startDate, Date endDate,
+            String subjAltNameURI, BigInteger serialNumber,
+            CertificateVerificationPolicy verificationPolicy)
+            throws IOException, InvalidKeyException, IllegalStateException,
+            NoSuchAlgorithmException, SignatureException, CertificateException,
+            NoSuchProviderException {
 
         PEMReader pemReader = new PEMReader(new StringReader(pemCsr));
         Object pemObject = pemReader.readObject();
@@ -399,9 +767,98 @@ public class MiniCaCertGen {
             PKCS10CertificationRequest pkcs10Obj = (PKCS10CertificationRequest) pemObject;
 
             return createCert(caPubKey, caPrivKey, pkcs10Obj, subject, issuer,
-                    startDate, endDate, subjAltNameURI, serialNumber);
+                    startDate, endDate, subjAltNameURI, serialNumber,
+                    verificationPolicy);
         } else {
             throw new IOException("Unable to read PEM CSR data.");
         }
     }
+
+    /**
+     * Extracts the public key from SPKAC data.
+     * 
+     * @param spkacData
+     *            SPKAC data obtained from the KEYGEN tag
+     * @return public key
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchProviderException
+     * @throws InvalidKeyException
+     */
+    public static PublicKey getPublicKeyFromSpkac(String spkacData)
+            throws IOException, InvalidKeyException,
+            NoSuchAlgorithmException, NoSuchProviderException {
+        return new NetscapeCertRequest(Base64.decode(spkacData))
+                .getPublicKey();
+    }
+
+    /**
+     * Extracts the public key from a PEM-encoded PKCS#10 certification
+     * request.
+     * 
+     * @param pemCsr
+     *            PEM-encoded PKCS#10 certification request
+     * @return public key
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchProviderException
+     * @throws InvalidKeyException
+     */
+    public static PublicKey getPublicKeyFromPemCsr(String pemCsr)
+            throws IOException, InvalidKeyException,
+            NoSuchAlgorithmException, NoSuchProviderException {
+        PEMReader pemReader = new PEMReader(new StringReader(pemCsr));
+        try {
+            Object pemObject = pemReader.readObject();
+            if (pemObject instanceof PKCS10CertificationRequest) {
+                return ((PKCS10CertificationRequest) pemObject)
+                        .getPublicKey();
+            } else {
+                throw new IOException("Unable to read PEM CSR data.");
+            }
+        } finally {
+            pemReader.close();
+        }
+    }
+
+    /**
+     * Builds a PKCS#12 bundle containing a private key, its certificate and
+     * the CA certificate (for keys generated on the server).
+     * 
+     * @param privateKey
+     *            private key
+     * @param cert
+     *            certificate for this key
+     * @param caCert
+     *            CA certificate (may be null)
+     * @param alias
+     *            friendly name of the key in the bundle
+     * @param password
+     *            password protecting the bundle
+     * @return PKCS#12 bundle
+     * @throws KeyStoreException
+     * @throws NoSuchProviderException
+     * @throws NoSuchAlgorithmException
+     * @throws CertificateException
+     * @throws IOException
+     */
+    public static byte[] createPkcs12(PrivateKey privateKey,
+            X509Certificate cert, X509Certificate caCert, String alias,
+            char[] password) throws KeyStoreException,
+            NoSuchProviderException, NoSuchAlgorithmException,
+            CertificateException, IOException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12",
+                BouncyCastleProvider.PROVIDER_NAME);
+        keyStore.load(null, null);
+        Certificate[] chain;
+        if (caCert != null) {
+            chain = new Certificate[] { cert, caCert };
+        } else {
+            chain = new Certificate[] { cert };
+        }
+        keyStore.setKeyEntry(alias, privateKey, password, chain);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        keyStore.store(outputStream, password);
+        return outputStream.toByteArray();
+    }
 }
@@ -32,6 +32,7 @@ POSSIBILITY OF SUCH DAMAGE.
  */
 package uk.ac.manchester.rcs.bruno.keygenapp.base;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -47,7 +48,6 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Enumeration;
-import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -90,12 +90,46 @@ public class MiniCaConfiguration {
 
     public static final String ISSUER_NAME_JNDI_NAME = "webiddirectory/issuerName";
 
+    public static final String VALIDITY_DAYS_JNDI_NAME = "webiddirectory/certificateValidityDays";
+    public static final String SIGNING_THREADS_JNDI_NAME = "webiddirectory/signingThreads";
+    public static final String SIGNING_QUEUE_CAPACITY_JNDI_NAME = "webiddirectory/signingQueueCapacity";
+    public static final String SIGNING_TIMEOUT_JNDI_NAME = "webiddirectory/signingTimeout";
+    public static final String VERIFICATION_POLICY_JNDI_NAME = "webiddirectory/certificateVerification";
+    public static final String VERIFICATION_SAMPLE_INTERVAL_JNDI_NAME = "webiddirectory/certificateVerificationSampleInterval";
+    public static final String SERIAL_NUMBER_STRATEGY_JNDI_NAME = "webiddirectory/serialNumberStrategy";
+    public static final String SERIAL_NUMBER_NODE_ID_JNDI_NAME = "webiddirectory/serialNumberNodeId";
+    public static final String SERIAL_NUMBER_FILE_JNDI_NAME = "webiddirectory/serialNumberFile";
+    public static final String SERIAL_NUMBER_BLOCK_SIZE_JNDI_NAME = "webiddirectory/serialNumberBlockSize";
+    public static final String SIGNATURE_DIGEST_JNDI_NAME = "webiddirectory/signatureDigest";
+    public static final String SERVER_KEY_GENERATION_JNDI_NAME = "webiddirectory/serverKeyGeneration";
+    public static final String SERVER_KEY_ALGORITHM_JNDI_NAME = "webiddirectory/serverKeyAlgorithm";
+    public static final String SERVER_KEY_SIZE_JNDI_NAME = "webiddirectory/serverKeySize";
+    public static final String KEY_POOL_LOW_WATERMARK_JNDI_NAME = "webiddirectory/keyPoolLowWatermark";
+    public static final String KEY_POOL_HIGH_WATERMARK_JNDI_NAME = "webiddirectory/keyPoolHighWatermark";
+    public static final String CRL_UPDATE_INTERVAL_JNDI_NAME = "webiddirectory/crlUpdateInterval";
+    public static final String CRL_VALIDITY_JNDI_NAME = "webiddirectory/crlValidity";
+
     private PrivateKey caPrivKey;
     private X509Certificate caCertificate;
 
     private X509Name issuerName;
 
-    private Random random = new Random();
+    private SerialNumberAllocator serialNumberAllocator = new RandomSerialNumberAllocator();
+    private final RevocationIndex revocationIndex = new RevocationIndex();
+
+    private int certificateValidityDays = 365;
+    private int signingThreads = Runtime.getRuntime().availableProcessors();
+    private int signingQueueCapacity = 100;
+    private int signingTimeout = 30;
+    private CertificateVerificationPolicy verificationPolicy = CertificateVerificationPolicy.ALWAYS;
+    private String signatureDigest = MiniCaCertGen.DEFAULT_SIGNATURE_DIGEST;
+    private boolean serverKeyGeneration = false;
+    private String serverKeyAlgorithm = "RSA";
+    private int serverKeySize = 2048;
+    private int keyPoolLowWatermark = 5;
+    private int keyPoolHighWatermark = 20;
+    private int crlUpdateInterval = 60;
+    private int crlValidity = 24;
 
     public PrivateKey getCaPrivKey() {
         return this.caPrivKey;
@@ -129,11 +163,182 @@ public class MiniCaConfiguration {
         this.issuerName = new X509Name(issuerName);
     }
 
+    public int getCertificateValidityDays() {
+        return this.certificateValidityDays;
+    }
+
+    public void setCertificateValidityDays(int certificateValidityDays) {
+        this.certificateValidityDays = certificateValidityDays;
+    }
+
+    /**
+     * @return number of threads used to sign certificates (defaults to the
+     *         number of available processors).
+     */
+    public int getSigningThreads() {
+        return this.signingThreads;
+    }
+
+    public void setSigningThreads(int signingThreads) {
+        this.signingThreads = signingThreads;
+    }
+
+    /**
+     * @return maximum number of certificate requests waiting to be signed.
+     */
+    public int getSigningQueueCapacity() {
+        return this.signingQueueCapacity;
+    }
+
+    public void setSigningQueueCapacity(int signingQueueCapacity) {
+        this.signingQueueCapacity = signingQueueCapacity;
+    }
+
+    /**
+     * @return time (in seconds) a request waits for its certificate to be
+     *         signed.
+     */
+    public int getSigningTimeout() {
+        return this.signingTimeout;
+    }
+
+    public void setSigningTimeout(int signingTimeout) {
+        this.signingTimeout = signingTimeout;
+    }
+
+    /**
+     * @return how certificates are checked after being signed.
+     */
+    public CertificateVerificationPolicy getVerificationPolicy() {
+        return this.verificationPolicy;
+    }
+
+    public void setVerificationPolicy(
+            CertificateVerificationPolicy verificationPolicy) {
+        this.verificationPolicy = verificationPolicy;
+    }
+
+    /**
+     * @return digest used in the signature of the certificates (SHA256 by
+     *         default).
+     */
+    public String getSignatureDigest() {
+        return this.signatureDigest;
+    }
+
+    public void setSignatureDigest(String signatureDigest) {
+        this.signatureDigest = signatureDigest;
+    }
+
+    /**
+     * @return signature algorithm for the CA key and the configured digest.
+     */
+    public String getSignatureAlgorithm() {
+        return MiniCaCertGen.getSignatureAlgorithm(getCaPublicKey(),
+                this.signatureDigest);
+    }
+
+    /**
+     * @return true if keys may be generated by the server (and returned in
+     *         a PKCS#12 bundle).
+     */
+    public boolean isServerKeyGeneration() {
+        return this.serverKeyGeneration;
+    }
+
+    public void setServerKeyGeneration(boolean serverKeyGeneration) {
+        this.serverKeyGeneration = serverKeyGeneration;
+    }
+
+    /**
+     * @return algorithm of the keys generated by the server ("RSA" or "EC").
+     */
+    public String getServerKeyAlgorithm() {
+        return this.serverKeyAlgorithm;
+    }
+
+    public void setServerKeyAlgorithm(String serverKeyAlgorithm) {
+        this.serverKeyAlgorithm = serverKeyAlgorithm;
+    }
+
+    public int getServerKeySize() {
+        return this.serverKeySize;
+    }
+
+    public void setServerKeySize(int serverKeySize) {
+        this.serverKeySize = serverKeySize;
+    }
+
+    /**
+     * @return number of pre-generated key pairs at which the pool is filled
+     *         up again.
+     */
+    public int getKeyPoolLowWatermark() {
+        return this.keyPoolLowWatermark;
+    }
+
+    public void setKeyPoolLowWatermark(int keyPoolLowWatermark) {
+        this.keyPoolLowWatermark = keyPoolLowWatermark;
+    }
+
+    /**
+     * @return number of pre-generated key pairs the pool is filled up to.
+     */
+    public int getKeyPoolHighWatermark() {
+        return this.keyPoolHighWatermark;
+    }
+
+    public void setKeyPoolHighWatermark(int keyPoolHighWatermark) {
+        this.keyPoolHighWatermark = keyPoolHighWatermark;
+    }
+
+    /**
+     * @return allocator of the serial numbers of the certificates (random by
+     *         default).
+     */
+    public SerialNumberAllocator getSerialNumberAllocator() {
+        return this.serialNumberAllocator;
+    }
+
+    public void setSerialNumberAllocator(
+            SerialNumberAllocator serialNumberAllocator) {
+        this.serialNumberAllocator = serialNumberAllocator;
+    }
+
     public BigInteger nextCertificateSerialNumber() {
-        byte[] randomBytes = new byte[24];
-        random.nextBytes(randomBytes);
-        randomBytes[0] = 1;
-        return new BigInteger(randomBytes);
+        return this.serialNumberAllocator.nextSerialNumber();
+    }
+
+    /**
+     * @return index of the certificates issued (with the serial numbers
+     *         obtained from {@link #nextCertificateSerialNumber()}) and
+     *         revoked.
+     */
+    public RevocationIndex getRevocationIndex() {
+        return this.revocationIndex;
+    }
+
+    /**
+     * @return interval (in seconds) at which the revocations are checked for
+     *         changes to publish a new CRL.
+     */
+    public int getCrlUpdateInterval() {
+        return this.crlUpdateInterval;
+    }
+
+    public void setCrlUpdateInterval(int crlUpdateInterval) {
+        this.crlUpdateInterval = crlUpdateInterval;
+    }
+
+    /**
+     * @return time (in hours) until the next update announced in the CRL.
+     */
+    public int getCrlValidity() {
+        return this.crlValidity;
+    }
+
+    public void setCrlValidity(int crlValidity) {
+        this.crlValidity = crlValidity;
     }
 
     private Object loadJndiValue(Context ctx, String jndiName)
@@ -147,6 +352,61 @@ public class MiniCaConfiguration {
         return null;
     }
 
+    private Integer loadIntValue(Context ctx, String jndiName)
+            throws NamingException {
+        Object value = loadJndiValue(ctx, jndiName);
+        if (value == null) {
+            return null;
+        } else if (value instanceof Number) {
+            return ((Number) value).intValue();
+        } else {
+            try {
+                return Integer.valueOf(value.toString().trim());
+            } catch (NumberFormatException e) {
+                LOG.log(Level.WARNING, String.format(
+                        "Invalid numerical value for %s: %s", jndiName, value));
+                return null;
+            }
+        }
+    }
+
+    private SerialNumberAllocator createSerialNumberAllocator(
+            String strategyName, int nodeId, String serialNumberFile,
+            int blockSize) throws ConfigurationException {
+        SerialNumberAllocator.Strategy strategy;
+        try {
+            strategy = SerialNumberAllocator.Strategy.valueOf(strategyName
+                    .trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(String.format(
+                    "Invalid serial number strategy for %s: %s",
+                    SERIAL_NUMBER_STRATEGY_JNDI_NAME, strategyName));
+        }
+        try {
+            switch (strategy) {
+            case COUNTER:
+                return new CounterSerialNumberAllocator(nodeId,
+                        getSigningThreads());
+            case PERSISTENT:
+                if (serialNumberFile == null) {
+                    throw new ConfigurationException(String.format(
+                            "%s must be set to use persistent serial numbers.",
+                            SERIAL_NUMBER_FILE_JNDI_NAME));
+                }
+                return new PersistentSerialNumberAllocator(new File(
+                        serialNumberFile), nodeId, blockSize);
+            default:
+                return new RandomSerialNumberAllocator();
+            }
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(e.getMessage());
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Unable to read the serial number file.", e);
+            throw new ConfigurationException(
+                    "Unable to read the serial number file.");
+        }
+    }
+
     /**
      * Initialises the servlet: loads the keystore/keys to use to sign the
      * assertions and the issuer name.
@@ -204,6 +464,99 @@ public class MiniCaConfiguration {
                         PRIVATEKEY_JNDI_NAME);
 
                 keyStore = (KeyStore) loadJndiValue(ctx, KEYSTORE_JNDI_NAME);
+
+                Integer intValue = loadIntValue(ctx, VALIDITY_DAYS_JNDI_NAME);
+                if (intValue != null) {
+                    setCertificateValidityDays(intValue);
+                }
+                intValue = loadIntValue(ctx, SIGNING_THREADS_JNDI_NAME);
+                if (intValue != null) {
+                    setSigningThreads(intValue);
+                }
+                intValue = loadIntValue(ctx, SIGNING_QUEUE_CAPACITY_JNDI_NAME);
+                if (intValue != null) {
+                    setSigningQueueCapacity(intValue);
+                }
+                intValue = loadIntValue(ctx, SIGNING_TIMEOUT_JNDI_NAME);
+                if (intValue != null) {
+                    setSigningTimeout(intValue);
+                }
+
+                String verificationMode = (String) loadJndiValue(ctx,
+                        VERIFICATION_POLICY_JNDI_NAME);
+                intValue = loadIntValue(ctx,
+                        VERIFICATION_SAMPLE_INTERVAL_JNDI_NAME);
+                if (verificationMode != null) {
+                    try {
+                        setVerificationPolicy(new CertificateVerificationPolicy(
+                                CertificateVerificationPolicy.Mode
+                                        .valueOf(verificationMode.trim()
+                                                .toUpperCase()),
+                                (intValue != null) ? intValue : 100));
+                    } catch (IllegalArgumentException e) {
+                        LOG.log(Level.WARNING, String.format(
+                                "Invalid verification policy for %s: %s",
+                                VERIFICATION_POLICY_JNDI_NAME,
+                                verificationMode), e);
+                    }
+                }
+
+                String serialNumberStrategy = (String) loadJndiValue(ctx,
+                        SERIAL_NUMBER_STRATEGY_JNDI_NAME);
+                if (serialNumberStrategy != null) {
+                    Integer nodeId = loadIntValue(ctx,
+                            SERIAL_NUMBER_NODE_ID_JNDI_NAME);
+                    String serialNumberFile = (String) loadJndiValue(ctx,
+                            SERIAL_NUMBER_FILE_JNDI_NAME);
+                    Integer blockSize = loadIntValue(ctx,
+                            SERIAL_NUMBER_BLOCK_SIZE_JNDI_NAME);
+                    setSerialNumberAllocator(createSerialNumberAllocator(
+                            serialNumberStrategy, (nodeId != null) ? nodeId
+                                    : 0, serialNumberFile,
+                            (blockSize != null) ? blockSize : 1000));
+                }
+                LOG.log(Level.INFO, "Serial number allocator: "
+                        + getSerialNumberAllocator());
+
+                String signatureDigest = (String) loadJndiValue(ctx,
+                        SIGNATURE_DIGEST_JNDI_NAME);
+                if (signatureDigest != null) {
+                    setSignatureDigest(signatureDigest.trim().toUpperCase()
+                            .replace("-", ""));
+                }
+
+                Object serverKeyGeneration = loadJndiValue(ctx,
+                        SERVER_KEY_GENERATION_JNDI_NAME);
+                if (serverKeyGeneration != null) {
+                    setServerKeyGeneration(Boolean.valueOf(serverKeyGeneration
+                            .toString().trim()));
+                }
+                String serverKeyAlgorithm = (String) loadJndiValue(ctx,
+                        SERVER_KEY_ALGORITHM_JNDI_NAME);
+                if (serverKeyAlgorithm != null) {
+                    setServerKeyAlgorithm(serverKeyAlgorithm.trim()
+                            .toUpperCase());
+                }
+                intValue = loadIntValue(ctx, SERVER_KEY_SIZE_JNDI_NAME);
+                if (intValue != null) {
+                    setServerKeySize(intValue);
+                }
+                intValue = loadIntValue(ctx, KEY_POOL_LOW_WATERMARK_JNDI_NAME);
+                if (intValue != null) {
+                    setKeyPoolLowWatermark(intValue);
+                }
+                intValue = loadIntValue(ctx, KEY_POOL_HIGH_WATERMARK_JNDI_NAME);
+                if (intValue != null) {
+                    setKeyPoolHighWatermark(intValue);
+                }
+                intValue = loadIntValue(ctx, CRL_UPDATE_INTERVAL_JNDI_NAME);
+                if ((intValue != null) && (intValue > 0)) {
+                    setCrlUpdateInterval(intValue);
+                }
+                intValue = loadIntValue(ctx, CRL_VALIDITY_JNDI_NAME);
+                if ((intValue != null) && (intValue > 0)) {
+                    setCrlValidity(intValue);
+                }
             } finally {
                 try {
                     try {
@@ -0,0 +1,215 @@
+/*
+
+Copyright (c) 2008-2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+ 
+ */
+package uk.ac.manchester.rcs.bruno.keygenapp.base;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This allocator builds serial numbers from a node identifier (16 bits) and
+ * a counter (64 bits) whose high-water mark is persisted in a file, so that
+ * serial numbers are sequential and remain unique across restarts, whatever
+ * the clock does.
+ * 
+ * Values are reserved from the file in blocks: the high-water mark is moved
+ * to the end of the block (and synced to disk) before any value of that
+ * block is handed out. Within a block, values are taken with an atomic
+ * increment, without locking; only the thread that exhausts a block takes
+ * the lock to reserve the next one. The values of a block that were not
+ * used before a restart are skipped.
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class PersistentSerialNumberAllocator implements SerialNumberAllocator {
+    private static final Logger LOG = Logger
+            .getLogger(PersistentSerialNumberAllocator.class.getName());
+
+    private static final class Block {
+        private final AtomicLong next;
+        private final long end;
+
+        private Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    private final File file;
+    private final int nodeId;
+    private final int blockSize;
+    private final BigInteger prefix;
+    private final AtomicReference<Block> currentBlock;
+    private long highWaterMark;
+
+    /**
+     * @param file
+     *            file in which the high-water mark is stored (created if it
+     *            doesn't exist).
+     * @param nodeId
+     *            identifier of this node in the deployment (0 to
+     *            {@link CounterSerialNumberAllocator#MAX_NODE_ID}), if
+     *            several nodes use their own file.
+     * @param blockSize
+     *            number of values reserved each time the file is written.
+     * @throws IOException
+     */
+    public PersistentSerialNumberAllocator(File file, int nodeId,
+            int blockSize) throws IOException {
+        if ((nodeId < 0) || (nodeId > CounterSerialNumberAllocator.MAX_NODE_ID)) {
+            throw new IllegalArgumentException(String.format(
+                    "Node identifier must be between 0 and %d.",
+                    CounterSerialNumberAllocator.MAX_NODE_ID));
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException(
+                    "The block size must be at least 1.");
+        }
+        this.file = file;
+        this.nodeId = nodeId;
+        this.blockSize = blockSize;
+        this.prefix = BigInteger.valueOf(nodeId).shiftLeft(64);
+        this.highWaterMark = readHighWaterMark();
+        this.currentBlock = new AtomicReference<Block>(new Block(
+                this.highWaterMark, this.highWaterMark));
+    }
+
+    public int getNodeId() {
+        return this.nodeId;
+    }
+
+    public BigInteger nextSerialNumber() {
+        while (true) {
+            Block block = this.currentBlock.get();
+            long value = block.next.getAndIncrement();
+            if (value < block.end) {
+                return this.prefix.or(BigInteger.valueOf(value));
+            }
+            reserveBlock(block);
+        }
+    }
+
+    /**
+     * Reserves the next block, unless another thread has already replaced
+     * the exhausted block.
+     * 
+     * @param exhaustedBlock
+     *            block in which the calling thread couldn't get a value.
+     */
+    private synchronized void reserveBlock(Block exhaustedBlock) {
+        if (this.currentBlock.get() != exhaustedBlock) {
+            return;
+        }
+        long start = this.highWaterMark;
+        long end = start + this.blockSize;
+        if (end < 0) {
+            throw new IllegalStateException("Serial number counter exhausted.");
+        }
+        try {
+            writeHighWaterMark(end);
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, String.format(
+                    "Unable to write serial number high-water mark to %s.",
+                    this.file), e);
+            throw new IllegalStateException(
+                    "Unable to reserve serial numbers.", e);
+        }
+        this.highWaterMark = end;
+        this.currentBlock.set(new Block(start, end));
+    }
+
+    private long readHighWaterMark() throws IOException {
+        if (!this.file.exists()) {
+            return 1L;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(this.file), "US-ASCII"));
+        try {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException(String.format(
+                        "Empty serial number file: %s.", this.file));
+            }
+            try {
+                return Long.parseLong(line.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format(
+                        "Invalid serial number file: %s.", this.file));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the high-water mark to a temporary file, syncs it and renames it
+     * over the previous file, so that a failure never leaves a truncated
+     * file.
+     */
+    private void writeHighWaterMark(long value) throws IOException {
+        File tmpFile = new File(this.file.getPath() + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(tmpFile);
+        try {
+            Writer writer = new OutputStreamWriter(outputStream, "US-ASCII");
+            writer.write(Long.toString(value));
+            writer.write('\n');
+            writer.flush();
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        if (!tmpFile.renameTo(this.file)) {
+            if (!this.file.delete() || !tmpFile.renameTo(this.file)) {
+                throw new IOException(String.format("Unable to rename %s.",
+                        tmpFile));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("persistent(node=%d, file=%s, block=%d)",
+                this.nodeId, this.file, this.blockSize);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+
+Copyright (c) 2008-2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+ 
+ */
+package uk.ac.manchester.rcs.bruno.keygenapp.base;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * This allocator draws serial numbers of 126 random bits from a
+ * {@link SecureRandom} held by each thread, so that concurrent signing
+ * threads don't contend on a single generator. Uniqueness is probabilistic:
+ * the chance of two equal serial numbers among a billion certificates is
+ * below 10<sup>-20</sup>.
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class RandomSerialNumberAllocator implements SerialNumberAllocator {
+    private static final int SERIAL_NUMBER_LENGTH = 16;
+
+    private final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    public BigInteger nextSerialNumber() {
+        byte[] randomBytes = new byte[SERIAL_NUMBER_LENGTH];
+        this.random.get().nextBytes(randomBytes);
+        /*
+         * Clears the sign bit and sets the next one, so that the number is
+         * positive and always encoded on the same number of octets. This
+         * leaves 126 random bits.
+         */
+        randomBytes[0] = (byte) ((randomBytes[0] & 0x3f) | 0x40);
+        return new BigInteger(randomBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "random";
+    }
+}
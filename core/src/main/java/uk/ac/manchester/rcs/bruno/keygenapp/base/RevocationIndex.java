@@ -0,0 +1,257 @@
+/*
+
+Copyright (c) 2008-2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+ 
+ */
+package uk.ac.manchester.rcs.bruno.keygenapp.base;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of the serial numbers of the certificates issued by the
+ * mini CA and of those that have been revoked, so that the status of a
+ * certificate can be answered with a hash lookup, and the CRL can be built
+ * without going through the certificates.
+ * 
+ * Serial numbers are recorded as they are signed (see
+ * {@link CertificateIssuanceService} and {@link BatchCertificateIssuer}); the
+ * certificates issued by other nodes (or before a restart) are added with
+ * {@link #put(BigInteger, Date, Date, int)} by whatever keeps them. Expired
+ * certificates are removed by {@link #prune(Date)}: they no longer need to
+ * appear on a CRL.
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class RevocationIndex {
+    public static enum Status {
+        GOOD, REVOKED, UNKNOWN
+    }
+
+    /**
+     * Revocation of a certificate (immutable).
+     */
+    public static class Entry {
+        private final BigInteger serialNumber;
+        private final Date notAfter;
+        private final Date revocationDate;
+        private final int reason;
+
+        public Entry(BigInteger serialNumber, Date notAfter,
+                Date revocationDate, int reason) {
+            this.serialNumber = serialNumber;
+            this.notAfter = notAfter;
+            this.revocationDate = revocationDate;
+            this.reason = reason;
+        }
+
+        public BigInteger getSerialNumber() {
+            return this.serialNumber;
+        }
+
+        public Date getNotAfter() {
+            return this.notAfter;
+        }
+
+        public Date getRevocationDate() {
+            return this.revocationDate;
+        }
+
+        /**
+         * @return CRL reason code (see
+         *         {@link org.bouncycastle.asn1.x509.CRLReason}).
+         */
+        public int getReason() {
+            return this.reason;
+        }
+    }
+
+    private static final Comparator<Entry> SERIAL_NUMBER_ORDER = new Comparator<Entry>() {
+        public int compare(Entry o1, Entry o2) {
+            return o1.serialNumber.compareTo(o2.serialNumber);
+        }
+    };
+
+    /**
+     * Expiry date of each certificate issued (and not revoked).
+     */
+    private final ConcurrentMap<BigInteger, Date> issued = new ConcurrentHashMap<BigInteger, Date>();
+    private final ConcurrentMap<BigInteger, Entry> revoked = new ConcurrentHashMap<BigInteger, Entry>();
+    private final AtomicLong modificationCount = new AtomicLong();
+
+    /**
+     * Records a certificate that has been issued.
+     * 
+     * @param serialNumber
+     *            serial number.
+     * @param notAfter
+     *            expiry date of the certificate.
+     */
+    public void recordIssued(BigInteger serialNumber, Date notAfter) {
+        if (!this.revoked.containsKey(serialNumber)) {
+            this.issued.put(serialNumber, notAfter);
+        }
+    }
+
+    /**
+     * Revokes a certificate. The first revocation of a serial number is the
+     * one that is kept.
+     * 
+     * @param serialNumber
+     *            serial number.
+     * @param notAfter
+     *            expiry date of the certificate.
+     * @param revocationDate
+     *            date of the revocation.
+     * @param reason
+     *            CRL reason code.
+     * @return true if the certificate hadn't been revoked yet.
+     */
+    public boolean revoke(BigInteger serialNumber, Date notAfter,
+            Date revocationDate, int reason) {
+        if (this.revoked.putIfAbsent(serialNumber, new Entry(serialNumber,
+                notAfter, revocationDate, reason)) == null) {
+            this.issued.remove(serialNumber);
+            this.modificationCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a certificate known from elsewhere: as revoked if the
+     * revocation date isn't null, as issued otherwise.
+     */
+    public void put(BigInteger serialNumber, Date notAfter,
+            Date revocationDate, int reason) {
+        if (revocationDate != null) {
+            revoke(serialNumber, notAfter, revocationDate, reason);
+        } else {
+            recordIssued(serialNumber, notAfter);
+        }
+    }
+
+    /**
+     * @param serialNumber
+     *            serial number.
+     * @return the status of the certificate (UNKNOWN if it hasn't been
+     *         recorded or has expired and been pruned).
+     */
+    public Status getStatus(BigInteger serialNumber) {
+        if (this.revoked.containsKey(serialNumber)) {
+            return Status.REVOKED;
+        } else if (this.issued.containsKey(serialNumber)) {
+            return Status.GOOD;
+        } else {
+            return Status.UNKNOWN;
+        }
+    }
+
+    /**
+     * @return the revocation of a certificate, or null if it isn't revoked.
+     */
+    public Entry getRevocation(BigInteger serialNumber) {
+        return this.revoked.get(serialNumber);
+    }
+
+    /**
+     * @return the revocations of the certificates that haven't expired, in
+     *         serial number order.
+     */
+    public List<Entry> getRevocations(Date now) {
+        List<Entry> entries = new ArrayList<Entry>(this.revoked.size());
+        for (Entry entry : this.revoked.values()) {
+            if (entry.notAfter.after(now)) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, SERIAL_NUMBER_ORDER);
+        return entries;
+    }
+
+    /**
+     * Removes the certificates that have expired.
+     * 
+     * @return number of entries removed.
+     */
+    public int prune(Date now) {
+        int count = 0;
+        Iterator<Map.Entry<BigInteger, Date>> issuedIt = this.issued
+                .entrySet().iterator();
+        while (issuedIt.hasNext()) {
+            if (!issuedIt.next().getValue().after(now)) {
+                issuedIt.remove();
+                count++;
+            }
+        }
+        Iterator<Entry> revokedIt = this.revoked.values().iterator();
+        while (revokedIt.hasNext()) {
+            if (!revokedIt.next().notAfter.after(now)) {
+                revokedIt.remove();
+                count++;
+            }
+        }
+        if (count > 0) {
+            this.modificationCount.incrementAndGet();
+        }
+        return count;
+    }
+
+    /**
+     * @return a number that changes every time the list of revocations does.
+     */
+    public long getModificationCount() {
+        return this.modificationCount.get();
+    }
+
+    public int getIssuedCount() {
+        return this.issued.size();
+    }
+
+    public int getRevokedCount() {
+        return this.revoked.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RevocationIndex [issued=%d, revoked=%d]",
+                getIssuedCount(), getRevokedCount());
+    }
+}
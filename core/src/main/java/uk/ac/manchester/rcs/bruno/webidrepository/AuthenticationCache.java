@@ -0,0 +1,410 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.restlet.security.User;
+
+/**
+ * Cache of the identities established by the
+ * {@link ClientCertificateAuthenticator}, keyed by the SHA-256 fingerprint of
+ * the client certificate, so that the requests following the first one on a
+ * connection (or from the same browser) only cost a lookup.
+ * 
+ * An identity expires when its certificate does, or after a time-to-live,
+ * whichever comes first. It is also removed when one of the profile
+ * documents of the WebIDs in its certificate is written by this node (this
+ * cache is a {@link RdfDocumentStore.DocumentListener}); updates made by other
+ * nodes, or of remote profiles, are only taken into account when the
+ * identity expires.
+ * 
+ * An identity is only cached if none of its documents was written while it
+ * was being established (see {@link #getGeneration(List)}), so that an
+ * update made while the old version of a profile was being read isn't lost.
+ * 
+ * The cache is bounded: when it is full, expired identities are removed
+ * first (if the earliest expiry has passed), then arbitrary ones (there is
+ * no LRU ordering, so that lookups don't need a lock) until it is 90% full,
+ * so that the following insertions don't have to go through it again.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class AuthenticationCache implements RdfDocumentStore.DocumentListener {
+    private static final int GENERATION_STRIPES = 256;
+    private static final double EVICTION_RATIO = 0.9;
+
+    /**
+     * Identity established for a certificate. The principals and the user are
+     * shared by all the requests using this certificate and must not be
+     * modified.
+     */
+    public static class Identity {
+        private final List<Principal> principals;
+        private final User user;
+        private final List<String> documentUris;
+        private final long expiresAt;
+
+        /**
+         * @param principals
+         *            principals of the certificate.
+         * @param user
+         *            user (may be null).
+         * @param documentUris
+         *            URIs of the profile documents on which this identity
+         *            depends.
+         * @param expiresAt
+         *            time until which this identity can be used.
+         */
+        public Identity(List<Principal> principals, User user,
+                List<String> documentUris, long expiresAt) {
+            this.principals = Collections.unmodifiableList(principals);
+            this.user = user;
+            this.documentUris = Collections.unmodifiableList(documentUris);
+            this.expiresAt = expiresAt;
+        }
+
+        public List<Principal> getPrincipals() {
+            return this.principals;
+        }
+
+        public User getUser() {
+            return this.user;
+        }
+
+        public List<String> getDocumentUris() {
+            return this.documentUris;
+        }
+
+        public long getExpiresAt() {
+            return this.expiresAt;
+        }
+    }
+
+    private final ConcurrentMap<String, Identity> identities = new ConcurrentHashMap<String, Identity>();
+    private final ConcurrentMap<String, Set<String>> fingerprintsByDocument = new ConcurrentHashMap<String, Set<String>>();
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    /**
+     * Number of updates of the documents, by hash stripe (so that its size
+     * doesn't depend on the number of documents).
+     */
+    private final AtomicLongArray generations = new AtomicLongArray(
+            GENERATION_STRIPES);
+
+    /**
+     * Time at or before which the first identity expires (possibly earlier,
+     * if that identity has been removed since).
+     */
+    private final AtomicLong earliestExpiry = new AtomicLong(Long.MAX_VALUE);
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    /**
+     * @param maxEntries
+     *            maximum number of identities held.
+     * @param ttlMillis
+     *            time for which an identity is kept (at most).
+     */
+    public AuthenticationCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public long getTtlMillis() {
+        return this.ttlMillis;
+    }
+
+    /**
+     * Returns the identity cached for a certificate, if it hasn't expired.
+     * 
+     * @param fingerprint
+     *            SHA-256 fingerprint of the certificate.
+     * @param now
+     *            current time.
+     * @return the identity or null.
+     */
+    public Identity get(String fingerprint, long now) {
+        Identity identity = this.identities.get(fingerprint);
+        if (identity != null) {
+            if (identity.expiresAt > now) {
+                this.hitCount.incrementAndGet();
+                return identity;
+            }
+            remove(fingerprint, identity);
+        }
+        this.missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Returns the generation of a set of documents, which changes whenever
+     * one of them is updated. It must be obtained before reading the
+     * documents and passed to {@link #put(String, Identity, long)}.
+     * 
+     * @param documentUris
+     *            URIs of the profile documents.
+     * @return the generation of these documents.
+     */
+    public long getGeneration(List<String> documentUris) {
+        long generation = 0;
+        for (String documentUri : documentUris) {
+            generation += this.generations.get(getStripe(documentUri));
+        }
+        return generation;
+    }
+
+    private static int getStripe(String documentUri) {
+        return (documentUri.hashCode() & 0x7fffffff) % GENERATION_STRIPES;
+    }
+
+    /**
+     * Caches the identity of a certificate, unless one of its documents has
+     * been updated since the generation was obtained.
+     * 
+     * @param fingerprint
+     *            SHA-256 fingerprint of the certificate.
+     * @param identity
+     *            identity.
+     * @param generation
+     *            generation of the documents of the identity, obtained before
+     *            reading them.
+     * @return true if the identity has been cached.
+     */
+    public boolean put(String fingerprint, Identity identity, long generation) {
+        if (getGeneration(identity.documentUris) != generation) {
+            return false;
+        }
+        put(fingerprint, identity);
+        /*
+         * documentUpdated increments the generation before removing the
+         * identities: either it sees this one, or this check sees the update.
+         */
+        if (getGeneration(identity.documentUris) != generation) {
+            remove(fingerprint, identity);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Caches the identity of a certificate, making room for it if needed.
+     * 
+     * @param fingerprint
+     *            SHA-256 fingerprint of the certificate.
+     * @param identity
+     *            identity.
+     */
+    public void put(String fingerprint, Identity identity) {
+        if (this.identities.size() >= this.maxEntries) {
+            evict(System.currentTimeMillis());
+        }
+        for (String documentUri : identity.documentUris) {
+            Set<String> fingerprints;
+            do {
+                fingerprints = this.fingerprintsByDocument.get(documentUri);
+                if (fingerprints == null) {
+                    Set<String> newFingerprints = Collections
+                            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                    fingerprints = this.fingerprintsByDocument.putIfAbsent(
+                            documentUri, newFingerprints);
+                    if (fingerprints == null) {
+                        fingerprints = newFingerprints;
+                    }
+                }
+                fingerprints.add(fingerprint);
+                /*
+                 * Try again if the set was removed (once empty) meanwhile.
+                 */
+            } while (this.fingerprintsByDocument.get(documentUri) != fingerprints);
+        }
+        Identity previous = this.identities.put(fingerprint, identity);
+        if ((previous != null) && (previous != identity)) {
+            unregister(fingerprint, previous, identity);
+        }
+        lowerEarliestExpiry(identity.expiresAt);
+    }
+
+    private void lowerEarliestExpiry(long expiresAt) {
+        long earliest;
+        do {
+            earliest = this.earliestExpiry.get();
+        } while ((expiresAt < earliest)
+                && !this.earliestExpiry.compareAndSet(earliest, expiresAt));
+    }
+
+    /**
+     * Removes the identities that depend on a document.
+     */
+    public void documentUpdated(String id) {
+        this.generations.incrementAndGet(getStripe(id));
+        Set<String> fingerprints = this.fingerprintsByDocument.remove(id);
+        if (fingerprints != null) {
+            for (String fingerprint : fingerprints) {
+                Identity identity = this.identities.remove(fingerprint);
+                if (identity != null) {
+                    this.invalidationCount.incrementAndGet();
+                    unregister(fingerprint, identity, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the expired identities (if one of them may have expired), then
+     * arbitrary ones until the cache is 90% full. This is done by one thread
+     * at a time: the others don't wait for it (the cache may go a little
+     * over its maximum size meanwhile).
+     */
+    private void evict(long now) {
+        if (!this.evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            if (this.earliestExpiry.get() <= now) {
+                this.earliestExpiry.set(Long.MAX_VALUE);
+                long earliest = Long.MAX_VALUE;
+                for (Map.Entry<String, Identity> entry : this.identities
+                        .entrySet()) {
+                    long expiresAt = entry.getValue().expiresAt;
+                    if (expiresAt <= now) {
+                        remove(entry.getKey(), entry.getValue());
+                    } else if (expiresAt < earliest) {
+                        earliest = expiresAt;
+                    }
+                }
+                lowerEarliestExpiry(earliest);
+            }
+            int targetSize = Math.min(this.maxEntries - 1,
+                    (int) (this.maxEntries * EVICTION_RATIO));
+            Iterator<Map.Entry<String, Identity>> it = this.identities
+                    .entrySet().iterator();
+            while ((this.identities.size() > targetSize) && it.hasNext()) {
+                Map.Entry<String, Identity> entry = it.next();
+                if (remove(entry.getKey(), entry.getValue())) {
+                    this.evictionCount.incrementAndGet();
+                }
+            }
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    private boolean remove(String fingerprint, Identity identity) {
+        if (this.identities.remove(fingerprint, identity)) {
+            unregister(fingerprint, identity, null);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the fingerprint from the documents of an identity that has been
+     * removed (except those of the identity that replaced it, if any).
+     */
+    private void unregister(String fingerprint, Identity removed,
+            Identity replacement) {
+        for (String documentUri : removed.documentUris) {
+            if ((replacement != null)
+                    && replacement.documentUris.contains(documentUri)) {
+                continue;
+            }
+            Set<String> fingerprints = this.fingerprintsByDocument
+                    .get(documentUri);
+            if (fingerprints != null) {
+                fingerprints.remove(fingerprint);
+                if (fingerprints.isEmpty()) {
+                    this.fingerprintsByDocument.remove(documentUri,
+                            fingerprints);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all the identities.
+     */
+    public void clear() {
+        this.identities.clear();
+        this.fingerprintsByDocument.clear();
+    }
+
+    public int size() {
+        return this.identities.size();
+    }
+
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    public long getInvalidationCount() {
+        return this.invalidationCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s[size=%d, hits=%d, misses=%d, evictions=%d, "
+                        + "invalidations=%d]", getClass().getSimpleName(),
+                size(), getHitCount(), getMissCount(), getEvictionCount(),
+                getInvalidationCount());
+    }
+}
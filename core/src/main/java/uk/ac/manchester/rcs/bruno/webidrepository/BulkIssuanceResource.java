@@ -0,0 +1,373 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.util.encoders.Base64;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.StaleStateException;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.Post;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.ServerResource;
+
+import uk.ac.manchester.rcs.bruno.keygenapp.base.BatchCertificateIssuer;
+import uk.ac.manchester.rcs.corypha.core.HibernateFilter;
+
+/**
+ * Resource issuing certificates for a batch of existing WebIDs in a single
+ * request. The entity is a list of lines of the form
+ * <code>webid,cn,csr</code>, where <code>csr</code> is a base64-encoded
+ * (DER) PKCS#10 certificate request; empty lines and lines starting with '#'
+ * are ignored. The certificates are signed in parallel by the
+ * {@link BatchCertificateIssuer} and added to the profiles, which are saved
+ * in groups of {@link WebidConfiguration#getBulkIssuanceGroupSize()} per
+ * Hibernate transaction. The response has one line per request:
+ * <code>webid,OK,serial</code> or <code>webid,ERROR,message</code>; if a
+ * group can't be saved, its lines are errors, but the groups saved before
+ * are still reported.
+ * 
+ * This resource is only available when it has been enabled in the
+ * configuration, and only to the administrators listed there
+ * ({@link WebidConfiguration#getBulkIssuanceAdministrators()}), authenticated
+ * by their WebID.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class BulkIssuanceResource extends ServerResource {
+    private static final Log LOGGER = LogFactory
+            .getLog(BulkIssuanceResource.class);
+
+    private static final String WEBID_FRAGMENT = "#me";
+
+    /**
+     * Number of times a group is saved again if one of its profiles has been
+     * modified concurrently.
+     */
+    private static final int MAX_GROUP_ATTEMPTS = 3;
+
+    @Override
+    protected void doInit() throws ResourceException {
+        super.doInit();
+        setExisting(getContext().getAttributes().get(
+                WebidModule.BATCH_CERTIFICATE_ISSUER_CTXATTR_NAME) != null);
+    }
+
+    /**
+     * @return true if the client is authenticated with the WebID of one of
+     *         the administrators.
+     */
+    private boolean isAdministrator(WebidConfiguration webidConfiguration) {
+        List<String> administrators = webidConfiguration
+                .getBulkIssuanceAdministrators();
+        for (Principal principal : getClientInfo().getPrincipals()) {
+            if ((principal instanceof WebidPrincipal)
+                    && administrators.contains(principal.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Post
+    public Representation accept(Representation entity)
+            throws ResourceException {
+        BatchCertificateIssuer batchIssuer = (BatchCertificateIssuer) getContext()
+                .getAttributes().get(
+                        WebidModule.BATCH_CERTIFICATE_ISSUER_CTXATTR_NAME);
+        WebidConfiguration webidConfiguration = (WebidConfiguration) getContext()
+                .getAttributes().get(
+                        WebidModule.WEBID_CONFIGURATION_CTXATTR_NAME);
+        RdfDocumentStore rdfDocumentStore = (RdfDocumentStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_DOCUMENT_STORE_ATTRIBUTE);
+        CertificateRevocationStore revocationStore = (CertificateRevocationStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_REVOCATION_STORE_ATTRIBUTE);
+        if (!isAdministrator(webidConfiguration)) {
+            if (getClientInfo().getPrincipals().isEmpty()) {
+                throw new ResourceException(Status.CLIENT_ERROR_UNAUTHORIZED,
+                        "A client certificate is required.");
+            }
+            throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN,
+                    "Only an administrator can issue certificates in bulk.");
+        }
+
+        StringBuilder response = new StringBuilder();
+        List<BatchCertificateIssuer.Request> requests = new ArrayList<BatchCertificateIssuer.Request>();
+        try {
+            BufferedReader reader = new BufferedReader(new StringReader(
+                    entity.getText()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if ((line.length() == 0) || line.startsWith("#")) {
+                    continue;
+                }
+                int firstComma = line.indexOf(',');
+                int lastComma = line.lastIndexOf(',');
+                if ((firstComma < 0) || (lastComma == firstComma)) {
+                    appendError(response, line, "expected webid,cn,csr");
+                    continue;
+                }
+                String webId = line.substring(0, firstComma).trim();
+                String cn = line.substring(firstComma + 1, lastComma).trim();
+                String csr = line.substring(lastComma + 1).trim();
+                if (!webId.endsWith(WEBID_FRAGMENT)) {
+                    appendError(response, webId, "not a WebID of this service");
+                    continue;
+                }
+                try {
+                    PKCS10CertificationRequest pkcs10csr = new PKCS10CertificationRequest(
+                            Base64.decode(csr));
+                    X509Name subjectDn;
+                    if (cn.length() == 0) {
+                        subjectDn = new X509Name(new DERSequence());
+                    } else {
+                        subjectDn = new X509Name("CN=" + cn);
+                    }
+                    requests.add(new BatchCertificateIssuer.Request(webId,
+                            subjectDn, pkcs10csr.getPublicKey()));
+                } catch (Exception e) {
+                    appendError(response, webId, "invalid certificate request");
+                }
+            }
+        } catch (IOException e) {
+            throw new ResourceException(e);
+        }
+
+        List<BatchCertificateIssuer.Result> results;
+        try {
+            results = batchIssuer.issue(requests);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceException(
+                    Status.SERVER_ERROR_SERVICE_UNAVAILABLE, e);
+        }
+
+        Session session = HibernateFilter.getSession(getContext(),
+                getRequest());
+        int groupSize = Math.max(1, webidConfiguration
+                .getBulkIssuanceGroupSize());
+        int issued = 0;
+        try {
+            RepositoryConnection repositoryConnection = rdfDocumentStore
+                    .getRepository().getConnection();
+            try {
+                for (int i = 0; i < results.size(); i += groupSize) {
+                    issued += saveGroup(session, repositoryConnection,
+                            rdfDocumentStore, revocationStore, results
+                                    .subList(i, Math.min(i + groupSize,
+                                            results.size())), response);
+                }
+            } finally {
+                repositoryConnection.close();
+            }
+        } catch (RepositoryException e) {
+            throw new ResourceException(e);
+        }
+
+        LOGGER.info(String.format(
+                "Bulk issuance: %d certificate(s) issued out of %d request(s).",
+                issued, results.size()));
+        return new StringRepresentation(response, MediaType.TEXT_CSV);
+    }
+
+    /**
+     * Adds the certificates of a group of results to their profiles and
+     * commits them in one transaction, retrying the group if a profile has
+     * been modified concurrently. The profiles are only unlocked once the
+     * transaction has committed (or rolled back). If the group can't be
+     * saved, its certificates are reported as errors, so that the response
+     * still tells which certificates of the previous groups were issued.
+     * 
+     * @return number of certificates issued.
+     */
+    private int saveGroup(Session session,
+            RepositoryConnection repositoryConnection,
+            RdfDocumentStore rdfDocumentStore,
+            CertificateRevocationStore revocationStore,
+            List<BatchCertificateIssuer.Result> group, StringBuilder response) {
+        List<URI> contexts = new ArrayList<URI>();
+        for (BatchCertificateIssuer.Result result : group) {
+            if (result.isSuccessful()) {
+                contexts.add(getProfileContext(repositoryConnection,
+                        result));
+            }
+        }
+
+        for (int attempt = 1;; attempt++) {
+            String[] errors = new String[group.size()];
+            int issued = 0;
+            String failure = null;
+            if (!session.getTransaction().isActive()) {
+                session.beginTransaction();
+            }
+            Map<URI, RdfDocumentStore.Update> updates = rdfDocumentStore
+                    .beginUpdates(contexts);
+            try {
+                for (int i = 0; i < group.size(); i++) {
+                    BatchCertificateIssuer.Result result = group.get(i);
+                    if (!result.isSuccessful()) {
+                        errors[i] = result.getException().getMessage();
+                        continue;
+                    }
+                    URI context = getProfileContext(repositoryConnection,
+                            result);
+                    if (!rdfDocumentStore.loadContext(session,
+                            repositoryConnection, context)) {
+                        errors[i] = "no such profile";
+                        continue;
+                    }
+                    List<Statement> statements = ProfileCertificates
+                            .addCertificate(repositoryConnection, context,
+                                    result.getCertificate());
+                    repositoryConnection.commit();
+                    rdfDocumentStore.writeAdditions(session,
+                            repositoryConnection, updates.get(context),
+                            statements);
+                    revocationStore.recordIssued(session, context.toString(),
+                            result.getCertificate());
+                    issued++;
+                }
+                session.flush();
+                session.getTransaction().commit();
+                for (int i = 0; i < group.size(); i++) {
+                    if (errors[i] == null) {
+                        revocationStore.indexIssued(group.get(i)
+                                .getCertificate());
+                    }
+                }
+            } catch (StaleStateException e) {
+                rollback(session);
+                if (attempt < MAX_GROUP_ATTEMPTS) {
+                    continue;
+                }
+                failure = "profile modified concurrently";
+            } catch (HibernateException e) {
+                failure = abort(session, e);
+            } catch (RepositoryException e) {
+                failure = abort(session, e);
+            } catch (RDFParseException e) {
+                failure = abort(session, e);
+            } catch (RDFHandlerException e) {
+                failure = abort(session, e);
+            } catch (IOException e) {
+                failure = abort(session, e);
+            } finally {
+                /*
+                 * The profiles whose updates weren't committed are re-loaded
+                 * by their next reader.
+                 */
+                for (RdfDocumentStore.Update update : updates.values()) {
+                    rdfDocumentStore.endUpdate(update);
+                }
+                session.clear();
+            }
+
+            for (int i = 0; i < group.size(); i++) {
+                BatchCertificateIssuer.Result result = group.get(i);
+                String webId = result.getRequest().getSubjAltNameURI();
+                if (errors[i] != null) {
+                    appendError(response, webId, errors[i]);
+                } else if (failure != null) {
+                    appendError(response, webId, failure);
+                } else {
+                    response.append(webId).append(",OK,").append(
+                            result.getCertificate().getSerialNumber()
+                                    .toString(16)).append('\n');
+                }
+            }
+            return (failure != null) ? 0 : issued;
+        }
+    }
+
+    private static URI getProfileContext(
+            RepositoryConnection repositoryConnection,
+            BatchCertificateIssuer.Result result) {
+        String webId = result.getRequest().getSubjAltNameURI();
+        return repositoryConnection.getValueFactory().createURI(
+                webId.substring(0, webId.length() - WEBID_FRAGMENT.length()));
+    }
+
+    /**
+     * Rolls back the transaction of a group that can't be saved.
+     * 
+     * @return the error message reported for the certificates of the group.
+     */
+    private static String abort(Session session, Exception e) {
+        LOGGER.warn("Unable to save a group of certificates.", e);
+        rollback(session);
+        return "not saved: " + e.getMessage();
+    }
+
+    private static void rollback(Session session) {
+        try {
+            if (session.getTransaction().isActive()) {
+                session.getTransaction().rollback();
+            }
+        } catch (HibernateException e) {
+            LOGGER.warn("Unable to roll back the transaction.", e);
+        }
+    }
+
+    private static void appendError(StringBuilder response, String webId,
+            String message) {
+        response.append(webId).append(",ERROR,").append(
+                (message != null) ? message.replace('\n', ' ') : "").append(
+                '\n');
+    }
+}
@@ -0,0 +1,129 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+import org.bouncycastle.openssl.PEMWriter;
+
+/**
+ * Cache of the certificates published in the profiles, keyed by profile URI
+ * and content version, already encoded in PEM and DER, so that repeated
+ * downloads of a certificate can be answered by copying bytes, without
+ * loading the profile, querying it or parsing the certificate.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class CertificateCache extends
+        VersionedCache<String, CertificateCache.EncodedCertificate> {
+    /**
+     * PEM and DER encodings of a certificate (neither of which must be
+     * modified).
+     */
+    public static class EncodedCertificate {
+        private final byte[] pem;
+        private final byte[] der;
+
+        private EncodedCertificate(byte[] pem, byte[] der) {
+            this.pem = pem;
+            this.der = der;
+        }
+
+        /**
+         * Encodes a certificate.
+         * 
+         * @param certificate
+         *            certificate to encode.
+         * @return its encodings.
+         * @throws CertificateEncodingException
+         * @throws IOException
+         */
+        public static EncodedCertificate encode(X509Certificate certificate)
+                throws CertificateEncodingException, IOException {
+            StringWriter sw = new StringWriter();
+            PEMWriter pemWriter = new PEMWriter(sw);
+            pemWriter.writeObject(certificate);
+            pemWriter.close();
+            return new EncodedCertificate(sw.toString().getBytes(
+                    Charset.forName("US-ASCII")), certificate.getEncoded());
+        }
+
+        public byte[] getPem() {
+            return this.pem;
+        }
+
+        public byte[] getDer() {
+            return this.der;
+        }
+
+        /**
+         * @return false if this stands for a profile without a (readable)
+         *         certificate.
+         */
+        public boolean isPresent() {
+            return this.der != null;
+        }
+    }
+
+    /**
+     * Cached for the profiles that have no certificate, so that they are not
+     * looked up again until they are modified.
+     */
+    public static final EncodedCertificate NO_CERTIFICATE = new EncodedCertificate(
+            null, null);
+
+    private static final Weigher<EncodedCertificate> BYTE_COUNT_WEIGHER = new Weigher<EncodedCertificate>() {
+        public long weigh(EncodedCertificate value) {
+            if (value.isPresent()) {
+                return value.pem.length + value.der.length;
+            } else {
+                return 0;
+            }
+        }
+    };
+
+    /**
+     * @param maxEntries
+     *            maximum number of certificates held.
+     * @param maxBytes
+     *            maximum total size of their encodings.
+     */
+    public CertificateCache(int maxEntries, long maxBytes) {
+        super(maxEntries, maxBytes, BYTE_COUNT_WEIGHER);
+    }
+}
@@ -30,37 +30,26 @@ POSSIBILITY OF SUCH DAMAGE.
 -----------------------------------------------------------------------*/
 package uk.ac.manchester.rcs.bruno.webidrepository;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringReader;
-import java.io.StringWriter;
-import java.nio.charset.Charset;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bouncycastle.openssl.PEMReader;
-import org.bouncycastle.openssl.PEMWriter;
 import org.hibernate.Session;
+import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
-import org.openrdf.model.Value;
-import org.openrdf.query.BindingSet;
-import org.openrdf.query.MalformedQueryException;
-import org.openrdf.query.QueryEvaluationException;
-import org.openrdf.query.QueryLanguage;
-import org.openrdf.query.TupleQuery;
-import org.openrdf.query.TupleQueryResult;
-import org.openrdf.repository.Repository;
-import org.openrdf.repository.RepositoryConnection;
-import org.openrdf.repository.RepositoryException;
-import org.openrdf.rio.RDFFormat;
 import org.openrdf.rio.RDFParseException;
+import org.restlet.data.CharacterSet;
 import org.restlet.data.MediaType;
+import org.restlet.data.Status;
 import org.restlet.representation.OutputRepresentation;
 import org.restlet.representation.Representation;
-import org.restlet.representation.StringRepresentation;
 import org.restlet.resource.Get;
 import org.restlet.resource.ResourceException;
 import org.restlet.resource.ServerResource;
@@ -81,161 +70,220 @@ public class CertificateResource extends ServerResource {
     private static final Log LOGGER = LogFactory
             .getLog(CertificateResource.class);
 
-    private X509Certificate certificate;
+    private static final String PEM_SUFFIX = "pem";
+    private static final String DER_SUFFIX = "der";
+    private static final int MAX_VERSION_ATTEMPTS = 3;
 
-    protected volatile RepositoryConnection repositoryConnection;
+    private CertificateCache.EncodedCertificate encodedCertificate;
+    private RdfDocumentInfo rdfDocumentInfo;
+    private String parentUri;
 
     @Override
-    public Representation handle() throws ResourceException {
-        try {
-            return super.handle();
-        } finally {
+    public void doInit() {
+        super.doInit();
+        setConditional(false);
+        setNegotiated(true);
+        RdfDocumentStore rdfDocumentStore = (RdfDocumentStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_DOCUMENT_STORE_ATTRIBUTE);
+        this.parentUri = getRequest().getResourceRef().getParentRef()
+                .toString();
+        Session session = HibernateFilter.getSession(getContext(),
+                getRequest());
+
+        this.rdfDocumentInfo = rdfDocumentStore.getDocumentInfo(session,
+                this.parentUri);
+        if ((this.rdfDocumentInfo != null)
+                && (this.rdfDocumentInfo.isNotModified(getRequest(),
+                        PEM_SUFFIX) || this.rdfDocumentInfo.isNotModified(
+                        getRequest(), DER_SUFFIX))) {
+            /*
+             * The certificate is only loaded if the variant negotiated turns
+             * out not to be the one the client has.
+             */
+            setExisting(true);
+            return;
+        }
+        loadCertificate();
+    }
+
+    /**
+     * Loads the certificate published in the profile, from the
+     * {@link CertificateCache} if possible.
+     */
+    private void loadCertificate() throws ResourceException {
+        if (this.rdfDocumentInfo == null) {
+            setExisting(false);
+            return;
+        }
+        CertificateCache certificateCache = (CertificateCache) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_CERTIFICATE_CACHE_ATTRIBUTE);
+        CertificateCache.EncodedCertificate encodedCertificate = certificateCache
+                .get(this.parentUri, this.rdfDocumentInfo.getVersion());
+        if (encodedCertificate == null) {
+            List<Statement> statements = getVersionStatements();
             try {
-                RepositoryConnection repositoryConnection = this.repositoryConnection;
-                if (repositoryConnection != null) {
-                    repositoryConnection.close();
-                }
-            } catch (RepositoryException e) {
+                encodedCertificate = readCertificate(statements);
+            } catch (IOException e) {
+                throw new ResourceException(e);
+            } catch (CertificateEncodingException e) {
                 throw new ResourceException(e);
             }
+            certificateCache.put(this.parentUri, this.rdfDocumentInfo
+                    .getVersion(), encodedCertificate);
         }
+        setEncodedCertificate(encodedCertificate);
     }
 
-    @Override
-    public void doInit() {
-        super.doInit();
+    /**
+     * Returns the statements of the version of the document described by
+     * {@link #rdfDocumentInfo} (which is refreshed if this version is no
+     * longer in the database), rather than those of the shared context,
+     * which may hold an update that hasn't been committed yet.
+     * 
+     * @return statements of the document.
+     * @throws ResourceException
+     *             (404) if the document doesn't exist.
+     */
+    private List<Statement> getVersionStatements() throws ResourceException {
+        Session session = HibernateFilter
+                .getSession(getContext(), getRequest());
+        RdfDocumentStore rdfDocumentStore = (RdfDocumentStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_DOCUMENT_STORE_ATTRIBUTE);
         try {
-            Repository repository = (Repository) getContext().getAttributes()
-                    .get(WebidModule.FOAFDIRECTORY_SESAME_REPOSITORY_ATTRIBUTE);
-            this.repositoryConnection = repository.getConnection();
-
-            String parentUri = getRequest().getResourceRef().getParentRef()
-                    .toString();
-            URI context = repository.getValueFactory().createURI(parentUri);
-
-            Session session = HibernateFilter.getSession(getContext(),
-                    getRequest());
-            RdfDocumentContainer foafDoc = (RdfDocumentContainer) session.get(
-                    RdfDocumentContainer.class, parentUri);
-
-            if ((foafDoc != null) && (foafDoc.getRdfContent() != null)) {
-                this.repositoryConnection.clear(context);
-                this.repositoryConnection.add(new ByteArrayInputStream(foafDoc
-                        .getRdfContent().getBytes(Charset.forName("UTF-8"))),
-                        context.toString(), RDFFormat.RDFXML, context);
-
-                setExisting(true);
-
-                StringBuilder queryStringBuilder = new StringBuilder();
-                queryStringBuilder.append("SELECT * ");
-                queryStringBuilder.append(String.format("FROM CONTEXT <%s> ",
-                        context));
-                queryStringBuilder.append(String.format(
-                        " {<%s#me>} rdf:type {foaf:Person}, ", context));
-                queryStringBuilder.append(String.format(
-                        " [{<%s#me>} man:x509PemCert {x509Cert}] ", context));
-                queryStringBuilder.append(String.format(
-                        "USING NAMESPACE foaf = <%s>, man = <%s>",
-                        WebidModule.FOAF_NS, WebidModule.FOAFSSLMANCHESTER_NS));
-                try {
-                    TupleQuery tupleQuery = repositoryConnection
-                            .prepareTupleQuery(QueryLanguage.SERQL,
-                                    queryStringBuilder.toString(), context
-                                            .toString());
-                    TupleQueryResult result = tupleQuery.evaluate();
-                    if (result.hasNext()) {
-                        BindingSet bindingSet = result.next();
-                        Value x509Cert = bindingSet.getValue("x509Cert");
-
-                        X509Certificate certificate = null;
-
-                        if (x509Cert != null) {
-                            PEMReader pemReader = new PEMReader(
-                                    new StringReader(x509Cert.stringValue()));
-                            Object pemObject = pemReader.readObject();
-                            if (pemObject instanceof X509Certificate) {
-                                certificate = (X509Certificate) pemObject;
-                            } else {
-                                LOGGER
-                                        .warn(String
-                                                .format(
-                                                        "What was meant to be a PEM certificate could not be read by the PEMReader (found and instance of %s instead)",
-                                                        pemObject.getClass()
-                                                                .getName()));
-                            }
-                            pemReader.close();
-                        }
-                        if (certificate == null) {
-                            setExisting(false);
-                        } else {
-                            this.certificate = certificate;
-                        }
-                    } else {
-                        setExisting(false);
-                    }
-                } catch (IOException e) {
-                    throw new ResourceException(e);
-                } finally {
-                    repositoryConnection.close();
+            for (int attempt = 0; (attempt < MAX_VERSION_ATTEMPTS)
+                    && (this.rdfDocumentInfo != null); attempt++) {
+                List<Statement> statements = rdfDocumentStore.getStatements(
+                        session, this.rdfDocumentInfo);
+                if (statements != null) {
+                    return statements;
                 }
-            } else {
-                setExisting(false);
+                this.rdfDocumentInfo = rdfDocumentStore.getDocumentInfo(
+                        session, this.parentUri);
             }
-        } catch (RepositoryException e) {
-            throw new ResourceException(e);
-        } catch (MalformedQueryException e) {
-            throw new ResourceException(e);
-        } catch (QueryEvaluationException e) {
-            throw new ResourceException(e);
         } catch (RDFParseException e) {
             throw new ResourceException(e);
         } catch (IOException e) {
             throw new ResourceException(e);
+        }
+        if (this.rdfDocumentInfo == null) {
+            setExisting(false);
+            throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND);
+        }
+        throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Reads the PEM certificate of the person described in the statements of
+     * the profile.
+     * 
+     * @return its encodings, or {@link CertificateCache#NO_CERTIFICATE}.
+     */
+    private CertificateCache.EncodedCertificate readCertificate(
+            List<Statement> statements) throws IOException,
+            CertificateEncodingException {
+        RdfDocumentStore rdfDocumentStore = (RdfDocumentStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_DOCUMENT_STORE_ATTRIBUTE);
+        ProfileLookup profileLookup = (ProfileLookup) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_PROFILE_LOOKUP_ATTRIBUTE);
+        URI context = rdfDocumentStore.getRepository().getValueFactory()
+                .createURI(this.parentUri);
+        Map<String, String> person = profileLookup.lookupPerson(statements,
+                context);
+        String x509Cert = (person != null) ? person
+                .get(ProfileLookup.X509_CERT_KEY) : null;
+        if (x509Cert == null) {
+            return CertificateCache.NO_CERTIFICATE;
+        }
+        PEMReader pemReader = new PEMReader(new StringReader(x509Cert));
+        try {
+            Object pemObject = pemReader.readObject();
+            if (pemObject instanceof X509Certificate) {
+                return CertificateCache.EncodedCertificate
+                        .encode((X509Certificate) pemObject);
+            }
+            LOGGER.warn(String.format(
+                    "What was meant to be a PEM certificate could not be read by the PEMReader (found %s instead)",
+                    (pemObject != null) ? pemObject.getClass().getName()
+                            : "nothing"));
+            return CertificateCache.NO_CERTIFICATE;
         } finally {
-            this.repositoryConnection = null;
+            pemReader.close();
         }
+    }
 
-        setNegotiated(true);
+    private void setEncodedCertificate(
+            CertificateCache.EncodedCertificate encodedCertificate) {
+        if (encodedCertificate.isPresent()) {
+            this.encodedCertificate = encodedCertificate;
+            setExisting(true);
+        } else {
+            setExisting(false);
+        }
+    }
+
+    /**
+     * @return the certificate, loading it if this hasn't been done yet.
+     * @throws ResourceException
+     *             (404) if the profile has no certificate.
+     */
+    private CertificateCache.EncodedCertificate getEncodedCertificate()
+            throws ResourceException {
+        if (this.encodedCertificate == null) {
+            loadCertificate();
+            if (this.encodedCertificate == null) {
+                throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND);
+            }
+        }
+        return this.encodedCertificate;
     }
 
     @Get("crt|pem")
     public Representation toPem() {
-        if (this.certificate != null) {
-            try {
-                final StringWriter sw = new StringWriter();
-                PEMWriter pemWriter = new PEMWriter(sw);
-                pemWriter.writeObject(this.certificate);
-                pemWriter.close();
-                String pemCert = sw.toString();
-                return new StringRepresentation(pemCert, MediaType
-                        .valueOf("application/x-pem-file"));
-            } catch (IOException e) {
-                throw new ResourceException(e);
-            }
-        } else {
-            return null;
+        if ((this.rdfDocumentInfo != null)
+                && this.rdfDocumentInfo.isNotModified(getRequest(),
+                        PEM_SUFFIX)) {
+            return this.rdfDocumentInfo.applyNotModified(getResponse(),
+                    PEM_SUFFIX);
         }
+        Representation rep = toRepresentation(getEncodedCertificate()
+                .getPem(), MediaType.valueOf("application/x-pem-file"));
+        rep.setCharacterSet(CharacterSet.US_ASCII);
+        return applyValidators(rep, PEM_SUFFIX);
     }
 
     @Get("cer")
     public Representation toDer() {
-        if (this.certificate != null) {
-            try {
-                final byte[] encodedCert = this.certificate.getEncoded();
-                return new OutputRepresentation(MediaType
-                        .valueOf("application/x-x509-user-cert"),
-                        encodedCert.length) {
-
-                    @Override
-                    public void write(OutputStream out) throws IOException {
-                        out.write(encodedCert);
-                    }
-                };
-            } catch (CertificateEncodingException e) {
-                throw new ResourceException(e);
+        if ((this.rdfDocumentInfo != null)
+                && this.rdfDocumentInfo.isNotModified(getRequest(),
+                        DER_SUFFIX)) {
+            return this.rdfDocumentInfo.applyNotModified(getResponse(),
+                    DER_SUFFIX);
+        }
+        return applyValidators(toRepresentation(getEncodedCertificate()
+                .getDer(), MediaType.valueOf("application/x-x509-user-cert")),
+                DER_SUFFIX);
+    }
+
+    private static Representation toRepresentation(final byte[] data,
+            MediaType mediaType) {
+        return new OutputRepresentation(mediaType, data.length) {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write(data);
             }
-        } else {
-            return null;
+        };
+    }
+
+    private Representation applyValidators(Representation representation,
+            String variantSuffix) {
+        if (this.rdfDocumentInfo != null) {
+            this.rdfDocumentInfo.applyTo(representation, variantSuffix);
         }
+        return representation;
     }
 }
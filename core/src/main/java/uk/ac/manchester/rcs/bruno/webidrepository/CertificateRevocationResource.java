@@ -0,0 +1,210 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.Principal;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.StaleStateException;
+import org.openrdf.model.URI;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.restlet.data.Status;
+import org.restlet.resource.Delete;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.ServerResource;
+
+import uk.ac.manchester.rcs.corypha.core.HibernateFilter;
+
+/**
+ * Resource revoking a certificate issued for a profile (given its serial
+ * number, in hexadecimal): the certificate and its public key are removed
+ * from the profile, and the certificate is revoked (see
+ * {@link CertificateRevocationStore}). The optional "reason" query parameter
+ * is the CRL reason code (unspecified by default).
+ * 
+ * Only the owner of the profile can do this: the client must have been
+ * authenticated with the WebID of the profile (which requires WebID
+ * authentication to be enabled).
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class CertificateRevocationResource extends ServerResource {
+    private static final Log LOGGER = LogFactory
+            .getLog(CertificateRevocationResource.class);
+
+    private static final int MAX_UPDATE_ATTEMPTS = 3;
+
+    private URI context;
+    private BigInteger serialNumber;
+
+    @Override
+    protected void doInit() throws ResourceException {
+        super.doInit();
+        try {
+            this.serialNumber = new BigInteger((String) getRequestAttributes()
+                    .get(WebidModule.SERIAL_NUMBER_ATTRIBUTE), 16);
+        } catch (NumberFormatException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
+                    "Invalid serial number (expected in hexadecimal).");
+        }
+        RdfDocumentStore rdfDocumentStore = (RdfDocumentStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_DOCUMENT_STORE_ATTRIBUTE);
+        this.context = rdfDocumentStore.getRepository().getValueFactory()
+                .createURI(
+                        getRequest().getResourceRef().getParentRef()
+                                .getParentRef().toString());
+    }
+
+    private boolean isOwner() {
+        String webId = this.context.toString() + "#me";
+        for (Principal principal : getClientInfo().getPrincipals()) {
+            if ((principal instanceof WebidPrincipal)
+                    && webId.equals(principal.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Delete
+    public void revoke() throws ResourceException {
+        if (!isOwner()) {
+            throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN,
+                    "Only the owner of the profile can revoke its certificates.");
+        }
+        int reason = CRLReason.unspecified;
+        String reasonValue = getQuery().getFirstValue("reason");
+        if (reasonValue != null) {
+            try {
+                reason = Integer.parseInt(reasonValue.trim());
+            } catch (NumberFormatException e) {
+                reason = -1;
+            }
+            if ((reason < CRLReason.unspecified)
+                    || (reason > CRLReason.aACompromise)
+                    || (reason == 7)) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
+                        "Invalid revocation reason.");
+            }
+        }
+
+        RdfDocumentStore rdfDocumentStore = (RdfDocumentStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_DOCUMENT_STORE_ATTRIBUTE);
+        CertificateRevocationStore revocationStore = (CertificateRevocationStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_REVOCATION_STORE_ATTRIBUTE);
+        Session session = HibernateFilter.getSession(getContext(),
+                getRequest());
+        try {
+            RepositoryConnection repositoryConnection = rdfDocumentStore
+                    .getRepository().getConnection();
+            try {
+                for (int attempt = 1;; attempt++) {
+                    RdfDocumentStore.Update update = rdfDocumentStore
+                            .beginUpdate(this.context);
+                    try {
+                        if (!rdfDocumentStore.loadContext(session,
+                                repositoryConnection, this.context)) {
+                            throw new ResourceException(
+                                    Status.CLIENT_ERROR_NOT_FOUND);
+                        }
+                        X509Certificate cert = ProfileCertificates
+                                .removeCertificate(repositoryConnection,
+                                        this.context, this.serialNumber);
+                        if (cert == null) {
+                            throw new ResourceException(
+                                    Status.CLIENT_ERROR_NOT_FOUND,
+                                    "No such certificate in this profile.");
+                        }
+                        repositoryConnection.commit();
+                        rdfDocumentStore.writeContext(session,
+                                repositoryConnection, update);
+                        Date revoked = revocationStore.revoke(session,
+                                this.context.toString(), cert, reason);
+                        session.getTransaction().commit();
+                        if (revoked != null) {
+                            revocationStore.indexRevoked(cert, revoked,
+                                    reason);
+                        }
+                        LOGGER.info(String.format(
+                                "Certificate %s of %s revoked (reason: %d).",
+                                this.serialNumber.toString(16),
+                                this.context, reason));
+                        setStatus(Status.SUCCESS_NO_CONTENT);
+                        return;
+                    } catch (StaleStateException e) {
+                        LOGGER.info(String.format(
+                                "Concurrent modification of %s (attempt %d): %s",
+                                this.context, attempt, e.getMessage()));
+                        session.getTransaction().rollback();
+                        session.clear();
+                        session.beginTransaction();
+                        if (attempt >= MAX_UPDATE_ATTEMPTS) {
+                            throw new ResourceException(
+                                    Status.CLIENT_ERROR_CONFLICT,
+                                    "The profile is being modified, please try again.");
+                        }
+                    } finally {
+                        rdfDocumentStore.endUpdate(update);
+                    }
+                }
+            } finally {
+                repositoryConnection.close();
+            }
+        } catch (RepositoryException e) {
+            throw new ResourceException(e);
+        } catch (RDFParseException e) {
+            throw new ResourceException(e);
+        } catch (RDFHandlerException e) {
+            throw new ResourceException(e);
+        } catch (HibernateException e) {
+            throw new ResourceException(e);
+        } catch (IOException e) {
+            throw new ResourceException(e);
+        }
+    }
+}
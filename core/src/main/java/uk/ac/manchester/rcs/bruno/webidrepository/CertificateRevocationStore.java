@@ -0,0 +1,281 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+import uk.ac.manchester.rcs.bruno.keygenapp.base.CrlPublisher;
+import uk.ac.manchester.rcs.bruno.keygenapp.base.RevocationIndex;
+
+/**
+ * Keeps the records of the certificates issued for the profiles and of their
+ * revocations in the database ({@link IssuedCertificate}), and the
+ * {@link RevocationIndex} of this node (from which the CRL is published and
+ * the status of the certificates is answered) in line with them.
+ * 
+ * The index is loaded from the database the first time it is needed; it is
+ * then brought up to date with the changes made by the other nodes at most
+ * once per synchronisation interval, by one request at a time (the others
+ * use the index as it is). Since the records of the other nodes may be
+ * committed a little after they are dated, each synchronisation reads the
+ * changes again from some time before the previous one.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class CertificateRevocationStore {
+    private static final Log LOGGER = LogFactory
+            .getLog(CertificateRevocationStore.class);
+
+    private static final long SYNCHRONISATION_OVERLAP_MILLIS = 5L * 60L * 1000L;
+
+    private final RevocationIndex revocationIndex;
+    private final CrlPublisher crlPublisher;
+    private final long synchronisationIntervalMillis;
+    private final ReentrantLock synchronisationLock = new ReentrantLock();
+
+    private volatile Date synchronisedSince = null;
+    private volatile long lastSynchronisation = 0;
+
+    /**
+     * @param revocationIndex
+     *            index of the certificates issued by this node.
+     * @param crlPublisher
+     *            publisher of the CRL built from the index.
+     * @param synchronisationIntervalMillis
+     *            minimum time between two reads of the changes made by the
+     *            other nodes.
+     */
+    public CertificateRevocationStore(RevocationIndex revocationIndex,
+            CrlPublisher crlPublisher, long synchronisationIntervalMillis) {
+        this.revocationIndex = revocationIndex;
+        this.crlPublisher = crlPublisher;
+        this.synchronisationIntervalMillis = synchronisationIntervalMillis;
+    }
+
+    public RevocationIndex getRevocationIndex() {
+        return this.revocationIndex;
+    }
+
+    public CrlPublisher getCrlPublisher() {
+        return this.crlPublisher;
+    }
+
+    /**
+     * Records a certificate issued for a profile, without committing the
+     * Hibernate transaction (so that it is recorded with the profile). Once
+     * it has been committed, the certificate must be passed to
+     * {@link #indexIssued(X509Certificate)}.
+     * 
+     * @param session
+     *            Hibernate session.
+     * @param documentId
+     *            URI of the profile document.
+     * @param cert
+     *            certificate.
+     * @throws HibernateException
+     */
+    public void recordIssued(Session session, String documentId,
+            X509Certificate cert) throws HibernateException {
+        session.save(new IssuedCertificate(cert.getSerialNumber(),
+                documentId, cert.getNotAfter()));
+    }
+
+    /**
+     * Adds a certificate to the index, after its record has been committed.
+     * 
+     * @param cert
+     *            certificate.
+     */
+    public void indexIssued(X509Certificate cert) {
+        this.revocationIndex.recordIssued(cert.getSerialNumber(), cert
+                .getNotAfter());
+    }
+
+    /**
+     * Revokes a certificate, without committing the Hibernate transaction.
+     * Once it has been committed, the revocation must be passed to
+     * {@link #indexRevoked(X509Certificate, Date, int)}.
+     * 
+     * @param session
+     *            Hibernate session.
+     * @param documentId
+     *            URI of the profile document of the certificate.
+     * @param cert
+     *            certificate.
+     * @param reason
+     *            CRL reason code.
+     * @return the date of the revocation, or null if the certificate had
+     *         already been revoked.
+     * @throws HibernateException
+     */
+    public Date revoke(Session session, String documentId,
+            X509Certificate cert, int reason) throws HibernateException {
+        IssuedCertificate record = (IssuedCertificate) session.get(
+                IssuedCertificate.class, cert.getSerialNumber().toString(16));
+        if (record == null) {
+            record = new IssuedCertificate(cert.getSerialNumber(),
+                    documentId, cert.getNotAfter());
+            session.save(record);
+        } else if (record.getRevoked() != null) {
+            return null;
+        }
+        Date now = new Date();
+        record.setRevoked(now);
+        record.setReason(reason);
+        record.setModified(now);
+        return now;
+    }
+
+    /**
+     * Adds a revocation to the index, after it has been committed; the CRL is
+     * updated shortly after.
+     * 
+     * @param cert
+     *            certificate.
+     * @param revoked
+     *            date of the revocation (returned by
+     *            {@link #revoke(Session, String, X509Certificate, int)}).
+     * @param reason
+     *            CRL reason code.
+     */
+    public void indexRevoked(X509Certificate cert, Date revoked, int reason) {
+        if (this.revocationIndex.revoke(cert.getSerialNumber(), cert
+                .getNotAfter(), revoked, reason)) {
+            this.crlPublisher.requestUpdate();
+        }
+    }
+
+    /**
+     * Brings the index up to date with the database, if it hasn't been done
+     * within the synchronisation interval. The first call loads the index
+     * (and publishes the CRL) before returning; the following ones return
+     * immediately if another request is already doing it.
+     * 
+     * @param session
+     *            Hibernate session.
+     * @throws HibernateException
+     */
+    public void synchronise(Session session) throws HibernateException {
+        if (this.synchronisedSince == null) {
+            this.synchronisationLock.lock();
+        } else if ((System.currentTimeMillis() - this.lastSynchronisation < this.synchronisationIntervalMillis)
+                || !this.synchronisationLock.tryLock()) {
+            return;
+        }
+        try {
+            Date since = this.synchronisedSince;
+            long startedAt = System.currentTimeMillis();
+            if ((since != null)
+                    && (startedAt - this.lastSynchronisation < this.synchronisationIntervalMillis)) {
+                return;
+            }
+
+            Query query;
+            if (since == null) {
+                query = session.createQuery(
+                        "from IssuedCertificate where notAfter > :now")
+                        .setTimestamp("now", new Date(startedAt));
+            } else {
+                query = session.createQuery(
+                        "from IssuedCertificate where modified >= :since")
+                        .setTimestamp("since", since);
+            }
+            int count = 0;
+            ScrollableResults results = query.setReadOnly(true).scroll(
+                    ScrollMode.FORWARD_ONLY);
+            try {
+                while (results.next()) {
+                    IssuedCertificate record = (IssuedCertificate) results
+                            .get(0);
+                    this.revocationIndex.put(record.getSerialNumberValue(),
+                            record.getNotAfter(), record.getRevoked(),
+                            (record.getReason() != null) ? record
+                                    .getReason() : 0);
+                    session.evict(record);
+                    count++;
+                }
+            } finally {
+                results.close();
+            }
+
+            if (since == null) {
+                LOGGER.info(String.format(
+                        "Loaded %d certificate record(s): %s", count,
+                        this.revocationIndex));
+                try {
+                    this.crlPublisher.update();
+                } catch (GeneralSecurityException e) {
+                    LOGGER.error("Unable to publish the CRL.", e);
+                } catch (IOException e) {
+                    LOGGER.error("Unable to publish the CRL.", e);
+                }
+            } else if (count > 0) {
+                this.crlPublisher.requestUpdate();
+            }
+            this.synchronisedSince = new Date(startedAt
+                    - SYNCHRONISATION_OVERLAP_MILLIS);
+            this.lastSynchronisation = startedAt;
+        } finally {
+            this.synchronisationLock.unlock();
+        }
+    }
+
+    /**
+     * @param serialNumber
+     *            serial number.
+     * @return status of the certificate in the index.
+     */
+    public RevocationIndex.Status getStatus(BigInteger serialNumber) {
+        return this.revocationIndex.getStatus(serialNumber);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s, synchronisedSince=%s]", getClass()
+                .getSimpleName(), this.crlPublisher, this.synchronisedSince);
+    }
+}
@@ -31,6 +31,7 @@ POSSIBILITY OF SUCH DAMAGE.
 package uk.ac.manchester.rcs.bruno.webidrepository;
 
 import java.security.Principal;
+import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
@@ -43,20 +44,57 @@ import org.restlet.Response;
 import org.restlet.security.Authenticator;
 import org.restlet.security.User;
 
+import uk.ac.manchester.rcs.corypha.core.HibernateFilter;
+
 /**
  * Authenticator based on the SSL client certificate. If a client certificate is
  * presented, it adds the Principal of its subject to the list of principals in
  * the request's ClientInfo. It also sets the user to be a new User based on
  * this Principal.
  * 
+ * If a {@link WebidVerifier} is set, a {@link WebidPrincipal} is also added
+ * for each WebID of the certificate that it verifies, and the user is based
+ * on the first of these principals instead. The verifier reads the local
+ * profiles through the Hibernate session, so this authenticator must be
+ * placed after the {@link HibernateFilter}.
+ * 
+ * If an {@link AuthenticationCache} is set, the identity (principals and user)
+ * established for a certificate is kept and reused for the following requests
+ * presenting the same certificate, until it expires or one of the profiles of
+ * its WebIDs is updated.
+ * 
  * {@link #getPrincipal(List)} and {@link #getUser(Principal)} can be overridden
  * to change the default behaviour.
  * 
  * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
  */
 public class ClientCertificateAuthenticator extends Authenticator {
+    private final WebidVerifier webidVerifier;
+    private final AuthenticationCache authenticationCache;
+
     public ClientCertificateAuthenticator(Context context) {
+        this(context, null, null);
+    }
+
+    public ClientCertificateAuthenticator(Context context,
+            WebidVerifier webidVerifier) {
+        this(context, webidVerifier, null);
+    }
+
+    public ClientCertificateAuthenticator(Context context,
+            WebidVerifier webidVerifier,
+            AuthenticationCache authenticationCache) {
         super(context);
+        this.webidVerifier = webidVerifier;
+        this.authenticationCache = authenticationCache;
+    }
+
+    public WebidVerifier getWebidVerifier() {
+        return this.webidVerifier;
+    }
+
+    public AuthenticationCache getAuthenticationCache() {
+        return this.authenticationCache;
     }
 
     /**
@@ -83,6 +121,30 @@ public class ClientCertificateAuthenticator extends Authenticator {
         }
     }
 
+    /**
+     * Verifies the WebIDs of the client certificate, if a
+     * {@link WebidVerifier} is set.
+     * 
+     * @param request
+     *            request.
+     * @param certificateChain
+     *            chain of client certificates.
+     * @return the principals of the verified WebIDs (possibly empty).
+     */
+    protected List<Principal> getWebidPrincipals(Request request,
+            List<X509Certificate> certificateChain) {
+        List<Principal> principals = new ArrayList<Principal>();
+        if ((this.webidVerifier != null) && (certificateChain != null)
+                && (certificateChain.size() > 0)) {
+            for (String webid : this.webidVerifier.verify(HibernateFilter
+                    .getSession(getContext(), request), certificateChain
+                    .get(0))) {
+                principals.add(new WebidPrincipal(webid));
+            }
+        }
+        return principals;
+    }
+
     /**
      * Creates a new User based on the subject's X500Principal. By default, the
      * user name is the subject distinguished name, formatted accorded to RFC
@@ -100,16 +162,88 @@ public class ClientCertificateAuthenticator extends Authenticator {
         }
     }
 
+    /**
+     * Establishes the identity of the client certificate: its principals
+     * (returned by {@link #getPrincipals(List)}, followed by those of the
+     * verified WebIDs) and the result of {@link #getUser(Principal)} for the
+     * first WebID (or the subject). If an {@link AuthenticationCache} is set,
+     * the identity is taken from it if possible, or put into it (unless one of
+     * its profile documents has been updated while it was being verified).
+     * 
+     * @param request
+     *            request.
+     * @param certificateChain
+     *            chain of client certificates.
+     * @return the identity, or null if there is no principal.
+     */
+    protected AuthenticationCache.Identity getIdentity(Request request,
+            List<X509Certificate> certificateChain) {
+        long now = System.currentTimeMillis();
+        String fingerprint = null;
+        if ((this.authenticationCache != null) && (certificateChain != null)
+                && (certificateChain.size() > 0)) {
+            try {
+                certificateChain.get(0).checkValidity();
+                fingerprint = WebidVerifier.fingerprint(certificateChain
+                        .get(0));
+                AuthenticationCache.Identity identity = this.authenticationCache
+                        .get(fingerprint, now);
+                if (identity != null) {
+                    return identity;
+                }
+            } catch (CertificateException e) {
+                fingerprint = null;
+            }
+        }
+
+        List<Principal> principals = getPrincipals(certificateChain);
+        if ((principals == null) || (principals.size() == 0)) {
+            return null;
+        }
+        /*
+         * The documents (and their generation) are known before verifying, so
+         * that an update made meanwhile prevents caching a stale identity.
+         */
+        List<String> documentUris = new ArrayList<String>();
+        long generation = 0;
+        if ((fingerprint != null) && (this.webidVerifier != null)) {
+            for (String uri : WebidVerifier
+                    .getSubjectAltNameUris(certificateChain.get(0))) {
+                documentUris.add(WebidVerifier.getDocumentUri(uri));
+            }
+            generation = this.authenticationCache.getGeneration(documentUris);
+        }
+        List<Principal> webidPrincipals = getWebidPrincipals(request,
+                certificateChain);
+        User user = getUser(webidPrincipals.isEmpty() ? principals.get(0)
+                : webidPrincipals.get(0));
+        List<Principal> allPrincipals = new ArrayList<Principal>(principals);
+        allPrincipals.addAll(webidPrincipals);
+
+        long expiresAt = now;
+        if (fingerprint != null) {
+            X509Certificate certificate = certificateChain.get(0);
+            expiresAt = Math.min(now
+                    + this.authenticationCache.getTtlMillis(), certificate
+                    .getNotAfter().getTime());
+        }
+        AuthenticationCache.Identity identity = new AuthenticationCache.Identity(
+                allPrincipals, user, documentUris, expiresAt);
+        if (fingerprint != null) {
+            this.authenticationCache.put(fingerprint, identity, generation);
+        }
+        return identity;
+    }
+
     /**
      * Authenticates the call using the X.509 client certificate. The
      * verification of the credentials is normally done by the SSL layer, via
      * the TrustManagers.
      * 
      * It uses the certificate chain in the request's
-     * "org.restlet.https.clientCertificates" attribute, adds the principal
-     * returned from this chain by {@link #getPrincipal(List)} to the request's
-     * ClientInfo and set the user to the result of {@link #getUser(Principal)}
-     * if that user is non-null.
+     * "org.restlet.https.clientCertificates" attribute, adds the principals of
+     * the identity returned by {@link #getIdentity(Request, List)} to the
+     * request's ClientInfo and sets its user, if it's non-null.
      */
     @Override
     protected boolean authenticate(Request request, Response response) {
@@ -117,13 +251,13 @@ public class ClientCertificateAuthenticator extends Authenticator {
         List<X509Certificate> certchain = (List<X509Certificate>) request
                 .getAttributes().get("org.restlet.https.clientCertificates");
 
-        List<Principal> principals = getPrincipals(certchain);
+        AuthenticationCache.Identity identity = getIdentity(request, certchain);
 
-        if ((principals != null) && (principals.size() > 0)) {
-            request.getClientInfo().getPrincipals().addAll(principals);
-            User user = getUser(principals.get(0));
-            if (user != null) {
-                request.getClientInfo().setUser(user);
+        if (identity != null) {
+            request.getClientInfo().getPrincipals().addAll(
+                    identity.getPrincipals());
+            if (identity.getUser() != null) {
+                request.getClientInfo().setUser(identity.getUser());
             }
             return true;
         } else {
@@ -0,0 +1,105 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.restlet.data.CharacterSet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.OutputRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.ServerResource;
+
+import uk.ac.manchester.rcs.bruno.keygenapp.base.CrlPublisher;
+import uk.ac.manchester.rcs.corypha.core.HibernateFilter;
+
+/**
+ * Resource serving the CRL of the mini CA, in DER (crl) or PEM. The CRL is
+ * signed in advance by the {@link CrlPublisher}; this only copies its bytes.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class CrlResource extends ServerResource {
+    public static final MediaType APPLICATION_PKIX_CRL_MEDIATYPE = MediaType
+            .valueOf("application/pkix-crl");
+
+    private CrlPublisher.Crl crl;
+
+    @Override
+    protected void doInit() throws ResourceException {
+        super.doInit();
+        setNegotiated(true);
+        CertificateRevocationStore revocationStore = (CertificateRevocationStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_REVOCATION_STORE_ATTRIBUTE);
+        revocationStore.synchronise(HibernateFilter.getSession(getContext(),
+                getRequest()));
+        this.crl = revocationStore.getCrlPublisher().getCrl();
+        if (this.crl == null) {
+            throw new ResourceException(
+                    Status.SERVER_ERROR_SERVICE_UNAVAILABLE,
+                    "The CRL hasn't been published yet.");
+        }
+    }
+
+    @Get("crl")
+    public Representation toDer() {
+        return toRepresentation(this.crl.getDer(),
+                APPLICATION_PKIX_CRL_MEDIATYPE);
+    }
+
+    @Get("pem")
+    public Representation toPem() {
+        Representation rep = toRepresentation(this.crl.getPem(), MediaType
+                .valueOf("application/x-pem-file"));
+        rep.setCharacterSet(CharacterSet.US_ASCII);
+        return rep;
+    }
+
+    private Representation toRepresentation(final byte[] data,
+            MediaType mediaType) {
+        Representation rep = new OutputRepresentation(mediaType, data.length) {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write(data);
+            }
+        };
+        rep.setModificationDate(this.crl.getThisUpdate());
+        return rep;
+    }
+}
@@ -0,0 +1,157 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Transient;
+
+import org.hibernate.annotations.Index;
+
+/**
+ * Record of a certificate issued by the mini CA for a profile, and of its
+ * revocation, shared by the nodes through the database (see
+ * {@link CertificateRevocationStore}).
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+@Entity
+@Table(name = "ISSUED_CERTIFICATES")
+public class IssuedCertificate {
+    private String serialNumber;
+    private String documentId;
+    private Date notAfter;
+    private Date revoked;
+    private Integer reason;
+    private Date modified;
+
+    public IssuedCertificate() {
+    }
+
+    public IssuedCertificate(BigInteger serialNumber, String documentId,
+            Date notAfter) {
+        this.serialNumber = serialNumber.toString(16);
+        this.documentId = documentId;
+        this.notAfter = notAfter;
+        this.modified = new Date();
+    }
+
+    /**
+     * Serial number of the certificate, in hexadecimal.
+     */
+    @Id
+    @Column(name = "SERIALNUMBER", length = 64)
+    public String getSerialNumber() {
+        return this.serialNumber;
+    }
+
+    public void setSerialNumber(String serialNumber) {
+        this.serialNumber = serialNumber;
+    }
+
+    @Transient
+    public BigInteger getSerialNumberValue() {
+        return new BigInteger(this.serialNumber, 16);
+    }
+
+    /**
+     * URI of the profile document to which the certificate was added.
+     */
+    @Index(name = "ISSUED_CERTIFICATES_DOC_IDX")
+    @Column(name = "DOCUMENTID", length = 2048, nullable = false)
+    public String getDocumentId() {
+        return this.documentId;
+    }
+
+    public void setDocumentId(String documentId) {
+        this.documentId = documentId;
+    }
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "NOTAFTER", nullable = false)
+    public Date getNotAfter() {
+        return this.notAfter;
+    }
+
+    public void setNotAfter(Date notAfter) {
+        this.notAfter = notAfter;
+    }
+
+    /**
+     * Date of the revocation (null if the certificate hasn't been revoked).
+     */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "REVOKED", nullable = true)
+    public Date getRevoked() {
+        return this.revoked;
+    }
+
+    public void setRevoked(Date revoked) {
+        this.revoked = revoked;
+    }
+
+    /**
+     * CRL reason code of the revocation.
+     */
+    @Column(name = "REASON", nullable = true)
+    public Integer getReason() {
+        return this.reason;
+    }
+
+    public void setReason(Integer reason) {
+        this.reason = reason;
+    }
+
+    /**
+     * Time of the last change (issuance or revocation), used by the nodes to
+     * pick up each other's changes.
+     */
+    @Index(name = "ISSUED_CERTIFICATES_MOD_IDX")
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "MODIFIED", nullable = false)
+    public Date getModified() {
+        return this.modified;
+    }
+
+    public void setModified(Date modified) {
+        this.modified = modified;
+    }
+}
@@ -0,0 +1,235 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+
+/**
+ * Writes RDF statements as a JSON-LD document in expanded form (an array of
+ * node objects, one per subject), since there is no JSON-LD writer for this
+ * version of Sesame. Contexts are ignored. The statements are grouped by
+ * subject in memory and written when {@link #endRDF()} is called, which is
+ * suitable for documents the size of a WebID profile.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class JsonLdWriter extends RDFHandlerBase {
+    private final Writer writer;
+    private final Map<Resource, Map<URI, List<Value>>> nodes = new LinkedHashMap<Resource, Map<URI, List<Value>>>();
+
+    public JsonLdWriter(OutputStream outputStream) {
+        this(new OutputStreamWriter(outputStream, Charset.forName("UTF-8")));
+    }
+
+    public JsonLdWriter(Writer writer) {
+        this.writer = writer;
+    }
+
+    @Override
+    public void startRDF() throws RDFHandlerException {
+        this.nodes.clear();
+    }
+
+    @Override
+    public void handleStatement(Statement statement)
+            throws RDFHandlerException {
+        Map<URI, List<Value>> properties = this.nodes.get(statement
+                .getSubject());
+        if (properties == null) {
+            properties = new LinkedHashMap<URI, List<Value>>();
+            this.nodes.put(statement.getSubject(), properties);
+        }
+        List<Value> values = properties.get(statement.getPredicate());
+        if (values == null) {
+            values = new ArrayList<Value>();
+            properties.put(statement.getPredicate(), values);
+        }
+        values.add(statement.getObject());
+    }
+
+    @Override
+    public void endRDF() throws RDFHandlerException {
+        try {
+            this.writer.write('[');
+            boolean firstNode = true;
+            for (Map.Entry<Resource, Map<URI, List<Value>>> node : this.nodes
+                    .entrySet()) {
+                if (!firstNode) {
+                    this.writer.write(',');
+                }
+                firstNode = false;
+                this.writer.write("\n  {");
+                writeString("@id");
+                this.writer.write(": ");
+                writeString(toId(node.getKey()));
+                for (Map.Entry<URI, List<Value>> property : node.getValue()
+                        .entrySet()) {
+                    this.writer.write(",\n    ");
+                    List<Value> values = property.getValue();
+                    if (RDF.TYPE.equals(property.getKey())
+                            && allResources(values)) {
+                        writeString("@type");
+                        this.writer.write(": [");
+                        for (int i = 0; i < values.size(); i++) {
+                            if (i > 0) {
+                                this.writer.write(", ");
+                            }
+                            writeString(toId((Resource) values.get(i)));
+                        }
+                    } else {
+                        writeString(property.getKey().toString());
+                        this.writer.write(": [");
+                        for (int i = 0; i < values.size(); i++) {
+                            if (i > 0) {
+                                this.writer.write(", ");
+                            }
+                            writeValue(values.get(i));
+                        }
+                    }
+                    this.writer.write(']');
+                }
+                this.writer.write('}');
+            }
+            this.writer.write("\n]\n");
+            this.writer.flush();
+        } catch (IOException e) {
+            throw new RDFHandlerException(e);
+        } finally {
+            this.nodes.clear();
+        }
+    }
+
+    private static boolean allResources(List<Value> values) {
+        for (Value value : values) {
+            if (!(value instanceof Resource)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String toId(Resource resource) {
+        if (resource instanceof BNode) {
+            return "_:" + ((BNode) resource).getID();
+        } else {
+            return resource.toString();
+        }
+    }
+
+    private void writeValue(Value value) throws IOException {
+        this.writer.write('{');
+        if (value instanceof Literal) {
+            Literal literal = (Literal) value;
+            writeString("@value");
+            this.writer.write(": ");
+            writeString(literal.getLabel());
+            if (literal.getLanguage() != null) {
+                this.writer.write(", ");
+                writeString("@language");
+                this.writer.write(": ");
+                writeString(literal.getLanguage());
+            } else if (literal.getDatatype() != null) {
+                this.writer.write(", ");
+                writeString("@type");
+                this.writer.write(": ");
+                writeString(literal.getDatatype().toString());
+            }
+        } else {
+            writeString("@id");
+            this.writer.write(": ");
+            writeString(toId((Resource) value));
+        }
+        this.writer.write('}');
+    }
+
+    private void writeString(String value) throws IOException {
+        this.writer.write(quote(value));
+    }
+
+    /**
+     * @param value
+     *            string.
+     * @return the string as a JSON string (quoted and escaped).
+     */
+    static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+}
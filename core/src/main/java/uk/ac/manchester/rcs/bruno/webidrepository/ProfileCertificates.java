@@ -0,0 +1,301 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.jce.spec.ECNamedCurveSpec;
+import org.bouncycastle.openssl.PEMReader;
+import org.bouncycastle.openssl.PEMWriter;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+
+/**
+ * Adds the statements describing a certificate issued for a WebID (the PEM
+ * certificate and its public key) to the profile document of this WebID, or
+ * removes them.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public final class ProfileCertificates {
+    private ProfileCertificates() {
+    }
+
+    /**
+     * Adds the certificate and its public key to the profile.
+     * 
+     * @param repositoryConnection
+     *            connection to the repository.
+     * @param context
+     *            URI of the profile document (the WebID is context#me).
+     * @param cert
+     *            certificate to add.
+     * @return the statements added (without context).
+     * @throws RepositoryException
+     * @throws IOException
+     */
+    public static List<Statement> addCertificate(
+            RepositoryConnection repositoryConnection, URI context,
+            X509Certificate cert) throws RepositoryException, IOException {
+        List<Statement> statements = createCertificateStatements(
+                repositoryConnection.getValueFactory(), context, cert);
+        repositoryConnection.add(statements, context);
+        return statements;
+    }
+
+    /**
+     * Removes a certificate from the profile, with the description of its
+     * public key (unless another certificate in the profile has the same
+     * key).
+     * 
+     * @param repositoryConnection
+     *            connection to the repository.
+     * @param context
+     *            URI of the profile document (the WebID is context#me).
+     * @param serialNumber
+     *            serial number of the certificate to remove.
+     * @return the certificate removed, or null if the profile has no
+     *         certificate with this serial number.
+     * @throws RepositoryException
+     * @throws IOException
+     */
+    public static X509Certificate removeCertificate(
+            RepositoryConnection repositoryConnection, URI context,
+            BigInteger serialNumber) throws RepositoryException, IOException {
+        ValueFactory vf = repositoryConnection.getValueFactory();
+        URI predicate = vf.createURI(WebidModule.FOAFSSLMANCHESTER_NS,
+                "x509PemCert");
+
+        X509Certificate removedCert = null;
+        Statement removedStatement = null;
+        List<PublicKey> remainingKeys = new ArrayList<PublicKey>();
+        for (Statement statement : repositoryConnection.getStatements(null,
+                predicate, null, false, context).asList()) {
+            PEMReader pemReader = new PEMReader(new StringReader(statement
+                    .getObject().stringValue()));
+            Object pemObject;
+            try {
+                pemObject = pemReader.readObject();
+            } finally {
+                pemReader.close();
+            }
+            if (pemObject instanceof X509Certificate) {
+                X509Certificate cert = (X509Certificate) pemObject;
+                if ((removedCert == null)
+                        && serialNumber.equals(cert.getSerialNumber())) {
+                    removedCert = cert;
+                    removedStatement = statement;
+                } else {
+                    remainingKeys.add(cert.getPublicKey());
+                }
+            }
+        }
+        if (removedCert == null) {
+            return null;
+        }
+        repositoryConnection.remove(removedStatement, context);
+
+        if (!remainingKeys.contains(removedCert.getPublicKey())) {
+            List<Statement> statements = repositoryConnection.getStatements(
+                    null, null, null, false, context).asList();
+            for (Resource key : WebidVerifier.findKeys(statements, context
+                    .toString()
+                    + "#me", removedCert.getPublicKey())) {
+                for (Statement statement : statements) {
+                    if (key.equals(statement.getSubject())) {
+                        repositoryConnection.remove(statement, context);
+                        /*
+                         * Also removes the nodes holding the numbers.
+                         */
+                        if (statement.getObject() instanceof BNode) {
+                            repositoryConnection.remove(
+                                    (BNode) statement.getObject(), null,
+                                    null, context);
+                        }
+                    } else if (key.equals(statement.getObject())) {
+                        repositoryConnection.remove(statement, context);
+                    }
+                }
+            }
+        }
+        return removedCert;
+    }
+
+    /**
+     * Builds the statements describing the certificate and its public key.
+     * 
+     * @param vf
+     *            value factory.
+     * @param context
+     *            URI of the profile document (the WebID is context#me).
+     * @param cert
+     *            certificate.
+     * @return the statements (without context).
+     * @throws IOException
+     */
+    public static List<Statement> createCertificateStatements(ValueFactory vf,
+            URI context, X509Certificate cert) throws IOException {
+        StringWriter sw = new StringWriter();
+        PEMWriter pemWriter = new PEMWriter(sw);
+        pemWriter.writeObject(cert);
+        pemWriter.close();
+        String pemCert = sw.toString();
+
+        Resource webid = vf.createURI(context.toString(), "#me");
+
+        List<Statement> statements = new ArrayList<Statement>();
+        URI predicate = vf.createURI(WebidModule.FOAFSSLMANCHESTER_NS,
+                "x509PemCert");
+        Value value = vf.createLiteral(pemCert);
+        statements.add(vf.createStatement(webid, predicate, value));
+
+        statements.addAll(createPublicKeyStatements(vf, webid, cert
+                .getPublicKey()));
+        return statements;
+    }
+
+    /**
+     * Builds the description of a public key, as a key whose identity is the
+     * WebID. RSA keys are described with the RSA ontology; EC keys, which it
+     * doesn't cover, are described with the curve name (or OID) and the
+     * coordinates of the public point, in the
+     * {@link WebidModule#FOAFSSLMANCHESTER_NS} namespace. Keys with explicit
+     * parameters have no curve (and can't be verified).
+     * 
+     * @param vf
+     *            value factory.
+     * @param webid
+     *            WebID.
+     * @param publicKey
+     *            public key.
+     * @return the statements (without context).
+     */
+    public static List<Statement> createPublicKeyStatements(ValueFactory vf,
+            Resource webid, PublicKey publicKey) {
+        List<Statement> statements = new ArrayList<Statement>();
+        URI predicate;
+        Value value;
+        if (publicKey instanceof RSAPublicKey) {
+            RSAPublicKey rsaPublicKey = (RSAPublicKey) publicKey;
+
+            BNode keyBnode = vf.createBNode();
+            predicate = RDF.TYPE;
+            value = vf.createURI(WebidModule.RSA_NS, "RSAPublicKey");
+            statements.add(vf.createStatement(keyBnode, predicate, value));
+
+            predicate = vf.createURI(WebidModule.CERT_NS, "identity");
+            statements.add(vf.createStatement(keyBnode, predicate, webid));
+
+            BNode modulusBnode = vf.createBNode();
+            predicate = vf.createURI(WebidModule.CERT_NS, "hex");
+            value = vf.createLiteral(rsaPublicKey.getModulus().toString(16));
+            statements.add(vf.createStatement(modulusBnode, predicate, value));
+
+            predicate = vf.createURI(WebidModule.RSA_NS, "modulus");
+            statements.add(vf.createStatement(keyBnode, predicate,
+                    modulusBnode));
+
+            BNode exponentBnode = vf.createBNode();
+            predicate = vf.createURI(WebidModule.CERT_NS, "decimal");
+            value = vf.createLiteral(rsaPublicKey.getPublicExponent()
+                    .toString(10));
+            statements.add(vf.createStatement(exponentBnode, predicate, value));
+
+            predicate = vf.createURI(WebidModule.RSA_NS, "public_exponent");
+            statements.add(vf.createStatement(keyBnode, predicate,
+                    exponentBnode));
+        } else if (publicKey instanceof ECPublicKey) {
+            ECPublicKey ecPublicKey = (ECPublicKey) publicKey;
+
+            BNode keyBnode = vf.createBNode();
+            predicate = RDF.TYPE;
+            value = vf.createURI(WebidModule.FOAFSSLMANCHESTER_NS,
+                    "ECPublicKey");
+            statements.add(vf.createStatement(keyBnode, predicate, value));
+
+            predicate = vf.createURI(WebidModule.CERT_NS, "identity");
+            statements.add(vf.createStatement(keyBnode, predicate, webid));
+
+            ECParameterSpec params = ecPublicKey.getParams();
+            String curve;
+            if (params instanceof ECNamedCurveSpec) {
+                curve = ((ECNamedCurveSpec) params).getName();
+            } else {
+                curve = WebidVerifier.getCurveOid(ecPublicKey);
+            }
+            if (curve != null) {
+                predicate = vf.createURI(WebidModule.FOAFSSLMANCHESTER_NS,
+                        "curve");
+                value = vf.createLiteral(curve);
+                statements.add(vf.createStatement(keyBnode, predicate, value));
+            }
+
+            ECPoint point = ecPublicKey.getW();
+            BNode xBnode = vf.createBNode();
+            predicate = vf.createURI(WebidModule.CERT_NS, "hex");
+            value = vf.createLiteral(point.getAffineX().toString(16));
+            statements.add(vf.createStatement(xBnode, predicate, value));
+
+            predicate = vf.createURI(WebidModule.FOAFSSLMANCHESTER_NS, "x");
+            statements.add(vf.createStatement(keyBnode, predicate, xBnode));
+
+            BNode yBnode = vf.createBNode();
+            predicate = vf.createURI(WebidModule.CERT_NS, "hex");
+            value = vf.createLiteral(point.getAffineY().toString(16));
+            statements.add(vf.createStatement(yBnode, predicate, value));
+
+            predicate = vf.createURI(WebidModule.FOAFSSLMANCHESTER_NS, "y");
+            statements.add(vf.createStatement(keyBnode, predicate, yBnode));
+        }
+        return statements;
+    }
+}
@@ -0,0 +1,335 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.StatementCollector;
+
+/**
+ * Cache of remote profile documents, fetched over HTTP(S) and parsed, used to
+ * verify WebIDs hosted elsewhere (see {@link WebidVerifier}).
+ * 
+ * A document is kept for a time-to-live (shortened by the max-age of the
+ * response, if any); failures (HTTP errors, timeouts, unparseable
+ * documents) are kept for a shorter time, so that a client presenting a
+ * certificate with an unreachable WebID doesn't cause a fetch for each of its
+ * connections. Concurrent requests for the same document wait for a single
+ * fetch. The cache is bounded by number of documents, and each document by
+ * size.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class ProfileFetchCache {
+    private static final Log LOGGER = LogFactory
+            .getLog(ProfileFetchCache.class);
+
+    private static final String ACCEPT = "application/rdf+xml, text/turtle;q=0.9, "
+            + "application/x-turtle;q=0.9, text/rdf+n3;q=0.8, text/plain;q=0.5";
+    private static final Pattern MAX_AGE_PATTERN = Pattern
+            .compile("max-age\\s*=\\s*(\\d+)");
+
+    private static final VersionedCache.Weigher<FetchedProfile> ONE_WEIGHER = new VersionedCache.Weigher<FetchedProfile>() {
+        public long weigh(FetchedProfile value) {
+            return 1L;
+        }
+    };
+
+    /**
+     * Result of a fetch: either the statements of the document or the reason
+     * why they couldn't be obtained.
+     */
+    private static class FetchedProfile {
+        private final List<Statement> statements;
+        private final String error;
+        private final long expiresAt;
+
+        private FetchedProfile(List<Statement> statements, String error,
+                long expiresAt) {
+            this.statements = statements;
+            this.error = error;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final VersionedCache<String, FetchedProfile> cache;
+    private final ConcurrentMap<String, FutureTask<FetchedProfile>> inFlight = new ConcurrentHashMap<String, FutureTask<FetchedProfile>>();
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final int timeoutMillis;
+    private final int maxBytes;
+
+    private final AtomicLong fetchCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * @param maxEntries
+     *            maximum number of documents (or failures) held.
+     * @param ttlMillis
+     *            time for which a document is kept.
+     * @param negativeTtlMillis
+     *            time for which a failure is kept.
+     * @param timeoutMillis
+     *            connection and read timeout.
+     * @param maxBytes
+     *            maximum size of a document.
+     */
+    public ProfileFetchCache(int maxEntries, long ttlMillis,
+            long negativeTtlMillis, int timeoutMillis, int maxBytes) {
+        this.cache = new VersionedCache<String, FetchedProfile>(maxEntries,
+                maxEntries, ONE_WEIGHER);
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the statements of a remote document, fetching it if it isn't
+     * cached (or if it has expired).
+     * 
+     * @param documentUri
+     *            URI of the document (without fragment).
+     * @return the statements of the document (unmodifiable, without
+     *         context).
+     * @throws IOException
+     *             if the document couldn't be fetched or parsed (now or
+     *             recently).
+     */
+    public List<Statement> getStatements(final String documentUri)
+            throws IOException {
+        FetchedProfile profile = this.cache.get(documentUri, 0L);
+        if ((profile == null)
+                || (profile.expiresAt <= System.currentTimeMillis())) {
+            FutureTask<FetchedProfile> task = new FutureTask<FetchedProfile>(
+                    new Callable<FetchedProfile>() {
+                        public FetchedProfile call() {
+                            // It may have been fetched since the first check.
+                            FetchedProfile fetched = ProfileFetchCache.this.cache
+                                    .get(documentUri, 0L);
+                            if ((fetched != null)
+                                    && (fetched.expiresAt > System
+                                            .currentTimeMillis())) {
+                                return fetched;
+                            }
+                            fetched = fetch(documentUri);
+                            ProfileFetchCache.this.cache.put(documentUri, 0L,
+                                    fetched);
+                            return fetched;
+                        }
+                    });
+            FutureTask<FetchedProfile> existingTask = this.inFlight
+                    .putIfAbsent(documentUri, task);
+            if (existingTask == null) {
+                try {
+                    task.run();
+                } finally {
+                    this.inFlight.remove(documentUri, task);
+                }
+            } else {
+                this.coalescedCount.incrementAndGet();
+                task = existingTask;
+            }
+            try {
+                profile = task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while fetching "
+                        + documentUri);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        if (profile.statements == null) {
+            throw new IOException(profile.error);
+        }
+        return profile.statements;
+    }
+
+    /**
+     * Fetches and parses a document.
+     * 
+     * @param documentUri
+     *            URI of the document.
+     * @return the statements of the document or the reason of the failure.
+     */
+    private FetchedProfile fetch(String documentUri) {
+        this.fetchCount.incrementAndGet();
+        long now = System.currentTimeMillis();
+        try {
+            URL url = new URL(documentUri);
+            if (!"http".equals(url.getProtocol())
+                    && !"https".equals(url.getProtocol())) {
+                return failure(documentUri, "unsupported scheme", now);
+            }
+            HttpURLConnection connection = (HttpURLConnection) url
+                    .openConnection();
+            connection.setConnectTimeout(this.timeoutMillis);
+            connection.setReadTimeout(this.timeoutMillis);
+            connection.setUseCaches(false);
+            connection.setRequestProperty("Accept", ACCEPT);
+            try {
+                int status = connection.getResponseCode();
+                if (status != HttpURLConnection.HTTP_OK) {
+                    return failure(documentUri, "HTTP status " + status, now);
+                }
+                byte[] content = read(connection.getInputStream());
+                if (content == null) {
+                    return failure(documentUri, "document too large", now);
+                }
+
+                String mediaType = connection.getContentType();
+                if (mediaType != null) {
+                    int paramsStart = mediaType.indexOf(';');
+                    if (paramsStart >= 0) {
+                        mediaType = mediaType.substring(0, paramsStart);
+                    }
+                    mediaType = mediaType.trim();
+                }
+                RDFFormat format = (mediaType != null) ? RDFFormat
+                        .forMIMEType(mediaType, RDFFormat.RDFXML)
+                        : RDFFormat.RDFXML;
+                List<Statement> statements = new ArrayList<Statement>();
+                RDFParser parser = Rio.createParser(format);
+                parser.setRDFHandler(new StatementCollector(statements));
+                parser.parse(new ByteArrayInputStream(content), documentUri);
+
+                long ttl = this.ttlMillis;
+                String cacheControl = connection.getHeaderField("Cache-Control");
+                if (cacheControl != null) {
+                    Matcher matcher = MAX_AGE_PATTERN.matcher(cacheControl);
+                    if (matcher.find()) {
+                        ttl = Math.min(ttl,
+                                Long.parseLong(matcher.group(1)) * 1000L);
+                    }
+                }
+                return new FetchedProfile(Collections
+                        .unmodifiableList(statements), null, now + ttl);
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            return failure(documentUri, e.toString(), now);
+        } catch (RDFParseException e) {
+            return failure(documentUri, e.toString(), now);
+        } catch (RDFHandlerException e) {
+            return failure(documentUri, e.toString(), now);
+        } catch (RuntimeException e) {
+            return failure(documentUri, e.toString(), now);
+        }
+    }
+
+    private FetchedProfile failure(String documentUri, String reason, long now) {
+        String error = String.format("Unable to fetch %s: %s", documentUri,
+                reason);
+        LOGGER.debug(error);
+        return new FetchedProfile(null, error, now + this.negativeTtlMillis);
+    }
+
+    /**
+     * @return the content of the stream, or null if it exceeds the maximum
+     *         size.
+     */
+    private byte[] read(InputStream inputStream) throws IOException {
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buffer)) >= 0) {
+                if (outputStream.size() + n > this.maxBytes) {
+                    return null;
+                }
+                outputStream.write(buffer, 0, n);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Removes a document from the cache.
+     * 
+     * @param documentUri
+     *            URI of the document.
+     */
+    public void invalidate(String documentUri) {
+        this.cache.invalidate(documentUri);
+    }
+
+    /**
+     * @return number of HTTP fetches made.
+     */
+    public long getFetchCount() {
+        return this.fetchCount.get();
+    }
+
+    /**
+     * @return number of requests that waited for a fetch already in progress.
+     */
+    public long getCoalescedCount() {
+        return this.coalescedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[fetches=%d, coalesced=%d, cache=%s]",
+                getClass().getSimpleName(), getFetchCount(),
+                getCoalescedCount(), this.cache);
+    }
+}
@@ -0,0 +1,267 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.RepositoryResult;
+
+/**
+ * Looks up the fields of a WebID profile (the "#me" subject of a profile
+ * document): given name, family name and PEM certificate.
+ * 
+ * In {@link Mode#QUERY} mode, this uses the SPARQL queries of the
+ * {@link QueryRegistry}. In {@link Mode#STATEMENTS} mode, this reads all the
+ * statements about the subject in the document context in a single
+ * getStatements() scan, which avoids the overhead of the query engine for
+ * these small lookups. When a field has multiple values, either mode may
+ * return any of them. The fields can also be read from the statements of
+ * a given version of a document (rather than from its context, which may
+ * hold an update that hasn't been committed yet).
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class ProfileLookup {
+    public static enum Mode {
+        QUERY, STATEMENTS
+    }
+
+    public static final String GIVEN_NAME_KEY = "givenName";
+    public static final String FAMILY_NAME_KEY = "familyName";
+    public static final String X509_CERT_KEY = "x509Cert";
+
+    private static final String FOAF_PERSON = WebidModule.FOAF_NS + "Person";
+    private static final String FOAF_GIVEN_NAME = WebidModule.FOAF_NS
+            + "givenName";
+    private static final String FOAF_FAMILY_NAME = WebidModule.FOAF_NS
+            + "familyName";
+    private static final String X509_PEM_CERT = WebidModule.FOAFSSLMANCHESTER_NS
+            + "x509PemCert";
+
+    private final Mode mode;
+    private final QueryRegistry queryRegistry;
+
+    public ProfileLookup(Mode mode, QueryRegistry queryRegistry) {
+        this.mode = mode;
+        this.queryRegistry = queryRegistry;
+    }
+
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Looks up the fields of a profile, whatever the type of its subject.
+     * 
+     * @param repositoryConnection
+     *            connection to the repository.
+     * @param context
+     *            URI of the profile document.
+     * @return map of the fields found (keyed by {@link #GIVEN_NAME_KEY},
+     *         {@link #FAMILY_NAME_KEY} and {@link #X509_CERT_KEY}), or null
+     *         if the subject has no rdf:type in this document.
+     * @throws RepositoryException
+     * @throws MalformedQueryException
+     * @throws QueryEvaluationException
+     */
+    public Map<String, String> lookupProfile(
+            RepositoryConnection repositoryConnection, URI context)
+            throws RepositoryException, MalformedQueryException,
+            QueryEvaluationException {
+        if (this.mode == Mode.STATEMENTS) {
+            return scan(repositoryConnection, context, false);
+        } else {
+            return query(repositoryConnection, context,
+                    QueryRegistry.PROFILE_QUERY);
+        }
+    }
+
+    /**
+     * Looks up the fields of a profile whose subject is a foaf:Person.
+     * 
+     * @param repositoryConnection
+     *            connection to the repository.
+     * @param context
+     *            URI of the profile document.
+     * @return map of the fields found, or null if the subject isn't a
+     *         foaf:Person in this document.
+     * @throws RepositoryException
+     * @throws MalformedQueryException
+     * @throws QueryEvaluationException
+     */
+    public Map<String, String> lookupPerson(
+            RepositoryConnection repositoryConnection, URI context)
+            throws RepositoryException, MalformedQueryException,
+            QueryEvaluationException {
+        if (this.mode == Mode.STATEMENTS) {
+            return scan(repositoryConnection, context, true);
+        } else {
+            return query(repositoryConnection, context,
+                    QueryRegistry.PERSON_CERTIFICATE_QUERY);
+        }
+    }
+
+    /**
+     * Looks up the fields of a profile, whatever the type of its subject, in
+     * the statements of the document.
+     * 
+     * @param statements
+     *            statements of the profile document.
+     * @param context
+     *            URI of the profile document.
+     * @return map of the fields found, or null if the subject has no
+     *         rdf:type in this document.
+     */
+    public Map<String, String> lookupProfile(List<Statement> statements,
+            URI context) {
+        return scan(statements, context, false);
+    }
+
+    /**
+     * Looks up the fields of a profile whose subject is a foaf:Person, in the
+     * statements of the document.
+     * 
+     * @param statements
+     *            statements of the profile document.
+     * @param context
+     *            URI of the profile document.
+     * @return map of the fields found, or null if the subject isn't a
+     *         foaf:Person in this document.
+     */
+    public Map<String, String> lookupPerson(List<Statement> statements,
+            URI context) {
+        return scan(statements, context, true);
+    }
+
+    private Map<String, String> query(
+            RepositoryConnection repositoryConnection, URI context,
+            String queryName) throws RepositoryException,
+            MalformedQueryException, QueryEvaluationException {
+        TupleQueryResult result = this.queryRegistry.evaluate(queryName,
+                repositoryConnection, QueryRegistry.profileBindings(
+                        repositoryConnection.getValueFactory(), context));
+        try {
+            if (result.hasNext()) {
+                BindingSet bindingSet = result.next();
+                Map<String, String> fields = new HashMap<String, String>();
+                putValue(fields, GIVEN_NAME_KEY, bindingSet
+                        .getValue(GIVEN_NAME_KEY));
+                putValue(fields, FAMILY_NAME_KEY, bindingSet
+                        .getValue(FAMILY_NAME_KEY));
+                putValue(fields, X509_CERT_KEY, bindingSet
+                        .getValue(X509_CERT_KEY));
+                return fields;
+            } else {
+                return null;
+            }
+        } finally {
+            result.close();
+        }
+    }
+
+    private Map<String, String> scan(
+            RepositoryConnection repositoryConnection, URI context,
+            boolean personOnly) throws RepositoryException {
+        ValueFactory vf = repositoryConnection.getValueFactory();
+        URI subject = vf.createURI(context.toString(), "#me");
+
+        Map<String, String> fields = new HashMap<String, String>();
+        boolean typeFound = false;
+        RepositoryResult<Statement> statements = repositoryConnection
+                .getStatements(subject, null, null, false, context);
+        try {
+            while (statements.hasNext()) {
+                typeFound |= putField(fields, statements.next(), personOnly);
+            }
+        } finally {
+            statements.close();
+        }
+        return typeFound ? fields : null;
+    }
+
+    private static Map<String, String> scan(List<Statement> statements,
+            URI context, boolean personOnly) {
+        String subject = context.toString() + "#me";
+
+        Map<String, String> fields = new HashMap<String, String>();
+        boolean typeFound = false;
+        for (Statement statement : statements) {
+            if (subject.equals(statement.getSubject().stringValue())) {
+                typeFound |= putField(fields, statement, personOnly);
+            }
+        }
+        return typeFound ? fields : null;
+    }
+
+    /**
+     * Puts the field of a statement about the subject of a profile.
+     * 
+     * @return true if the statement is the type looked for.
+     */
+    private static boolean putField(Map<String, String> fields,
+            Statement statement, boolean personOnly) {
+        String predicate = statement.getPredicate().stringValue();
+        Value object = statement.getObject();
+        if (RDF.TYPE.equals(statement.getPredicate())) {
+            return !personOnly || FOAF_PERSON.equals(object.stringValue());
+        } else if (FOAF_GIVEN_NAME.equals(predicate)) {
+            putValue(fields, GIVEN_NAME_KEY, object);
+        } else if (FOAF_FAMILY_NAME.equals(predicate)) {
+            putValue(fields, FAMILY_NAME_KEY, object);
+        } else if (X509_PEM_CERT.equals(predicate)) {
+            putValue(fields, X509_CERT_KEY, object);
+        }
+        return false;
+    }
+
+    private static void putValue(Map<String, String> fields, String key,
+            Value value) {
+        if ((value != null) && !fields.containsKey(key)) {
+            fields.put(key, value.stringValue());
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+
+/**
+ * Prefix index of the names of the WebIDs described in the profile
+ * documents (as {@link ProfileNameRecord}s), so that profiles can be found
+ * by name without knowing their URI.
+ * 
+ * The names of a WebID (the values of the indexed properties, by default
+ * foaf:givenName then foaf:familyName) are normalised (see
+ * {@link #normalise(String)}) and joined. The terms of the WebID are this
+ * full name and its ends starting at each of its words (e.g.
+ * "john ronald smith", "ronald smith" and "smith"), so that a query matches
+ * a WebID if it's the beginning of its full name or of one of its words.
+ * A query is a range scan of the (term, ID) database index, in which each
+ * profile is only counted the first time it appears.
+ * 
+ * As with the {@link PublicKeyIndex}, the index of a document is replaced
+ * every time the {@link RdfDocumentStore} writes it (or the bulk importer
+ * imports it).
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class ProfileNameIndex implements RdfDocumentStore.DocumentIndex {
+    public static final String[] DEFAULT_PROPERTIES = {
+            WebidModule.FOAF_NS + "givenName",
+            WebidModule.FOAF_NS + "familyName" };
+
+    private static final Pattern COMBINING_MARKS = Pattern
+            .compile("\\p{InCombiningDiacriticalMarks}+");
+    private static final Pattern SEPARATORS = Pattern
+            .compile("[^\\p{L}\\p{N}]+");
+
+    private final String[] properties;
+
+    public ProfileNameIndex() {
+        this(DEFAULT_PROPERTIES);
+    }
+
+    /**
+     * @param properties
+     *            URIs of the properties whose values are the names of a
+     *            WebID (in the order in which they make its full name).
+     */
+    public ProfileNameIndex(String[] properties) {
+        this.properties = properties.clone();
+    }
+
+    /**
+     * Normalises a name or a query: lower case, without accents, words
+     * separated by a single space (anything that is not a letter or a digit
+     * separates words), at most {@link ProfileNameRecord#MAX_LENGTH}
+     * characters.
+     * 
+     * @param name
+     *            name to normalise.
+     * @return the normalised name (possibly empty).
+     */
+    public static String normalise(String name) {
+        String normalised = Normalizer.normalize(name, Normalizer.Form.NFD);
+        normalised = COMBINING_MARKS.matcher(normalised).replaceAll("");
+        normalised = SEPARATORS.matcher(
+                normalised.toLowerCase(Locale.ENGLISH)).replaceAll(" ")
+                .trim();
+        if (normalised.length() > ProfileNameRecord.MAX_LENGTH) {
+            normalised = normalised.substring(0,
+                    ProfileNameRecord.MAX_LENGTH).trim();
+        }
+        return normalised;
+    }
+
+    /**
+     * Builds the terms of a full name: the normalised name and its ends
+     * starting at each word, without those that are the beginning of
+     * another term (since a query matching them matches the other one).
+     * 
+     * @param fullName
+     *            full name (not normalised).
+     * @return the terms (empty if the name has no word).
+     */
+    public static List<String> getTerms(String fullName) {
+        String normalised = normalise(fullName);
+        Set<String> terms = new LinkedHashSet<String>();
+        int start = 0;
+        while (start < normalised.length()) {
+            terms.add(normalised.substring(start));
+            int end = normalised.indexOf(' ', start);
+            if (end < 0) {
+                break;
+            }
+            start = end + 1;
+        }
+        List<String> result = new ArrayList<String>();
+        for (String term : terms) {
+            boolean prefix = false;
+            for (String otherTerm : terms) {
+                if ((otherTerm.length() > term.length())
+                        && otherTerm.startsWith(term)) {
+                    prefix = true;
+                    break;
+                }
+            }
+            if (!prefix) {
+                result.add(term);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the names of the WebIDs (URI subjects) described in a document.
+     * 
+     * @param documentId
+     *            URI of the document.
+     * @param statements
+     *            statements of the document.
+     * @return the records of the names.
+     */
+    public List<ProfileNameRecord> extractNames(String documentId,
+            List<Statement> statements) {
+        Map<String, List<String>[]> names = new LinkedHashMap<String, List<String>[]>();
+        for (Statement statement : statements) {
+            int index = indexOf(statement.getPredicate().toString());
+            if ((index < 0) || !(statement.getSubject() instanceof URI)
+                    || !(statement.getObject() instanceof Literal)) {
+                continue;
+            }
+            String webid = statement.getSubject().toString();
+            List<String>[] values = names.get(webid);
+            if (values == null) {
+                values = newValueLists(this.properties.length);
+                names.put(webid, values);
+            }
+            values[index].add(statement.getObject().stringValue());
+        }
+
+        List<ProfileNameRecord> records = new ArrayList<ProfileNameRecord>();
+        for (Map.Entry<String, List<String>[]> entry : names.entrySet()) {
+            StringBuilder fullName = new StringBuilder();
+            for (List<String> values : entry.getValue()) {
+                for (String value : values) {
+                    if (fullName.length() > 0) {
+                        fullName.append(' ');
+                    }
+                    fullName.append(value.trim());
+                }
+            }
+            String label = fullName.toString();
+            if (label.length() > ProfileNameRecord.MAX_LENGTH) {
+                label = label.substring(0, ProfileNameRecord.MAX_LENGTH);
+            }
+            for (String term : getTerms(label)) {
+                records.add(new ProfileNameRecord(term, documentId, entry
+                        .getKey(), label));
+            }
+        }
+        return records;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String>[] newValueLists(int size) {
+        List<String>[] lists = new List[size];
+        for (int i = 0; i < size; i++) {
+            lists[i] = new ArrayList<String>();
+        }
+        return lists;
+    }
+
+    private int indexOf(String predicate) {
+        for (int i = 0; i < this.properties.length; i++) {
+            if (this.properties[i].equals(predicate)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isAffectedBy(List<Statement> statements) {
+        for (Statement statement : statements) {
+            if (indexOf(statement.getPredicate().toString()) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the index of a document, without committing the Hibernate
+     * transaction (so that it is written with the document). Only the
+     * records that have changed are written.
+     * 
+     * @param session
+     *            Hibernate session.
+     * @param documentId
+     *            URI of the document.
+     * @param statements
+     *            statements of the document.
+     * @throws HibernateException
+     */
+    @SuppressWarnings("unchecked")
+    public void update(Session session, String documentId,
+            List<Statement> statements) throws HibernateException {
+        Map<String, ProfileNameRecord> records = new LinkedHashMap<String, ProfileNameRecord>();
+        for (ProfileNameRecord record : extractNames(documentId, statements)) {
+            records.put(record.getId(), record);
+        }
+        List<ProfileNameRecord> existingRecords = session.createQuery(
+                "from ProfileNameRecord where documentId = :documentId")
+                .setParameter("documentId", documentId).list();
+        for (ProfileNameRecord existingRecord : existingRecords) {
+            ProfileNameRecord record = records.remove(existingRecord.getId());
+            if (record == null) {
+                session.delete(existingRecord);
+            } else if (!record.getLabel().equals(existingRecord.getLabel())) {
+                existingRecord.setLabel(record.getLabel());
+            }
+        }
+        for (ProfileNameRecord record : records.values()) {
+            session.save(record);
+        }
+    }
+
+    /**
+     * Returns the smallest string greater than all the strings starting with
+     * a prefix: the prefix with its last character incremented (after
+     * removing the trailing characters that can't be).
+     * 
+     * @param prefix
+     *            prefix.
+     * @return the exclusive upper bound, or null if there is none.
+     */
+    public static String getUpperBound(String prefix) {
+        int end = prefix.length();
+        while ((end > 0) && (prefix.charAt(end - 1) == Character.MAX_VALUE)) {
+            end--;
+        }
+        if (end == 0) {
+            return null;
+        }
+        return prefix.substring(0, end - 1)
+                + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    /**
+     * Finds the profiles (WebID and document) having a term starting with a
+     * query, in the order of their first matching term. A profile matching
+     * the query with several of its terms (e.g. "an" matches both "anna
+     * andrews" and "andrews") is returned once, with its first record.
+     * 
+     * @param session
+     *            Hibernate session.
+     * @param query
+     *            beginning of a name (normalised here).
+     * @param firstResult
+     *            index of the first profile to return.
+     * @param maxResults
+     *            maximum number of profiles to return.
+     * @return a record for each profile (empty if the query has no word).
+     * @throws HibernateException
+     */
+    public List<ProfileNameRecord> search(Session session, String query,
+            int firstResult, int maxResults) throws HibernateException {
+        List<ProfileNameRecord> results = new ArrayList<ProfileNameRecord>();
+        String prefix = normalise(query);
+        if (prefix.length() == 0) {
+            return results;
+        }
+        String end = getUpperBound(prefix);
+        Query hqlQuery;
+        if (end != null) {
+            hqlQuery = session.createQuery(
+                    "from ProfileNameRecord r where r.term >= :prefix and r.term < :end order by r.term, r.id")
+                    .setParameter("end", end);
+        } else {
+            hqlQuery = session.createQuery(
+                    "from ProfileNameRecord r where r.term >= :prefix order by r.term, r.id");
+        }
+        Set<List<String>> profiles = new HashSet<List<String>>();
+        ScrollableResults records = hqlQuery.setParameter("prefix", prefix)
+                .setReadOnly(true).scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            while ((results.size() < maxResults) && records.next()) {
+                ProfileNameRecord record = (ProfileNameRecord) records.get(0);
+                if (profiles.add(Arrays.asList(record.getWebid(), record
+                        .getDocumentId()))
+                        && (profiles.size() > firstResult)) {
+                    results.add(record);
+                } else {
+                    session.evict(record);
+                }
+            }
+        } finally {
+            records.close();
+        }
+        return results;
+    }
+}
@@ -0,0 +1,183 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.HibernateException;
+import org.restlet.data.CharacterSet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Reference;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.ServerResource;
+
+import uk.ac.manchester.rcs.corypha.core.CoryphaTemplateUtil;
+import uk.ac.manchester.rcs.corypha.core.HibernateFilter;
+
+/**
+ * Resource searching the profiles by name, using the
+ * {@link ProfileNameIndex}: search?q=beginning of a name[&page=n]. The
+ * results are paged ({@link WebidConfiguration#getSearchPageSize()} per
+ * page).
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class ProfileSearchResource extends ServerResource {
+    private String query;
+    private int page = 1;
+    private final List<ProfileNameRecord> results = new ArrayList<ProfileNameRecord>();
+    private boolean morePages = false;
+
+    @Override
+    protected void doInit() throws ResourceException {
+        super.doInit();
+        setNegotiated(true);
+
+        this.query = getQuery().getFirstValue("q");
+        String pageValue = getQuery().getFirstValue("page");
+        if (pageValue != null) {
+            try {
+                this.page = Integer.parseInt(pageValue);
+            } catch (NumberFormatException e) {
+                this.page = 0;
+            }
+            if (this.page < 1) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
+                        "Invalid page number.");
+            }
+        }
+        if ((this.query == null) || (this.query.trim().length() == 0)) {
+            this.query = null;
+            return;
+        }
+
+        ProfileNameIndex profileNameIndex = (ProfileNameIndex) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_PROFILE_NAME_INDEX_ATTRIBUTE);
+        WebidConfiguration webidConfiguration = (WebidConfiguration) getContext()
+                .getAttributes().get(
+                        WebidModule.WEBID_CONFIGURATION_CTXATTR_NAME);
+        int pageSize = webidConfiguration.getSearchPageSize();
+        List<ProfileNameRecord> records;
+        try {
+            records = profileNameIndex.search(HibernateFilter.getSession(
+                    getContext(), getRequest()), this.query, (this.page - 1)
+                    * pageSize, pageSize + 1);
+        } catch (HibernateException e) {
+            throw new ResourceException(e);
+        }
+        if (records.size() > pageSize) {
+            this.morePages = true;
+            records = records.subList(0, pageSize);
+        }
+        this.results.addAll(records);
+    }
+
+    /**
+     * @return the URI of another page of results for the same query.
+     */
+    private String getPageUri(int page) {
+        Reference reference = new Reference(getRequest().getResourceRef());
+        reference.setQuery(null);
+        reference.addQueryParameter("q", this.query);
+        reference.addQueryParameter("page", Integer.toString(page));
+        return reference.toString();
+    }
+
+    @Get("html")
+    public Representation toHtml() {
+        List<Map<String, String>> resultList = new ArrayList<Map<String, String>>();
+        for (ProfileNameRecord record : this.results) {
+            Map<String, String> result = new HashMap<String, String>();
+            result.put("webid", record.getWebid());
+            result.put("document", record.getDocumentId());
+            result.put("name", record.getLabel());
+            resultList.add(result);
+        }
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        data.put("query", (this.query != null) ? this.query : "");
+        data.put("results", resultList);
+        data.put("page", this.page);
+        if (this.morePages) {
+            data.put("next_url", getPageUri(this.page + 1));
+        }
+        if ((this.query != null) && (this.page > 1)) {
+            data.put("previous_url", getPageUri(this.page - 1));
+        }
+        return CoryphaTemplateUtil.buildTemplateRepresentation(getContext(),
+                getRequest(), "foafsearch.ftl.html", data,
+                MediaType.TEXT_HTML);
+    }
+
+    /**
+     * @return {"query": ..., "page": n, "results": [{"webid": ...,
+     *         "document": ..., "name": ...}, ...], "next": URI of the next
+     *         page, if any}.
+     */
+    @Get("json")
+    public Representation toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"query\": ").append(
+                JsonLdWriter.quote((this.query != null) ? this.query : ""))
+                .append(", \"page\": ").append(this.page).append(
+                        ", \"results\": [");
+        for (int i = 0; i < this.results.size(); i++) {
+            ProfileNameRecord record = this.results.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("\n  {\"webid\": ").append(
+                    JsonLdWriter.quote(record.getWebid())).append(
+                    ", \"document\": ").append(
+                    JsonLdWriter.quote(record.getDocumentId())).append(
+                    ", \"name\": ").append(
+                    JsonLdWriter.quote(record.getLabel())).append('}');
+        }
+        sb.append(']');
+        if (this.morePages) {
+            sb.append(", \"next\": ").append(
+                    JsonLdWriter.quote(getPageUri(this.page + 1)));
+        }
+        sb.append("}\n");
+        return new StringRepresentation(sb, MediaType.APPLICATION_JSON,
+                null, CharacterSet.UTF_8);
+    }
+}
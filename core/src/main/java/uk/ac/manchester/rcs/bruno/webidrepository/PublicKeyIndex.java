@@ -0,0 +1,247 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+
+/**
+ * Index of the public keys described in the profile documents (as
+ * {@link PublicKeyRecord}s), from the hash of a key to the WebIDs it
+ * identifies, so that finding which WebID owns a key (and verifying a
+ * local WebID) is a single indexed query rather than a scan of the
+ * documents.
+ * 
+ * The index of a document is replaced by the {@link RdfDocumentStore}
+ * every time it writes the document, and by the bulk importer. Documents
+ * written before the index existed are only indexed when they are written
+ * again, so a missing entry doesn't mean the key isn't in the document.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class PublicKeyIndex implements RdfDocumentStore.DocumentIndex {
+    /**
+     * @param publicKey
+     *            RSA or EC public key.
+     * @return the hash of the key (null for other types of keys, and for EC
+     *         keys that aren't on a named curve).
+     */
+    public static String keyHash(PublicKey publicKey) {
+        if (publicKey instanceof RSAPublicKey) {
+            RSAPublicKey rsaPublicKey = (RSAPublicKey) publicKey;
+            return rsaKeyHash(rsaPublicKey.getModulus(), rsaPublicKey
+                    .getPublicExponent());
+        } else if (publicKey instanceof ECPublicKey) {
+            ECPublicKey ecPublicKey = (ECPublicKey) publicKey;
+            String curveOid = WebidVerifier.getCurveOid(ecPublicKey);
+            if (curveOid == null) {
+                return null;
+            }
+            return ecKeyHash(curveOid, ecPublicKey.getW().getAffineX(),
+                    ecPublicKey.getW().getAffineY());
+        }
+        return null;
+    }
+
+    /**
+     * @return the hash of an RSA key: SHA-256 of "rsa:modulus:exponent" (in
+     *         hexadecimal).
+     */
+    public static String rsaKeyHash(BigInteger modulus, BigInteger exponent) {
+        return hash("rsa:" + modulus.toString(16) + ":"
+                + exponent.toString(16));
+    }
+
+    /**
+     * @return the hash of an EC key: SHA-256 of "ec:curve:x:y" (OID of the
+     *         named curve, and coordinates of the public point in
+     *         hexadecimal).
+     */
+    public static String ecKeyHash(String curveOid, BigInteger x,
+            BigInteger y) {
+        return hash("ec:" + curveOid + ":" + x.toString(16) + ":"
+                + y.toString(16));
+    }
+
+    private static String hash(String canonicalKey) {
+        return RdfDocumentContainer.sha256Hex(canonicalKey.getBytes(Charset
+                .forName("US-ASCII")));
+    }
+
+    /**
+     * Finds the keys described in a document, as in
+     * {@link WebidVerifier#matchesKey(List, String, PublicKey)}. Only the
+     * WebIDs of the document itself are indexed: a document can't vouch for
+     * the keys of a WebID whose profile is elsewhere.
+     * 
+     * @param documentId
+     *            URI of the document.
+     * @param statements
+     *            statements of the document.
+     * @return the records of the keys.
+     */
+    public static List<PublicKeyRecord> extractKeys(String documentId,
+            List<Statement> statements) {
+        Map<String, PublicKeyRecord> records = new LinkedHashMap<String, PublicKeyRecord>();
+        for (Statement statement : statements) {
+            String predicate = statement.getPredicate().toString();
+            Resource key;
+            String webid;
+            if (WebidVerifier.CERT_IDENTITY.equals(predicate)) {
+                key = statement.getSubject();
+                webid = statement.getObject().toString();
+            } else if (WebidVerifier.CERT_KEY.equals(predicate)
+                    && (statement.getObject() instanceof Resource)) {
+                key = (Resource) statement.getObject();
+                webid = statement.getSubject().toString();
+            } else {
+                continue;
+            }
+            if (!documentId.equals(WebidVerifier.getDocumentUri(webid))) {
+                continue;
+            }
+
+            String keyHash = null;
+            BigInteger modulus = WebidVerifier.getNumber(statements, key,
+                    WebidVerifier.MODULUS_PREDICATES, true);
+            BigInteger exponent = WebidVerifier.getNumber(statements, key,
+                    WebidVerifier.EXPONENT_PREDICATES, false);
+            if ((modulus != null) && (exponent != null)) {
+                keyHash = rsaKeyHash(modulus, exponent);
+            } else {
+                BigInteger x = WebidVerifier.getNumber(statements, key,
+                        WebidVerifier.EC_X_PREDICATES, true);
+                BigInteger y = WebidVerifier.getNumber(statements, key,
+                        WebidVerifier.EC_Y_PREDICATES, true);
+                String curveOid = WebidVerifier.getCurveOid(statements, key);
+                if ((x != null) && (y != null) && (curveOid != null)) {
+                    keyHash = ecKeyHash(curveOid, x, y);
+                }
+            }
+            if (keyHash != null) {
+                PublicKeyRecord record = new PublicKeyRecord(keyHash,
+                        documentId, webid);
+                records.put(record.getId(), record);
+            }
+        }
+        return new ArrayList<PublicKeyRecord>(records.values());
+    }
+
+    /**
+     * @param statements
+     *            statements added to a document.
+     * @return true if they may change the keys described in the document.
+     */
+    public static boolean describesKeys(List<Statement> statements) {
+        for (Statement statement : statements) {
+            String predicate = statement.getPredicate().toString();
+            if (WebidVerifier.CERT_IDENTITY.equals(predicate)
+                    || WebidVerifier.CERT_KEY.equals(predicate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isAffectedBy(List<Statement> statements) {
+        return describesKeys(statements);
+    }
+
+    /**
+     * Replaces the index of a document, without committing the Hibernate
+     * transaction (so that it is written with the document). Only the
+     * records that have changed are written.
+     * 
+     * @param session
+     *            Hibernate session.
+     * @param documentId
+     *            URI of the document.
+     * @param statements
+     *            statements of the document.
+     * @throws HibernateException
+     */
+    @SuppressWarnings("unchecked")
+    public void update(Session session, String documentId,
+            List<Statement> statements) throws HibernateException {
+        Map<String, PublicKeyRecord> records = new LinkedHashMap<String, PublicKeyRecord>();
+        for (PublicKeyRecord record : extractKeys(documentId, statements)) {
+            records.put(record.getId(), record);
+        }
+        List<PublicKeyRecord> existingRecords = session.createQuery(
+                "from PublicKeyRecord where documentId = :documentId")
+                .setParameter("documentId", documentId).list();
+        for (PublicKeyRecord existingRecord : existingRecords) {
+            if (records.remove(existingRecord.getId()) == null) {
+                session.delete(existingRecord);
+            }
+        }
+        for (PublicKeyRecord record : records.values()) {
+            session.save(record);
+        }
+    }
+
+    /**
+     * Finds the records of a public key (with the documents describing it).
+     * 
+     * @param session
+     *            Hibernate session.
+     * @param publicKey
+     *            public key.
+     * @return the records (possibly empty).
+     * @throws HibernateException
+     */
+    @SuppressWarnings("unchecked")
+    public List<PublicKeyRecord> findRecords(Session session,
+            PublicKey publicKey) throws HibernateException {
+        String keyHash = keyHash(publicKey);
+        if (keyHash == null) {
+            return new ArrayList<PublicKeyRecord>();
+        }
+        return session.createQuery(
+                "from PublicKeyRecord where keyHash = :keyHash")
+                .setParameter("keyHash", keyHash).list();
+    }
+}
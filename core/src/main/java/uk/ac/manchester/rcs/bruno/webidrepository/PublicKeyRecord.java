@@ -0,0 +1,125 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.nio.charset.Charset;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.Index;
+
+/**
+ * Entry of the {@link PublicKeyIndex}: a public key described in a profile
+ * document as a key of a WebID. The ID is derived from the other columns,
+ * so that the rows can also be written without Hibernate (by the bulk
+ * importer).
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+@Entity
+@Table(name = "PUBLIC_KEYS")
+public class PublicKeyRecord {
+    private String id;
+    private String keyHash;
+    private String documentId;
+    private String webid;
+
+    public PublicKeyRecord() {
+    }
+
+    public PublicKeyRecord(String keyHash, String documentId, String webid) {
+        this.id = createId(keyHash, documentId, webid);
+        this.keyHash = keyHash;
+        this.documentId = documentId;
+        this.webid = webid;
+    }
+
+    /**
+     * @return the ID of the record of a key of a WebID in a document.
+     */
+    public static String createId(String keyHash, String documentId,
+            String webid) {
+        return RdfDocumentContainer.sha256Hex((keyHash + " " + documentId
+                + " " + webid).getBytes(Charset.forName("UTF-8")));
+    }
+
+    @Id
+    @Column(name = "ID", length = 64)
+    public String getId() {
+        return this.id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    /**
+     * Hash of the key (see
+     * {@link PublicKeyIndex#keyHash(java.security.PublicKey)}).
+     */
+    @Index(name = "PUBLIC_KEYS_KEYHASH_IDX")
+    @Column(name = "KEYHASH", length = 64, nullable = false)
+    public String getKeyHash() {
+        return this.keyHash;
+    }
+
+    public void setKeyHash(String keyHash) {
+        this.keyHash = keyHash;
+    }
+
+    /**
+     * URI of the profile document describing the key.
+     */
+    @Index(name = "PUBLIC_KEYS_DOC_IDX")
+    @Column(name = "DOCUMENTID", length = 2048, nullable = false)
+    public String getDocumentId() {
+        return this.documentId;
+    }
+
+    public void setDocumentId(String documentId) {
+        this.documentId = documentId;
+    }
+
+    @Column(name = "WEBID", length = 2048, nullable = false)
+    public String getWebid() {
+        return this.webid;
+    }
+
+    public void setWebid(String webid) {
+        this.webid = webid;
+    }
+}
@@ -0,0 +1,202 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import info.aduna.iteration.CloseableIteration;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.impl.MapBindingSet;
+import org.openrdf.query.impl.TupleQueryResultImpl;
+import org.openrdf.query.parser.ParsedTupleQuery;
+import org.openrdf.query.parser.QueryParserUtil;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.sail.SailRepositoryConnection;
+import org.openrdf.sail.SailException;
+
+/**
+ * Registry of the SPARQL queries used by the resources. Each query is parsed
+ * once, when it's registered, and evaluated against the Sail directly (when
+ * the repository is a SailRepository), with the request-specific values
+ * passed as bindings instead of being formatted into the query string.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class QueryRegistry {
+    public static final String CONTEXT_VAR = "context";
+    public static final String SUBJECT_VAR = "me";
+
+    /**
+     * Type, names and certificate of a profile: binds ?t, ?givenName,
+     * ?familyName and ?x509Cert.
+     */
+    public static final String PROFILE_QUERY = "profile";
+    /**
+     * Certificate of a foaf:Person (which may not have one): binds
+     * ?x509Cert.
+     */
+    public static final String PERSON_CERTIFICATE_QUERY = "personCertificate";
+
+    private static final String PREFIXES = String.format(
+            "PREFIX rdf: <%s> PREFIX foaf: <%s> PREFIX man: <%s> ",
+            RDF.NAMESPACE, WebidModule.FOAF_NS,
+            WebidModule.FOAFSSLMANCHESTER_NS);
+
+    private static class PreparedQuery {
+        private final String queryString;
+        private final ParsedTupleQuery parsedQuery;
+
+        private PreparedQuery(String queryString, ParsedTupleQuery parsedQuery) {
+            this.queryString = queryString;
+            this.parsedQuery = parsedQuery;
+        }
+    }
+
+    private final Map<String, PreparedQuery> queries = new ConcurrentHashMap<String, PreparedQuery>();
+
+    /**
+     * Creates a registry containing the queries used by the WebID resources.
+     * 
+     * @throws MalformedQueryException
+     */
+    public QueryRegistry() throws MalformedQueryException {
+        register(PROFILE_QUERY, PREFIXES
+                + "SELECT ?t ?givenName ?familyName ?x509Cert "
+                + "WHERE { GRAPH ?context { " + " ?me rdf:type ?t . "
+                + " OPTIONAL { ?me foaf:givenName ?givenName } . "
+                + " OPTIONAL { ?me foaf:familyName ?familyName } . "
+                + " OPTIONAL { ?me man:x509PemCert ?x509Cert } . " + "} }");
+        register(PERSON_CERTIFICATE_QUERY, PREFIXES
+                + "SELECT ?x509Cert " + "WHERE { GRAPH ?context { "
+                + " ?me rdf:type foaf:Person . "
+                + " OPTIONAL { ?me man:x509PemCert ?x509Cert } . " + "} }");
+    }
+
+    /**
+     * Parses and registers a SPARQL tuple query.
+     * 
+     * @param name
+     *            name of the query.
+     * @param queryString
+     *            SPARQL query.
+     * @throws MalformedQueryException
+     */
+    public void register(String name, String queryString)
+            throws MalformedQueryException {
+        this.queries.put(name, new PreparedQuery(queryString, QueryParserUtil
+                .parseTupleQuery(QueryLanguage.SPARQL, queryString, null)));
+    }
+
+    /**
+     * Builds the bindings for the profile queries: ?context is the document
+     * URI and ?me is its "#me" WebID.
+     * 
+     * @param valueFactory
+     *            value factory.
+     * @param context
+     *            URI of the profile document.
+     * @return bindings.
+     */
+    public static BindingSet profileBindings(ValueFactory valueFactory,
+            URI context) {
+        MapBindingSet bindings = new MapBindingSet();
+        bindings.addBinding(CONTEXT_VAR, context);
+        bindings.addBinding(SUBJECT_VAR, valueFactory.createURI(context
+                .toString(), "#me"));
+        return bindings;
+    }
+
+    /**
+     * Evaluates a registered query.
+     * 
+     * @param name
+     *            name of the query.
+     * @param repositoryConnection
+     *            connection to use.
+     * @param bindings
+     *            values of the query parameters.
+     * @return result, to be closed by the caller.
+     * @throws RepositoryException
+     * @throws QueryEvaluationException
+     * @throws MalformedQueryException
+     */
+    public TupleQueryResult evaluate(String name,
+            RepositoryConnection repositoryConnection, BindingSet bindings)
+            throws RepositoryException, QueryEvaluationException,
+            MalformedQueryException {
+        PreparedQuery query = this.queries.get(name);
+        if (query == null) {
+            throw new IllegalArgumentException("Unknown query: " + name);
+        }
+
+        if (repositoryConnection instanceof SailRepositoryConnection) {
+            /*
+             * The Sail clones the tuple expression before optimising it, so
+             * the parsed query can be shared between threads.
+             */
+            try {
+                CloseableIteration<? extends BindingSet, QueryEvaluationException> bindingSetIter = ((SailRepositoryConnection) repositoryConnection)
+                        .getSailConnection().evaluate(
+                                query.parsedQuery.getTupleExpr(),
+                                query.parsedQuery.getDataset(), bindings,
+                                false);
+                return new TupleQueryResultImpl(new ArrayList<String>(
+                        query.parsedQuery.getTupleExpr().getBindingNames()),
+                        bindingSetIter);
+            } catch (SailException e) {
+                throw new RepositoryException(e);
+            }
+        } else {
+            TupleQuery tupleQuery = repositoryConnection.prepareTupleQuery(
+                    QueryLanguage.SPARQL, query.queryString);
+            for (Binding binding : bindings) {
+                tupleQuery.setBinding(binding.getName(), binding.getValue());
+            }
+            return tupleQuery.evaluate();
+        }
+    }
+}
@@ -30,11 +30,23 @@ POSSIBILITY OF SUCH DAMAGE.
 -----------------------------------------------------------------------*/
 package uk.ac.manchester.rcs.bruno.webidrepository;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.Lob;
 import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Transient;
+
+import org.openrdf.rio.RDFFormat;
 
 /**
  * 
@@ -44,8 +56,33 @@ import javax.persistence.Table;
 @Entity
 @Table(name = "RDF_DOCUMENTS")
 public class RdfDocumentContainer {
+    /**
+     * Formats in which the content can be serialised in {@link #getRdfData()}.
+     * The name of the constant is what is stored in the discriminator column.
+     */
+    public static enum SerialisationFormat {
+        RDFXML(RDFFormat.RDFXML), NTRIPLES(RDFFormat.NTRIPLES), TURTLE(
+                RDFFormat.TURTLE);
+
+        private final RDFFormat rdfFormat;
+
+        private SerialisationFormat(RDFFormat rdfFormat) {
+            this.rdfFormat = rdfFormat;
+        }
+
+        public RDFFormat getRdfFormat() {
+            return this.rdfFormat;
+        }
+    }
+
     private String id;
     private String rdfContent;
+    private byte[] rdfData;
+    private String rdfFormat;
+    private Long version;
+    private Long snapshotVersion;
+    private String contentHash;
+    private Date lastModified;
 
     @Id
     @Column(name = "ID", length = 2048)
@@ -66,4 +103,182 @@ public class RdfDocumentContainer {
     public void setRdfContent(String rdfContent) {
         this.rdfContent = rdfContent;
     }
+
+    /**
+     * Serialised RDF document (UTF-8 encoded, in the format named by
+     * {@link #getRdfFormat()}). This replaces
+     * {@link #getRdfContent()}, which is only read for documents stored before
+     * this column was introduced.
+     */
+    @Lob
+    @Column(name = "RDFDATA", nullable = true)
+    public byte[] getRdfData() {
+        return this.rdfData;
+    }
+
+    public void setRdfData(byte[] rdfData) {
+        this.rdfData = rdfData;
+    }
+
+    /**
+     * Name of the {@link SerialisationFormat} of {@link #getRdfData()}. This
+     * may be null for documents stored before this column was introduced, in
+     * which case the content is RDF/XML.
+     */
+    @Column(name = "RDFFORMAT", nullable = true, length = 16)
+    public String getRdfFormat() {
+        return this.rdfFormat;
+    }
+
+    public void setRdfFormat(String rdfFormat) {
+        this.rdfFormat = rdfFormat;
+    }
+
+    /**
+     * @return format in which the content is serialised.
+     */
+    @Transient
+    public SerialisationFormat getSerialisationFormat() {
+        if ((this.rdfData == null) || (this.rdfFormat == null)) {
+            return SerialisationFormat.RDFXML;
+        } else {
+            return SerialisationFormat.valueOf(this.rdfFormat);
+        }
+    }
+
+    /**
+     * @return true if this container has some content, in either column.
+     */
+    public boolean hasContent() {
+        return (this.rdfData != null) || (this.rdfContent != null);
+    }
+
+    /**
+     * Opens a stream to read the serialised RDF document, without going
+     * through an intermediate String. The content is in the format given by
+     * {@link #getSerialisationFormat()}.
+     * 
+     * @return stream of the (UTF-8 encoded) document, or null if there is no
+     *         content.
+     */
+    public InputStream openRdfStream() {
+        if (this.rdfData != null) {
+            return new ByteArrayInputStream(this.rdfData);
+        } else if (this.rdfContent != null) {
+            return new ByteArrayInputStream(this.rdfContent.getBytes(Charset
+                    .forName("UTF-8")));
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Version of the content, incremented each time the content is replaced
+     * using {@link #updateRdfData(byte[], SerialisationFormat)} or extended by
+     * an {@link RdfDocumentDelta}. This may be null for documents stored
+     * before this column was introduced.
+     */
+    @Column(name = "VERSION", nullable = true)
+    public Long getVersion() {
+        return this.version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    /**
+     * @return the version of the content, 0 if it hasn't been set.
+     */
+    @Transient
+    public long getContentVersion() {
+        return (this.version != null) ? this.version.longValue() : 0L;
+    }
+
+    /**
+     * Version of the content held in {@link #getRdfData()}: the versions
+     * after it are the {@link RdfDocumentDelta}s of this document, which
+     * must be added to it. This may be null if there is no delta.
+     */
+    @Column(name = "SNAPSHOTVERSION", nullable = true)
+    public Long getSnapshotVersion() {
+        return this.snapshotVersion;
+    }
+
+    public void setSnapshotVersion(Long snapshotVersion) {
+        this.snapshotVersion = snapshotVersion;
+    }
+
+    /**
+     * @return true if some {@link RdfDocumentDelta}s must be added to the
+     *         content of this container.
+     */
+    @Transient
+    public boolean hasDeltas() {
+        return (this.snapshotVersion != null)
+                && (this.snapshotVersion.longValue() < getContentVersion());
+    }
+
+    /**
+     * Hexadecimal SHA-256 digest of the content, used as an entity tag. This
+     * may be null for documents stored before this column was introduced.
+     */
+    @Column(name = "CONTENTHASH", length = 64, nullable = true)
+    public String getContentHash() {
+        return this.contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "LASTMODIFIED", nullable = true)
+    public Date getLastModified() {
+        return this.lastModified;
+    }
+
+    public void setLastModified(Date lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Replaces the content, increments its version and updates its hash and
+     * modification date. The legacy {@link #getRdfContent()} column is
+     * cleared.
+     * 
+     * @param rdfData
+     *            new (UTF-8 encoded) content.
+     * @param format
+     *            format of the new content.
+     */
+    public void updateRdfData(byte[] rdfData, SerialisationFormat format) {
+        setRdfData(rdfData);
+        setRdfFormat(format.name());
+        setRdfContent(null);
+        setVersion(getContentVersion() + 1L);
+        setSnapshotVersion(null);
+        setContentHash(sha256Hex(rdfData));
+        setLastModified(new Date());
+    }
+
+    /**
+     * @param data
+     *            data to digest.
+     * @return the hexadecimal SHA-256 digest of the data, as stored in
+     *         {@link #getContentHash()}.
+     */
+    public static String sha256Hex(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
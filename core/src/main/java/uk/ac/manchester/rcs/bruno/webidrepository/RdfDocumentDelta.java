@@ -0,0 +1,163 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Transient;
+
+import org.hibernate.annotations.Index;
+
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer.SerialisationFormat;
+
+/**
+ * Statements added to a document stored in an {@link RdfDocumentContainer},
+ * so that adding a few statements (for example, a certificate) doesn't
+ * require rewriting the whole document. The content of a document is the
+ * content of its container followed by its deltas of versions greater than
+ * {@link RdfDocumentContainer#getSnapshotVersion()}, in version order. The
+ * deltas are deleted when the whole document is rewritten.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+@Entity
+@Table(name = "RDF_DOCUMENT_DELTAS")
+public class RdfDocumentDelta {
+    private Long id;
+    private String documentId;
+    private Long version;
+    private byte[] rdfData;
+    private String rdfFormat;
+    private Date created;
+
+    public RdfDocumentDelta() {
+    }
+
+    public RdfDocumentDelta(String documentId, long version, byte[] rdfData,
+            SerialisationFormat format) {
+        this.documentId = documentId;
+        this.version = version;
+        this.rdfData = rdfData;
+        this.rdfFormat = format.name();
+        this.created = new Date();
+    }
+
+    @Id
+    @GeneratedValue
+    @Column(name = "ID")
+    public Long getId() {
+        return this.id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    /**
+     * URI of the document (ID of its {@link RdfDocumentContainer}).
+     */
+    @Index(name = "RDF_DOCUMENT_DELTAS_DOC_IDX")
+    @Column(name = "DOCUMENTID", length = 2048, nullable = false)
+    public String getDocumentId() {
+        return this.documentId;
+    }
+
+    public void setDocumentId(String documentId) {
+        this.documentId = documentId;
+    }
+
+    /**
+     * Version of the document obtained by adding this delta.
+     */
+    @Column(name = "VERSION", nullable = false)
+    public Long getVersion() {
+        return this.version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    /**
+     * Serialised statements (UTF-8 encoded, in the format named by
+     * {@link #getRdfFormat()}).
+     */
+    @Lob
+    @Column(name = "RDFDATA", nullable = false)
+    public byte[] getRdfData() {
+        return this.rdfData;
+    }
+
+    public void setRdfData(byte[] rdfData) {
+        this.rdfData = rdfData;
+    }
+
+    @Column(name = "RDFFORMAT", nullable = false, length = 16)
+    public String getRdfFormat() {
+        return this.rdfFormat;
+    }
+
+    public void setRdfFormat(String rdfFormat) {
+        this.rdfFormat = rdfFormat;
+    }
+
+    @Transient
+    public SerialisationFormat getSerialisationFormat() {
+        return SerialisationFormat.valueOf(this.rdfFormat);
+    }
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "CREATED", nullable = true)
+    public Date getCreated() {
+        return this.created;
+    }
+
+    public void setCreated(Date created) {
+        this.created = created;
+    }
+
+    public InputStream openRdfStream() {
+        return new ByteArrayInputStream(this.rdfData);
+    }
+}
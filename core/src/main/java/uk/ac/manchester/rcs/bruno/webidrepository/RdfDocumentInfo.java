@@ -0,0 +1,183 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.util.Date;
+import java.util.List;
+
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.data.Conditions;
+import org.restlet.data.Dimension;
+import org.restlet.data.Method;
+import org.restlet.data.Status;
+import org.restlet.data.Tag;
+import org.restlet.representation.EmptyRepresentation;
+import org.restlet.representation.Representation;
+
+/**
+ * Version, hash and modification date of an {@link RdfDocumentContainer},
+ * loaded without its content, and used to handle conditional requests.
+ * 
+ * Entity tags are built from the content hash and a suffix specific to each
+ * variant (since a given version of a document may have several
+ * representations): a tag is current as long as the hash hasn't changed,
+ * but only for the variant it was sent with.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class RdfDocumentInfo {
+    private final String id;
+    private final long version;
+    private final String contentHash;
+    private final Date lastModified;
+
+    public RdfDocumentInfo(String id, long version, String contentHash,
+            Date lastModified) {
+        this.id = id;
+        this.version = version;
+        this.contentHash = contentHash;
+        this.lastModified = lastModified;
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public long getVersion() {
+        return this.version;
+    }
+
+    public String getContentHash() {
+        return this.contentHash;
+    }
+
+    public Date getLastModified() {
+        return this.lastModified;
+    }
+
+    /**
+     * @param variantSuffix
+     *            suffix identifying the variant.
+     * @return strong entity tag for this variant, or null if the hash isn't
+     *         known.
+     */
+    public Tag getTag(String variantSuffix) {
+        if (this.contentHash != null) {
+            return new Tag(this.contentHash + "-" + variantSuffix, false);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Sets the entity tag and modification date of a representation of this
+     * document.
+     * 
+     * @param representation
+     *            representation to update (may be null).
+     * @param variantSuffix
+     *            suffix identifying the variant.
+     * @return the representation.
+     */
+    public Representation applyTo(Representation representation,
+            String variantSuffix) {
+        if (representation != null) {
+            representation.setTag(getTag(variantSuffix));
+            representation.setModificationDate(this.lastModified);
+        }
+        return representation;
+    }
+
+    /**
+     * Checks whether a GET or HEAD request can be answered with 304 (Not
+     * Modified) for the variant negotiated, based on its If-None-Match or,
+     * if absent, If-Modified-Since conditions.
+     * 
+     * @param request
+     *            request.
+     * @param variantSuffix
+     *            suffix identifying the variant negotiated.
+     * @return true if the client already has the current version of this
+     *         variant.
+     */
+    public boolean isNotModified(Request request, String variantSuffix) {
+        if (!(Method.GET.equals(request.getMethod()) || Method.HEAD
+                .equals(request.getMethod()))) {
+            return false;
+        }
+        Conditions conditions = request.getConditions();
+        List<Tag> noneMatch = conditions.getNoneMatch();
+        if ((noneMatch != null) && !noneMatch.isEmpty()) {
+            for (Tag tag : noneMatch) {
+                if (Tag.ALL.equals(tag)) {
+                    return true;
+                }
+                if ((this.contentHash != null) && !tag.isWeak()
+                        && (this.contentHash + "-" + variantSuffix).equals(tag
+                                .getName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        Date modifiedSince = conditions.getModifiedSince();
+        if ((modifiedSince != null) && (this.lastModified != null)) {
+            /*
+             * HTTP dates only have a precision of one second.
+             */
+            return (this.lastModified.getTime() / 1000L) <= (modifiedSince
+                    .getTime() / 1000L);
+        }
+        return false;
+    }
+
+    /**
+     * Turns a response into a 304 (Not Modified) response for a variant. It
+     * has no content, but still carries the entity tag and modification date
+     * of the variant, and indicates that it depends on the Accept header.
+     * 
+     * @param response
+     *            response to update.
+     * @param variantSuffix
+     *            suffix identifying the variant negotiated.
+     * @return the (empty) entity of the response.
+     */
+    public Representation applyNotModified(Response response,
+            String variantSuffix) {
+        response.setStatus(Status.REDIRECTION_NOT_MODIFIED);
+        response.getDimensions().add(Dimension.MEDIA_TYPE);
+        return applyTo(new EmptyRepresentation(), variantSuffix);
+    }
+}
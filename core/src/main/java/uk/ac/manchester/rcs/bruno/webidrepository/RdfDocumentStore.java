@@ -0,0 +1,1183 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.StaleStateException;
+import org.hibernate.Transaction;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.RepositoryResult;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.Rio;
+
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer.SerialisationFormat;
+
+/**
+ * Links the RDF documents persisted as {@link RdfDocumentContainer}s with the
+ * Sesame repository in which they are queried.
+ * 
+ * A document is loaded into its context (from the {@link RdfGraphCache})
+ * when it is first read, and re-loaded only when the version found in the
+ * database differs from the version loaded, so that reading a document
+ * doesn't write to the shared repository once it has been loaded. In
+ * {@link StorageMode#MEMORY} mode, the repository is a transient store. In
+ * {@link StorageMode#NATIVE} mode, the repository is a persistent store that
+ * keeps the documents across restarts, along with the version loaded in
+ * each context (in a separate context), so that only the documents modified
+ * in the meantime (by other nodes or by the bulk importer) are re-loaded.
+ * 
+ * Modifications of a document are made within an {@link Update} (see
+ * {@link #beginUpdate(URI)}), which holds a lock on the document, so that
+ * writers of different documents proceed in parallel and writers of the
+ * same document one after the other. The document is also only written if
+ * its version in the database is still the version that was loaded (which
+ * may not be the case if it has been modified by another node using the same
+ * database), otherwise a {@link StaleStateException} is thrown and the update
+ * can be retried.
+ * 
+ * Statements added to a document (see
+ * {@link #writeAdditions(Session, RepositoryConnection, Update, List)}) are
+ * appended as {@link RdfDocumentDelta}s, so that the cost of adding a
+ * certificate doesn't depend on the size of the profile. The document is
+ * rewritten in full (compacted) once it has accumulated a number of deltas
+ * (see {@link #setCompactionThreshold(int)}), and whenever it is written with
+ * {@link #writeContext(Session, RepositoryConnection, Update)}.
+ * 
+ * Documents are written in the configured {@link SerialisationFormat}. Those
+ * found in another format (including the RDF/XML documents written before
+ * the format could be chosen) are converted when they are next parsed.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class RdfDocumentStore {
+    private static final Log LOGGER = LogFactory
+            .getLog(RdfDocumentStore.class);
+
+    public static enum StorageMode {
+        MEMORY, NATIVE
+    }
+
+    /**
+     * Size above which the serialisation buffer of a thread is discarded
+     * after use, rather than kept for the next document.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<ByteArrayOutputStream> SERIALISATION_BUFFER = new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(16 * 1024);
+        }
+    };
+
+    /**
+     * Number of locks used to serialise the loading and the updates of
+     * documents (documents are assigned to them by hash).
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 16;
+
+    /**
+     * Version recorded for a context whose content may differ from every
+     * version of its document, so that it is re-loaded.
+     */
+    private static final Long INVALID_VERSION = Long.valueOf(-1L);
+
+    /**
+     * Context of the native store in which the version loaded in each
+     * context is recorded.
+     */
+    private static final String VERSIONS_CONTEXT = "urn:x-webidrepository:versions";
+    private static final String VERSION_PROPERTY = "urn:x-webidrepository:version";
+
+    /**
+     * Update of a document, started with {@link RdfDocumentStore#beginUpdate(URI)}
+     * and which must be ended with
+     * {@link RdfDocumentStore#endUpdate(Update)}.
+     */
+    public static final class Update {
+        private final URI context;
+        private final ReentrantLock lock;
+        private boolean written = false;
+        private Transaction transaction;
+
+        private Update(URI context, ReentrantLock lock) {
+            this.context = context;
+            this.lock = lock;
+        }
+
+        public URI getContext() {
+            return this.context;
+        }
+    }
+
+    /**
+     * Listener notified when a document is written by this store, for
+     * example to invalidate what was derived from its previous content.
+     */
+    public static interface DocumentListener {
+        /**
+         * Called when a document has been written (before the transaction
+         * commits), and again at the end of its {@link Update}, if any.
+         * 
+         * @param id
+         *            URI of the document.
+         */
+        void documentUpdated(String id);
+    }
+
+    /**
+     * Index derived from the content of the documents (in database tables),
+     * updated within the Hibernate transaction in which this store writes a
+     * document.
+     */
+    public static interface DocumentIndex {
+        /**
+         * Replaces the entries of a document.
+         * 
+         * @param session
+         *            Hibernate session.
+         * @param id
+         *            URI of the document.
+         * @param statements
+         *            statements of the document.
+         * @throws HibernateException
+         */
+        void update(Session session, String id, List<Statement> statements)
+                throws HibernateException;
+
+        /**
+         * @param statements
+         *            statements added to a document.
+         * @return true if they may change the entries of the document.
+         */
+        boolean isAffectedBy(List<Statement> statements);
+    }
+
+    private final Repository repository;
+    private final StorageMode storageMode;
+    private final RdfGraphCache graphCache;
+    private final RdfSerialisationCache serialisationCache;
+    private final SerialisationFormat serialisationFormat;
+
+    /**
+     * Version of the document held in each context of the repository (in
+     * {@link StorageMode#NATIVE} mode, the versions recorded in the store
+     * are added to it when first read).
+     */
+    private final ConcurrentMap<String, Long> loadedVersions = new ConcurrentHashMap<String, Long>();
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final AtomicLong contextLoadCount = new AtomicLong();
+    private volatile int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private final List<DocumentListener> documentListeners = new CopyOnWriteArrayList<DocumentListener>();
+    private final List<DocumentIndex> documentIndexes = new CopyOnWriteArrayList<DocumentIndex>();
+    private volatile CertificateCache certificateCache;
+
+    public RdfDocumentStore(Repository repository, StorageMode storageMode,
+            RdfGraphCache graphCache,
+            RdfSerialisationCache serialisationCache,
+            SerialisationFormat serialisationFormat) {
+        this.repository = repository;
+        this.storageMode = storageMode;
+        this.graphCache = graphCache;
+        this.serialisationCache = serialisationCache;
+        this.serialisationFormat = serialisationFormat;
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+    }
+
+    public Repository getRepository() {
+        return this.repository;
+    }
+
+    public StorageMode getStorageMode() {
+        return this.storageMode;
+    }
+
+    public RdfGraphCache getGraphCache() {
+        return this.graphCache;
+    }
+
+    public RdfSerialisationCache getSerialisationCache() {
+        return this.serialisationCache;
+    }
+
+    public CertificateCache getCertificateCache() {
+        return this.certificateCache;
+    }
+
+    /**
+     * Sets the cache of the certificates published in the documents, which
+     * is cleared with the serialisations when a document is modified (or an
+     * update isn't committed).
+     * 
+     * @param certificateCache
+     *            cache of the certificates (may be null).
+     */
+    public void setCertificateCache(CertificateCache certificateCache) {
+        this.certificateCache = certificateCache;
+    }
+
+    public SerialisationFormat getSerialisationFormat() {
+        return this.serialisationFormat;
+    }
+
+    public int getCompactionThreshold() {
+        return this.compactionThreshold;
+    }
+
+    /**
+     * Sets the number of deltas a document may have: the document is
+     * rewritten in full instead of appending the delta that would reach this
+     * number. A threshold of 1 or less disables the deltas.
+     * 
+     * @param compactionThreshold
+     *            maximum number of deltas plus one.
+     */
+    public void setCompactionThreshold(int compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Adds a listener notified when documents are written by this store
+     * (writes made by other nodes are not notified).
+     * 
+     * @param documentListener
+     *            listener to add.
+     */
+    public void addDocumentListener(DocumentListener documentListener) {
+        this.documentListeners.add(documentListener);
+    }
+
+    /**
+     * Adds an index updated (within the same transaction) every time a
+     * document is written by this store.
+     * 
+     * @param documentIndex
+     *            index to add.
+     */
+    public void addDocumentIndex(DocumentIndex documentIndex) {
+        this.documentIndexes.add(documentIndex);
+    }
+
+    /**
+     * Updates the indexes of a document from its context.
+     * 
+     * @param addedStatements
+     *            statements added to the document (only the indexes they
+     *            affect are updated), or null if it has been rewritten.
+     */
+    private void updateDocumentIndexes(Session session,
+            RepositoryConnection repositoryConnection, URI context,
+            List<Statement> addedStatements) throws RepositoryException,
+            HibernateException {
+        List<Statement> statements = null;
+        for (DocumentIndex documentIndex : this.documentIndexes) {
+            if ((addedStatements != null)
+                    && !documentIndex.isAffectedBy(addedStatements)) {
+                continue;
+            }
+            if (statements == null) {
+                statements = repositoryConnection.getStatements(null, null,
+                        null, false, context).asList();
+            }
+            documentIndex.update(session, context.toString(), statements);
+        }
+    }
+
+    private void fireDocumentUpdated(String id) {
+        for (DocumentListener documentListener : this.documentListeners) {
+            documentListener.documentUpdated(id);
+        }
+    }
+
+    /**
+     * @return number of times a document has been (re-)loaded into the
+     *         repository.
+     */
+    public long getContextLoadCount() {
+        return this.contextLoadCount.get();
+    }
+
+    /**
+     * Loads the version, hash and modification date of a document, without
+     * loading its content.
+     * 
+     * @param session
+     *            Hibernate session.
+     * @param id
+     *            URI of the document.
+     * @return information about the document or null if it doesn't exist.
+     * @throws HibernateException
+     */
+    public RdfDocumentInfo getDocumentInfo(Session session, String id)
+            throws HibernateException {
+        Object[] row = (Object[]) session
+                .createQuery(
+                        "select d.version, d.contentHash, d.lastModified from RdfDocumentContainer d where d.id = :id")
+                .setParameter("id", id).uniqueResult();
+        if (row == null) {
+            return null;
+        }
+        Long version = (Long) row[0];
+        return new RdfDocumentInfo(id, (version != null) ? version
+                .longValue() : 0L, (String) row[1], (Date) row[2]);
+    }
+
+    /**
+     * Makes the content of the document available in its context in the
+     * repository.
+     * 
+     * @param session
+     *            Hibernate session from which to load the document, if
+     *            needed.
+     * @param repositoryConnection
+     *            connection to the repository.
+     * @param context
+     *            URI of the document (and context).
+     * @return true if the document exists, false otherwise.
+     * @throws RepositoryException
+     * @throws RDFParseException
+     * @throws IOException
+     */
+    public boolean loadContext(Session session,
+            RepositoryConnection repositoryConnection, URI context)
+            throws RepositoryException, RDFParseException, IOException {
+        String id = context.toString();
+        RdfDocumentInfo documentInfo = getDocumentInfo(session, id);
+        if (documentInfo == null) {
+            return false;
+        }
+        if (isLoaded(repositoryConnection, context, documentInfo.getVersion())) {
+            return true;
+        }
+
+        RdfDocumentContainer rdfDocContainer;
+        List<Statement> statements;
+        ReentrantLock lock = getLock(id);
+        lock.lock();
+        try {
+            rdfDocContainer = (RdfDocumentContainer) session.get(
+                    RdfDocumentContainer.class, id);
+            if ((rdfDocContainer == null) || !rdfDocContainer.hasContent()) {
+                return false;
+            }
+            long version = rdfDocContainer.getContentVersion();
+            if (isLoaded(repositoryConnection, context, version)) {
+                return true;
+            }
+            statements = this.graphCache.get(id, version);
+            if (statements == null) {
+                statements = Collections.unmodifiableList(readStatements(
+                        session, rdfDocContainer));
+                this.graphCache.put(id, version, statements);
+            }
+            if (this.storageMode == StorageMode.NATIVE) {
+                LOGGER.info(String.format(
+                        "Importing %s (version %d) into the native store.",
+                        context, version));
+            }
+            replaceContext(repositoryConnection, context, statements, version);
+            this.loadedVersions.put(id, Long.valueOf(version));
+        } finally {
+            lock.unlock();
+        }
+        this.contextLoadCount.incrementAndGet();
+
+        if (rdfDocContainer.getSerialisationFormat() != this.serialisationFormat) {
+            migrate(session, rdfDocContainer, statements);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the statements of a document, from the {@link RdfGraphCache}
+     * if possible, without loading them into the repository.
+     * 
+     * @param session
+     *            Hibernate session from which to load the document, if
+     *            needed.
+     * @param id
+     *            URI of the document.
+     * @return the statements of the document (unmodifiable, without
+     *         context), or null if it doesn't exist.
+     * @throws RDFParseException
+     * @throws IOException
+     */
+    public List<Statement> getStatements(Session session, String id)
+            throws RDFParseException, IOException {
+        RdfDocumentInfo documentInfo = getDocumentInfo(session, id);
+        if (documentInfo == null) {
+            return null;
+        }
+        List<Statement> statements = this.graphCache.get(id, documentInfo
+                .getVersion());
+        if (statements == null) {
+            RdfDocumentContainer rdfDocContainer = (RdfDocumentContainer) session
+                    .get(RdfDocumentContainer.class, id);
+            if ((rdfDocContainer == null) || !rdfDocContainer.hasContent()) {
+                return null;
+            }
+            statements = Collections.unmodifiableList(readStatements(session,
+                    rdfDocContainer));
+            this.graphCache.put(id, rdfDocContainer.getContentVersion(),
+                    statements);
+        }
+        return statements;
+    }
+
+    /**
+     * Returns the statements of a given version of a document, from the
+     * {@link RdfGraphCache} if possible, without loading them into the
+     * repository (whose context may already hold statements that are not
+     * committed yet).
+     * 
+     * @param session
+     *            Hibernate session from which to load the document, if
+     *            needed.
+     * @param documentInfo
+     *            version of the document.
+     * @return the statements of this version (unmodifiable, without
+     *         context), or null if the database no longer holds this
+     *         version.
+     * @throws RDFParseException
+     * @throws IOException
+     */
+    public List<Statement> getStatements(Session session,
+            RdfDocumentInfo documentInfo) throws RDFParseException,
+            IOException {
+        String id = documentInfo.getId();
+        List<Statement> statements = this.graphCache.get(id, documentInfo
+                .getVersion());
+        if (statements == null) {
+            RdfDocumentContainer rdfDocContainer = (RdfDocumentContainer) session
+                    .get(RdfDocumentContainer.class, id);
+            if ((rdfDocContainer == null) || !rdfDocContainer.hasContent()) {
+                return null;
+            }
+            if (rdfDocContainer.getContentVersion() != documentInfo
+                    .getVersion()) {
+                session.evict(rdfDocContainer);
+                return null;
+            }
+            statements = Collections.unmodifiableList(readStatements(session,
+                    rdfDocContainer));
+            this.graphCache.put(id, documentInfo.getVersion(), statements);
+        }
+        return statements;
+    }
+
+    /**
+     * Parses the content of a document: the content of its container,
+     * followed by its deltas.
+     */
+    private static List<Statement> readStatements(Session session,
+            RdfDocumentContainer rdfDocContainer) throws RDFParseException,
+            IOException {
+        List<Statement> statements = RdfGraphCache.parse(rdfDocContainer);
+        if (rdfDocContainer.hasDeltas()) {
+            @SuppressWarnings("unchecked")
+            List<RdfDocumentDelta> deltas = session
+                    .createQuery(
+                            "from RdfDocumentDelta d where d.documentId = :id and d.version > :snapshotVersion and d.version <= :version order by d.version")
+                    .setParameter("id", rdfDocContainer.getId())
+                    .setParameter("snapshotVersion",
+                            rdfDocContainer.getSnapshotVersion())
+                    .setParameter("version", rdfDocContainer.getVersion())
+                    .list();
+            for (RdfDocumentDelta delta : deltas) {
+                RdfGraphCache.parse(delta, statements);
+            }
+        }
+        return statements;
+    }
+
+    private static void deleteDeltas(Session session, String id) {
+        session.createQuery(
+                "delete from RdfDocumentDelta d where d.documentId = :id")
+                .setParameter("id", id).executeUpdate();
+    }
+
+    private boolean isLoaded(RepositoryConnection repositoryConnection,
+            URI context, long version) throws RepositoryException {
+        String id = context.toString();
+        Long loadedVersion = this.loadedVersions.get(id);
+        if ((loadedVersion == null)
+                && (this.storageMode == StorageMode.NATIVE)) {
+            loadedVersion = readNativeVersion(repositoryConnection, context);
+            if (loadedVersion != null) {
+                Long previousVersion = this.loadedVersions.putIfAbsent(id,
+                        loadedVersion);
+                if (previousVersion != null) {
+                    loadedVersion = previousVersion;
+                }
+            }
+        }
+        return (loadedVersion != null) && (loadedVersion.longValue() == version);
+    }
+
+    /**
+     * @return the version recorded in the native store for this context, or
+     *         null if there is none.
+     */
+    private static Long readNativeVersion(
+            RepositoryConnection repositoryConnection, URI context)
+            throws RepositoryException {
+        ValueFactory valueFactory = repositoryConnection.getValueFactory();
+        RepositoryResult<Statement> result = repositoryConnection
+                .getStatements(context, valueFactory
+                        .createURI(VERSION_PROPERTY), null, false,
+                        valueFactory.createURI(VERSIONS_CONTEXT));
+        try {
+            while (result.hasNext()) {
+                Value value = result.next().getObject();
+                if (value instanceof Literal) {
+                    try {
+                        return Long.valueOf(((Literal) value).longValue());
+                    } catch (NumberFormatException e) {
+                        LOGGER.warn(String.format(
+                                "Invalid version recorded for %s.", context),
+                                e);
+                    }
+                }
+            }
+            return null;
+        } finally {
+            result.close();
+        }
+    }
+
+    /**
+     * Records the version held by a context in the native store (without
+     * committing, if the connection isn't in auto-commit mode).
+     */
+    private static void writeNativeVersion(
+            RepositoryConnection repositoryConnection, URI context,
+            long version) throws RepositoryException {
+        ValueFactory valueFactory = repositoryConnection.getValueFactory();
+        URI versionsContext = valueFactory.createURI(VERSIONS_CONTEXT);
+        URI versionProperty = valueFactory.createURI(VERSION_PROPERTY);
+        repositoryConnection.remove(context, versionProperty, null,
+                versionsContext);
+        repositoryConnection.add(context, versionProperty, valueFactory
+                .createLiteral(version), versionsContext);
+    }
+
+    /**
+     * Records that a context holds a version of its document, after it has
+     * been written.
+     */
+    private void setLoadedVersion(RepositoryConnection repositoryConnection,
+            URI context, long version) throws RepositoryException {
+        if (this.storageMode == StorageMode.NATIVE) {
+            boolean autoCommit = repositoryConnection.isAutoCommit();
+            repositoryConnection.setAutoCommit(false);
+            try {
+                writeNativeVersion(repositoryConnection, context, version);
+                repositoryConnection.commit();
+            } catch (RepositoryException e) {
+                repositoryConnection.rollback();
+                throw e;
+            } finally {
+                repositoryConnection.setAutoCommit(autoCommit);
+            }
+        }
+        this.loadedVersions.put(context.toString(), Long.valueOf(version));
+    }
+
+    private ReentrantLock getLock(String id) {
+        return this.locks[getLockIndex(id)];
+    }
+
+    private int getLockIndex(String id) {
+        return (id.hashCode() & 0x7fffffff) % this.locks.length;
+    }
+
+    /**
+     * Replaces the content of a context in a single repository transaction,
+     * so that concurrent readers never see it empty or half-loaded (in
+     * {@link StorageMode#NATIVE} mode, along with its recorded version).
+     */
+    private void replaceContext(RepositoryConnection repositoryConnection,
+            URI context, List<Statement> statements, long version)
+            throws RepositoryException {
+        boolean autoCommit = repositoryConnection.isAutoCommit();
+        repositoryConnection.setAutoCommit(false);
+        try {
+            repositoryConnection.clear(context);
+            repositoryConnection.add(statements, context);
+            if (this.storageMode == StorageMode.NATIVE) {
+                writeNativeVersion(repositoryConnection, context, version);
+            }
+            repositoryConnection.commit();
+        } catch (RepositoryException e) {
+            repositoryConnection.rollback();
+            throw e;
+        } finally {
+            repositoryConnection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Starts an update of a document: this waits for the other updates of
+     * this document (in this store) to end. The document should then be
+     * loaded with {@link #loadContext(Session, RepositoryConnection, URI)},
+     * modified in the repository and written with
+     * {@link #writeContext(Session, RepositoryConnection, Update)}. The
+     * update must always be ended with {@link #endUpdate(Update)}, in a
+     * finally block.
+     * 
+     * @param context
+     *            URI of the document (and context).
+     * @return the update.
+     */
+    public Update beginUpdate(URI context) {
+        ReentrantLock lock = getLock(context.toString());
+        lock.lock();
+        return new Update(context, lock);
+    }
+
+    /**
+     * Starts the updates of several documents, to be written in the same
+     * transaction (see {@link #beginUpdate(URI)}). The locks are taken in a
+     * fixed order, so that concurrent callers can't deadlock. Each update
+     * must be ended with {@link #endUpdate(Update)}, once the transaction has
+     * committed or rolled back.
+     * 
+     * @param contexts
+     *            URIs of the documents (duplicates are ignored).
+     * @return the update of each document.
+     */
+    public Map<URI, Update> beginUpdates(List<URI> contexts) {
+        List<URI> sortedContexts = new ArrayList<URI>(contexts);
+        Collections.sort(sortedContexts, new Comparator<URI>() {
+            public int compare(URI context1, URI context2) {
+                int index1 = getLockIndex(context1.toString());
+                int index2 = getLockIndex(context2.toString());
+                return (index1 < index2) ? -1 : ((index1 == index2) ? 0 : 1);
+            }
+        });
+        Map<URI, Update> updates = new LinkedHashMap<URI, Update>();
+        for (URI context : sortedContexts) {
+            if (!updates.containsKey(context)) {
+                updates.put(context, beginUpdate(context));
+            }
+        }
+        return updates;
+    }
+
+    /**
+     * Ends an update, which must be done once the transaction in which the
+     * document was written has committed. If the document hasn't been
+     * written, or if the transaction hasn't committed, its context is
+     * re-loaded from the database by the next reader, since it may have been
+     * modified in the repository (see {@link #invalidateContext(URI)}).
+     * Otherwise, the {@link DocumentListener}s are notified again.
+     * 
+     * @param update
+     *            update to end.
+     */
+    public void endUpdate(Update update) {
+        try {
+            if (update.written && (update.transaction != null)
+                    && update.transaction.wasCommitted()) {
+                fireDocumentUpdated(update.context.toString());
+            } else {
+                invalidateContext(update.context);
+            }
+        } finally {
+            update.lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a context as not holding any version of its document, so that
+     * it is re-loaded from the database the next time it is read (in
+     * {@link StorageMode#NATIVE} mode, this also applies after a restart).
+     * What may have been cached from the modified context (or for a version
+     * that wasn't committed) is discarded.
+     * 
+     * @param context
+     *            URI of the document (and context).
+     */
+    private void invalidateContext(URI context) {
+        String id = context.toString();
+        this.loadedVersions.put(id, INVALID_VERSION);
+        this.graphCache.invalidate(id);
+        invalidateDerivedCaches(id);
+        if (this.storageMode == StorageMode.NATIVE) {
+            try {
+                RepositoryConnection repositoryConnection = this.repository
+                        .getConnection();
+                try {
+                    ValueFactory valueFactory = repositoryConnection
+                            .getValueFactory();
+                    repositoryConnection.remove(context, valueFactory
+                            .createURI(VERSION_PROPERTY), null, valueFactory
+                            .createURI(VERSIONS_CONTEXT));
+                } finally {
+                    repositoryConnection.close();
+                }
+            } catch (RepositoryException e) {
+                LOGGER.warn(String.format(
+                        "Unable to clear the version recorded for %s.", id), e);
+            }
+        }
+    }
+
+    /**
+     * Discards the serialisations and the certificate cached for a document.
+     */
+    private void invalidateDerivedCaches(String id) {
+        this.serialisationCache.invalidateDocument(id);
+        CertificateCache certificateCache = this.certificateCache;
+        if (certificateCache != null) {
+            certificateCache.invalidate(id);
+        }
+    }
+
+    /**
+     * Rewrites a document in the configured format. This is done in a
+     * separate session (so as not to interfere with the transaction of the
+     * request) and only if the document hasn't changed in the meantime. The
+     * version is left unchanged, since the graph is the same.
+     * 
+     * @param session
+     *            session of the request.
+     * @param rdfDocContainer
+     *            document to rewrite.
+     * @param statements
+     *            content of the document.
+     */
+    private void migrate(Session session, RdfDocumentContainer rdfDocContainer,
+            List<Statement> statements) {
+        Session migrationSession = null;
+        Transaction transaction = null;
+        try {
+            RDFWriter rdfWriter = createWriter();
+            rdfWriter.startRDF();
+            for (Statement statement : statements) {
+                rdfWriter.handleStatement(statement);
+            }
+            rdfWriter.endRDF();
+            byte[] rdfData = getSerialisedData();
+
+            migrationSession = session.getSessionFactory().openSession();
+            transaction = migrationSession.beginTransaction();
+            Query query = migrationSession
+                    .createQuery(
+                            "update RdfDocumentContainer d set d.rdfData = :rdfData, d.rdfFormat = :rdfFormat, d.rdfContent = null, d.snapshotVersion = null, d.contentHash = :contentHash where d.id = :id and "
+                                    + ((rdfDocContainer.getVersion() != null) ? "d.version = :version"
+                                            : "d.version is null"))
+                    .setParameter("rdfData", rdfData)
+                    .setParameter("rdfFormat", this.serialisationFormat.name())
+                    .setParameter("contentHash",
+                            RdfDocumentContainer.sha256Hex(rdfData))
+                    .setParameter("id", rdfDocContainer.getId());
+            if (rdfDocContainer.getVersion() != null) {
+                query.setParameter("version", rdfDocContainer.getVersion());
+            }
+            int updated = query.executeUpdate();
+            if ((updated > 0) && rdfDocContainer.hasDeltas()) {
+                deleteDeltas(migrationSession, rdfDocContainer.getId());
+            }
+            transaction.commit();
+            if (updated > 0) {
+                LOGGER.info(String.format("Converted %s from %s to %s.",
+                        rdfDocContainer.getId(), rdfDocContainer
+                                .getSerialisationFormat(),
+                        this.serialisationFormat));
+            }
+        } catch (RDFHandlerException e) {
+            LOGGER.warn(String.format("Unable to convert %s.",
+                    rdfDocContainer.getId()), e);
+        } catch (HibernateException e) {
+            LOGGER.warn(String.format("Unable to convert %s.",
+                    rdfDocContainer.getId()), e);
+            if ((transaction != null) && transaction.isActive()) {
+                transaction.rollback();
+            }
+        } finally {
+            if (migrationSession != null) {
+                migrationSession.close();
+            }
+        }
+    }
+
+    /**
+     * @return a writer for the configured format, writing into the
+     *         serialisation buffer of this thread.
+     */
+    private RDFWriter createWriter() {
+        ByteArrayOutputStream buffer = SERIALISATION_BUFFER.get();
+        buffer.reset();
+        return Rio.createWriter(this.serialisationFormat.getRdfFormat(),
+                buffer);
+    }
+
+    /**
+     * @return a copy of the content of the serialisation buffer of this
+     *         thread.
+     */
+    private static byte[] getSerialisedData() {
+        ByteArrayOutputStream buffer = SERIALISATION_BUFFER.get();
+        byte[] rdfData = buffer.toByteArray();
+        if (buffer.size() > MAX_RETAINED_BUFFER_SIZE) {
+            SERIALISATION_BUFFER.remove();
+        }
+        return rdfData;
+    }
+
+    /**
+     * Saves the content of this context in the repository into its
+     * {@link RdfDocumentContainer} and commits the Hibernate transaction.
+     * This overwrites the document, whichever version is in the database.
+     * 
+     * @param session
+     *            Hibernate session.
+     * @param repositoryConnection
+     *            connection to the repository.
+     * @param context
+     *            URI of the document (and context).
+     * @throws RepositoryException
+     * @throws RDFHandlerException
+     * @throws HibernateException
+     */
+    public void saveContext(Session session,
+            RepositoryConnection repositoryConnection, URI context)
+            throws RepositoryException, RDFHandlerException,
+            HibernateException {
+        boolean committed = false;
+        try {
+            writeContext(session, repositoryConnection, context);
+            session.getTransaction().commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                invalidateContext(context);
+            }
+        }
+    }
+
+    /**
+     * Saves the document modified within an update and commits the
+     * Hibernate transaction.
+     * 
+     * @param session
+     *            Hibernate session.
+     * @param repositoryConnection
+     *            connection to the repository.
+     * @param update
+     *            update of the document.
+     * @throws RepositoryException
+     * @throws RDFHandlerException
+     * @throws StaleStateException
+     *             if the document has been modified in the database since it
+     *             was loaded.
+     * @throws HibernateException
+     */
+    public void saveContext(Session session,
+            RepositoryConnection repositoryConnection, Update update)
+            throws RepositoryException, RDFHandlerException,
+            HibernateException {
+        writeContext(session, repositoryConnection, update);
+        session.getTransaction().commit();
+    }
+
+    /**
+     * Writes the content of this context in the repository into its
+     * {@link RdfDocumentContainer}, without committing the Hibernate
+     * transaction (so that several documents can be written in the same
+     * transaction). This overwrites the document, whichever version is in
+     * the database.
+     * 
+     * @param session
+     *            Hibernate session.
+     * @param repositoryConnection
+     *            connection to the repository.
+     * @param context
+     *            URI of the document (and context).
+     * @throws RepositoryException
+     * @throws RDFHandlerException
+     * @throws HibernateException
+     */
+    public void writeContext(Session session,
+            RepositoryConnection repositoryConnection, URI context)
+            throws RepositoryException, RDFHandlerException,
+            HibernateException {
+        write(session, repositoryConnection, context, null);
+    }
+
+    /**
+     * Writes the document modified within an update, without committing the
+     * Hibernate transaction. The document is only written if its version in
+     * the database is the version loaded in its context.
+     * 
+     * @param session
+     *            Hibernate session.
+     * @param repositoryConnection
+     *            connection to the repository.
+     * @param update
+     *            update of the document.
+     * @throws RepositoryException
+     * @throws RDFHandlerException
+     * @throws StaleStateException
+     *             if the document has been modified in the database since it
+     *             was loaded.
+     * @throws HibernateException
+     */
+    public void writeContext(Session session,
+            RepositoryConnection repositoryConnection, Update update)
+            throws RepositoryException, RDFHandlerException,
+            HibernateException {
+        Long baseVersion = this.loadedVersions.get(update.context.toString());
+        write(session, repositoryConnection, update.context, baseVersion);
+        update.written = true;
+        update.transaction = session.getTransaction();
+    }
+
+    /**
+     * Writes a document, only if its version in the database is the given
+     * base version (if not null).
+     */
+    private void write(Session session,
+            RepositoryConnection repositoryConnection, URI context,
+            Long baseVersion) throws RepositoryException,
+            RDFHandlerException, HibernateException {
+        String id = context.toString();
+        repositoryConnection.export(createWriter(), context);
+        byte[] rdfData = getSerialisedData();
+
+        long version;
+        if (baseVersion != null) {
+            version = baseVersion.longValue() + 1L;
+            Query query = session
+                    .createQuery(
+                            "update RdfDocumentContainer d set d.rdfData = :rdfData, d.rdfFormat = :rdfFormat, d.rdfContent = null, d.version = :newVersion, d.snapshotVersion = null, d.contentHash = :contentHash, d.lastModified = :lastModified where d.id = :id and "
+                                    + ((baseVersion.longValue() != 0L) ? "d.version = :version"
+                                            : "(d.version is null or d.version = :version)"))
+                    .setParameter("rdfData", rdfData)
+                    .setParameter("rdfFormat", this.serialisationFormat.name())
+                    .setParameter("newVersion", Long.valueOf(version))
+                    .setParameter("contentHash",
+                            RdfDocumentContainer.sha256Hex(rdfData))
+                    .setParameter("lastModified", new Date())
+                    .setParameter("id", id)
+                    .setParameter("version", baseVersion);
+            if (query.executeUpdate() == 0) {
+                throw new StaleStateException(String.format(
+                        "%s has been modified since version %d was loaded.",
+                        id, baseVersion));
+            }
+            deleteDeltas(session, id);
+            /*
+             * The update bypassed the session: any instance it holds is out
+             * of date.
+             */
+            session.evict(session.load(RdfDocumentContainer.class, id));
+        } else {
+            RdfDocumentContainer rdfDocContainer = (RdfDocumentContainer) session
+                    .get(RdfDocumentContainer.class, id);
+            if (rdfDocContainer == null) {
+                rdfDocContainer = new RdfDocumentContainer();
+                rdfDocContainer.setId(id);
+            } else if (rdfDocContainer.hasDeltas()) {
+                deleteDeltas(session, id);
+            }
+            rdfDocContainer.updateRdfData(rdfData, this.serialisationFormat);
+            session.saveOrUpdate(rdfDocContainer);
+            version = rdfDocContainer.getContentVersion();
+        }
+        updateDocumentIndexes(session, repositoryConnection, context, null);
+        /*
+         * The context already holds this version. If the transaction doesn't
+         * commit, the version in the database won't match and the context
+         * will be re-loaded.
+         */
+        setLoadedVersion(repositoryConnection, context, version);
+
+        this.graphCache.invalidate(id);
+        invalidateDerivedCaches(id);
+        fireDocumentUpdated(id);
+    }
+
+    /**
+     * Writes the statements added to a document within an update, as a new
+     * {@link RdfDocumentDelta}, without committing the Hibernate transaction.
+     * The statements must already have been added to the context, and the
+     * context must have been loaded within this update. The document is
+     * written in full instead (see
+     * {@link #writeContext(Session, RepositoryConnection, Update)}) if this
+     * would reach the compaction threshold.
+     * 
+     * @param session
+     *            Hibernate session.
+     * @param repositoryConnection
+     *            connection to the repository.
+     * @param update
+     *            update of the document.
+     * @param statements
+     *            statements added (without context).
+     * @throws RepositoryException
+     * @throws RDFHandlerException
+     * @throws StaleStateException
+     *             if the document has been modified in the database since it
+     *             was loaded.
+     * @throws HibernateException
+     */
+    public void writeAdditions(Session session,
+            RepositoryConnection repositoryConnection, Update update,
+            List<Statement> statements) throws RepositoryException,
+            RDFHandlerException, HibernateException {
+        String id = update.context.toString();
+        Object[] row = (Object[]) session
+                .createQuery(
+                        "select d.version, d.snapshotVersion, d.contentHash, d.rdfFormat from RdfDocumentContainer d where d.id = :id")
+                .setParameter("id", id).uniqueResult();
+        Long baseVersion = this.loadedVersions.get(id);
+        if ((row == null) || (baseVersion == null) || (row[3] == null)) {
+            /*
+             * New or legacy document, or context not loaded: write it in full.
+             */
+            writeContext(session, repositoryConnection, update);
+            return;
+        }
+        long currentVersion = (row[0] != null) ? ((Long) row[0]).longValue()
+                : 0L;
+        if (currentVersion != baseVersion.longValue()) {
+            throw new StaleStateException(String.format(
+                    "%s has been modified since version %d was loaded.", id,
+                    baseVersion));
+        }
+        long snapshotVersion = (row[1] != null) ? ((Long) row[1])
+                .longValue() : currentVersion;
+        if (currentVersion + 1L - snapshotVersion >= this.compactionThreshold) {
+            writeContext(session, repositoryConnection, update);
+            return;
+        }
+
+        RDFWriter rdfWriter = createWriter();
+        rdfWriter.startRDF();
+        for (Statement statement : statements) {
+            rdfWriter.handleStatement(statement);
+        }
+        rdfWriter.endRDF();
+        byte[] rdfData = getSerialisedData();
+
+        long version = currentVersion + 1L;
+        String previousHash = (row[2] != null) ? (String) row[2] : "";
+        byte[] previousHashBytes = previousHash.getBytes(Charset
+                .forName("US-ASCII"));
+        byte[] hashInput = new byte[previousHashBytes.length + rdfData.length];
+        System.arraycopy(previousHashBytes, 0, hashInput, 0,
+                previousHashBytes.length);
+        System.arraycopy(rdfData, 0, hashInput, previousHashBytes.length,
+                rdfData.length);
+
+        Query query = session
+                .createQuery(
+                        "update RdfDocumentContainer d set d.version = :newVersion, d.snapshotVersion = :snapshotVersion, d.contentHash = :contentHash, d.lastModified = :lastModified where d.id = :id and "
+                                + ((row[0] != null) ? "d.version = :version"
+                                        : "d.version is null"))
+                .setParameter("newVersion", Long.valueOf(version))
+                .setParameter("snapshotVersion",
+                        Long.valueOf(snapshotVersion))
+                .setParameter("contentHash",
+                        RdfDocumentContainer.sha256Hex(hashInput))
+                .setParameter("lastModified", new Date())
+                .setParameter("id", id);
+        if (row[0] != null) {
+            query.setParameter("version", row[0]);
+        }
+        if (query.executeUpdate() == 0) {
+            throw new StaleStateException(String.format(
+                    "%s has been modified since version %d was loaded.", id,
+                    baseVersion));
+        }
+        session.save(new RdfDocumentDelta(id, version, rdfData,
+                this.serialisationFormat));
+        session.evict(session.load(RdfDocumentContainer.class, id));
+        update.written = true;
+        update.transaction = session.getTransaction();
+        updateDocumentIndexes(session, repositoryConnection, update.context,
+                statements);
+
+        setLoadedVersion(repositoryConnection, update.context, version);
+        List<Statement> cachedStatements = this.graphCache.get(id,
+                currentVersion);
+        if (cachedStatements != null) {
+            List<Statement> newStatements = new ArrayList<Statement>(
+                    cachedStatements.size() + statements.size());
+            newStatements.addAll(cachedStatements);
+            newStatements.addAll(statements);
+            this.graphCache.put(id, version, Collections
+                    .unmodifiableList(newStatements));
+        } else {
+            this.graphCache.invalidate(id);
+        }
+        invalidateDerivedCaches(id);
+        fireDocumentUpdated(id);
+    }
+}
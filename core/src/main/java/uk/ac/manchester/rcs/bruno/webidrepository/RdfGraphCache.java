@@ -0,0 +1,124 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.StatementCollector;
+
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer.SerialisationFormat;
+
+/**
+ * Cache of the parsed statements of the documents stored in
+ * {@link RdfDocumentContainer}s, keyed by document URI and content version,
+ * so that frequently accessed documents do not need to be re-parsed for each
+ * request. The size of the cache is bounded by the total number of
+ * statements it holds.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class RdfGraphCache extends VersionedCache<String, List<Statement>> {
+    private static final Weigher<List<Statement>> STATEMENT_COUNT_WEIGHER = new Weigher<List<Statement>>() {
+        public long weigh(List<Statement> value) {
+            return value.size();
+        }
+    };
+
+    /**
+     * @param maxEntries
+     *            maximum number of documents held.
+     * @param maxStatements
+     *            maximum total number of statements held.
+     */
+    public RdfGraphCache(int maxEntries, long maxStatements) {
+        super(maxEntries, maxStatements, STATEMENT_COUNT_WEIGHER);
+    }
+
+    /**
+     * Parses the content of an {@link RdfDocumentContainer}.
+     * 
+     * @param rdfDocContainer
+     *            document to parse.
+     * @return list of statements, without context.
+     * @throws RDFParseException
+     * @throws IOException
+     */
+    public static List<Statement> parse(RdfDocumentContainer rdfDocContainer)
+            throws RDFParseException, IOException {
+        List<Statement> statements = new ArrayList<Statement>();
+        parse(rdfDocContainer.openRdfStream(), rdfDocContainer
+                .getSerialisationFormat(), rdfDocContainer.getId(), statements);
+        return statements;
+    }
+
+    /**
+     * Parses the content of an {@link RdfDocumentDelta}.
+     * 
+     * @param delta
+     *            delta to parse.
+     * @param statements
+     *            list to which to add the statements (without context).
+     * @throws RDFParseException
+     * @throws IOException
+     */
+    public static void parse(RdfDocumentDelta delta, List<Statement> statements)
+            throws RDFParseException, IOException {
+        parse(delta.openRdfStream(), delta.getSerialisationFormat(), delta
+                .getDocumentId(), statements);
+    }
+
+    private static void parse(InputStream inputStream,
+            SerialisationFormat format, String baseUri,
+            List<Statement> statements) throws RDFParseException, IOException {
+        RDFParser parser = Rio.createParser(format.getRdfFormat());
+        parser.setRDFHandler(new StatementCollector(statements));
+        try {
+            try {
+                parser.parse(inputStream, baseUri);
+            } finally {
+                inputStream.close();
+            }
+        } catch (RDFHandlerException e) {
+            throw new IOException(e);
+        }
+    }
+}
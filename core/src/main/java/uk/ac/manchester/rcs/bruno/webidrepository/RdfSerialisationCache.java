@@ -0,0 +1,155 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.OutputStream;
+
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.Rio;
+import org.restlet.data.MediaType;
+
+/**
+ * Cache of the serialised representations of the documents, keyed by
+ * document URI, variant and content version, so that repeated requests for
+ * the same version of a document can be answered by copying bytes, without
+ * exporting the content of the repository through an RDF writer.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class RdfSerialisationCache extends VersionedCache<String, byte[]> {
+    /**
+     * RDF representations of a document. The suffix is used to build the
+     * entity tag of the variant (see {@link RdfDocumentInfo#getTag(String)}).
+     */
+    public static enum Variant {
+        RDFXML("rdf", MediaType.APPLICATION_RDF_XML, RDFFormat.RDFXML), TURTLE(
+                "ttl", MediaType.valueOf("text/turtle"), RDFFormat.TURTLE), NTRIPLES(
+                "nt", MediaType.valueOf("application/n-triples"),
+                RDFFormat.NTRIPLES), JSONLD("jsonld", MediaType
+                .valueOf("application/ld+json"), null);
+
+        private final String suffix;
+        private final MediaType mediaType;
+        private final RDFFormat rdfFormat;
+
+        private Variant(String suffix, MediaType mediaType,
+                RDFFormat rdfFormat) {
+            this.suffix = suffix;
+            this.mediaType = mediaType;
+            this.rdfFormat = rdfFormat;
+        }
+
+        public String getSuffix() {
+            return this.suffix;
+        }
+
+        public MediaType getMediaType() {
+            return this.mediaType;
+        }
+
+        /**
+         * @param outputStream
+         *            stream to which to write (in UTF-8).
+         * @return a writer for this variant.
+         */
+        public RDFHandler createWriter(OutputStream outputStream) {
+            if (this.rdfFormat != null) {
+                return Rio.createWriter(this.rdfFormat, outputStream);
+            } else {
+                return new JsonLdWriter(outputStream);
+            }
+        }
+    }
+
+    private static final Weigher<byte[]> BYTE_COUNT_WEIGHER = new Weigher<byte[]>() {
+        public long weigh(byte[] value) {
+            return value.length;
+        }
+    };
+
+    /**
+     * @param maxEntries
+     *            maximum number of representations held.
+     * @param maxBytes
+     *            maximum total size of the representations held.
+     */
+    public RdfSerialisationCache(int maxEntries, long maxBytes) {
+        super(maxEntries, maxBytes, BYTE_COUNT_WEIGHER);
+    }
+
+    private static String key(String id, Variant variant) {
+        return variant.getSuffix() + " " + id;
+    }
+
+    /**
+     * @param id
+     *            URI of the document.
+     * @param version
+     *            version of the document.
+     * @param variant
+     *            variant.
+     * @return the cached representation or null.
+     */
+    public byte[] get(String id, long version, Variant variant) {
+        return get(key(id, variant), version);
+    }
+
+    /**
+     * @param id
+     *            URI of the document.
+     * @param version
+     *            version of the document.
+     * @param variant
+     *            variant.
+     * @param data
+     *            serialised representation (which must not be modified
+     *            afterwards).
+     */
+    public void put(String id, long version, Variant variant, byte[] data) {
+        put(key(id, variant), version, data);
+    }
+
+    /**
+     * Removes all the representations of a document.
+     * 
+     * @param id
+     *            URI of the document.
+     */
+    public void invalidateDocument(String id) {
+        for (Variant variant : Variant.values()) {
+            invalidate(key(id, variant));
+        }
+    }
+}
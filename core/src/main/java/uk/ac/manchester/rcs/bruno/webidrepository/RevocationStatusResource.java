@@ -0,0 +1,134 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.math.BigInteger;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.restlet.data.CharacterSet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.ServerResource;
+
+import uk.ac.manchester.rcs.bruno.keygenapp.base.RevocationIndex;
+import uk.ac.manchester.rcs.corypha.core.HibernateFilter;
+
+/**
+ * Resource answering the status of a certificate of the mini CA, given its
+ * serial number (in hexadecimal), from the {@link RevocationIndex} in
+ * memory: this is a lightweight alternative to OCSP for the relying parties
+ * that don't want to download the whole CRL. The status is "good",
+ * "revoked" (with the time and reason of the revocation) or "unknown" (not
+ * issued by this CA, or expired).
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class RevocationStatusResource extends ServerResource {
+    private BigInteger serialNumber;
+    private RevocationIndex.Status status;
+    private RevocationIndex.Entry revocation;
+
+    @Override
+    protected void doInit() throws ResourceException {
+        super.doInit();
+        setNegotiated(true);
+        try {
+            this.serialNumber = new BigInteger((String) getRequestAttributes()
+                    .get(WebidModule.SERIAL_NUMBER_ATTRIBUTE), 16);
+        } catch (NumberFormatException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
+                    "Invalid serial number (expected in hexadecimal).");
+        }
+
+        CertificateRevocationStore revocationStore = (CertificateRevocationStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_REVOCATION_STORE_ATTRIBUTE);
+        revocationStore.synchronise(HibernateFilter.getSession(getContext(),
+                getRequest()));
+        RevocationIndex revocationIndex = revocationStore.getRevocationIndex();
+        this.status = revocationIndex.getStatus(this.serialNumber);
+        if (this.status == RevocationIndex.Status.REVOKED) {
+            this.revocation = revocationIndex
+                    .getRevocation(this.serialNumber);
+        }
+    }
+
+    private static String formatDate(Date date) {
+        DateFormat dateFormat = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return dateFormat.format(date);
+    }
+
+    /**
+     * @return "good", "unknown" or "revoked time reason".
+     */
+    @Get("txt")
+    public Representation toText() {
+        StringBuilder sb = new StringBuilder(this.status.name().toLowerCase());
+        if (this.revocation != null) {
+            sb.append(' ').append(
+                    formatDate(this.revocation.getRevocationDate())).append(
+                    ' ').append(this.revocation.getReason());
+        }
+        sb.append('\n');
+        return new StringRepresentation(sb, MediaType.TEXT_PLAIN,
+                null, CharacterSet.US_ASCII);
+    }
+
+    @Get("json")
+    public Representation toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"serialNumber\": \"").append(
+                this.serialNumber.toString(16)).append("\", \"status\": \"")
+                .append(this.status.name().toLowerCase()).append('"');
+        if (this.revocation != null) {
+            sb.append(", \"revocationTime\": \"").append(
+                    formatDate(this.revocation.getRevocationDate())).append(
+                    "\", \"revocationReason\": ").append(
+                    this.revocation.getReason());
+        }
+        sb.append("}\n");
+        return new StringRepresentation(sb, MediaType.APPLICATION_JSON,
+                null, CharacterSet.US_ASCII);
+    }
+}
@@ -32,32 +32,40 @@ POSSIBILITY OF SUCH DAMAGE.
 -----------------------------------------------------------------------*/
 package uk.ac.manchester.rcs.bruno.webidrepository;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Session;
+import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
-import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
-import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandler;
 import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.RDFParseException;
-import org.openrdf.rio.rdfxml.RDFXMLWriter;
-import org.restlet.data.MediaType;
+import org.restlet.data.CharacterSet;
+import org.restlet.data.Status;
 import org.restlet.representation.OutputRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.resource.Get;
 import org.restlet.resource.ResourceException;
 import org.restlet.resource.ServerResource;
 
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfSerialisationCache.Variant;
 import uk.ac.manchester.rcs.corypha.core.HibernateFilter;
 
 /**
+ * Resource serving an RDF document (stored in an {@link RdfDocumentContainer}
+ * ) in the available RDF syntaxes. The serialised representations are cached
+ * per version in the {@link RdfSerialisationCache}. The content of the
+ * document is only loaded into the repository when it is needed (see
+ * {@link #getRepositoryConnection()}), so that cached representations can be
+ * served without it.
+ * 
  * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
  * 
  */
@@ -68,46 +76,69 @@ public class SesameContextDocumentResource extends ServerResource {
 
     protected URI context;
     protected RepositoryConnection repositoryConnection;
-    protected RdfDocumentContainer rdfDocContainer;
+    protected RdfDocumentInfo rdfDocumentInfo;
 
     @Override
     protected void doInit() throws ResourceException {
         super.doInit();
+        setConditional(false);
 
         Session session = HibernateFilter
                 .getSession(getContext(), getRequest());
-        rdfDocContainer = (RdfDocumentContainer) session.get(
-                RdfDocumentContainer.class, getRequest().getResourceRef()
-                        .toString());
-
-        if ((rdfDocContainer != null)
-                && (rdfDocContainer.getRdfContent() != null)) {
-            setExisting(true);
-            Repository repository = (Repository) getContext().getAttributes()
-                    .get(WebidModule.FOAFDIRECTORY_SESAME_REPOSITORY_ATTRIBUTE);
-            try {
-                this.repositoryConnection = repository.getConnection();
+        RdfDocumentStore rdfDocumentStore = (RdfDocumentStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_DOCUMENT_STORE_ATTRIBUTE);
 
-                if (this.context == null) {
-                    this.context = this.repositoryConnection
-                            .getValueFactory()
-                            .createURI(getRequest().getResourceRef().toString());
-                }
+        this.rdfDocumentInfo = rdfDocumentStore.getDocumentInfo(session,
+                getRequest().getResourceRef().toString());
 
-                this.repositoryConnection.clear(this.context);
-                this.repositoryConnection.add(new ByteArrayInputStream(
-                        rdfDocContainer.getRdfContent().getBytes(
-                                Charset.forName("UTF-8"))), this.context
-                        .toString(), RDFFormat.RDFXML, this.context);
-            } catch (RepositoryException e) {
-                throw new ResourceException(e);
-            } catch (RDFParseException e) {
-                throw new ResourceException(e);
-            } catch (IOException e) {
-                throw new ResourceException(e);
+        if (this.context == null) {
+            this.context = rdfDocumentStore.getRepository().getValueFactory()
+                    .createURI(getRequest().getResourceRef().toString());
+        }
+        setExisting(this.rdfDocumentInfo != null);
+    }
+
+    /**
+     * Returns the connection to the repository, opening it and loading the
+     * document into its context if this hasn't been done yet for this
+     * request. The caller is responsible for closing the connection and
+     * resetting {@link #repositoryConnection} (which is otherwise done after
+     * handling the request).
+     * 
+     * @return connection to the repository.
+     * @throws ResourceException
+     *             (404) if the document has no content.
+     */
+    protected RepositoryConnection getRepositoryConnection()
+            throws ResourceException {
+        if (this.repositoryConnection != null) {
+            return this.repositoryConnection;
+        }
+
+        Session session = HibernateFilter
+                .getSession(getContext(), getRequest());
+        RdfDocumentStore rdfDocumentStore = (RdfDocumentStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_DOCUMENT_STORE_ATTRIBUTE);
+        try {
+            RepositoryConnection repositoryConnection = rdfDocumentStore
+                    .getRepository().getConnection();
+            if (rdfDocumentStore.loadContext(session, repositoryConnection,
+                    this.context)) {
+                this.repositoryConnection = repositoryConnection;
+                return repositoryConnection;
+            } else {
+                repositoryConnection.close();
+                setExisting(false);
+                throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND);
             }
-        } else {
-            setExisting(false);
+        } catch (RepositoryException e) {
+            throw new ResourceException(e);
+        } catch (RDFParseException e) {
+            throw new ResourceException(e);
+        } catch (IOException e) {
+            throw new ResourceException(e);
         }
     }
 
@@ -130,28 +161,131 @@ public class SesameContextDocumentResource extends ServerResource {
 
     @Get("xml")
     public Representation toXml() {
-        final RepositoryConnection repositoryConnection = this.repositoryConnection;
-        Representation rep = new OutputRepresentation(
-                MediaType.APPLICATION_RDF_XML) {
+        return toRdf(Variant.RDFXML);
+    }
+
+    @Get("ttl")
+    public Representation toTurtle() {
+        return toRdf(Variant.TURTLE);
+    }
+
+    @Get("nt")
+    public Representation toNTriples() {
+        return toRdf(Variant.NTRIPLES);
+    }
+
+    @Get("jsonld")
+    public Representation toJsonLd() {
+        return toRdf(Variant.JSONLD);
+    }
+
+    /**
+     * Number of times the statements of the document are looked up again if
+     * a new version is committed while they are being loaded.
+     */
+    private static final int MAX_VERSION_ATTEMPTS = 3;
+
+    /**
+     * Returns the statements of the version of the document described by
+     * {@link #rdfDocumentInfo} (which is refreshed if this version is no
+     * longer in the database). They are read from the {@link RdfGraphCache}
+     * or the database rather than from the shared context, which may hold
+     * statements that an update hasn't committed yet.
+     * 
+     * @return statements of the document.
+     * @throws ResourceException
+     *             (404) if the document doesn't exist.
+     */
+    protected List<Statement> getVersionStatements() throws ResourceException {
+        Session session = HibernateFilter
+                .getSession(getContext(), getRequest());
+        RdfDocumentStore rdfDocumentStore = (RdfDocumentStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_DOCUMENT_STORE_ATTRIBUTE);
+        try {
+            for (int attempt = 0; (attempt < MAX_VERSION_ATTEMPTS)
+                    && (this.rdfDocumentInfo != null); attempt++) {
+                List<Statement> statements = rdfDocumentStore.getStatements(
+                        session, this.rdfDocumentInfo);
+                if (statements != null) {
+                    return statements;
+                }
+                this.rdfDocumentInfo = rdfDocumentStore.getDocumentInfo(
+                        session, this.context.toString());
+            }
+        } catch (RDFParseException e) {
+            throw new ResourceException(e);
+        } catch (IOException e) {
+            throw new ResourceException(e);
+        }
+        if (this.rdfDocumentInfo == null) {
+            setExisting(false);
+            throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND);
+        }
+        throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Builds the representation of the document for a given variant, from
+     * the {@link RdfSerialisationCache} if possible, or answers with 304 (Not
+     * Modified) if the client already has this variant.
+     * 
+     * @param variant
+     *            variant to produce.
+     * @return the representation.
+     * @throws ResourceException
+     */
+    protected Representation toRdf(Variant variant) throws ResourceException {
+        RdfSerialisationCache serialisationCache = (RdfSerialisationCache) getContext()
+                .getAttributes()
+                .get(WebidModule.FOAFDIRECTORY_SERIALISATION_CACHE_ATTRIBUTE);
+
+        if ((this.rdfDocumentInfo != null)
+                && this.rdfDocumentInfo.isNotModified(getRequest(), variant
+                        .getSuffix())) {
+            return this.rdfDocumentInfo.applyNotModified(getResponse(),
+                    variant.getSuffix());
+        }
+
+        byte[] data = null;
+        if (this.rdfDocumentInfo != null) {
+            data = serialisationCache.get(this.rdfDocumentInfo.getId(),
+                    this.rdfDocumentInfo.getVersion(), variant);
+        }
+        if (data == null) {
+            /*
+             * The bytes are cached under the version they were serialised
+             * from.
+             */
+            List<Statement> statements = getVersionStatements();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            try {
+                RDFHandler rdfWriter = variant.createWriter(outputStream);
+                rdfWriter.startRDF();
+                for (Statement statement : statements) {
+                    rdfWriter.handleStatement(statement);
+                }
+                rdfWriter.endRDF();
+            } catch (RDFHandlerException e) {
+                throw new ResourceException(e);
+            }
+            data = outputStream.toByteArray();
+            serialisationCache.put(this.rdfDocumentInfo.getId(),
+                    this.rdfDocumentInfo.getVersion(), variant, data);
+        }
+
+        final byte[] representationData = data;
+        Representation rep = new OutputRepresentation(variant.getMediaType(),
+                representationData.length) {
             @Override
             public void write(OutputStream outputStream) throws IOException {
-                try {
-                    RDFXMLWriter rdfXmlWriter = new RDFXMLWriter(outputStream);
-                    repositoryConnection.export(rdfXmlWriter, context);
-                } catch (RepositoryException e) {
-                    throw new IOException(e);
-                } catch (RDFHandlerException e) {
-                    throw new IOException(e);
-                } finally {
-                    try {
-                        repositoryConnection.close();
-                    } catch (RepositoryException e) {
-                        throw new IOException(e);
-                    }
-                }
+                outputStream.write(representationData);
             }
         };
-        this.repositoryConnection = null;
+        rep.setCharacterSet(CharacterSet.UTF_8);
+        if (this.rdfDocumentInfo != null) {
+            this.rdfDocumentInfo.applyTo(rep, variant.getSuffix());
+        }
         return rep;
     }
 }
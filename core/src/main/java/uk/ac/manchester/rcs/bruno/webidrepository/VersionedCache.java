@@ -0,0 +1,240 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of values that depend on a given version of a document.
+ * The cache is bounded both by number of entries and by a total weight (for
+ * example, the number of statements or bytes held), computed by a
+ * {@link Weigher}. An entry is only returned if its version matches the
+ * version requested, so that a document updated elsewhere is never served
+ * stale.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ * @param <K>
+ *            type of key (usually the document URI).
+ * @param <V>
+ *            type of cached value.
+ */
+public class VersionedCache<K, V> {
+    /**
+     * Computes the weight of a value, used to bound the cache size.
+     */
+    public static interface Weigher<V> {
+        long weigh(V value);
+    }
+
+    private static class Entry<V> {
+        private final long version;
+        private final V value;
+        private final long weight;
+
+        private Entry(long version, V value, long weight) {
+            this.version = version;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(
+            16, 0.75f, true);
+    private final Weigher<V> weigher;
+    private final int maxEntries;
+    private final long maxWeight;
+    private long totalWeight = 0;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    /**
+     * @param maxEntries
+     *            maximum number of entries held.
+     * @param maxWeight
+     *            maximum total weight of the entries held.
+     * @param weigher
+     *            weigher used to compute the weight of each value.
+     */
+    public VersionedCache(int maxEntries, long maxWeight, Weigher<V> weigher) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Returns the value cached for this key, if it was cached for this
+     * version.
+     * 
+     * @param key
+     *            key.
+     * @param version
+     *            expected version of the value.
+     * @return the cached value or null.
+     */
+    public V get(K key, long version) {
+        synchronized (this.entries) {
+            Entry<V> entry = this.entries.get(key);
+            if (entry != null) {
+                if (entry.version == version) {
+                    this.hitCount.incrementAndGet();
+                    return entry.value;
+                } else {
+                    this.entries.remove(key);
+                    this.totalWeight -= entry.weight;
+                }
+            }
+        }
+        this.missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches a value for a given key and version, replacing any previous
+     * value, and evicts the least recently used entries if the cache exceeds
+     * its bounds. Values heavier than the maximum weight are not cached.
+     * 
+     * @param key
+     *            key.
+     * @param version
+     *            version of the value.
+     * @param value
+     *            value to cache.
+     */
+    public void put(K key, long version, V value) {
+        long weight = this.weigher.weigh(value);
+        if (weight > this.maxWeight) {
+            invalidate(key);
+            return;
+        }
+        synchronized (this.entries) {
+            Entry<V> previous = this.entries.put(key, new Entry<V>(version,
+                    value, weight));
+            if (previous != null) {
+                this.totalWeight -= previous.weight;
+            }
+            this.totalWeight += weight;
+
+            Iterator<Map.Entry<K, Entry<V>>> it = this.entries.entrySet()
+                    .iterator();
+            while (((this.entries.size() > this.maxEntries) || (this.totalWeight > this.maxWeight))
+                    && it.hasNext()) {
+                Map.Entry<K, Entry<V>> eldest = it.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                it.remove();
+                this.totalWeight -= eldest.getValue().weight;
+                this.evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes any value cached for this key (to be called when the
+     * corresponding document is modified).
+     * 
+     * @param key
+     *            key.
+     */
+    public void invalidate(K key) {
+        synchronized (this.entries) {
+            Entry<V> entry = this.entries.remove(key);
+            if (entry != null) {
+                this.totalWeight -= entry.weight;
+                this.invalidationCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes all the entries.
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+            this.totalWeight = 0;
+        }
+    }
+
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    public long getTotalWeight() {
+        synchronized (this.entries) {
+            return this.totalWeight;
+        }
+    }
+
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    public long getMaxWeight() {
+        return this.maxWeight;
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    public long getInvalidationCount() {
+        return this.invalidationCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s[size=%d, weight=%d, hits=%d, misses=%d, evictions=%d, "
+                        + "invalidations=%d]", getClass().getSimpleName(),
+                size(), getTotalWeight(), getHitCount(), getMissCount(),
+                getEvictionCount(), getInvalidationCount());
+    }
+}
@@ -0,0 +1,597 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * This class initialises the configuration of the WebID repository (apart
+ * from the "Mini CA", see MiniCaConfiguration) from JNDI. Default values are
+ * used for the settings that are not present.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class WebidConfiguration {
+    private static final Log LOGGER = LogFactory
+            .getLog(WebidConfiguration.class);
+
+    public final static String GRAPH_CACHE_MAX_ENTRIES_JNDI_NAME = "webiddirectory/graphCacheMaxEntries";
+    public final static String GRAPH_CACHE_MAX_STATEMENTS_JNDI_NAME = "webiddirectory/graphCacheMaxStatements";
+    public final static String SERIALISATION_CACHE_MAX_ENTRIES_JNDI_NAME = "webiddirectory/serialisationCacheMaxEntries";
+    public final static String SERIALISATION_CACHE_MAX_BYTES_JNDI_NAME = "webiddirectory/serialisationCacheMaxBytes";
+    public final static String CERTIFICATE_CACHE_MAX_ENTRIES_JNDI_NAME = "webiddirectory/certificateCacheMaxEntries";
+    public final static String CERTIFICATE_CACHE_MAX_BYTES_JNDI_NAME = "webiddirectory/certificateCacheMaxBytes";
+    public final static String DELTA_COMPACTION_THRESHOLD_JNDI_NAME = "webiddirectory/deltaCompactionThreshold";
+    public final static String STORAGE_MODE_JNDI_NAME = "webiddirectory/sesameStorageMode";
+    public final static String NATIVE_STORE_DIRECTORY_JNDI_NAME = "webiddirectory/sesameNativeStoreDirectory";
+    public final static String NATIVE_STORE_INDEXES_JNDI_NAME = "webiddirectory/sesameNativeStoreIndexes";
+    public final static String PROFILE_LOOKUP_MODE_JNDI_NAME = "webiddirectory/profileLookupMode";
+    public final static String SERIALISATION_FORMAT_JNDI_NAME = "webiddirectory/rdfSerialisationFormat";
+    public final static String BULK_ISSUANCE_ENABLED_JNDI_NAME = "webiddirectory/bulkIssuanceEnabled";
+    public final static String BULK_ISSUANCE_GROUP_SIZE_JNDI_NAME = "webiddirectory/bulkIssuanceGroupSize";
+    public final static String BULK_ISSUANCE_ADMINISTRATORS_JNDI_NAME = "webiddirectory/bulkIssuanceAdministrators";
+    public final static String WEBID_AUTHENTICATION_JNDI_NAME = "webiddirectory/webidAuthentication";
+    public final static String AUTHENTICATION_CACHE_MAX_ENTRIES_JNDI_NAME = "webiddirectory/authenticationCacheMaxEntries";
+    public final static String AUTHENTICATION_CACHE_TTL_JNDI_NAME = "webiddirectory/authenticationCacheTtl";
+    public final static String PROFILE_FETCH_CACHE_MAX_ENTRIES_JNDI_NAME = "webiddirectory/profileFetchCacheMaxEntries";
+    public final static String PROFILE_FETCH_CACHE_TTL_JNDI_NAME = "webiddirectory/profileFetchCacheTtl";
+    public final static String PROFILE_FETCH_CACHE_NEGATIVE_TTL_JNDI_NAME = "webiddirectory/profileFetchCacheNegativeTtl";
+    public final static String PROFILE_FETCH_TIMEOUT_JNDI_NAME = "webiddirectory/profileFetchTimeout";
+    public final static String PROFILE_FETCH_MAX_BYTES_JNDI_NAME = "webiddirectory/profileFetchMaxBytes";
+    public final static String REVOCATION_SYNC_INTERVAL_JNDI_NAME = "webiddirectory/revocationSyncInterval";
+    public final static String SEARCH_PAGE_SIZE_JNDI_NAME = "webiddirectory/searchPageSize";
+
+    private int graphCacheMaxEntries = 10000;
+    private long graphCacheMaxStatements = 1000000L;
+    private int serialisationCacheMaxEntries = 10000;
+    private long serialisationCacheMaxBytes = 64L * 1024L * 1024L;
+    private int certificateCacheMaxEntries = 10000;
+    private long certificateCacheMaxBytes = 16L * 1024L * 1024L;
+    private int deltaCompactionThreshold = RdfDocumentStore.DEFAULT_COMPACTION_THRESHOLD;
+    private RdfDocumentStore.StorageMode storageMode = RdfDocumentStore.StorageMode.MEMORY;
+    private String nativeStoreDirectory;
+    private String nativeStoreIndexes = "spoc,posc,cspo";
+    private ProfileLookup.Mode profileLookupMode = ProfileLookup.Mode.QUERY;
+    private RdfDocumentContainer.SerialisationFormat serialisationFormat = RdfDocumentContainer.SerialisationFormat.NTRIPLES;
+    private boolean bulkIssuanceEnabled = false;
+    private int bulkIssuanceGroupSize = 500;
+    private List<String> bulkIssuanceAdministrators = Collections.emptyList();
+    private boolean webidAuthentication = false;
+    private int authenticationCacheMaxEntries = 10000;
+    private int authenticationCacheTtl = 300;
+    private int profileFetchCacheMaxEntries = 1000;
+    private int profileFetchCacheTtl = 300;
+    private int profileFetchCacheNegativeTtl = 60;
+    private int profileFetchTimeout = 5;
+    private int profileFetchMaxBytes = 1024 * 1024;
+    private int revocationSyncInterval = 30;
+    private int searchPageSize = 20;
+
+    public int getGraphCacheMaxEntries() {
+        return this.graphCacheMaxEntries;
+    }
+
+    public void setGraphCacheMaxEntries(int graphCacheMaxEntries) {
+        this.graphCacheMaxEntries = graphCacheMaxEntries;
+    }
+
+    public long getGraphCacheMaxStatements() {
+        return this.graphCacheMaxStatements;
+    }
+
+    public void setGraphCacheMaxStatements(long graphCacheMaxStatements) {
+        this.graphCacheMaxStatements = graphCacheMaxStatements;
+    }
+
+    public int getSerialisationCacheMaxEntries() {
+        return this.serialisationCacheMaxEntries;
+    }
+
+    public void setSerialisationCacheMaxEntries(int serialisationCacheMaxEntries) {
+        this.serialisationCacheMaxEntries = serialisationCacheMaxEntries;
+    }
+
+    public long getSerialisationCacheMaxBytes() {
+        return this.serialisationCacheMaxBytes;
+    }
+
+    public void setSerialisationCacheMaxBytes(long serialisationCacheMaxBytes) {
+        this.serialisationCacheMaxBytes = serialisationCacheMaxBytes;
+    }
+
+    public int getCertificateCacheMaxEntries() {
+        return this.certificateCacheMaxEntries;
+    }
+
+    public void setCertificateCacheMaxEntries(int certificateCacheMaxEntries) {
+        this.certificateCacheMaxEntries = certificateCacheMaxEntries;
+    }
+
+    public long getCertificateCacheMaxBytes() {
+        return this.certificateCacheMaxBytes;
+    }
+
+    public void setCertificateCacheMaxBytes(long certificateCacheMaxBytes) {
+        this.certificateCacheMaxBytes = certificateCacheMaxBytes;
+    }
+
+    public int getDeltaCompactionThreshold() {
+        return this.deltaCompactionThreshold;
+    }
+
+    public void setDeltaCompactionThreshold(int deltaCompactionThreshold) {
+        this.deltaCompactionThreshold = deltaCompactionThreshold;
+    }
+
+    public RdfDocumentStore.StorageMode getStorageMode() {
+        return this.storageMode;
+    }
+
+    public void setStorageMode(RdfDocumentStore.StorageMode storageMode) {
+        this.storageMode = storageMode;
+    }
+
+    public String getNativeStoreDirectory() {
+        return this.nativeStoreDirectory;
+    }
+
+    public void setNativeStoreDirectory(String nativeStoreDirectory) {
+        this.nativeStoreDirectory = nativeStoreDirectory;
+    }
+
+    public String getNativeStoreIndexes() {
+        return this.nativeStoreIndexes;
+    }
+
+    public void setNativeStoreIndexes(String nativeStoreIndexes) {
+        this.nativeStoreIndexes = nativeStoreIndexes;
+    }
+
+    public ProfileLookup.Mode getProfileLookupMode() {
+        return this.profileLookupMode;
+    }
+
+    public void setProfileLookupMode(ProfileLookup.Mode profileLookupMode) {
+        this.profileLookupMode = profileLookupMode;
+    }
+
+    public RdfDocumentContainer.SerialisationFormat getSerialisationFormat() {
+        return this.serialisationFormat;
+    }
+
+    public void setSerialisationFormat(
+            RdfDocumentContainer.SerialisationFormat serialisationFormat) {
+        this.serialisationFormat = serialisationFormat;
+    }
+
+    public boolean isBulkIssuanceEnabled() {
+        return this.bulkIssuanceEnabled;
+    }
+
+    public void setBulkIssuanceEnabled(boolean bulkIssuanceEnabled) {
+        this.bulkIssuanceEnabled = bulkIssuanceEnabled;
+    }
+
+    public int getBulkIssuanceGroupSize() {
+        return this.bulkIssuanceGroupSize;
+    }
+
+    public void setBulkIssuanceGroupSize(int bulkIssuanceGroupSize) {
+        this.bulkIssuanceGroupSize = bulkIssuanceGroupSize;
+    }
+
+    /**
+     * @return WebIDs of the users allowed to issue certificates in bulk.
+     */
+    public List<String> getBulkIssuanceAdministrators() {
+        return this.bulkIssuanceAdministrators;
+    }
+
+    public void setBulkIssuanceAdministrators(
+            List<String> bulkIssuanceAdministrators) {
+        this.bulkIssuanceAdministrators = Collections
+                .unmodifiableList(new ArrayList<String>(
+                        bulkIssuanceAdministrators));
+    }
+
+    public boolean isWebidAuthentication() {
+        return this.webidAuthentication;
+    }
+
+    public void setWebidAuthentication(boolean webidAuthentication) {
+        this.webidAuthentication = webidAuthentication;
+    }
+
+    public int getAuthenticationCacheMaxEntries() {
+        return this.authenticationCacheMaxEntries;
+    }
+
+    public void setAuthenticationCacheMaxEntries(
+            int authenticationCacheMaxEntries) {
+        this.authenticationCacheMaxEntries = authenticationCacheMaxEntries;
+    }
+
+    /**
+     * @return time for which the identity established for a client
+     *         certificate is kept (at most), in seconds.
+     */
+    public int getAuthenticationCacheTtl() {
+        return this.authenticationCacheTtl;
+    }
+
+    public void setAuthenticationCacheTtl(int authenticationCacheTtl) {
+        this.authenticationCacheTtl = authenticationCacheTtl;
+    }
+
+    public int getProfileFetchCacheMaxEntries() {
+        return this.profileFetchCacheMaxEntries;
+    }
+
+    public void setProfileFetchCacheMaxEntries(int profileFetchCacheMaxEntries) {
+        this.profileFetchCacheMaxEntries = profileFetchCacheMaxEntries;
+    }
+
+    /**
+     * @return time for which a remote profile is kept, in seconds.
+     */
+    public int getProfileFetchCacheTtl() {
+        return this.profileFetchCacheTtl;
+    }
+
+    public void setProfileFetchCacheTtl(int profileFetchCacheTtl) {
+        this.profileFetchCacheTtl = profileFetchCacheTtl;
+    }
+
+    /**
+     * @return time for which a failure to fetch a remote profile is kept, in
+     *         seconds.
+     */
+    public int getProfileFetchCacheNegativeTtl() {
+        return this.profileFetchCacheNegativeTtl;
+    }
+
+    public void setProfileFetchCacheNegativeTtl(
+            int profileFetchCacheNegativeTtl) {
+        this.profileFetchCacheNegativeTtl = profileFetchCacheNegativeTtl;
+    }
+
+    /**
+     * @return connection and read timeout for remote profiles, in seconds.
+     */
+    public int getProfileFetchTimeout() {
+        return this.profileFetchTimeout;
+    }
+
+    public void setProfileFetchTimeout(int profileFetchTimeout) {
+        this.profileFetchTimeout = profileFetchTimeout;
+    }
+
+    public int getProfileFetchMaxBytes() {
+        return this.profileFetchMaxBytes;
+    }
+
+    public void setProfileFetchMaxBytes(int profileFetchMaxBytes) {
+        this.profileFetchMaxBytes = profileFetchMaxBytes;
+    }
+
+    /**
+     * @return minimum time between two reads of the certificates issued and
+     *         revoked by the other nodes, in seconds.
+     */
+    public int getRevocationSyncInterval() {
+        return this.revocationSyncInterval;
+    }
+
+    public void setRevocationSyncInterval(int revocationSyncInterval) {
+        this.revocationSyncInterval = revocationSyncInterval;
+    }
+
+    /**
+     * @return number of profiles per page of search results.
+     */
+    public int getSearchPageSize() {
+        return this.searchPageSize;
+    }
+
+    public void setSearchPageSize(int searchPageSize) {
+        this.searchPageSize = searchPageSize;
+    }
+
+    private Object loadJndiValue(Context ctx, String jndiName)
+            throws NamingException {
+        try {
+            return ctx.lookup(jndiName);
+        } catch (NameNotFoundException e) {
+            LOGGER.debug(String.format("JNDI name not found (%s).", jndiName));
+        }
+        return null;
+    }
+
+    private String loadStringValue(Context ctx, String jndiName)
+            throws NamingException {
+        Object value = loadJndiValue(ctx, jndiName);
+        if (value != null) {
+            String stringValue = value.toString().trim();
+            if (stringValue.length() > 0) {
+                return stringValue;
+            }
+        }
+        return null;
+    }
+
+    private Long loadLongValue(Context ctx, String jndiName)
+            throws NamingException {
+        Object value = loadJndiValue(ctx, jndiName);
+        if (value == null) {
+            return null;
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else {
+            try {
+                return Long.valueOf(value.toString().trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warn(String.format(
+                        "Invalid numerical value for %s: %s", jndiName, value));
+                return null;
+            }
+        }
+    }
+
+    private Boolean loadBooleanValue(Context ctx, String jndiName)
+            throws NamingException {
+        Object value = loadJndiValue(ctx, jndiName);
+        if (value == null) {
+            return null;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else {
+            return Boolean.valueOf(value.toString().trim());
+        }
+    }
+
+    /**
+     * Loads the configuration from the "java:comp/env" JNDI context.
+     */
+    public void init() {
+        try {
+            Context initCtx = new InitialContext();
+            Context ctx = (Context) initCtx.lookup("java:comp/env");
+            try {
+                Long longValue;
+                String stringValue;
+
+                longValue = loadLongValue(ctx,
+                        GRAPH_CACHE_MAX_ENTRIES_JNDI_NAME);
+                if (longValue != null) {
+                    setGraphCacheMaxEntries(longValue.intValue());
+                }
+
+                longValue = loadLongValue(ctx,
+                        GRAPH_CACHE_MAX_STATEMENTS_JNDI_NAME);
+                if (longValue != null) {
+                    setGraphCacheMaxStatements(longValue);
+                }
+
+                longValue = loadLongValue(ctx,
+                        SERIALISATION_CACHE_MAX_ENTRIES_JNDI_NAME);
+                if (longValue != null) {
+                    setSerialisationCacheMaxEntries(longValue.intValue());
+                }
+
+                longValue = loadLongValue(ctx,
+                        SERIALISATION_CACHE_MAX_BYTES_JNDI_NAME);
+                if (longValue != null) {
+                    setSerialisationCacheMaxBytes(longValue);
+                }
+
+                longValue = loadLongValue(ctx,
+                        CERTIFICATE_CACHE_MAX_ENTRIES_JNDI_NAME);
+                if (longValue != null) {
+                    setCertificateCacheMaxEntries(longValue.intValue());
+                }
+
+                longValue = loadLongValue(ctx,
+                        CERTIFICATE_CACHE_MAX_BYTES_JNDI_NAME);
+                if (longValue != null) {
+                    setCertificateCacheMaxBytes(longValue);
+                }
+
+                longValue = loadLongValue(ctx,
+                        DELTA_COMPACTION_THRESHOLD_JNDI_NAME);
+                if (longValue != null) {
+                    setDeltaCompactionThreshold(longValue.intValue());
+                }
+
+                stringValue = loadStringValue(ctx, STORAGE_MODE_JNDI_NAME);
+                if (stringValue != null) {
+                    try {
+                        setStorageMode(RdfDocumentStore.StorageMode
+                                .valueOf(stringValue.toUpperCase()));
+                    } catch (IllegalArgumentException e) {
+                        LOGGER.warn(String.format(
+                                "Invalid storage mode for %s: %s",
+                                STORAGE_MODE_JNDI_NAME, stringValue));
+                    }
+                }
+
+                stringValue = loadStringValue(ctx,
+                        PROFILE_LOOKUP_MODE_JNDI_NAME);
+                if (stringValue != null) {
+                    try {
+                        setProfileLookupMode(ProfileLookup.Mode
+                                .valueOf(stringValue.toUpperCase()));
+                    } catch (IllegalArgumentException e) {
+                        LOGGER.warn(String.format(
+                                "Invalid profile lookup mode for %s: %s",
+                                PROFILE_LOOKUP_MODE_JNDI_NAME, stringValue));
+                    }
+                }
+
+                stringValue = loadStringValue(ctx,
+                        SERIALISATION_FORMAT_JNDI_NAME);
+                if (stringValue != null) {
+                    try {
+                        setSerialisationFormat(RdfDocumentContainer.SerialisationFormat
+                                .valueOf(stringValue.toUpperCase()));
+                    } catch (IllegalArgumentException e) {
+                        LOGGER.warn(String.format(
+                                "Invalid serialisation format for %s: %s",
+                                SERIALISATION_FORMAT_JNDI_NAME, stringValue));
+                    }
+                }
+
+                stringValue = loadStringValue(ctx,
+                        NATIVE_STORE_DIRECTORY_JNDI_NAME);
+                if (stringValue != null) {
+                    setNativeStoreDirectory(stringValue);
+                }
+
+                stringValue = loadStringValue(ctx,
+                        NATIVE_STORE_INDEXES_JNDI_NAME);
+                if (stringValue != null) {
+                    setNativeStoreIndexes(stringValue);
+                }
+
+                Boolean booleanValue = loadBooleanValue(ctx,
+                        BULK_ISSUANCE_ENABLED_JNDI_NAME);
+                if (booleanValue != null) {
+                    setBulkIssuanceEnabled(booleanValue);
+                }
+
+                longValue = loadLongValue(ctx,
+                        BULK_ISSUANCE_GROUP_SIZE_JNDI_NAME);
+                if ((longValue != null) && (longValue > 0)) {
+                    setBulkIssuanceGroupSize(longValue.intValue());
+                }
+
+                stringValue = loadStringValue(ctx,
+                        BULK_ISSUANCE_ADMINISTRATORS_JNDI_NAME);
+                if (stringValue != null) {
+                    List<String> administrators = new ArrayList<String>();
+                    for (String webid : stringValue.split("[\\s,]+")) {
+                        if (webid.length() > 0) {
+                            administrators.add(webid);
+                        }
+                    }
+                    setBulkIssuanceAdministrators(administrators);
+                }
+
+                booleanValue = loadBooleanValue(ctx,
+                        WEBID_AUTHENTICATION_JNDI_NAME);
+                if (booleanValue != null) {
+                    setWebidAuthentication(booleanValue);
+                }
+
+                longValue = loadLongValue(ctx,
+                        AUTHENTICATION_CACHE_MAX_ENTRIES_JNDI_NAME);
+                if ((longValue != null) && (longValue > 0)) {
+                    setAuthenticationCacheMaxEntries(longValue.intValue());
+                }
+
+                longValue = loadLongValue(ctx,
+                        AUTHENTICATION_CACHE_TTL_JNDI_NAME);
+                if ((longValue != null) && (longValue >= 0)) {
+                    setAuthenticationCacheTtl(longValue.intValue());
+                }
+
+                longValue = loadLongValue(ctx,
+                        PROFILE_FETCH_CACHE_MAX_ENTRIES_JNDI_NAME);
+                if ((longValue != null) && (longValue > 0)) {
+                    setProfileFetchCacheMaxEntries(longValue.intValue());
+                }
+
+                longValue = loadLongValue(ctx,
+                        PROFILE_FETCH_CACHE_TTL_JNDI_NAME);
+                if ((longValue != null) && (longValue >= 0)) {
+                    setProfileFetchCacheTtl(longValue.intValue());
+                }
+
+                longValue = loadLongValue(ctx,
+                        PROFILE_FETCH_CACHE_NEGATIVE_TTL_JNDI_NAME);
+                if ((longValue != null) && (longValue >= 0)) {
+                    setProfileFetchCacheNegativeTtl(longValue.intValue());
+                }
+
+                longValue = loadLongValue(ctx,
+                        PROFILE_FETCH_TIMEOUT_JNDI_NAME);
+                if ((longValue != null) && (longValue > 0)) {
+                    setProfileFetchTimeout(longValue.intValue());
+                }
+
+                longValue = loadLongValue(ctx,
+                        PROFILE_FETCH_MAX_BYTES_JNDI_NAME);
+                if ((longValue != null) && (longValue > 0)) {
+                    setProfileFetchMaxBytes(longValue.intValue());
+                }
+
+                longValue = loadLongValue(ctx,
+                        REVOCATION_SYNC_INTERVAL_JNDI_NAME);
+                if ((longValue != null) && (longValue >= 0)) {
+                    setRevocationSyncInterval(longValue.intValue());
+                }
+
+                longValue = loadLongValue(ctx, SEARCH_PAGE_SIZE_JNDI_NAME);
+                if ((longValue != null) && (longValue > 0)) {
+                    setSearchPageSize(longValue.intValue());
+                }
+            } finally {
+                try {
+                    try {
+                        if (ctx != null) {
+                            ctx.close();
+                        }
+                    } finally {
+                        if (initCtx != null) {
+                            initCtx.close();
+                        }
+                    }
+                } catch (NamingException e) {
+                    LOGGER.error("Unable to close JNDI context.", e);
+                }
+            }
+        } catch (NamingException e) {
+            LOGGER.info("Unable to load JNDI context, using defaults.", e);
+        }
+    }
+}
@@ -30,7 +30,6 @@ POSSIBILITY OF SUCH DAMAGE.
 -----------------------------------------------------------------------*/
 package uk.ac.manchester.rcs.bruno.webidrepository;
 
-import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.UUID;
 
@@ -43,11 +42,9 @@ import org.openrdf.model.URI;
 import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.vocabulary.RDF;
-import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
 import org.openrdf.rio.RDFHandlerException;
-import org.openrdf.rio.rdfxml.RDFXMLWriter;
 import org.restlet.data.Form;
 import org.restlet.data.MediaType;
 import org.restlet.data.Status;
@@ -105,9 +102,11 @@ public class WebidCreationPageResource extends ServerResource {
 
             String localId = UUID.randomUUID().toString() + "/";
 
-            Repository repository = (Repository) getContext().getAttributes()
-                    .get(WebidModule.FOAFDIRECTORY_SESAME_REPOSITORY_ATTRIBUTE);
-            RepositoryConnection conn = repository.getConnection();
+            RdfDocumentStore rdfDocumentStore = (RdfDocumentStore) getContext()
+                    .getAttributes().get(
+                            WebidModule.FOAFDIRECTORY_DOCUMENT_STORE_ATTRIBUTE);
+            RepositoryConnection conn = rdfDocumentStore.getRepository()
+                    .getConnection();
             try {
                 ValueFactory vf = conn.getValueFactory();
                 URI context = vf.createURI(getRequest().getResourceRef()
@@ -136,16 +135,9 @@ public class WebidCreationPageResource extends ServerResource {
                 conn.commit();
 
                 try {
-                    StringWriter sw = new StringWriter();
-                    RDFXMLWriter rdfXmlWriter = new RDFXMLWriter(sw);
-                    conn.export(rdfXmlWriter, context);
-                    RdfDocumentContainer rdfDocContainer = new RdfDocumentContainer();
-                    rdfDocContainer.setId(context.toString());
-                    rdfDocContainer.setRdfContent(sw.toString());
                     Session session = HibernateFilter.getSession(getContext(),
                             getRequest());
-                    session.saveOrUpdate(rdfDocContainer);
-                    session.getTransaction().commit();
+                    rdfDocumentStore.saveContext(session, conn, context);
                 } catch (RDFHandlerException e) {
                     throw new ResourceException(e);
                 } catch (HibernateException e) {
@@ -30,6 +30,9 @@ POSSIBILITY OF SUCH DAMAGE.
 -----------------------------------------------------------------------*/
 package uk.ac.manchester.rcs.bruno.webidrepository;
 
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.Security;
 import java.util.Arrays;
 import java.util.Collections;
@@ -37,10 +40,12 @@ import java.util.List;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.hibernate.cfg.AnnotationConfiguration;
+import org.openrdf.query.MalformedQueryException;
 import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryException;
 import org.openrdf.repository.sail.SailRepository;
 import org.openrdf.sail.memory.MemoryStore;
+import org.openrdf.sail.nativerdf.NativeStore;
 import org.restlet.Restlet;
 import org.restlet.data.MediaType;
 import org.restlet.resource.Directory;
@@ -48,6 +53,10 @@ import org.restlet.routing.Router;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.manchester.rcs.bruno.keygenapp.base.BatchCertificateIssuer;
+import uk.ac.manchester.rcs.bruno.keygenapp.base.CertificateIssuanceService;
+import uk.ac.manchester.rcs.bruno.keygenapp.base.CrlPublisher;
+import uk.ac.manchester.rcs.bruno.keygenapp.base.KeyPairPool;
 import uk.ac.manchester.rcs.bruno.keygenapp.base.MiniCaConfiguration;
 import uk.ac.manchester.rcs.bruno.keygenapp.base.MiniCaConfiguration.ConfigurationException;
 import uk.ac.manchester.rcs.corypha.core.CoryphaApplication;
@@ -66,7 +75,6 @@ import freemarker.template.Configuration;
  */
 public class WebidModule extends CoryphaModule implements IApplicationProvider,
         IMenuProvider, IHibernateConfigurationContributor {
-    @SuppressWarnings("unused")
     private final static Logger LOGGER = LoggerFactory
             .getLogger(WebidModule.class);
 
@@ -78,9 +86,26 @@ public class WebidModule extends CoryphaModule implements IApplicationProvider,
 
     public static final String ITEMS_PATHELEMENT = "items";
     public static final String MAIN_ID_ATTRIBUTE = "uk.ac.nanocmos.datamanagement.service.attr.main_id";
+    public static final String SERIAL_NUMBER_ATTRIBUTE = "uk.ac.manchester.rcs.foafssl.attr.serial_number";
     public static final String MINICA_CONFIGURATION_CTXATTR_NAME = "uk.ac.manchester.rcs.foafssl.minicaconfig";
 
+    public static final String CERTIFICATE_ISSUANCE_CTXATTR_NAME = "uk.ac.manchester.rcs.foafssl.certificate_issuance";
+    public static final String BATCH_CERTIFICATE_ISSUER_CTXATTR_NAME = "uk.ac.manchester.rcs.foafssl.batch_certificate_issuer";
+    public static final String KEY_PAIR_POOL_CTXATTR_NAME = "uk.ac.manchester.rcs.foafssl.key_pair_pool";
+    public static final String WEBID_CONFIGURATION_CTXATTR_NAME = "uk.ac.manchester.rcs.foafssl.webidconfig";
+
     public static final String FOAFDIRECTORY_SESAME_REPOSITORY_ATTRIBUTE = "uk.ac.manchester.rcs.foafssl.sesame_repository";
+    public static final String FOAFDIRECTORY_GRAPH_CACHE_ATTRIBUTE = "uk.ac.manchester.rcs.foafssl.graph_cache";
+    public static final String FOAFDIRECTORY_SERIALISATION_CACHE_ATTRIBUTE = "uk.ac.manchester.rcs.foafssl.serialisation_cache";
+    public static final String FOAFDIRECTORY_CERTIFICATE_CACHE_ATTRIBUTE = "uk.ac.manchester.rcs.foafssl.certificate_cache";
+    public static final String FOAFDIRECTORY_DOCUMENT_STORE_ATTRIBUTE = "uk.ac.manchester.rcs.foafssl.document_store";
+    public static final String FOAFDIRECTORY_QUERY_REGISTRY_ATTRIBUTE = "uk.ac.manchester.rcs.foafssl.query_registry";
+    public static final String FOAFDIRECTORY_PROFILE_LOOKUP_ATTRIBUTE = "uk.ac.manchester.rcs.foafssl.profile_lookup";
+    public static final String FOAFDIRECTORY_WEBID_VERIFIER_ATTRIBUTE = "uk.ac.manchester.rcs.foafssl.webid_verifier";
+    public static final String FOAFDIRECTORY_AUTHENTICATION_CACHE_ATTRIBUTE = "uk.ac.manchester.rcs.foafssl.authentication_cache";
+    public static final String FOAFDIRECTORY_REVOCATION_STORE_ATTRIBUTE = "uk.ac.manchester.rcs.foafssl.revocation_store";
+    public static final String FOAFDIRECTORY_PUBLIC_KEY_INDEX_ATTRIBUTE = "uk.ac.manchester.rcs.foafssl.public_key_index";
+    public static final String FOAFDIRECTORY_PROFILE_NAME_INDEX_ATTRIBUTE = "uk.ac.manchester.rcs.foafssl.profile_name_index";
 
     public final static String FOAF_NS = "http://xmlns.com/foaf/0.1/";
     public final static String FOAFSSLMANCHESTER_NS = "http://www.rcs.manchester.ac.uk/research/FoafSslShib/#";
@@ -102,22 +127,147 @@ public class WebidModule extends CoryphaModule implements IApplicationProvider,
                         MediaType.valueOf("application/x-pem-file"));
                 getMetadataService().addExtension("cer",
                         MediaType.valueOf("application/x-x509-user-cert"));
+                getMetadataService().addExtension("crl",
+                        CrlResource.APPLICATION_PKIX_CRL_MEDIATYPE);
+                for (RdfSerialisationCache.Variant variant : RdfSerialisationCache.Variant
+                        .values()) {
+                    if (variant != RdfSerialisationCache.Variant.RDFXML) {
+                        getMetadataService().addExtension(variant.getSuffix(),
+                                variant.getMediaType());
+                    }
+                }
 
                 getTunnelService().setEnabled(true);
                 getTunnelService().setExtensionsTunnel(true);
                 getTunnelService().setUserAgentTunnel(true);
 
+                WebidConfiguration webidConfiguration = new WebidConfiguration();
+                webidConfiguration.init();
+
+                getContext().getAttributes().put(
+                        WEBID_CONFIGURATION_CTXATTR_NAME, webidConfiguration);
+
                 MiniCaConfiguration miniCaConfiguration = new MiniCaConfiguration();
                 miniCaConfiguration.init();
 
                 getContext().getAttributes().put(
                         MINICA_CONFIGURATION_CTXATTR_NAME, miniCaConfiguration);
 
-                Repository repository = new SailRepository(new MemoryStore());
+                LOGGER.info(String.format(
+                        "Signing certificates with %d thread(s).",
+                        miniCaConfiguration.getSigningThreads()));
+                getContext().getAttributes().put(
+                        CERTIFICATE_ISSUANCE_CTXATTR_NAME,
+                        new CertificateIssuanceService(miniCaConfiguration,
+                                miniCaConfiguration.getSigningThreads(),
+                                miniCaConfiguration.getSigningQueueCapacity()));
+                if (miniCaConfiguration.isServerKeyGeneration()) {
+                    KeyPairPool keyPairPool = new KeyPairPool(
+                            miniCaConfiguration.getServerKeyAlgorithm(),
+                            miniCaConfiguration.getServerKeySize(),
+                            miniCaConfiguration.getKeyPoolLowWatermark(),
+                            miniCaConfiguration.getKeyPoolHighWatermark());
+                    LOGGER.info(String.format(
+                            "Server-side key generation enabled: %s.",
+                            keyPairPool));
+                    getContext().getAttributes().put(
+                            KEY_PAIR_POOL_CTXATTR_NAME, keyPairPool);
+                }
+                CrlPublisher crlPublisher = new CrlPublisher(
+                        miniCaConfiguration, miniCaConfiguration
+                                .getRevocationIndex(), miniCaConfiguration
+                                .getCrlUpdateInterval() * 1000L,
+                        miniCaConfiguration.getCrlValidity() * 3600L * 1000L);
+                crlPublisher.start();
+                getContext().getAttributes().put(
+                        FOAFDIRECTORY_REVOCATION_STORE_ATTRIBUTE,
+                        new CertificateRevocationStore(miniCaConfiguration
+                                .getRevocationIndex(), crlPublisher,
+                                webidConfiguration.getRevocationSyncInterval() * 1000L));
+                if (webidConfiguration.isBulkIssuanceEnabled()) {
+                    if (!webidConfiguration.isWebidAuthentication()
+                            || webidConfiguration
+                                    .getBulkIssuanceAdministrators()
+                                    .isEmpty()) {
+                        LOGGER.warn("Bulk issuance is enabled, but requires WebID authentication and at least one administrator.");
+                    }
+                    getContext().getAttributes().put(
+                            BATCH_CERTIFICATE_ISSUER_CTXATTR_NAME,
+                            new BatchCertificateIssuer(miniCaConfiguration,
+                                    miniCaConfiguration.getSigningThreads()));
+                }
+
+                Repository repository;
+                if (webidConfiguration.getStorageMode() == RdfDocumentStore.StorageMode.NATIVE) {
+                    if (webidConfiguration.getNativeStoreDirectory() == null) {
+                        throw new ConfigurationException(String.format(
+                                "%s must be set to use the native store.",
+                                WebidConfiguration.NATIVE_STORE_DIRECTORY_JNDI_NAME));
+                    }
+                    LOGGER.info(String.format(
+                            "Using native store in %s (indexes: %s).",
+                            webidConfiguration.getNativeStoreDirectory(),
+                            webidConfiguration.getNativeStoreIndexes()));
+                    repository = new SailRepository(new NativeStore(new File(
+                            webidConfiguration.getNativeStoreDirectory()),
+                            webidConfiguration.getNativeStoreIndexes()));
+                } else {
+                    repository = new SailRepository(new MemoryStore());
+                }
                 repository.initialize();
                 getContext().getAttributes().put(
                         FOAFDIRECTORY_SESAME_REPOSITORY_ATTRIBUTE, repository);
 
+                RdfGraphCache graphCache = new RdfGraphCache(
+                        webidConfiguration.getGraphCacheMaxEntries(),
+                        webidConfiguration.getGraphCacheMaxStatements());
+                getContext().getAttributes().put(
+                        FOAFDIRECTORY_GRAPH_CACHE_ATTRIBUTE, graphCache);
+
+                RdfSerialisationCache serialisationCache = new RdfSerialisationCache(
+                        webidConfiguration.getSerialisationCacheMaxEntries(),
+                        webidConfiguration.getSerialisationCacheMaxBytes());
+                getContext().getAttributes().put(
+                        FOAFDIRECTORY_SERIALISATION_CACHE_ATTRIBUTE,
+                        serialisationCache);
+
+                CertificateCache certificateCache = new CertificateCache(
+                        webidConfiguration.getCertificateCacheMaxEntries(),
+                        webidConfiguration.getCertificateCacheMaxBytes());
+                getContext().getAttributes().put(
+                        FOAFDIRECTORY_CERTIFICATE_CACHE_ATTRIBUTE,
+                        certificateCache);
+
+                RdfDocumentStore rdfDocumentStore = new RdfDocumentStore(
+                        repository, webidConfiguration.getStorageMode(),
+                        graphCache, serialisationCache, webidConfiguration
+                                .getSerialisationFormat());
+                rdfDocumentStore.setCompactionThreshold(webidConfiguration
+                        .getDeltaCompactionThreshold());
+                rdfDocumentStore.setCertificateCache(certificateCache);
+                PublicKeyIndex publicKeyIndex = new PublicKeyIndex();
+                rdfDocumentStore.addDocumentIndex(publicKeyIndex);
+                getContext().getAttributes().put(
+                        FOAFDIRECTORY_PUBLIC_KEY_INDEX_ATTRIBUTE,
+                        publicKeyIndex);
+                ProfileNameIndex profileNameIndex = new ProfileNameIndex();
+                rdfDocumentStore.addDocumentIndex(profileNameIndex);
+                getContext().getAttributes().put(
+                        FOAFDIRECTORY_PROFILE_NAME_INDEX_ATTRIBUTE,
+                        profileNameIndex);
+                getContext().getAttributes().put(
+                        FOAFDIRECTORY_DOCUMENT_STORE_ATTRIBUTE,
+                        rdfDocumentStore);
+
+                QueryRegistry queryRegistry = new QueryRegistry();
+                getContext().getAttributes().put(
+                        FOAFDIRECTORY_QUERY_REGISTRY_ATTRIBUTE, queryRegistry);
+
+                getContext().getAttributes().put(
+                        FOAFDIRECTORY_PROFILE_LOOKUP_ATTRIBUTE,
+                        new ProfileLookup(webidConfiguration
+                                .getProfileLookupMode(), queryRegistry));
+
                 Configuration cfg = CoryphaTemplateUtil
                         .getConfiguration(getContext());
                 CoryphaTemplateUtil
@@ -127,22 +277,107 @@ public class WebidModule extends CoryphaModule implements IApplicationProvider,
                 Router router = new Router(getContext());
                 router.setDefaultMatchingMode(Router.MODE_FIRST_MATCH);
 
+                router.attach(String.format("profile/{%s}/certificate/{%s}",
+                        MAIN_ID_ATTRIBUTE, SERIAL_NUMBER_ATTRIBUTE),
+                        CertificateRevocationResource.class);
                 router.attach(String.format("profile/{%s}/certificate",
                         MAIN_ID_ATTRIBUTE), CertificateResource.class);
+                router.attach("bulk", BulkIssuanceResource.class);
+                router.attach("crl", CrlResource.class);
+                router.attach("search", ProfileSearchResource.class);
+                router.attach(String.format("status/{%s}",
+                        SERIAL_NUMBER_ATTRIBUTE),
+                        RevocationStatusResource.class);
                 router.attach(
                         String.format("profile/{%s}/", MAIN_ID_ATTRIBUTE),
                         WebidPageResource.class);
                 router.attachDefault(WebidCreationPageResource.class);
                 router.setDefaultMatchingQuery(false);
 
+                Restlet next = router;
+                if (webidConfiguration.isWebidAuthentication()) {
+                    WebidVerifier webidVerifier = new WebidVerifier(
+                            rdfDocumentStore, new ProfileFetchCache(
+                                    webidConfiguration
+                                            .getProfileFetchCacheMaxEntries(),
+                                    webidConfiguration
+                                            .getProfileFetchCacheTtl() * 1000L,
+                                    webidConfiguration
+                                            .getProfileFetchCacheNegativeTtl() * 1000L,
+                                    webidConfiguration
+                                            .getProfileFetchTimeout() * 1000,
+                                    webidConfiguration
+                                            .getProfileFetchMaxBytes()));
+                    webidVerifier.setPublicKeyIndex(publicKeyIndex);
+                    getContext().getAttributes().put(
+                            FOAFDIRECTORY_WEBID_VERIFIER_ATTRIBUTE,
+                            webidVerifier);
+                    AuthenticationCache authenticationCache = new AuthenticationCache(
+                            webidConfiguration
+                                    .getAuthenticationCacheMaxEntries(),
+                            webidConfiguration.getAuthenticationCacheTtl() * 1000L);
+                    rdfDocumentStore.addDocumentListener(authenticationCache);
+                    getContext().getAttributes().put(
+                            FOAFDIRECTORY_AUTHENTICATION_CACHE_ATTRIBUTE,
+                            authenticationCache);
+                    ClientCertificateAuthenticator authenticator = new ClientCertificateAuthenticator(
+                            getContext(), webidVerifier, authenticationCache);
+                    authenticator.setOptional(true);
+                    authenticator.setNext(router);
+                    next = authenticator;
+                    LOGGER.info("WebID authentication of client certificates enabled.");
+                }
+
                 HibernateFilter hibernateFilter = new HibernateFilter(
-                        getContext(), router);
+                        getContext(), next);
 
                 return hibernateFilter;
             } catch (ConfigurationException e) {
                 throw new RuntimeException(e);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             } catch (RepositoryException e) {
                 throw new RuntimeException(e);
+            } catch (MalformedQueryException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public synchronized void stop() throws Exception {
+            try {
+                CertificateIssuanceService certificateIssuanceService = (CertificateIssuanceService) getContext()
+                        .getAttributes().get(CERTIFICATE_ISSUANCE_CTXATTR_NAME);
+                if (certificateIssuanceService != null) {
+                    certificateIssuanceService.shutdown();
+                }
+                BatchCertificateIssuer batchCertificateIssuer = (BatchCertificateIssuer) getContext()
+                        .getAttributes().get(
+                                BATCH_CERTIFICATE_ISSUER_CTXATTR_NAME);
+                if (batchCertificateIssuer != null) {
+                    batchCertificateIssuer.shutdown();
+                }
+                KeyPairPool keyPairPool = (KeyPairPool) getContext()
+                        .getAttributes().get(KEY_PAIR_POOL_CTXATTR_NAME);
+                if (keyPairPool != null) {
+                    keyPairPool.shutdown();
+                }
+                CertificateRevocationStore revocationStore = (CertificateRevocationStore) getContext()
+                        .getAttributes().get(
+                                FOAFDIRECTORY_REVOCATION_STORE_ATTRIBUTE);
+                if (revocationStore != null) {
+                    revocationStore.getCrlPublisher().shutdown();
+                }
+                Repository repository = (Repository) getContext()
+                        .getAttributes().get(
+                                FOAFDIRECTORY_SESAME_REPOSITORY_ATTRIBUTE);
+                if (repository != null) {
+                    repository.shutDown();
+                }
+            } finally {
+                super.stop();
             }
         }
 
@@ -177,6 +412,10 @@ public class WebidModule extends CoryphaModule implements IApplicationProvider,
     @Override
     public void configureHibernate(AnnotationConfiguration configuration) {
         configuration.addPackage("uk.ac.manchester.rcs.bruno.webidrepository")
-                .addAnnotatedClass(RdfDocumentContainer.class);
+                .addAnnotatedClass(RdfDocumentContainer.class)
+                .addAnnotatedClass(RdfDocumentDelta.class)
+                .addAnnotatedClass(IssuedCertificate.class)
+                .addAnnotatedClass(PublicKeyRecord.class)
+                .addAnnotatedClass(ProfileNameRecord.class);
     }
 }
@@ -31,50 +31,46 @@ POSSIBILITY OF SUCH DAMAGE.
 package uk.ac.manchester.rcs.bruno.webidrepository;
 
 import java.io.IOException;
-import java.io.StringWriter;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.PublicKey;
-import java.security.SignatureException;
-import java.security.cert.CertificateException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
 import java.security.cert.X509Certificate;
-import java.security.interfaces.RSAPublicKey;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bouncycastle.asn1.DERSequence;
 import org.bouncycastle.asn1.x509.X509Name;
-import org.bouncycastle.openssl.PEMWriter;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
-import org.openrdf.model.BNode;
-import org.openrdf.model.Resource;
-import org.openrdf.model.URI;
-import org.openrdf.model.Value;
-import org.openrdf.model.ValueFactory;
-import org.openrdf.model.vocabulary.RDF;
-import org.openrdf.query.BindingSet;
+import org.hibernate.StaleStateException;
+import org.openrdf.model.Statement;
 import org.openrdf.query.MalformedQueryException;
 import org.openrdf.query.QueryEvaluationException;
-import org.openrdf.query.QueryLanguage;
-import org.openrdf.query.TupleQuery;
-import org.openrdf.query.TupleQueryResult;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
 import org.openrdf.rio.RDFHandlerException;
-import org.openrdf.rio.rdfxml.RDFXMLWriter;
+import org.openrdf.rio.RDFParseException;
+import org.restlet.data.Disposition;
 import org.restlet.data.Form;
 import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.OutputRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.representation.Variant;
 import org.restlet.resource.Get;
 import org.restlet.resource.Post;
 import org.restlet.resource.ResourceException;
 
+import uk.ac.manchester.rcs.bruno.keygenapp.base.CertificateIssuanceService;
+import uk.ac.manchester.rcs.bruno.keygenapp.base.KeyPairPool;
 import uk.ac.manchester.rcs.bruno.keygenapp.base.MiniCaCertGen;
 import uk.ac.manchester.rcs.bruno.keygenapp.base.MiniCaConfiguration;
 import uk.ac.manchester.rcs.corypha.core.CoryphaTemplateUtil;
@@ -90,6 +86,11 @@ public class WebidPageResource extends SesameContextDocumentResource {
     private static final Log LOGGER = LogFactory
             .getLog(WebidPageResource.class);
 
+    private static final String SERVER_KEYGEN = "server";
+    private static final int MAX_UPDATE_ATTEMPTS = 3;
+    private static final MediaType APPLICATION_PKCS12_MEDIATYPE = new MediaType(
+            "application/x-pkcs12");
+
     private Map<String, String> foafsslData;
     private boolean canModify = false;
 
@@ -102,77 +103,39 @@ public class WebidPageResource extends SesameContextDocumentResource {
 
     @Get("html")
     public Representation toHtml() {
-        return toHtml(false);
+        if ((this.rdfDocumentInfo != null)
+                && this.rdfDocumentInfo.isNotModified(getRequest(), "html")) {
+            return this.rdfDocumentInfo.applyNotModified(getResponse(),
+                    "html");
+        }
+        Representation rep = toHtml(false);
+        if (this.rdfDocumentInfo != null) {
+            this.rdfDocumentInfo.applyTo(rep, "html");
+        }
+        return rep;
     }
-    
+
     public Representation toHtml(boolean autoloadcert) {
         String webId = context + "#me";
 
-        final RepositoryConnection repositoryConnection = this.repositoryConnection;
-
-        StringBuilder queryStringBuilder = new StringBuilder();
-        queryStringBuilder.append(String.format("PREFIX rdf: <%s> ",
-                RDF.NAMESPACE));
-        queryStringBuilder.append(String.format("PREFIX foaf: <%s> ",
-                WebidModule.FOAF_NS));
-        queryStringBuilder.append(String.format("PREFIX man: <%s> ",
-                WebidModule.FOAFSSLMANCHESTER_NS));
-        queryStringBuilder.append("SELECT * ");
-        queryStringBuilder.append(String.format("FROM <%s> ", context));
-        queryStringBuilder.append("WHERE { ");
-        queryStringBuilder.append(String.format(" <%s#me> rdf:type ?t . ",
-                context));
-        queryStringBuilder.append(String.format(
-                " OPTIONAL { <%s#me> foaf:givenName ?givenName } . ", context));
-        queryStringBuilder.append(String
-                .format(" OPTIONAL { <%s#me> foaf:familyName ?familyName } . ",
-                        context));
-        queryStringBuilder.append(String.format(
-                " OPTIONAL { <%s#me> man:x509PemCert ?x509Cert } . ", context));
-        queryStringBuilder.append("} ");
-        try {
-            try {
-                TupleQuery tupleQuery = repositoryConnection.prepareTupleQuery(
-                        QueryLanguage.SPARQL, queryStringBuilder.toString(),
-                        context.toString());
-                TupleQueryResult result = tupleQuery.evaluate();
-                if (result.hasNext()) {
-                    BindingSet bindingSet = result.next();
-                    Value givenName = bindingSet.getValue("givenName");
-                    Value familyName = bindingSet.getValue("familyName");
-                    Value x509Cert = bindingSet.getValue("x509Cert");
-
-                    this.foafsslData = new HashMap<String, String>();
-                    LOGGER.info(String.format("%s: %s %s", webId, givenName,
-                            familyName));
-                    this.foafsslData.put("webid", webId);
-                    if (familyName != null) {
-                        this.foafsslData.put("familyName", familyName
-                                .stringValue());
-                    }
-                    if (givenName != null) {
-                        this.foafsslData.put("givenName", givenName
-                                .stringValue());
-                    }
-                    if (x509Cert != null) {
-                        this.foafsslData
-                                .put("x509Cert", x509Cert.stringValue());
-                    }
-                } else {
-                    LOGGER.info("No result");
-                    setExisting(false);
-                }
-            } finally {
-                repositoryConnection.close();
-            }
-        } catch (RepositoryException e) {
-            throw new ResourceException(e);
-        } catch (MalformedQueryException e) {
-            throw new ResourceException(e);
-        } catch (QueryEvaluationException e) {
-            throw new ResourceException(e);
-        } finally {
-            this.repositoryConnection = null;
+        ProfileLookup profileLookup = (ProfileLookup) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_PROFILE_LOOKUP_ATTRIBUTE);
+        /*
+         * Rendered from the version described by the validators, rather than
+         * from the context, which may hold an uncommitted update.
+         */
+        Map<String, String> profile = profileLookup.lookupProfile(
+                getVersionStatements(), context);
+        if (profile != null) {
+            this.foafsslData = new HashMap<String, String>(profile);
+            LOGGER.info(String.format("%s: %s %s", webId, profile
+                    .get(ProfileLookup.GIVEN_NAME_KEY), profile
+                    .get(ProfileLookup.FAMILY_NAME_KEY)));
+            this.foafsslData.put("webid", webId);
+        } else {
+            LOGGER.info("No result");
+            setExisting(false);
         }
 
         HashMap<String, Object> data = new HashMap<String, Object>();
@@ -181,6 +144,8 @@ public class WebidPageResource extends SesameContextDocumentResource {
         }
         data.put("canModify", this.canModify);
         data.put("autoloadcert", autoloadcert);
+        data.put("serverKeygen", getContext().getAttributes().get(
+                WebidModule.KEY_PAIR_POOL_CTXATTR_NAME) != null);
         return CoryphaTemplateUtil
                 .buildTemplateRepresentation(getContext(), getRequest(),
                         "foafprofile.ftl.html", data, MediaType.TEXT_HTML);
@@ -189,33 +154,16 @@ public class WebidPageResource extends SesameContextDocumentResource {
     @Post
     public Representation accept(Representation entity)
             throws ResourceException {
-        final RepositoryConnection repositoryConnection = this.repositoryConnection;
+        final RepositoryConnection repositoryConnection = getRepositoryConnection();
 
-        StringBuilder queryStringBuilder = new StringBuilder();
-        queryStringBuilder.append("SELECT * ");
-        queryStringBuilder.append(String.format("FROM CONTEXT <%s> ", context));
-        queryStringBuilder.append(String.format(
-                " {<%s#me>} rdf:type {foaf:Person}, ", context));
-        queryStringBuilder.append(String.format(
-                " [{<%s#me>} man:x509PemCert {x509Cert}] ", context));
-        queryStringBuilder.append(String.format(
-                "USING NAMESPACE foaf = <%s>, man = <%s>", WebidModule.FOAF_NS,
-                WebidModule.FOAFSSLMANCHESTER_NS));
+        ProfileLookup profileLookup = (ProfileLookup) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_PROFILE_LOOKUP_ATTRIBUTE);
         try {
             try {
-                TupleQuery tupleQuery = repositoryConnection.prepareTupleQuery(
-                        QueryLanguage.SERQL, queryStringBuilder.toString(),
-                        context.toString());
-                TupleQueryResult result = tupleQuery.evaluate();
-                if (result.hasNext()) {
-                    BindingSet bindingSet = result.next();
-                    Value x509Cert = bindingSet.getValue("x509Cert");
-
-                    HashMap<String, String> dataModel = new HashMap<String, String>();
-                    if (x509Cert != null) {
-                        dataModel.put("x509Cert", x509Cert.stringValue());
-                    }
-
+                Map<String, String> person = profileLookup.lookupPerson(
+                        repositoryConnection, context);
+                if (person != null) {
                     if (entity.isCompatible(new Variant(
                             MediaType.APPLICATION_WWW_FORM))) {
 
@@ -231,9 +179,11 @@ public class WebidPageResource extends SesameContextDocumentResource {
                         String pemCsrData = form.getFirstValue("csrdata");
                         String cn = form.getFirstValue("cn");
 
-                        Date startDate = new Date();
-                        Date endDate = new Date(startDate.getTime() + 365L
-                                * 24L * 60L * 60L * 1000L);
+                        CertificateIssuanceService certificateIssuanceService = (CertificateIssuanceService) getContext()
+                                .getAttributes()
+                                .get(
+                                        WebidModule.CERTIFICATE_ISSUANCE_CTXATTR_NAME);
+
                         X509Name subjectDn;
                         if ((cn == null) || cn.isEmpty()) {
                             subjectDn = new X509Name(new DERSequence());
@@ -241,112 +191,58 @@ public class WebidPageResource extends SesameContextDocumentResource {
                             subjectDn = new X509Name("CN=" + cn);
                         }
 
-                        X509Certificate cert;
-                        if ((spkacData == null) || spkacData.isEmpty()) {
-                            cert = MiniCaCertGen.createCertFromPemCsr(
-                                    configuration.getCaPublicKey(),
-                                    configuration.getCaPrivKey(), pemCsrData,
-                                    subjectDn, configuration.getIssuerName(),
-                                    startDate, endDate, webId, configuration
-                                            .nextCertificateSerialNumber());
-                        } else {
-                            cert = MiniCaCertGen.createCertFromSpkac(
-                                    configuration.getCaPublicKey(),
-                                    configuration.getCaPrivKey(), spkacData,
-                                    subjectDn, configuration.getIssuerName(),
-                                    startDate, endDate, webId, configuration
-                                            .nextCertificateSerialNumber());
-                        }
-
-                        StringWriter sw = new StringWriter();
-                        PEMWriter pemWriter = new PEMWriter(sw);
-                        pemWriter.writeObject(cert);
-                        pemWriter.close();
-                        String pemCert = sw.toString();
-
-                        ValueFactory vf = repositoryConnection
-                                .getValueFactory();
-
-                        Resource webid = vf
-                                .createURI(context.toString(), "#me");
-
-                        URI predicate = vf
-                                .createURI(WebidModule.FOAFSSLMANCHESTER_NS,
-                                        "x509PemCert");
-                        Value value = vf.createLiteral(pemCert);
-                        repositoryConnection.add(webid, predicate, value,
-                                context);
-
-                        PublicKey publicKey = cert.getPublicKey();
-                        if (publicKey instanceof RSAPublicKey) {
-                            RSAPublicKey rsaPublicKey = (RSAPublicKey) publicKey;
-
-                            BNode keyBnode = vf.createBNode();
-                            predicate = RDF.TYPE;
-                            value = vf.createURI(WebidModule.RSA_NS,
-                                    "RSAPublicKey");
-                            repositoryConnection.add(keyBnode, predicate,
-                                    value, context);
-
-                            predicate = vf.createURI(WebidModule.CERT_NS,
-                                    "identity");
-                            repositoryConnection.add(keyBnode, predicate,
-                                    webid, context);
-
-                            BNode modulusBnode = vf.createBNode();
-                            predicate = vf
-                                    .createURI(WebidModule.CERT_NS, "hex");
-                            value = vf.createLiteral(rsaPublicKey.getModulus()
-                                    .toString(16));
-                            repositoryConnection.add(modulusBnode, predicate,
-                                    value, context);
-
-                            predicate = vf.createURI(WebidModule.RSA_NS,
-                                    "modulus");
-                            repositoryConnection.add(keyBnode, predicate,
-                                    modulusBnode, context);
-
-                            BNode exponentBnode = vf.createBNode();
-                            predicate = vf.createURI(WebidModule.CERT_NS,
-                                    "decimal");
-                            value = vf.createLiteral(rsaPublicKey
-                                    .getPublicExponent().toString(10));
-                            repositoryConnection.add(exponentBnode, predicate,
-                                    value, context);
-
-                            predicate = vf.createURI(WebidModule.RSA_NS,
-                                    "public_exponent");
-                            repositoryConnection.add(keyBnode, predicate,
-                                    exponentBnode, context);
+                        KeyPair keyPair = null;
+                        String password = null;
+                        if (SERVER_KEYGEN.equals(form.getFirstValue("keygen"))) {
+                            password = form.getFirstValue("password");
+                            if ((password == null) || password.isEmpty()) {
+                                throw new ResourceException(
+                                        Status.CLIENT_ERROR_BAD_REQUEST,
+                                        "A password is required to protect the generated key.");
+                            }
+                            keyPair = takeServerKeyPair(configuration);
                         }
 
-                        repositoryConnection.commit();
-
+                        X509Certificate cert;
+                        Future<X509Certificate> futureCert;
                         try {
-                            sw = new StringWriter();
-                            RDFXMLWriter rdfXmlWriter = new RDFXMLWriter(sw);
-                            repositoryConnection.export(rdfXmlWriter, context);
-                            RdfDocumentContainer rdfDocContainer = this.rdfDocContainer;
-                            if ((rdfDocContainer.getId() == null)
-                                    || (!rdfDocContainer.getId().equals(context
-                                            .toString()))) {
-                                rdfDocContainer = new RdfDocumentContainer();
-                                rdfDocContainer.setId(context.toString());
-                                LOGGER
-                                        .warn("Mismatch between RdfDocumentContainer IDs, this should not happen!");
+                            if (keyPair != null) {
+                                futureCert = certificateIssuanceService
+                                        .submit(keyPair.getPublic(),
+                                                subjectDn, webId);
+                            } else {
+                                futureCert = certificateIssuanceService
+                                        .submit(spkacData, pemCsrData,
+                                                subjectDn, webId);
                             }
-                            rdfDocContainer.setRdfContent(sw.toString());
-                            Session session = HibernateFilter.getSession(
-                                    getContext(), getRequest());
-                            session.saveOrUpdate(rdfDocContainer);
-                            session.getTransaction().commit();
-                        } catch (RDFHandlerException e) {
-                            throw new ResourceException(e);
-                        } catch (HibernateException e) {
+                        } catch (RejectedExecutionException e) {
+                            throw new ResourceException(
+                                    Status.SERVER_ERROR_SERVICE_UNAVAILABLE,
+                                    "Too many certificate requests, please try again later.");
+                        }
+                        try {
+                            cert = futureCert.get(configuration
+                                    .getSigningTimeout(), TimeUnit.SECONDS);
+                        } catch (TimeoutException e) {
+                            futureCert.cancel(true);
+                            throw new ResourceException(
+                                    Status.SERVER_ERROR_SERVICE_UNAVAILABLE,
+                                    "Timed out waiting for the certificate to be signed.");
+                        } catch (InterruptedException e) {
+                            futureCert.cancel(true);
+                            Thread.currentThread().interrupt();
                             throw new ResourceException(e);
+                        } catch (ExecutionException e) {
+                            throw new ResourceException(e.getCause());
                         }
 
+                        addCertificate(cert);
+
                         setExisting(true);
+                        if (keyPair != null) {
+                            return toPkcs12(keyPair, cert, configuration,
+                                    password);
+                        }
                         return toHtml(true);
                     } else {
                         setExisting(true);
@@ -366,22 +262,131 @@ public class WebidPageResource extends SesameContextDocumentResource {
             throw new ResourceException(e);
         } catch (QueryEvaluationException e) {
             throw new ResourceException(e);
-        } catch (InvalidKeyException e) {
-            throw new ResourceException(e);
         } catch (IllegalStateException e) {
             throw new ResourceException(e);
-        } catch (NoSuchAlgorithmException e) {
-            throw new ResourceException(e);
-        } catch (SignatureException e) {
+        } catch (IOException e) {
             throw new ResourceException(e);
-        } catch (CertificateException e) {
+        } finally {
+            this.repositoryConnection = null;
+        }
+    }
+
+    /**
+     * Adds a certificate to the profile and saves it, with the record of its
+     * issuance. This is retried (after re-loading the profile) if the profile
+     * has been modified concurrently by another node.
+     */
+    private void addCertificate(X509Certificate cert)
+            throws ResourceException, RepositoryException, IOException {
+        RdfDocumentStore rdfDocumentStore = (RdfDocumentStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_DOCUMENT_STORE_ATTRIBUTE);
+        CertificateRevocationStore revocationStore = (CertificateRevocationStore) getContext()
+                .getAttributes().get(
+                        WebidModule.FOAFDIRECTORY_REVOCATION_STORE_ATTRIBUTE);
+        Session session = HibernateFilter.getSession(getContext(),
+                getRequest());
+        RepositoryConnection repositoryConnection = getRepositoryConnection();
+        for (int attempt = 1;; attempt++) {
+            RdfDocumentStore.Update update = rdfDocumentStore
+                    .beginUpdate(context);
+            try {
+                if (!rdfDocumentStore.loadContext(session,
+                        repositoryConnection, context)) {
+                    throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND);
+                }
+                List<Statement> statements = ProfileCertificates
+                        .addCertificate(repositoryConnection, context, cert);
+                repositoryConnection.commit();
+                rdfDocumentStore.writeAdditions(session, repositoryConnection,
+                        update, statements);
+                revocationStore.recordIssued(session, context.toString(), cert);
+                session.getTransaction().commit();
+                revocationStore.indexIssued(cert);
+                return;
+            } catch (StaleStateException e) {
+                LOGGER.info(String.format(
+                        "Concurrent modification of %s (attempt %d): %s",
+                        context, attempt, e.getMessage()));
+                session.getTransaction().rollback();
+                session.clear();
+                session.beginTransaction();
+                if (attempt >= MAX_UPDATE_ATTEMPTS) {
+                    throw new ResourceException(Status.CLIENT_ERROR_CONFLICT,
+                            "The profile is being modified, please try again.");
+                }
+            } catch (RDFParseException e) {
+                throw new ResourceException(e);
+            } catch (RDFHandlerException e) {
+                throw new ResourceException(e);
+            } catch (HibernateException e) {
+                throw new ResourceException(e);
+            } finally {
+                rdfDocumentStore.endUpdate(update);
+            }
+        }
+    }
+
+    /**
+     * Takes a pre-generated key pair for server-side key generation.
+     * 
+     * @throws ResourceException
+     *             if server-side key generation is disabled or no key pair
+     *             is available in time.
+     */
+    private KeyPair takeServerKeyPair(MiniCaConfiguration configuration)
+            throws ResourceException {
+        KeyPairPool keyPairPool = (KeyPairPool) getContext().getAttributes()
+                .get(WebidModule.KEY_PAIR_POOL_CTXATTR_NAME);
+        if (keyPairPool == null) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
+                    "Server-side key generation is not enabled.");
+        }
+        try {
+            KeyPair keyPair = keyPairPool.take(configuration
+                    .getSigningTimeout(), TimeUnit.SECONDS);
+            if (keyPair == null) {
+                LOGGER.warn("No pre-generated key pair available: "
+                        + keyPairPool);
+                throw new ResourceException(
+                        Status.SERVER_ERROR_SERVICE_UNAVAILABLE,
+                        "No key available, please try again later.");
+            }
+            return keyPair;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new ResourceException(e);
-        } catch (NoSuchProviderException e) {
+        }
+    }
+
+    /**
+     * Returns the key generated by the server and its certificate as a
+     * PKCS#12 bundle, protected by the (non-empty) password.
+     */
+    private Representation toPkcs12(KeyPair keyPair, X509Certificate cert,
+            MiniCaConfiguration configuration, String password)
+            throws ResourceException {
+        final byte[] pkcs12;
+        try {
+            pkcs12 = MiniCaCertGen.createPkcs12(keyPair.getPrivate(), cert,
+                    configuration.getCaCertificate(), "WebID", password
+                            .toCharArray());
+        } catch (GeneralSecurityException e) {
             throw new ResourceException(e);
         } catch (IOException e) {
             throw new ResourceException(e);
-        } finally {
-            this.repositoryConnection = null;
         }
+        Representation rep = new OutputRepresentation(
+                APPLICATION_PKCS12_MEDIATYPE, pkcs12.length) {
+            @Override
+            public void write(OutputStream outputStream) throws IOException {
+                outputStream.write(pkcs12);
+            }
+        };
+        Disposition disposition = new Disposition(
+                Disposition.TYPE_ATTACHMENT);
+        disposition.setFilename("webid.p12");
+        rep.setDisposition(disposition);
+        return rep;
     }
 }
@@ -0,0 +1,507 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.DEREncodable;
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.nist.NISTNamedCurves;
+import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.asn1.teletrust.TeleTrusTNamedCurves;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x9.X962NamedCurves;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.rio.RDFParseException;
+
+/**
+ * Verifies the WebIDs of a client certificate: each URI in its subject
+ * alternative name is a WebID if the profile document it refers to
+ * describes the public key of the certificate as a key of this WebID (RSA
+ * modulus and exponent, or named curve and EC point as written by
+ * {@link ProfileCertificates}).
+ * 
+ * Profiles hosted in this repository are read from the
+ * {@link RdfDocumentStore} (and its {@link RdfGraphCache}), without HTTP;
+ * other profiles are fetched through a {@link ProfileFetchCache}. The
+ * results aren't kept here: they're part of the identities kept by the
+ * {@link AuthenticationCache}.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class WebidVerifier {
+    private static final Log LOGGER = LogFactory.getLog(WebidVerifier.class);
+
+    static final String CERT_IDENTITY = WebidModule.CERT_NS + "identity";
+    static final String CERT_KEY = WebidModule.CERT_NS + "key";
+    private static final String CERT_HEX = WebidModule.CERT_NS + "hex";
+    private static final String CERT_DECIMAL = WebidModule.CERT_NS
+            + "decimal";
+    static final String[] MODULUS_PREDICATES = {
+            WebidModule.RSA_NS + "modulus", WebidModule.CERT_NS + "modulus" };
+    static final String[] EXPONENT_PREDICATES = {
+            WebidModule.RSA_NS + "public_exponent",
+            WebidModule.CERT_NS + "exponent" };
+    static final String[] EC_X_PREDICATES = { WebidModule.FOAFSSLMANCHESTER_NS
+            + "x" };
+    static final String[] EC_Y_PREDICATES = { WebidModule.FOAFSSLMANCHESTER_NS
+            + "y" };
+    static final String EC_CURVE = WebidModule.FOAFSSLMANCHESTER_NS
+            + "curve";
+
+    private static final int SUBJECT_ALT_NAME_URI = 6;
+
+    private final RdfDocumentStore rdfDocumentStore;
+    private final ProfileFetchCache profileFetchCache;
+    private volatile PublicKeyIndex publicKeyIndex;
+
+    /**
+     * @param rdfDocumentStore
+     *            store of the local profiles.
+     * @param profileFetchCache
+     *            cache through which remote profiles are fetched (if null,
+     *            only local profiles are verified).
+     */
+    public WebidVerifier(RdfDocumentStore rdfDocumentStore,
+            ProfileFetchCache profileFetchCache) {
+        this.rdfDocumentStore = rdfDocumentStore;
+        this.profileFetchCache = profileFetchCache;
+    }
+
+    public ProfileFetchCache getProfileFetchCache() {
+        return this.profileFetchCache;
+    }
+
+    public PublicKeyIndex getPublicKeyIndex() {
+        return this.publicKeyIndex;
+    }
+
+    /**
+     * Sets the index in which the keys of the local profiles are looked up
+     * first (if null, the profiles are always read).
+     * 
+     * @param publicKeyIndex
+     *            index of the keys of the local profiles.
+     */
+    public void setPublicKeyIndex(PublicKeyIndex publicKeyIndex) {
+        this.publicKeyIndex = publicKeyIndex;
+    }
+
+    /**
+     * Returns the WebIDs of a certificate whose profiles describe its public
+     * key.
+     * 
+     * @param session
+     *            Hibernate session from which to read the local profiles.
+     * @param certificate
+     *            client certificate.
+     * @return the verified WebIDs (possibly empty).
+     */
+    public List<String> verify(Session session, X509Certificate certificate) {
+        try {
+            certificate.checkValidity();
+        } catch (CertificateException e) {
+            return Collections.emptyList();
+        }
+
+        Set<String> indexedWebids = getIndexedWebids(session, certificate
+                .getPublicKey());
+        List<String> webids = new ArrayList<String>();
+        for (String webid : getSubjectAltNameUris(certificate)) {
+            if (indexedWebids.contains(webid)) {
+                webids.add(webid);
+                continue;
+            }
+            /*
+             * Remote profiles, and local documents that haven't been written
+             * since there is an index, are loaded and searched.
+             */
+            List<Statement> statements = getProfile(session, webid);
+            if ((statements != null)
+                    && matchesKey(statements, webid, certificate
+                            .getPublicKey())) {
+                webids.add(webid);
+            }
+        }
+        return webids;
+    }
+
+    /**
+     * Finds the WebIDs identified by a public key in the
+     * {@link PublicKeyIndex} of the local profiles. A WebID is only accepted
+     * if the key is described in its own profile document (records written
+     * before the index was restricted to these may name other WebIDs).
+     * 
+     * @return the WebIDs (empty if there is no index).
+     */
+    private Set<String> getIndexedWebids(Session session, PublicKey publicKey) {
+        PublicKeyIndex publicKeyIndex = this.publicKeyIndex;
+        if ((session == null) || (publicKeyIndex == null)) {
+            return Collections.emptySet();
+        }
+        try {
+            Set<String> webids = new HashSet<String>();
+            for (PublicKeyRecord record : publicKeyIndex.findRecords(session,
+                    publicKey)) {
+                if (record.getDocumentId().equals(
+                        getDocumentUri(record.getWebid()))) {
+                    webids.add(record.getWebid());
+                }
+            }
+            return webids;
+        } catch (HibernateException e) {
+            LOGGER.warn("Unable to query the index of the public keys.", e);
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * Returns the statements of the profile document of a WebID, from the
+     * store if it's local, otherwise from the {@link ProfileFetchCache}.
+     * 
+     * @return the statements, or null if they're not available.
+     */
+    private List<Statement> getProfile(Session session, String webid) {
+        String documentUri = getDocumentUri(webid);
+        try {
+            List<Statement> statements = null;
+            if (session != null) {
+                statements = this.rdfDocumentStore.getStatements(session,
+                        documentUri);
+            }
+            if ((statements == null) && (this.profileFetchCache != null)) {
+                statements = this.profileFetchCache.getStatements(documentUri);
+            }
+            return statements;
+        } catch (IOException e) {
+            LOGGER.debug(String.format("Unable to verify %s: %s", webid, e));
+        } catch (RDFParseException e) {
+            LOGGER.warn(String.format("Unable to parse the profile of %s.",
+                    webid), e);
+        }
+        return null;
+    }
+
+    /**
+     * @param webid
+     *            WebID.
+     * @return the URI of the profile document of the WebID (without
+     *         fragment).
+     */
+    public static String getDocumentUri(String webid) {
+        int fragmentStart = webid.indexOf('#');
+        return (fragmentStart >= 0) ? webid.substring(0, fragmentStart)
+                : webid;
+    }
+
+    /**
+     * @param certificate
+     *            certificate.
+     * @return the hexadecimal SHA-256 fingerprint of the certificate.
+     * @throws CertificateEncodingException
+     */
+    public static String fingerprint(X509Certificate certificate)
+            throws CertificateEncodingException {
+        return RdfDocumentContainer.sha256Hex(certificate.getEncoded());
+    }
+
+    /**
+     * @param certificate
+     *            certificate.
+     * @return the URIs in the subject alternative name of the certificate.
+     */
+    public static List<String> getSubjectAltNameUris(
+            X509Certificate certificate) {
+        List<String> uris = new ArrayList<String>();
+        try {
+            Collection<List<?>> names = certificate
+                    .getSubjectAlternativeNames();
+            if (names != null) {
+                for (List<?> name : names) {
+                    if ((name.size() >= 2)
+                            && Integer.valueOf(SUBJECT_ALT_NAME_URI).equals(
+                                    name.get(0))) {
+                        uris.add(name.get(1).toString());
+                    }
+                }
+            }
+        } catch (CertificateParsingException e) {
+            LOGGER.debug("Unable to parse the subject alternative names.", e);
+        }
+        return uris;
+    }
+
+    /**
+     * Checks whether a profile describes a public key as a key of a WebID:
+     * the key is the subject of a cert:identity statement whose object is
+     * the WebID (or the object of a cert:key statement whose subject is the
+     * WebID). The numbers may be literals or nodes with a cert:hex or
+     * cert:decimal value. An EC key must be on a named curve, the same as
+     * the one described: a point alone could be presented with other
+     * parameters.
+     * 
+     * @param statements
+     *            statements of the profile document.
+     * @param webid
+     *            WebID.
+     * @param publicKey
+     *            public key of the certificate.
+     * @return true if the key is described.
+     */
+    public static boolean matchesKey(List<Statement> statements,
+            String webid, PublicKey publicKey) {
+        return !findKeys(statements, webid, publicKey).isEmpty();
+    }
+
+    /**
+     * Finds the nodes describing a public key as a key of a WebID (see
+     * {@link #matchesKey(List, String, PublicKey)}).
+     * 
+     * @param statements
+     *            statements of the profile document.
+     * @param webid
+     *            WebID.
+     * @param publicKey
+     *            public key.
+     * @return the key nodes (empty if the key isn't described).
+     */
+    public static List<Resource> findKeys(List<Statement> statements,
+            String webid, PublicKey publicKey) {
+        List<Resource> matchingKeys = new ArrayList<Resource>();
+        List<Resource> keys = new ArrayList<Resource>();
+        for (Statement statement : statements) {
+            String predicate = statement.getPredicate().toString();
+            if (CERT_IDENTITY.equals(predicate)
+                    && webid.equals(statement.getObject().toString())) {
+                keys.add(statement.getSubject());
+            } else if (CERT_KEY.equals(predicate)
+                    && webid.equals(statement.getSubject().toString())
+                    && (statement.getObject() instanceof Resource)) {
+                keys.add((Resource) statement.getObject());
+            }
+        }
+
+        String curveOid = null;
+        if (publicKey instanceof ECPublicKey) {
+            curveOid = getCurveOid((ECPublicKey) publicKey);
+        }
+        for (Resource key : keys) {
+            if (publicKey instanceof RSAPublicKey) {
+                RSAPublicKey rsaPublicKey = (RSAPublicKey) publicKey;
+                if (rsaPublicKey.getModulus().equals(
+                        getNumber(statements, key, MODULUS_PREDICATES, true))
+                        && rsaPublicKey.getPublicExponent().equals(
+                                getNumber(statements, key,
+                                        EXPONENT_PREDICATES, false))) {
+                    matchingKeys.add(key);
+                }
+            } else if ((publicKey instanceof ECPublicKey)
+                    && (curveOid != null)) {
+                ECPublicKey ecPublicKey = (ECPublicKey) publicKey;
+                if (curveOid.equals(getCurveOid(statements, key))
+                        && ecPublicKey.getW().getAffineX().equals(
+                        getNumber(statements, key, EC_X_PREDICATES, true))
+                        && ecPublicKey.getW().getAffineY().equals(
+                                getNumber(statements, key, EC_Y_PREDICATES,
+                                        true))) {
+                    matchingKeys.add(key);
+                }
+            }
+        }
+        return matchingKeys;
+    }
+
+    /**
+     * Finds the number that is the value of one of the predicates for a
+     * subject: either a literal, or a node whose cert:hex or cert:decimal
+     * value is the number.
+     * 
+     * @return the number, or null if there is none (or it isn't valid).
+     */
+    static BigInteger getNumber(List<Statement> statements,
+            Resource subject, String[] predicates, boolean hexByDefault) {
+        for (Statement statement : statements) {
+            if (!subject.equals(statement.getSubject())
+                    || !contains(predicates, statement.getPredicate()
+                            .toString())) {
+                continue;
+            }
+            Value value = statement.getObject();
+            if (value instanceof Literal) {
+                Literal literal = (Literal) value;
+                boolean hex = hexByDefault;
+                if (literal.getDatatype() != null) {
+                    String datatype = literal.getDatatype().toString();
+                    hex = datatype.endsWith("hexBinary")
+                            || datatype.equals(CERT_HEX);
+                }
+                return parseNumber(literal.getLabel(), hex);
+            }
+            for (Statement numberStatement : statements) {
+                if (value.equals(numberStatement.getSubject())
+                        && (numberStatement.getObject() instanceof Literal)) {
+                    String predicate = numberStatement.getPredicate()
+                            .toString();
+                    if (CERT_HEX.equals(predicate)) {
+                        return parseNumber(numberStatement.getObject()
+                                .stringValue(), true);
+                    } else if (CERT_DECIMAL.equals(predicate)) {
+                        return parseNumber(numberStatement.getObject()
+                                .stringValue(), false);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param publicKey
+     *            EC public key.
+     * @return the OID of the named curve of the key, read from its encoding
+     *         (so that it doesn't depend on the provider), or null if its
+     *         parameters are explicit.
+     */
+    public static String getCurveOid(ECPublicKey publicKey) {
+        byte[] encoded = publicKey.getEncoded();
+        if (encoded == null) {
+            return null;
+        }
+        try {
+            DEREncodable parameters = SubjectPublicKeyInfo.getInstance(
+                    new ASN1InputStream(encoded).readObject())
+                    .getAlgorithmId().getParameters();
+            if (parameters instanceof DERObjectIdentifier) {
+                return ((DERObjectIdentifier) parameters).getId();
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Unable to parse the encoded EC key.", e);
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("Unable to parse the encoded EC key.", e);
+        }
+        return null;
+    }
+
+    /**
+     * @param curve
+     *            name of a curve (X9.62, SEC, NIST or TeleTrusT) or its OID.
+     * @return the OID of the curve, or null if it's unknown.
+     */
+    public static String getCurveOid(String curve) {
+        String name = curve.trim();
+        if (name.matches("[0-9]+(\\.[0-9]+)+")) {
+            return name;
+        }
+        String lowerCaseName = name.toLowerCase(Locale.ENGLISH);
+        DERObjectIdentifier oid = X962NamedCurves.getOID(lowerCaseName);
+        if (oid == null) {
+            oid = SECNamedCurves.getOID(lowerCaseName);
+        }
+        if (oid == null) {
+            oid = NISTNamedCurves.getOID(name);
+        }
+        if (oid == null) {
+            oid = TeleTrusTNamedCurves.getOID(lowerCaseName);
+        }
+        return (oid != null) ? oid.getId() : null;
+    }
+
+    /**
+     * @return the OID of the curve described for a key node, or null if
+     *         there is none (or it's unknown).
+     */
+    static String getCurveOid(List<Statement> statements, Resource key) {
+        for (Statement statement : statements) {
+            if (key.equals(statement.getSubject())
+                    && EC_CURVE.equals(statement.getPredicate().toString())
+                    && (statement.getObject() instanceof Literal)) {
+                return getCurveOid(statement.getObject().stringValue());
+            }
+        }
+        return null;
+    }
+
+    private static boolean contains(String[] values, String value) {
+        for (String v : values) {
+            if (v.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static BigInteger parseNumber(String label, boolean hex) {
+        StringBuilder digits = new StringBuilder(label.length());
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            if (!Character.isWhitespace(c) && (c != ':')) {
+                digits.append(c);
+            }
+        }
+        try {
+            return new BigInteger(digits.toString(), hex ? 16 : 10);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[remote=%s]", getClass().getSimpleName(),
+                this.profileFetchCache);
+    }
+}
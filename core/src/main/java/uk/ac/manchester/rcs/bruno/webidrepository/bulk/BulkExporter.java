@@ -0,0 +1,347 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.bulk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.Rio;
+
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentDelta;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfGraphCache;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer.SerialisationFormat;
+
+/**
+ * Exports the documents of the RDF_DOCUMENTS table (see
+ * {@link RdfDocumentContainer}), including their deltas, using plain JDBC.
+ * The rows are read sequentially, converted in parallel and written in the
+ * order of their URIs.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class BulkExporter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String SELECT_SQL = "SELECT ID, RDFDATA, RDFCONTENT, "
+            + "RDFFORMAT, VERSION, SNAPSHOTVERSION, LASTMODIFIED "
+            + "FROM RDF_DOCUMENTS ORDER BY ID";
+    private static final String SELECT_DELTAS_SQL = "SELECT VERSION, RDFDATA, RDFFORMAT "
+            + "FROM RDF_DOCUMENT_DELTAS WHERE DOCUMENTID = ? AND VERSION > ? "
+            + "ORDER BY VERSION";
+
+    private final Connection connection;
+    private final int fetchSize;
+    private final int threads;
+    private final PrintStream out;
+
+    /**
+     * @param connection
+     *            connection to the database (auto-commit is disabled, so that
+     *            the rows can be streamed).
+     * @param fetchSize
+     *            number of rows fetched at a time.
+     * @param threads
+     *            number of threads converting the documents.
+     * @param out
+     *            stream to which the progress is reported.
+     */
+    public BulkExporter(Connection connection, int fetchSize, int threads,
+            PrintStream out) {
+        this.connection = connection;
+        this.fetchSize = fetchSize;
+        this.threads = threads;
+        this.out = out;
+    }
+
+    /**
+     * Exports all the documents as N-Quads, the graph label of each quad
+     * being the URI of its document.
+     * 
+     * @param writer
+     *            writer to which to write the quads (flushed, not closed).
+     * @return the number of documents that couldn't be exported.
+     * @throws IOException
+     * @throws SQLException
+     */
+    public long exportNQuads(final Writer writer) throws IOException,
+            SQLException {
+        long failures = export(new DocumentSink() {
+            public ExportedDocument convert(RdfDocumentContainer container,
+                    List<RdfDocumentDelta> deltas) throws Exception {
+                StringWriter ntriples = new StringWriter();
+                write(readStatements(container, deltas), Rio.createWriter(
+                        RDFFormat.NTRIPLES, ntriples));
+                StringWriter quads = new StringWriter();
+                NQuadsDocumentReader.writeQuads(container.getId(), ntriples
+                        .toString(), quads);
+                return new ExportedDocument(null, quads.toString()
+                        .getBytes(UTF8), 0L);
+            }
+
+            public void write(ExportedDocument document) throws IOException {
+                writer.write(new String(document.content, UTF8));
+            }
+        });
+        writer.flush();
+        return failures;
+    }
+
+    /**
+     * Exports all the documents as a tar archive, with one entry per
+     * document (see {@link DocumentEntries}). Documents without delta are
+     * written as they are stored, the others are written in the format of
+     * their snapshot.
+     * 
+     * @param outputStream
+     *            stream to which to write the archive (flushed, not closed).
+     * @return the number of documents that couldn't be exported.
+     * @throws IOException
+     * @throws SQLException
+     */
+    public long exportTar(OutputStream outputStream) throws IOException,
+            SQLException {
+        final TarArchive.Writer tarWriter = new TarArchive.Writer(
+                outputStream);
+        long failures = export(new DocumentSink() {
+            public ExportedDocument convert(RdfDocumentContainer container,
+                    List<RdfDocumentDelta> deltas) throws Exception {
+                SerialisationFormat format = container
+                        .getSerialisationFormat();
+                String name = DocumentEntries.getEntryName(container.getId(),
+                        format);
+                if (name == null) {
+                    throw new IOException("Not a hierarchical URI.");
+                }
+                byte[] content;
+                if (deltas.isEmpty() && (container.getRdfData() != null)) {
+                    content = container.getRdfData();
+                } else if (deltas.isEmpty()
+                        && (container.getRdfContent() != null)) {
+                    content = container.getRdfContent().getBytes(UTF8);
+                } else {
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    write(readStatements(container, deltas), Rio.createWriter(
+                            format.getRdfFormat(), data));
+                    content = data.toByteArray();
+                }
+                long lastModified = (container.getLastModified() != null) ? container
+                        .getLastModified().getTime()
+                        : System.currentTimeMillis();
+                return new ExportedDocument(name, content, lastModified);
+            }
+
+            public void write(ExportedDocument document) throws IOException {
+                tarWriter.writeEntry(document.name, document.content,
+                        document.lastModified);
+            }
+        });
+        tarWriter.finish();
+        return failures;
+    }
+
+    private interface DocumentSink {
+        /**
+         * Converts a document (called in parallel).
+         */
+        ExportedDocument convert(RdfDocumentContainer container,
+                List<RdfDocumentDelta> deltas) throws Exception;
+
+        /**
+         * Writes a converted document (called in order, from the thread
+         * reading the rows).
+         */
+        void write(ExportedDocument document) throws IOException;
+    }
+
+    private static class ExportedDocument {
+        private final String name;
+        private final byte[] content;
+        private final long lastModified;
+
+        private ExportedDocument(String name, byte[] content,
+                long lastModified) {
+            this.name = name;
+            this.content = content;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private long export(final DocumentSink sink) throws IOException,
+            SQLException {
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+        LinkedList<Future<ExportedDocument>> pending = new LinkedList<Future<ExportedDocument>>();
+        LinkedList<String> pendingIds = new LinkedList<String>();
+        ThroughputReporter reporter = new ThroughputReporter("export",
+                this.out);
+        this.connection.setAutoCommit(false);
+        PreparedStatement select = this.connection.prepareStatement(
+                SELECT_SQL, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+        PreparedStatement selectDeltas = this.connection
+                .prepareStatement(SELECT_DELTAS_SQL);
+        try {
+            select.setFetchSize(this.fetchSize);
+            ResultSet rows = select.executeQuery();
+            try {
+                while (rows.next()) {
+                    final RdfDocumentContainer container = readContainer(rows);
+                    final List<RdfDocumentDelta> deltas = readDeltas(
+                            selectDeltas, container);
+                    pending.add(executor.submit(new Callable<ExportedDocument>() {
+                        public ExportedDocument call() throws Exception {
+                            return sink.convert(container, deltas);
+                        }
+                    }));
+                    pendingIds.add(container.getId());
+                    while (pending.size() > 4 * this.threads) {
+                        collect(pending.removeFirst(), pendingIds
+                                .removeFirst(), sink, reporter);
+                    }
+                }
+            } finally {
+                rows.close();
+            }
+            while (!pending.isEmpty()) {
+                collect(pending.removeFirst(), pendingIds.removeFirst(), sink,
+                        reporter);
+            }
+            this.connection.commit();
+        } finally {
+            selectDeltas.close();
+            select.close();
+            executor.shutdownNow();
+            reporter.finish();
+        }
+        return reporter.getFailures();
+    }
+
+    private static void collect(Future<ExportedDocument> future, String id,
+            DocumentSink sink, ThroughputReporter reporter) throws IOException {
+        try {
+            sink.write(future.get());
+            reporter.rowsDone(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            reporter.failed(id, e.getCause());
+        }
+    }
+
+    private static RdfDocumentContainer readContainer(ResultSet rows)
+            throws SQLException {
+        RdfDocumentContainer container = new RdfDocumentContainer();
+        container.setId(rows.getString("ID"));
+        container.setRdfData(rows.getBytes("RDFDATA"));
+        container.setRdfContent(rows.getString("RDFCONTENT"));
+        container.setRdfFormat(rows.getString("RDFFORMAT"));
+        long version = rows.getLong("VERSION");
+        container.setVersion(rows.wasNull() ? null : Long.valueOf(version));
+        long snapshotVersion = rows.getLong("SNAPSHOTVERSION");
+        container.setSnapshotVersion(rows.wasNull() ? null : Long
+                .valueOf(snapshotVersion));
+        Timestamp lastModified = rows.getTimestamp("LASTMODIFIED");
+        container.setLastModified(lastModified);
+        return container;
+    }
+
+    private static List<RdfDocumentDelta> readDeltas(
+            PreparedStatement selectDeltas, RdfDocumentContainer container)
+            throws SQLException {
+        List<RdfDocumentDelta> deltas = new ArrayList<RdfDocumentDelta>();
+        if (!container.hasDeltas()) {
+            return deltas;
+        }
+        selectDeltas.setString(1, container.getId());
+        selectDeltas.setLong(2, container.getSnapshotVersion().longValue());
+        ResultSet rows = selectDeltas.executeQuery();
+        try {
+            while (rows.next()) {
+                RdfDocumentDelta delta = new RdfDocumentDelta();
+                delta.setDocumentId(container.getId());
+                delta.setVersion(rows.getLong("VERSION"));
+                delta.setRdfData(rows.getBytes("RDFDATA"));
+                delta.setRdfFormat(rows.getString("RDFFORMAT"));
+                deltas.add(delta);
+            }
+        } finally {
+            rows.close();
+        }
+        return deltas;
+    }
+
+    private static List<Statement> readStatements(
+            RdfDocumentContainer container, List<RdfDocumentDelta> deltas)
+            throws RDFParseException, IOException {
+        List<Statement> statements = container.hasContent() ? RdfGraphCache
+                .parse(container) : new ArrayList<Statement>();
+        for (RdfDocumentDelta delta : deltas) {
+            RdfGraphCache.parse(delta, statements);
+        }
+        return statements;
+    }
+
+    private static void write(List<Statement> statements, RDFWriter writer)
+            throws RDFHandlerException {
+        writer.startRDF();
+        for (Statement statement : statements) {
+            writer.handleStatement(statement);
+        }
+        writer.endRDF();
+    }
+}
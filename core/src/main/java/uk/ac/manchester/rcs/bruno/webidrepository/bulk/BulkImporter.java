@@ -0,0 +1,501 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.bulk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.StatementCollector;
+
+import uk.ac.manchester.rcs.bruno.webidrepository.ProfileNameIndex;
+import uk.ac.manchester.rcs.bruno.webidrepository.ProfileNameRecord;
+import uk.ac.manchester.rcs.bruno.webidrepository.PublicKeyIndex;
+import uk.ac.manchester.rcs.bruno.webidrepository.PublicKeyRecord;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer;
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer.SerialisationFormat;
+
+/**
+ * Imports documents into the RDF_DOCUMENTS table (see
+ * {@link RdfDocumentContainer}) using batched JDBC statements, bypassing
+ * Hibernate. The documents are read sequentially, parsed (and converted to
+ * the storage format if needed) in parallel, and written in the order in
+ * which they were read, one transaction per batch.
+ * 
+ * Only the tables are written (the documents, the PUBLIC_KEYS index of
+ * their keys and the PROFILE_NAMES index of their names, see
+ * {@link PublicKeyIndex} and {@link ProfileNameIndex}): nodes running
+ * against the same database pick up the new versions of the documents they
+ * have already loaded, in either storage mode, since the version of a
+ * replaced document is incremented.
+ * 
+ * A document that appears more than once in the same batch is only imported
+ * once: its other occurrences are reported as failures.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class BulkImporter {
+    private static final String INSERT_SQL = "INSERT INTO RDF_DOCUMENTS "
+            + "(ID, RDFDATA, RDFFORMAT, VERSION, CONTENTHASH, LASTMODIFIED) "
+            + "VALUES (?, ?, ?, 1, ?, ?)";
+    private static final String UPDATE_SQL = "UPDATE RDF_DOCUMENTS "
+            + "SET RDFDATA = ?, RDFFORMAT = ?, RDFCONTENT = NULL, "
+            + "VERSION = COALESCE(VERSION, 0) + 1, SNAPSHOTVERSION = NULL, "
+            + "CONTENTHASH = ?, LASTMODIFIED = ? WHERE ID = ?";
+    private static final String DELETE_DELTAS_SQL = "DELETE FROM RDF_DOCUMENT_DELTAS "
+            + "WHERE DOCUMENTID = ?";
+    private static final String DELETE_KEYS_SQL = "DELETE FROM PUBLIC_KEYS "
+            + "WHERE DOCUMENTID = ?";
+    private static final String INSERT_KEY_SQL = "INSERT INTO PUBLIC_KEYS "
+            + "(ID, KEYHASH, DOCUMENTID, WEBID) VALUES (?, ?, ?, ?)";
+    private static final String DELETE_NAMES_SQL = "DELETE FROM PROFILE_NAMES "
+            + "WHERE DOCUMENTID = ?";
+    private static final String INSERT_NAME_SQL = "INSERT INTO PROFILE_NAMES "
+            + "(ID, TERM, DOCUMENTID, WEBID, LABEL) VALUES (?, ?, ?, ?, ?)";
+
+    private final Connection connection;
+    private final SerialisationFormat storageFormat;
+    private final int batchSize;
+    private final int threads;
+    private final boolean replace;
+    private final PrintStream out;
+    private final ProfileNameIndex profileNameIndex = new ProfileNameIndex();
+
+    private ExecutorService executor;
+    private LinkedList<Future<PreparedDocument>> pending;
+    private List<PreparedDocument> batch;
+    private Set<String> batchIds;
+    private ThroughputReporter reporter;
+
+    /**
+     * @param connection
+     *            connection to the database (auto-commit is disabled).
+     * @param storageFormat
+     *            format in which the documents are stored.
+     * @param batchSize
+     *            number of documents per batch (and per transaction).
+     * @param threads
+     *            number of threads parsing the documents.
+     * @param replace
+     *            whether to replace existing documents (otherwise, the batch
+     *            containing an existing document fails).
+     * @param out
+     *            stream to which the progress is reported.
+     */
+    public BulkImporter(Connection connection,
+            SerialisationFormat storageFormat, int batchSize, int threads,
+            boolean replace, PrintStream out) {
+        this.connection = connection;
+        this.storageFormat = storageFormat;
+        this.batchSize = batchSize;
+        this.threads = threads;
+        this.replace = replace;
+        this.out = out;
+    }
+
+    /**
+     * Imports an N-Quads stream, in which the graph label of each quad is
+     * the URI of its document (see {@link NQuadsDocumentReader}).
+     * 
+     * @param reader
+     *            N-Quads stream.
+     * @return the number of documents that couldn't be imported.
+     * @throws IOException
+     * @throws SQLException
+     */
+    public long importNQuads(Reader reader) throws IOException, SQLException {
+        NQuadsDocumentReader documentReader = new NQuadsDocumentReader(reader);
+        start("import");
+        try {
+            NQuadsDocumentReader.Document document;
+            while ((document = documentReader.readDocument()) != null) {
+                submit(document.getId(), document.getNTriples(),
+                        SerialisationFormat.NTRIPLES);
+            }
+            drain();
+        } finally {
+            stop();
+        }
+        return this.reporter.getFailures();
+    }
+
+    /**
+     * Imports a tar archive of documents, as written by
+     * {@link BulkExporter#exportTar(java.io.OutputStream)}. Entries whose
+     * names don't map to a document are skipped.
+     * 
+     * @param inputStream
+     *            tar archive.
+     * @return the number of documents that couldn't be imported.
+     * @throws IOException
+     * @throws SQLException
+     */
+    public long importTar(InputStream inputStream) throws IOException,
+            SQLException {
+        TarArchive.Reader tarReader = new TarArchive.Reader(inputStream);
+        start("import");
+        try {
+            TarArchive.Entry entry;
+            while ((entry = tarReader.readEntry()) != null) {
+                SerialisationFormat format = DocumentEntries
+                        .getFormat(entry.getName());
+                String id = DocumentEntries.getDocumentId(entry.getName());
+                if ((format == null) || (id == null)) {
+                    this.out.println("import: skipping entry "
+                            + entry.getName());
+                    continue;
+                }
+                submit(id, entry.getContent(), format);
+            }
+            drain();
+        } finally {
+            stop();
+        }
+        return this.reporter.getFailures();
+    }
+
+    private void start(String operation) {
+        this.executor = Executors.newFixedThreadPool(this.threads);
+        this.pending = new LinkedList<Future<PreparedDocument>>();
+        this.batch = new ArrayList<PreparedDocument>(this.batchSize);
+        this.batchIds = new HashSet<String>();
+        this.reporter = new ThroughputReporter(operation, this.out);
+    }
+
+    private void stop() {
+        this.executor.shutdownNow();
+        this.reporter.finish();
+    }
+
+    /**
+     * Submits a document to be parsed, collecting the parsed documents
+     * submitted earlier so that no more than a few per thread are pending.
+     */
+    private void submit(final String id, final byte[] content,
+            final SerialisationFormat format) throws SQLException {
+        this.pending.add(this.executor.submit(new Callable<PreparedDocument>() {
+            public PreparedDocument call() {
+                return prepare(id, content, format);
+            }
+        }));
+        while (this.pending.size() > 4 * this.threads) {
+            collect(this.pending.removeFirst());
+        }
+    }
+
+    private void drain() throws SQLException {
+        while (!this.pending.isEmpty()) {
+            collect(this.pending.removeFirst());
+        }
+        flush();
+    }
+
+    private void collect(Future<PreparedDocument> future) throws SQLException {
+        try {
+            PreparedDocument document = future.get();
+            if (document.failure != null) {
+                this.reporter.failed(document.id, document.failure);
+            } else if (!this.batchIds.add(document.id)) {
+                /*
+                 * Inserting or updating it twice in the same batch would
+                 * fail (or roll back) the whole batch.
+                 */
+                this.reporter.failed(document.id,
+                        new IllegalArgumentException(
+                                "Document repeated in the same batch."));
+            } else {
+                this.batch.add(document);
+                if (this.batch.size() >= this.batchSize) {
+                    flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Writes the current batch in a single transaction.
+     */
+    private void flush() throws SQLException {
+        if (this.batch.isEmpty()) {
+            return;
+        }
+        this.connection.setAutoCommit(false);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        try {
+            List<PreparedDocument> inserts = this.batch;
+            if (this.replace) {
+                inserts = update(now);
+            }
+            if (!inserts.isEmpty()) {
+                PreparedStatement insert = this.connection
+                        .prepareStatement(INSERT_SQL);
+                try {
+                    for (PreparedDocument document : inserts) {
+                        insert.setString(1, document.id);
+                        insert.setBytes(2, document.data);
+                        insert.setString(3, this.storageFormat.name());
+                        insert.setString(4, document.contentHash);
+                        insert.setTimestamp(5, now);
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                } finally {
+                    insert.close();
+                }
+            }
+            insertIndexes();
+            this.connection.commit();
+        } catch (SQLException e) {
+            this.connection.rollback();
+            throw e;
+        }
+
+        this.reporter.rowsDone(this.batch.size());
+        this.batch.clear();
+        this.batchIds.clear();
+    }
+
+    /**
+     * Inserts the indexes of the keys and names of the documents of the
+     * current batch (the indexes of the documents replaced have been deleted
+     * by {@link #update(Timestamp)}).
+     */
+    private void insertIndexes() throws SQLException {
+        PreparedStatement insertKey = this.connection
+                .prepareStatement(INSERT_KEY_SQL);
+        try {
+            boolean empty = true;
+            for (PreparedDocument document : this.batch) {
+                for (PublicKeyRecord record : document.keys) {
+                    insertKey.setString(1, record.getId());
+                    insertKey.setString(2, record.getKeyHash());
+                    insertKey.setString(3, record.getDocumentId());
+                    insertKey.setString(4, record.getWebid());
+                    insertKey.addBatch();
+                    empty = false;
+                }
+            }
+            if (!empty) {
+                insertKey.executeBatch();
+            }
+        } finally {
+            insertKey.close();
+        }
+
+        PreparedStatement insertName = this.connection
+                .prepareStatement(INSERT_NAME_SQL);
+        try {
+            boolean empty = true;
+            for (PreparedDocument document : this.batch) {
+                for (ProfileNameRecord record : document.names) {
+                    insertName.setString(1, record.getId());
+                    insertName.setString(2, record.getTerm());
+                    insertName.setString(3, record.getDocumentId());
+                    insertName.setString(4, record.getWebid());
+                    insertName.setString(5, record.getLabel());
+                    insertName.addBatch();
+                    empty = false;
+                }
+            }
+            if (!empty) {
+                insertName.executeBatch();
+            }
+        } finally {
+            insertName.close();
+        }
+    }
+
+    /**
+     * Updates the documents of the current batch that already exist and
+     * deletes their deltas and their indexes.
+     * 
+     * @return the documents that don't exist yet.
+     */
+    private List<PreparedDocument> update(Timestamp now) throws SQLException {
+        PreparedStatement deleteDeltas = this.connection
+                .prepareStatement(DELETE_DELTAS_SQL);
+        try {
+            for (PreparedDocument document : this.batch) {
+                deleteDeltas.setString(1, document.id);
+                deleteDeltas.addBatch();
+            }
+            deleteDeltas.executeBatch();
+        } finally {
+            deleteDeltas.close();
+        }
+        PreparedStatement deleteKeys = this.connection
+                .prepareStatement(DELETE_KEYS_SQL);
+        try {
+            for (PreparedDocument document : this.batch) {
+                deleteKeys.setString(1, document.id);
+                deleteKeys.addBatch();
+            }
+            deleteKeys.executeBatch();
+        } finally {
+            deleteKeys.close();
+        }
+        PreparedStatement deleteNames = this.connection
+                .prepareStatement(DELETE_NAMES_SQL);
+        try {
+            for (PreparedDocument document : this.batch) {
+                deleteNames.setString(1, document.id);
+                deleteNames.addBatch();
+            }
+            deleteNames.executeBatch();
+        } finally {
+            deleteNames.close();
+        }
+
+        int[] counts;
+        PreparedStatement update = this.connection
+                .prepareStatement(UPDATE_SQL);
+        try {
+            for (PreparedDocument document : this.batch) {
+                update.setBytes(1, document.data);
+                update.setString(2, this.storageFormat.name());
+                update.setString(3, document.contentHash);
+                update.setTimestamp(4, now);
+                update.setString(5, document.id);
+                update.addBatch();
+            }
+            counts = update.executeBatch();
+        } finally {
+            update.close();
+        }
+
+        List<PreparedDocument> inserts = new ArrayList<PreparedDocument>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                inserts.add(this.batch.get(i));
+            } else if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                throw new SQLException(
+                        "The JDBC driver doesn't report the batch update counts.");
+            }
+        }
+        return inserts;
+    }
+
+    /**
+     * Parses a document, converts it to the storage format if needed and
+     * finds the keys and names it describes. Parse errors are returned as the
+     * failure of the document, so that the other documents can still be
+     * imported.
+     */
+    private PreparedDocument prepare(String id, byte[] content,
+            SerialisationFormat format) {
+        PreparedDocument document = new PreparedDocument(id);
+        try {
+            RDFParser parser = Rio.createParser(format.getRdfFormat());
+            StatementCollector collector = new StatementCollector();
+            parser.setRDFHandler(collector);
+            parser.parse(new ByteArrayInputStream(content), id);
+
+            document.data = content;
+            if (format != this.storageFormat) {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream(
+                        content.length);
+                RDFWriter rdfWriter = Rio.createWriter(this.storageFormat
+                        .getRdfFormat(), outputStream);
+                rdfWriter.startRDF();
+                for (Map.Entry<String, String> namespace : collector
+                        .getNamespaces().entrySet()) {
+                    rdfWriter.handleNamespace(namespace.getKey(), namespace
+                            .getValue());
+                }
+                for (org.openrdf.model.Statement statement : collector
+                        .getStatements()) {
+                    rdfWriter.handleStatement(statement);
+                }
+                rdfWriter.endRDF();
+                document.data = outputStream.toByteArray();
+            }
+            List<org.openrdf.model.Statement> statements = new ArrayList<org.openrdf.model.Statement>(
+                    collector.getStatements());
+            document.keys = PublicKeyIndex.extractKeys(id, statements);
+            document.names = this.profileNameIndex.extractNames(id,
+                    statements);
+            document.contentHash = RdfDocumentContainer
+                    .sha256Hex(document.data);
+        } catch (RDFParseException e) {
+            document.failure = e;
+        } catch (RDFHandlerException e) {
+            document.failure = e;
+        } catch (IOException e) {
+            document.failure = e;
+        }
+        return document;
+    }
+
+    private static class PreparedDocument {
+        private final String id;
+        private byte[] data;
+        private String contentHash;
+        private List<PublicKeyRecord> keys;
+        private List<ProfileNameRecord> names;
+        private Exception failure;
+
+        private PreparedDocument(String id) {
+            this.id = id;
+        }
+    }
+}
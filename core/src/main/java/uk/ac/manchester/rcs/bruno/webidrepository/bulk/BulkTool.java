@@ -0,0 +1,196 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.bulk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Locale;
+
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer.SerialisationFormat;
+
+/**
+ * Command-line tool importing documents into (or exporting them from) the
+ * RDF_DOCUMENTS table, as N-Quads or as a tar archive of documents. The
+ * schema must already exist (it's created by Hibernate when the webapp first
+ * starts).
+ * 
+ * <pre>
+ * BulkTool import|export --jdbc-url URL [options] FILE
+ *   --driver CLASS          JDBC driver class to load
+ *   --user USER --password PASSWORD
+ *   --format nquads|tar     (default: tar if FILE ends with .tar)
+ *   --batch-size N          rows per batch/transaction (default: 500)
+ *   --threads N             parsing threads (default: number of CPUs)
+ *   --storage-format F      ntriples, turtle or rdfxml (default: ntriples)
+ *   --replace               replace existing documents when importing
+ * </pre>
+ * 
+ * FILE can be "-" for the standard input or output.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class BulkTool {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static void main(String[] args) throws Exception {
+        String command = null;
+        String file = null;
+        String jdbcUrl = null;
+        String driver = null;
+        String user = null;
+        String password = null;
+        String format = null;
+        int batchSize = 500;
+        int threads = Runtime.getRuntime().availableProcessors();
+        SerialisationFormat storageFormat = SerialisationFormat.NTRIPLES;
+        boolean replace = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if ("--jdbc-url".equals(arg)) {
+                    jdbcUrl = args[++i];
+                } else if ("--driver".equals(arg)) {
+                    driver = args[++i];
+                } else if ("--user".equals(arg)) {
+                    user = args[++i];
+                } else if ("--password".equals(arg)) {
+                    password = args[++i];
+                } else if ("--format".equals(arg)) {
+                    format = args[++i];
+                } else if ("--batch-size".equals(arg)) {
+                    batchSize = Integer.parseInt(args[++i]);
+                } else if ("--threads".equals(arg)) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if ("--storage-format".equals(arg)) {
+                    storageFormat = SerialisationFormat.valueOf(args[++i]
+                            .toUpperCase(Locale.ENGLISH));
+                } else if ("--replace".equals(arg)) {
+                    replace = true;
+                } else if (command == null) {
+                    command = arg;
+                } else if (file == null) {
+                    file = arg;
+                } else {
+                    throw new IllegalArgumentException(arg);
+                }
+            }
+        } catch (RuntimeException e) {
+            usage("Invalid arguments: " + e.getMessage());
+            return;
+        }
+        if ((command == null) || (file == null) || (jdbcUrl == null)
+                || (batchSize < 1) || (threads < 1)) {
+            usage(null);
+            return;
+        }
+        if (format == null) {
+            format = file.endsWith(".tar") ? "tar" : "nquads";
+        }
+        boolean tar = "tar".equals(format);
+        if (!tar && !"nquads".equals(format)) {
+            usage("Unknown format: " + format);
+            return;
+        }
+
+        if (driver != null) {
+            Class.forName(driver);
+        }
+        Connection connection = DriverManager.getConnection(jdbcUrl, user,
+                password);
+        long failures;
+        try {
+            if ("import".equals(command)) {
+                BulkImporter importer = new BulkImporter(connection,
+                        storageFormat, batchSize, threads, replace, System.err);
+                InputStream inputStream = "-".equals(file) ? System.in
+                        : new FileInputStream(file);
+                try {
+                    inputStream = new BufferedInputStream(inputStream);
+                    failures = tar ? importer.importTar(inputStream)
+                            : importer.importNQuads(new InputStreamReader(
+                                    inputStream, UTF8));
+                } finally {
+                    inputStream.close();
+                }
+            } else if ("export".equals(command)) {
+                BulkExporter exporter = new BulkExporter(connection,
+                        batchSize, threads, System.err);
+                OutputStream outputStream = "-".equals(file) ? System.out
+                        : new FileOutputStream(file);
+                try {
+                    outputStream = new BufferedOutputStream(outputStream);
+                    if (tar) {
+                        failures = exporter.exportTar(outputStream);
+                    } else {
+                        Writer writer = new OutputStreamWriter(outputStream,
+                                UTF8);
+                        failures = exporter.exportNQuads(writer);
+                    }
+                } finally {
+                    outputStream.close();
+                }
+            } else {
+                usage("Unknown command: " + command);
+                return;
+            }
+        } finally {
+            connection.close();
+        }
+        System.exit(failures > 0 ? 1 : 0);
+    }
+
+    private static void usage(String message) {
+        if (message != null) {
+            System.err.println(message);
+        }
+        System.err.println("Usage: " + BulkTool.class.getName()
+                + " import|export --jdbc-url URL [--driver CLASS]"
+                + " [--user USER] [--password PASSWORD]"
+                + " [--format nquads|tar] [--batch-size N] [--threads N]"
+                + " [--storage-format ntriples|turtle|rdfxml] [--replace]"
+                + " FILE|-");
+        System.exit(2);
+    }
+}
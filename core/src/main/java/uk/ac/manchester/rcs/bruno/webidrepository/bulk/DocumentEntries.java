@@ -0,0 +1,115 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.bulk;
+
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer.SerialisationFormat;
+
+/**
+ * Maps the URIs of the documents to the names of the entries of a tar
+ * archive: the scheme becomes the first directory, followed by the rest of
+ * the URI, and the suffix gives the format of the entry. For example,
+ * <code>http://example.org/webid/alice</code> stored as Turtle is the entry
+ * <code>http/example.org/webid/alice.ttl</code>.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public final class DocumentEntries {
+    private DocumentEntries() {
+    }
+
+    /**
+     * @param format
+     *            format of the document.
+     * @return the suffix of the entries in this format (without the dot).
+     */
+    public static String getSuffix(SerialisationFormat format) {
+        switch (format) {
+        case NTRIPLES:
+            return "nt";
+        case TURTLE:
+            return "ttl";
+        default:
+            return "rdf";
+        }
+    }
+
+    /**
+     * @param entryName
+     *            name of the entry.
+     * @return the format given by the suffix of the entry name, or null if
+     *         it isn't a known suffix.
+     */
+    public static SerialisationFormat getFormat(String entryName) {
+        String suffix = entryName.substring(entryName.lastIndexOf('.') + 1);
+        for (SerialisationFormat format : SerialisationFormat.values()) {
+            if (getSuffix(format).equals(suffix)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param id
+     *            URI of the document.
+     * @param format
+     *            format of the entry.
+     * @return the name of the entry, or null if the URI isn't hierarchical.
+     */
+    public static String getEntryName(String id, SerialisationFormat format) {
+        int schemeEnd = id.indexOf("://");
+        if (schemeEnd <= 0) {
+            return null;
+        }
+        return id.substring(0, schemeEnd) + "/" + id.substring(schemeEnd + 3)
+                + "." + getSuffix(format);
+    }
+
+    /**
+     * @param entryName
+     *            name of the entry.
+     * @return the URI of the document, or null if the name doesn't map to a
+     *         document.
+     */
+    public static String getDocumentId(String entryName) {
+        int schemeEnd = entryName.indexOf('/');
+        int suffixStart = entryName.lastIndexOf('.');
+        if ((schemeEnd <= 0) || (suffixStart <= schemeEnd + 1)
+                || (suffixStart < entryName.lastIndexOf('/'))) {
+            return null;
+        }
+        return entryName.substring(0, schemeEnd) + "://"
+                + entryName.substring(schemeEnd + 1, suffixStart);
+    }
+}
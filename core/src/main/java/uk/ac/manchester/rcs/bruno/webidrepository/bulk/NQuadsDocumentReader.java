@@ -0,0 +1,264 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.bulk;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads an N-Quads stream as a sequence of documents: the graph label of
+ * each quad is the URI of the document, and each document is returned as
+ * N-Triples. The quads of a document must be contiguous (as written by
+ * {@link #writeQuads(String, String, Writer)}), since the stream is not held
+ * in memory.
+ * 
+ * Sesame doesn't have an N-Quads parser, so this only splits the lines: the
+ * N-Triples documents are parsed afterwards.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class NQuadsDocumentReader {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Document read from the stream.
+     */
+    public static class Document {
+        private final String id;
+        private final byte[] ntriples;
+
+        public Document(String id, byte[] ntriples) {
+            this.id = id;
+            this.ntriples = ntriples;
+        }
+
+        public String getId() {
+            return this.id;
+        }
+
+        /**
+         * @return content of the document (UTF-8 encoded N-Triples).
+         */
+        public byte[] getNTriples() {
+            return this.ntriples;
+        }
+    }
+
+    private final BufferedReader reader;
+    private final Set<String> documentIds = new HashSet<String>();
+    private int lineNumber = 0;
+    private String pendingId;
+    private String pendingLine;
+
+    public NQuadsDocumentReader(Reader reader) {
+        this.reader = (reader instanceof BufferedReader) ? (BufferedReader) reader
+                : new BufferedReader(reader);
+    }
+
+    /**
+     * Reads the next document.
+     * 
+     * @return the next document or null at the end of the stream.
+     * @throws IOException
+     *             if the stream can't be read, if a line isn't a quad whose
+     *             graph is a URI, or if the quads of a document aren't
+     *             contiguous.
+     */
+    public Document readDocument() throws IOException {
+        String id = this.pendingId;
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        if (this.pendingLine != null) {
+            content.write(this.pendingLine.getBytes(UTF8));
+            this.pendingLine = null;
+        }
+
+        String line;
+        while ((line = this.reader.readLine()) != null) {
+            this.lineNumber++;
+            String trimmedLine = line.trim();
+            if ((trimmedLine.length() == 0) || trimmedLine.startsWith("#")) {
+                continue;
+            }
+            String[] quad = splitQuad(trimmedLine);
+            if (quad == null) {
+                throw new IOException(String.format(
+                        "Line %d is not a quad with a URI graph label: %s",
+                        this.lineNumber, line));
+            }
+            if (id == null) {
+                id = startDocument(quad[1]);
+            } else if (!id.equals(quad[1])) {
+                this.pendingId = startDocument(quad[1]);
+                this.pendingLine = quad[0];
+                return new Document(id, content.toByteArray());
+            }
+            content.write(quad[0].getBytes(UTF8));
+        }
+        this.pendingId = null;
+        return (id != null) ? new Document(id, content.toByteArray()) : null;
+    }
+
+    private String startDocument(String id) throws IOException {
+        if (!this.documentIds.add(id)) {
+            throw new IOException(String.format(
+                    "Line %d: the quads of %s are not contiguous.",
+                    this.lineNumber, id));
+        }
+        return id;
+    }
+
+    /**
+     * Splits a quad into a triple (an N-Triples line, with its terminating
+     * dot and new line) and the URI of its graph.
+     * 
+     * @param line
+     *            N-Quads line (trimmed, not a comment).
+     * @return the triple and graph URI, or null if the line isn't a quad with
+     *         a URI graph label.
+     */
+    public static String[] splitQuad(String line) {
+        int pos = 0;
+        for (int i = 0; i < 3; i++) {
+            pos = skipWhitespace(line, pos);
+            pos = skipTerm(line, pos);
+            if (pos < 0) {
+                return null;
+            }
+        }
+        int tripleEnd = pos;
+        pos = skipWhitespace(line, pos);
+        if ((pos >= line.length()) || (line.charAt(pos) != '<')) {
+            return null;
+        }
+        int graphEnd = skipTerm(line, pos);
+        if (graphEnd < 0) {
+            return null;
+        }
+        String graph = line.substring(pos + 1, graphEnd - 1);
+        pos = skipWhitespace(line, graphEnd);
+        if ((pos != line.length() - 1) || (line.charAt(pos) != '.')) {
+            return null;
+        }
+        return new String[] { line.substring(0, tripleEnd) + " .\n", graph };
+    }
+
+    private static int skipWhitespace(String line, int pos) {
+        while ((pos < line.length())
+                && ((line.charAt(pos) == ' ') || (line.charAt(pos) == '\t'))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @return position after the term starting at this position, or -1 if
+     *         there is no valid term.
+     */
+    private static int skipTerm(String line, int pos) {
+        if (pos >= line.length()) {
+            return -1;
+        }
+        char c = line.charAt(pos);
+        if (c == '<') {
+            int end = line.indexOf('>', pos);
+            return (end < 0) ? -1 : end + 1;
+        } else if (c == '_') {
+            int end = pos;
+            while ((end < line.length()) && (line.charAt(end) != ' ')
+                    && (line.charAt(end) != '\t')) {
+                end++;
+            }
+            return end;
+        } else if (c == '"') {
+            int end = pos + 1;
+            while ((end < line.length()) && (line.charAt(end) != '"')) {
+                end += (line.charAt(end) == '\\') ? 2 : 1;
+            }
+            if (end >= line.length()) {
+                return -1;
+            }
+            end++;
+            if ((end < line.length()) && (line.charAt(end) == '@')) {
+                while ((end < line.length()) && (line.charAt(end) != ' ')
+                        && (line.charAt(end) != '\t')) {
+                    end++;
+                }
+            } else if (line.startsWith("^^", end)) {
+                return skipTerm(line, end + 2);
+            }
+            return end;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the statements of a document as quads.
+     * 
+     * @param id
+     *            URI of the document (graph label).
+     * @param ntriples
+     *            content of the document, as N-Triples lines.
+     * @param writer
+     *            writer to which to write the quads.
+     * @throws IOException
+     */
+    public static void writeQuads(String id, String ntriples, Writer writer)
+            throws IOException {
+        String graph = " <" + id + "> .\n";
+        int start = 0;
+        while (start < ntriples.length()) {
+            int end = ntriples.indexOf('\n', start);
+            if (end < 0) {
+                end = ntriples.length();
+            }
+            String line = ntriples.substring(start, end).trim();
+            start = end + 1;
+            if ((line.length() == 0) || line.startsWith("#")) {
+                continue;
+            }
+            if (line.endsWith(".")) {
+                line = line.substring(0, line.length() - 1).trim();
+            }
+            writer.write(line);
+            writer.write(graph);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.bulk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal reader and writer of (ustar) tar archives, sufficient for the
+ * archives of documents read and written by {@link BulkTool}: only regular
+ * files are read (other entries are skipped) and each entry is held in
+ * memory, which is fine for documents the size of a WebID profile.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public final class TarArchive {
+    private static final int BLOCK_SIZE = 512;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private TarArchive() {
+    }
+
+    /**
+     * Entry of the archive.
+     */
+    public static class Entry {
+        private final String name;
+        private final byte[] content;
+
+        public Entry(String name, byte[] content) {
+            this.name = name;
+            this.content = content;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public byte[] getContent() {
+            return this.content;
+        }
+    }
+
+    /**
+     * Reads the regular files of an archive.
+     */
+    public static class Reader {
+        private final InputStream inputStream;
+        private final byte[] header = new byte[BLOCK_SIZE];
+
+        public Reader(InputStream inputStream) {
+            this.inputStream = inputStream;
+        }
+
+        /**
+         * @return the next regular file of the archive, or null at the end of
+         *         the archive.
+         * @throws IOException
+         */
+        public Entry readEntry() throws IOException {
+            while (true) {
+                if (!readBlock(this.header) || isZero(this.header)) {
+                    return null;
+                }
+                long size = parseOctal(this.header, 124, 12);
+                if ((size < 0) || (size > Integer.MAX_VALUE)) {
+                    throw new IOException("Invalid tar entry size.");
+                }
+                byte[] content = new byte[(int) size];
+                readFully(content, content.length);
+                skip(padding(size));
+
+                char type = (char) this.header[156];
+                if ((type == '0') || (type == 0)) {
+                    String name = parseString(this.header, 0, 100);
+                    if (this.header[257] == 'u') {
+                        String prefix = parseString(this.header, 345, 155);
+                        if (prefix.length() > 0) {
+                            name = prefix + "/" + name;
+                        }
+                    }
+                    return new Entry(name, content);
+                }
+            }
+        }
+
+        private boolean readBlock(byte[] block) throws IOException {
+            int read = 0;
+            while (read < block.length) {
+                int n = this.inputStream.read(block, read, block.length
+                        - read);
+                if (n < 0) {
+                    if (read == 0) {
+                        return false;
+                    }
+                    throw new EOFException("Truncated tar header.");
+                }
+                read += n;
+            }
+            return true;
+        }
+
+        private void readFully(byte[] buffer, int length) throws IOException {
+            int read = 0;
+            while (read < length) {
+                int n = this.inputStream.read(buffer, read, length - read);
+                if (n < 0) {
+                    throw new EOFException("Truncated tar entry.");
+                }
+                read += n;
+            }
+        }
+
+        private void skip(int length) throws IOException {
+            readFully(new byte[length], length);
+        }
+    }
+
+    /**
+     * Writes regular files to an archive.
+     */
+    public static class Writer {
+        private final OutputStream outputStream;
+
+        public Writer(OutputStream outputStream) {
+            this.outputStream = outputStream;
+        }
+
+        /**
+         * Writes an entry.
+         * 
+         * @param name
+         *            name of the file (at most 255 bytes once encoded, split
+         *            at a '/' into the prefix and name fields if it's longer
+         *            than 100 bytes).
+         * @param content
+         *            content of the file.
+         * @param lastModified
+         *            modification time, in milliseconds.
+         * @throws IOException
+         */
+        public void writeEntry(String name, byte[] content, long lastModified)
+                throws IOException {
+            byte[] nameBytes = name.getBytes(UTF8);
+            byte[] prefixBytes = new byte[0];
+            if (nameBytes.length > 100) {
+                int split = -1;
+                for (int i = nameBytes.length - 101; i < nameBytes.length
+                        && i <= 155; i++) {
+                    if ((i > 0) && (nameBytes[i] == '/')) {
+                        split = i;
+                        break;
+                    }
+                }
+                if (split < 0) {
+                    throw new IOException("Tar entry name too long: " + name);
+                }
+                prefixBytes = new byte[split];
+                System.arraycopy(nameBytes, 0, prefixBytes, 0, split);
+                byte[] shortName = new byte[nameBytes.length - split - 1];
+                System.arraycopy(nameBytes, split + 1, shortName, 0,
+                        shortName.length);
+                nameBytes = shortName;
+            }
+            byte[] header = new byte[BLOCK_SIZE];
+            System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+            System.arraycopy(prefixBytes, 0, header, 345, prefixBytes.length);
+            writeOctal(header, 100, 8, 0644);
+            writeOctal(header, 108, 8, 0);
+            writeOctal(header, 116, 8, 0);
+            writeOctal(header, 124, 12, content.length);
+            writeOctal(header, 136, 12, lastModified / 1000L);
+            header[156] = '0';
+            System.arraycopy("ustar\u000000".getBytes(UTF8), 0, header, 257,
+                    8);
+            for (int i = 148; i < 156; i++) {
+                header[i] = ' ';
+            }
+            long checksum = 0;
+            for (byte b : header) {
+                checksum += b & 0xFF;
+            }
+            writeOctal(header, 148, 7, checksum);
+
+            this.outputStream.write(header);
+            this.outputStream.write(content);
+            this.outputStream.write(new byte[padding(content.length)]);
+        }
+
+        /**
+         * Writes the end-of-archive marker (two empty blocks) and flushes the
+         * stream, which isn't closed.
+         * 
+         * @throws IOException
+         */
+        public void finish() throws IOException {
+            this.outputStream.write(new byte[2 * BLOCK_SIZE]);
+            this.outputStream.flush();
+        }
+    }
+
+    private static int padding(long size) {
+        return (int) ((BLOCK_SIZE - (size % BLOCK_SIZE)) % BLOCK_SIZE);
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String parseString(byte[] header, int offset, int length) {
+        int end = offset;
+        while ((end < offset + length) && (header[end] != 0)) {
+            end++;
+        }
+        return new String(header, offset, end - offset, UTF8);
+    }
+
+    private static long parseOctal(byte[] header, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if ((b == 0) || ((b == ' ') && (value > 0))) {
+                break;
+            } else if (b == ' ') {
+                continue;
+            } else if ((b < '0') || (b > '7')) {
+                return -1;
+            }
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+
+    private static void writeOctal(byte[] header, int offset, int length,
+            long value) {
+        String octal = Long.toOctalString(value);
+        ByteArrayOutputStream field = new ByteArrayOutputStream(length);
+        for (int i = octal.length(); i < length - 1; i++) {
+            field.write('0');
+        }
+        byte[] digits = octal.getBytes(UTF8);
+        field.write(digits, 0, digits.length);
+        System.arraycopy(field.toByteArray(), 0, header, offset, length - 1);
+        header[offset + length - 1] = 0;
+    }
+}
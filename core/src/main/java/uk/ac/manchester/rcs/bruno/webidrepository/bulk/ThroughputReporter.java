@@ -0,0 +1,93 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.bulk;
+
+import java.io.PrintStream;
+
+/**
+ * Counts the documents (rows) processed by a bulk operation and reports the
+ * throughput periodically and at the end.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+class ThroughputReporter {
+    private static final long REPORT_INTERVAL_NANOS = 10000000000L;
+
+    private final String operation;
+    private final PrintStream out;
+    private final long startTime = System.nanoTime();
+    private long lastReportTime = this.startTime;
+    private long rows = 0;
+    private long failures = 0;
+
+    ThroughputReporter(String operation, PrintStream out) {
+        this.operation = operation;
+        this.out = out;
+    }
+
+    void rowsDone(int count) {
+        this.rows += count;
+        long now = System.nanoTime();
+        if (now - this.lastReportTime >= REPORT_INTERVAL_NANOS) {
+            this.lastReportTime = now;
+            report("progress", now);
+        }
+    }
+
+    void failed(String id, Throwable cause) {
+        this.failures++;
+        this.out.println(String.format("%s: failed for %s: %s",
+                this.operation, id, cause));
+    }
+
+    long getRows() {
+        return this.rows;
+    }
+
+    long getFailures() {
+        return this.failures;
+    }
+
+    void finish() {
+        report("done", System.nanoTime());
+    }
+
+    private void report(String stage, long now) {
+        double seconds = Math.max(now - this.startTime, 1L) / 1e9;
+        this.out.println(String.format(
+                "%s %s: %d rows (%d failures) in %.1f s, %.1f rows/s",
+                this.operation, stage, this.rows, this.failures, seconds,
+                this.rows / seconds));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+
+Copyright (c) 2008-2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+ 
+ */
+package uk.ac.manchester.rcs.bruno.keygenapp.base;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link RevocationIndex} and of the CRL published from it by
+ * the {@link CrlPublisher}.
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class RevocationIndexTest {
+    private static final long DAY = 24L * 60L * 60L * 1000L;
+
+    @Test
+    public void testStatus() {
+        RevocationIndex index = new RevocationIndex();
+        Date now = new Date();
+        Date notAfter = new Date(now.getTime() + DAY);
+        index.recordIssued(BigInteger.valueOf(1), notAfter);
+        index.recordIssued(BigInteger.valueOf(2), notAfter);
+        index.recordIssued(BigInteger.valueOf(3), new Date(now.getTime()
+                - DAY));
+        long modificationCount = index.getModificationCount();
+
+        Assert.assertTrue(index.revoke(BigInteger.valueOf(2), notAfter, now,
+                CRLReason.keyCompromise));
+        Assert.assertFalse(index.revoke(BigInteger.valueOf(2), notAfter,
+                new Date(), CRLReason.superseded));
+        Assert.assertTrue(index.getModificationCount() != modificationCount);
+
+        Assert.assertEquals(RevocationIndex.Status.GOOD, index
+                .getStatus(BigInteger.valueOf(1)));
+        Assert.assertEquals(RevocationIndex.Status.REVOKED, index
+                .getStatus(BigInteger.valueOf(2)));
+        Assert.assertEquals(RevocationIndex.Status.UNKNOWN, index
+                .getStatus(BigInteger.valueOf(4)));
+        Assert.assertEquals(CRLReason.keyCompromise, index.getRevocation(
+                BigInteger.valueOf(2)).getReason());
+
+        /*
+         * A record of the issuance read after the revocation (from another
+         * node) doesn't cancel it.
+         */
+        index.put(BigInteger.valueOf(2), notAfter, null, 0);
+        Assert.assertEquals(RevocationIndex.Status.REVOKED, index
+                .getStatus(BigInteger.valueOf(2)));
+
+        Assert.assertEquals(1, index.prune(now));
+        Assert.assertEquals(RevocationIndex.Status.UNKNOWN, index
+                .getStatus(BigInteger.valueOf(3)));
+        Assert.assertEquals(1, index.getRevocations(now).size());
+        Assert.assertEquals(0, index.getRevocations(
+                new Date(now.getTime() + 2 * DAY)).size());
+    }
+
+    @Test
+    public void testCrl() throws Exception {
+        KeyPair caKeyPair = KeyPairPool.createKeyPairGenerator("RSA", 1024)
+                .generateKeyPair();
+        X509Name caName = new X509Name("CN=Test CA");
+        MiniCaConfiguration configuration = new MiniCaConfiguration();
+        configuration.setCaPrivKey(caKeyPair.getPrivate());
+        configuration.setCaCertificate(MiniCaCertGen.createCert(caKeyPair
+                .getPublic(), caKeyPair.getPrivate(), caKeyPair.getPublic(),
+                caName, caName, null, null, null, BigInteger.ONE));
+        configuration.setIssuerName(caName);
+        RevocationIndex index = configuration.getRevocationIndex();
+
+        KeyPair keyPair = KeyPairPool.createKeyPairGenerator("RSA", 1024)
+                .generateKeyPair();
+        X509Certificate cert = MiniCaCertGen.createCert(caKeyPair
+                .getPublic(), caKeyPair.getPrivate(), keyPair.getPublic(),
+                new X509Name("CN=Test"), caName, null, null,
+                "http://example.org/alice#me", configuration
+                        .nextCertificateSerialNumber());
+        index.recordIssued(cert.getSerialNumber(), cert.getNotAfter());
+
+        CrlPublisher crlPublisher = new CrlPublisher(configuration, index,
+                60000L, DAY);
+        try {
+            crlPublisher.start();
+            X509CRL crl = parse(crlPublisher.getCrl().getDer());
+            crl.verify(caKeyPair.getPublic());
+            Assert.assertFalse(crl.isRevoked(cert));
+            Assert.assertEquals(0, crlPublisher.getCrl().getEntryCount());
+
+            index.revoke(cert.getSerialNumber(), cert.getNotAfter(),
+                    new Date(), CRLReason.keyCompromise);
+            crlPublisher.update();
+            X509CRL newCrl = parse(crlPublisher.getCrl().getDer());
+            newCrl.verify(caKeyPair.getPublic());
+            Assert.assertTrue(newCrl.isRevoked(cert));
+            Assert.assertEquals(1, newCrl.getRevokedCertificates().size());
+            Assert.assertTrue(new String(crlPublisher.getCrl().getPem(),
+                    "US-ASCII").startsWith("-----BEGIN X509 CRL-----"));
+
+            /*
+             * Unchanged revocations don't cause the CRL to be signed again.
+             */
+            CrlPublisher.Crl published = crlPublisher.getCrl();
+            crlPublisher.update();
+            Assert.assertSame(published, crlPublisher.getCrl());
+        } finally {
+            crlPublisher.shutdown();
+        }
+    }
+
+    /**
+     * Lists the revocations in serial number order.
+     */
+    @Test
+    public void testRevocationOrder() {
+        RevocationIndex index = new RevocationIndex();
+        Date now = new Date();
+        Date notAfter = new Date(now.getTime() + DAY);
+        for (int i = 100; i > 0; i--) {
+            index.revoke(BigInteger.valueOf(i), notAfter, now,
+                    CRLReason.unspecified);
+        }
+        List<RevocationIndex.Entry> revocations = index.getRevocations(now);
+        Assert.assertEquals(100, revocations.size());
+        for (int i = 0; i < revocations.size(); i++) {
+            Assert.assertEquals(BigInteger.valueOf(i + 1), revocations.get(i)
+                    .getSerialNumber());
+        }
+    }
+
+    private static X509CRL parse(byte[] der) throws Exception {
+        return (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(
+                new ByteArrayInputStream(der));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+
+Copyright (c) 2008-2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+ 
+ */
+package uk.ac.manchester.rcs.bruno.keygenapp.base;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Stress tests of the {@link SerialNumberAllocator}s: several threads
+ * allocate serial numbers at the same time and all the numbers must be
+ * distinct and positive.
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class SerialNumberAllocatorTest {
+    private static final int THREADS = 16;
+    private static final int SERIALS_PER_THREAD = 20000;
+
+    private static Set<BigInteger> allocateConcurrently(
+            final SerialNumberAllocator allocator, int threadCount,
+            final int serialsPerThread) throws InterruptedException {
+        final Set<BigInteger> serials = Collections
+                .newSetFromMap(new ConcurrentHashMap<BigInteger, Boolean>());
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicInteger invalid = new AtomicInteger();
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startSignal.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < serialsPerThread; j++) {
+                        BigInteger serial = allocator.nextSerialNumber();
+                        if (serial.signum() <= 0) {
+                            invalid.incrementAndGet();
+                        }
+                        if (!serials.add(serial)) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        startSignal.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals("Duplicate serial numbers", 0, duplicates.get());
+        Assert.assertEquals("Non-positive serial numbers", 0, invalid.get());
+        Assert.assertEquals(threadCount * serialsPerThread, serials.size());
+        return serials;
+    }
+
+    @Test
+    public void testRandomAllocator() throws Exception {
+        Set<BigInteger> serials = allocateConcurrently(
+                new RandomSerialNumberAllocator(), THREADS, SERIALS_PER_THREAD);
+        for (BigInteger serial : serials) {
+            Assert.assertEquals(127, serial.bitLength());
+        }
+    }
+
+    @Test
+    public void testCounterAllocator() throws Exception {
+        allocateConcurrently(new CounterSerialNumberAllocator(3, 4), THREADS,
+                SERIALS_PER_THREAD);
+    }
+
+    @Test
+    public void testCounterAllocatorNodes() throws Exception {
+        long startTime = System.currentTimeMillis();
+        Set<BigInteger> serials = allocateConcurrently(
+                new CounterSerialNumberAllocator(1, 4, startTime), THREADS,
+                SERIALS_PER_THREAD);
+        Set<BigInteger> otherNodeSerials = allocateConcurrently(
+                new CounterSerialNumberAllocator(2, 4, startTime), THREADS,
+                SERIALS_PER_THREAD);
+        serials.retainAll(otherNodeSerials);
+        Assert.assertTrue("Nodes sharing serial numbers", serials.isEmpty());
+    }
+
+    @Test
+    public void testPersistentAllocator() throws Exception {
+        File file = File.createTempFile("serials", ".txt");
+        file.delete();
+        try {
+            Set<BigInteger> serials = allocateConcurrently(
+                    new PersistentSerialNumberAllocator(file, 0, 100),
+                    THREADS, SERIALS_PER_THREAD / 10);
+            /*
+             * A new allocator on the same file (e.g. after a restart) must
+             * carry on after the numbers already reserved.
+             */
+            Set<BigInteger> restartSerials = allocateConcurrently(
+                    new PersistentSerialNumberAllocator(file, 0, 100),
+                    THREADS, SERIALS_PER_THREAD / 10);
+            BigInteger max = BigInteger.ZERO;
+            for (BigInteger serial : serials) {
+                max = max.max(serial);
+            }
+            for (BigInteger serial : restartSerials) {
+                Assert.assertTrue(serial.compareTo(max) > 0);
+            }
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".tmp").delete();
+        }
+    }
+}
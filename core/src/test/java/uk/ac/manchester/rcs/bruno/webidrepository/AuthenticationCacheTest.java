@@ -0,0 +1,169 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the expiry, invalidation and bounds of the
+ * {@link AuthenticationCache}.
+ * 
+ * @author Bruno Harbulot (Bruno.Harbulot@manchester.ac.uk)
+ * 
+ */
+public class AuthenticationCacheTest {
+    private static AuthenticationCache.Identity createIdentity(
+            String webid, long expiresAt) {
+        return new AuthenticationCache.Identity(Collections
+                .<Principal> singletonList(new WebidPrincipal(webid)), null,
+                Arrays.asList(WebidVerifier.getDocumentUri(webid)), expiresAt);
+    }
+
+    @Test
+    public void testExpiry() {
+        AuthenticationCache cache = new AuthenticationCache(10, 60000L);
+        AuthenticationCache.Identity identity = createIdentity(
+                "http://example.org/alice#me", 1000L);
+        cache.put("aa", identity);
+
+        Assert.assertSame(identity, cache.get("aa", 999L));
+        Assert.assertNull(cache.get("aa", 1000L));
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testDocumentUpdated() {
+        AuthenticationCache cache = new AuthenticationCache(10, 60000L);
+        cache.put("aa", createIdentity("http://example.org/alice#me",
+                Long.MAX_VALUE));
+        cache.put("ab", createIdentity("http://example.org/alice#me",
+                Long.MAX_VALUE));
+        cache.put("bb", createIdentity("http://example.org/bob#me",
+                Long.MAX_VALUE));
+
+        cache.documentUpdated("http://example.org/alice");
+        Assert.assertNull(cache.get("aa", 0L));
+        Assert.assertNull(cache.get("ab", 0L));
+        Assert.assertNotNull(cache.get("bb", 0L));
+        Assert.assertEquals(2, cache.getInvalidationCount());
+
+        /*
+         * Identities cached after the update depend on the document again.
+         */
+        cache.put("aa", createIdentity("http://example.org/alice#me",
+                Long.MAX_VALUE));
+        cache.documentUpdated("http://example.org/alice");
+        Assert.assertNull(cache.get("aa", 0L));
+    }
+
+    @Test
+    public void testUpdatedWhileVerifying() {
+        AuthenticationCache cache = new AuthenticationCache(10, 60000L);
+        AuthenticationCache.Identity identity = createIdentity(
+                "http://example.org/alice#me", Long.MAX_VALUE);
+        long generation = cache.getGeneration(identity.getDocumentUris());
+
+        /*
+         * The profile is written after the old version has been read.
+         */
+        cache.documentUpdated("http://example.org/alice");
+        Assert.assertFalse(cache.put("aa", identity, generation));
+        Assert.assertNull(cache.get("aa", 0L));
+
+        generation = cache.getGeneration(identity.getDocumentUris());
+        cache.documentUpdated("http://example.org/bob");
+        Assert.assertTrue(cache.put("aa", identity, generation));
+        Assert.assertSame(identity, cache.get("aa", 0L));
+    }
+
+    @Test
+    public void testBounds() {
+        AuthenticationCache cache = new AuthenticationCache(4, 60000L);
+        for (int i = 0; i < 100; i++) {
+            cache.put("f" + i, createIdentity("http://example.org/user" + i
+                    + "#me", Long.MAX_VALUE));
+            Assert.assertTrue(cache.size() <= 4);
+        }
+        Assert.assertNotNull(cache.get("f99", 0L));
+        Assert.assertEquals(96, cache.getEvictionCount());
+
+        cache.documentUpdated("http://example.org/user99");
+        Assert.assertNull(cache.get("f99", 0L));
+    }
+
+    @Test
+    public void testBatchEviction() {
+        AuthenticationCache cache = new AuthenticationCache(100, 60000L);
+        for (int i = 0; i < 100; i++) {
+            cache.put("f" + i, createIdentity("http://example.org/user" + i
+                    + "#me", Long.MAX_VALUE));
+        }
+        Assert.assertEquals(0, cache.getEvictionCount());
+
+        // The first insertion over the limit makes room for several.
+        cache.put("f100", createIdentity("http://example.org/user100#me",
+                Long.MAX_VALUE));
+        Assert.assertEquals(91, cache.size());
+        Assert.assertEquals(10, cache.getEvictionCount());
+        for (int i = 101; i < 110; i++) {
+            cache.put("f" + i, createIdentity("http://example.org/user" + i
+                    + "#me", Long.MAX_VALUE));
+        }
+        Assert.assertEquals(100, cache.size());
+        Assert.assertEquals(10, cache.getEvictionCount());
+        Assert.assertNotNull(cache.get("f100", 0L));
+    }
+
+    @Test
+    public void testExpiredFirst() {
+        long now = System.currentTimeMillis();
+        AuthenticationCache cache = new AuthenticationCache(4, 60000L);
+        cache.put("old", createIdentity("http://example.org/old#me", now));
+        for (int i = 0; i < 3; i++) {
+            cache.put("f" + i, createIdentity("http://example.org/user" + i
+                    + "#me", Long.MAX_VALUE));
+        }
+        cache.put("f3", createIdentity("http://example.org/user3#me",
+                Long.MAX_VALUE));
+        Assert.assertEquals(4, cache.size());
+        Assert.assertEquals(0, cache.getEvictionCount());
+        Assert.assertNull(cache.get("old", 0L));
+    }
+}
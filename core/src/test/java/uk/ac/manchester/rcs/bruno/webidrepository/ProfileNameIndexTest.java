@@ -0,0 +1,110 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+/**
+ * Tests of the normalisation, of the terms and of the query bounds of the
+ * {@link ProfileNameIndex}.
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class ProfileNameIndexTest {
+    private static final String DOCUMENT = "http://example.org/profile/alice";
+
+    @Test
+    public void testNormalise() {
+        Assert.assertEquals("jose o brien smith", ProfileNameIndex
+                .normalise("  Jos\u00e9  O'Brien-Smith "));
+        Assert.assertEquals("", ProfileNameIndex.normalise(" - "));
+    }
+
+    @Test
+    public void testTerms() {
+        Assert.assertEquals(Arrays.asList("john ronald smith",
+                "ronald smith", "smith"), ProfileNameIndex
+                .getTerms("John Ronald Smith"));
+        // "ann" is the beginning of "anna ann", which is enough.
+        Assert.assertEquals(Arrays.asList("anna ann"), ProfileNameIndex
+                .getTerms("Anna Ann"));
+        Assert.assertTrue(ProfileNameIndex.getTerms(" ").isEmpty());
+    }
+
+    @Test
+    public void testUpperBound() {
+        Assert.assertEquals("smiti", ProfileNameIndex.getUpperBound("smith"));
+        Assert.assertEquals("b", ProfileNameIndex.getUpperBound("a\uffff"));
+        Assert.assertNull(ProfileNameIndex.getUpperBound("\uffff"));
+        Assert.assertTrue("smith\uffff\uffff".compareTo(ProfileNameIndex
+                .getUpperBound("smith")) < 0);
+    }
+
+    @Test
+    public void testExtractNames() {
+        ValueFactory vf = new ValueFactoryImpl();
+        URI me = vf.createURI(DOCUMENT + "#me");
+        List<Statement> statements = new ArrayList<Statement>();
+        statements.add(vf.createStatement(me, vf.createURI(WebidModule.FOAF_NS
+                + "familyName"), vf.createLiteral("Smith")));
+        statements.add(vf.createStatement(me, vf.createURI(WebidModule.FOAF_NS
+                + "givenName"), vf.createLiteral("Alice")));
+        statements.add(vf.createStatement(me, vf.createURI(WebidModule.FOAF_NS
+                + "nick"), vf.createLiteral("al")));
+
+        ProfileNameIndex index = new ProfileNameIndex();
+        Assert.assertTrue(index.isAffectedBy(statements));
+        List<ProfileNameRecord> records = index.extractNames(DOCUMENT,
+                statements);
+        Assert.assertEquals(2, records.size());
+        Assert.assertEquals("alice smith", records.get(0).getTerm());
+        Assert.assertEquals("smith", records.get(1).getTerm());
+        for (ProfileNameRecord record : records) {
+            Assert.assertEquals(me.toString(), record.getWebid());
+            Assert.assertEquals(DOCUMENT, record.getDocumentId());
+            Assert.assertEquals("Alice Smith", record.getLabel());
+        }
+
+        Assert.assertFalse(index.isAffectedBy(statements.subList(2, 3)));
+    }
+}
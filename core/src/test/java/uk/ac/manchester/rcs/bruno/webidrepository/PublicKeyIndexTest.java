@@ -0,0 +1,153 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPublicKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+/**
+ * Tests of the extraction of the keys indexed by the {@link PublicKeyIndex}
+ * from the statements written by {@link ProfileCertificates}.
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class PublicKeyIndexTest {
+    private static final String DOCUMENT = "http://example.org/profile/alice";
+    private static final String WEBID = DOCUMENT + "#me";
+
+    private static KeyPair generateKeyPair(String algorithm, int keySize)
+            throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator
+                .getInstance(algorithm);
+        keyPairGenerator.initialize(keySize);
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    @Test
+    public void testExtractKeys() throws Exception {
+        KeyPair rsaKeyPair = generateKeyPair("RSA", 1024);
+        KeyPair ecKeyPair = generateKeyPair("EC", 256);
+        ValueFactory vf = new ValueFactoryImpl();
+        List<Statement> statements = new ArrayList<Statement>();
+        statements.addAll(ProfileCertificates.createPublicKeyStatements(vf,
+                vf.createURI(WEBID), rsaKeyPair.getPublic()));
+        statements.addAll(ProfileCertificates.createPublicKeyStatements(vf,
+                vf.createURI(WEBID), ecKeyPair.getPublic()));
+        Assert.assertTrue(PublicKeyIndex.describesKeys(statements));
+
+        List<PublicKeyRecord> records = PublicKeyIndex.extractKeys(DOCUMENT,
+                statements);
+        Assert.assertEquals(2, records.size());
+        List<String> keyHashes = new ArrayList<String>();
+        for (PublicKeyRecord record : records) {
+            Assert.assertEquals(DOCUMENT, record.getDocumentId());
+            Assert.assertEquals(WEBID, record.getWebid());
+            keyHashes.add(record.getKeyHash());
+        }
+        Assert.assertTrue(keyHashes.contains(PublicKeyIndex
+                .keyHash(rsaKeyPair.getPublic())));
+        Assert.assertTrue(keyHashes.contains(PublicKeyIndex.keyHash(ecKeyPair
+                .getPublic())));
+
+        // The same key and WebID in the same document is a single record.
+        statements.addAll(ProfileCertificates.createPublicKeyStatements(vf,
+                vf.createURI(WEBID), rsaKeyPair.getPublic()));
+        Assert.assertEquals(2, PublicKeyIndex.extractKeys(DOCUMENT,
+                statements).size());
+
+        // A document can't describe the keys of another document's WebID.
+        statements.addAll(ProfileCertificates.createPublicKeyStatements(vf,
+                vf.createURI("http://example.org/profile/bob#me"),
+                rsaKeyPair.getPublic()));
+        Assert.assertEquals(2, PublicKeyIndex.extractKeys(DOCUMENT,
+                statements).size());
+    }
+
+    @Test
+    public void testKeyHash() throws Exception {
+        KeyPair keyPair = generateKeyPair("RSA", 1024);
+        KeyPair otherKeyPair = generateKeyPair("RSA", 1024);
+        Assert.assertEquals(PublicKeyIndex.keyHash(keyPair.getPublic()),
+                PublicKeyIndex.keyHash(keyPair.getPublic()));
+        Assert.assertFalse(PublicKeyIndex.keyHash(keyPair.getPublic())
+                .equals(PublicKeyIndex.keyHash(otherKeyPair.getPublic())));
+
+        ValueFactory vf = new ValueFactoryImpl();
+        List<Statement> statements = new ArrayList<Statement>();
+        statements.add(vf.createStatement(vf.createURI(WEBID), vf
+                .createURI("http://xmlns.com/foaf/0.1/name"), vf
+                .createLiteral("Alice")));
+        Assert.assertFalse(PublicKeyIndex.describesKeys(statements));
+        Assert.assertTrue(PublicKeyIndex.extractKeys(DOCUMENT, statements)
+                .isEmpty());
+    }
+
+    @Test
+    public void testEcKeyHashCurve() throws Exception {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        ECPublicKey publicKey = (ECPublicKey) generateKeyPair("EC", 256)
+                .getPublic();
+        ValueFactory vf = new ValueFactoryImpl();
+        List<Statement> statements = ProfileCertificates
+                .createPublicKeyStatements(vf, vf.createURI(WEBID), publicKey);
+        Assert.assertEquals(PublicKeyIndex.keyHash(publicKey),
+                PublicKeyIndex.extractKeys(DOCUMENT, statements).get(0)
+                        .getKeyHash());
+
+        // The same point with other parameters isn't an indexed key.
+        ECParameterSpec params = publicKey.getParams();
+        ECPublicKey substitutedKey = (ECPublicKey) KeyFactory.getInstance(
+                "EC", BouncyCastleProvider.PROVIDER_NAME).generatePublic(
+                new ECPublicKeySpec(publicKey.getW(), new ECParameterSpec(
+                        params.getCurve(), publicKey.getW(), params
+                                .getOrder(), params.getCofactor())));
+        Assert.assertNull(PublicKeyIndex.keyHash(substitutedKey));
+    }
+}
@@ -0,0 +1,499 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StaleStateException;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.sail.memory.MemoryStore;
+import org.openrdf.sail.nativerdf.NativeStore;
+
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer.SerialisationFormat;
+
+/**
+ * Concurrent reads and updates of profiles through the {@link RdfDocumentStore}
+ * in memory mode. Each profile must only be loaded into the shared repository
+ * once (and again when it changes in the database), whether it is read by
+ * one thread or by one thread per processor (the read throughput is
+ * measured by ProfileReadBenchmark, in the benchmarks module). Concurrent
+ * updates of the same profile, through the same store or through two stores
+ * sharing the database (as two nodes would), must not lose any
+ * modification, whether it is appended as a delta or the document is
+ * compacted. In native mode, the store must also re-load a profile after
+ * an update that didn't commit, or after it has been modified through
+ * another node (including while it was stopped).
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class RdfDocumentStoreConcurrencyTest {
+    private static final int PROFILES = 32;
+    private static final int KNOWN_PEOPLE = 50;
+    private static final long STATEMENTS_PER_PROFILE = 3 + 2 * KNOWN_PEOPLE;
+    private static final int READS_PER_THREAD = 4 * PROFILES;
+    private static final int WRITER_THREADS = 8;
+    private static final int UPDATES_PER_THREAD = 20;
+
+    private static final String BASE_URI = "http://dummy.example/profile/";
+
+    private static SessionFactory createSessionFactory() {
+        AnnotationConfiguration configuration = new AnnotationConfiguration()
+                .addPackage("uk.ac.manchester.rcs.bruno.webidrepository")
+                .addAnnotatedClass(RdfDocumentContainer.class)
+                .addAnnotatedClass(RdfDocumentDelta.class);
+        configuration.setProperty("hibernate.connection.url",
+                "jdbc:derby:target/concurrencytestdb;create=true");
+        configuration.setProperty("hibernate.connection.driver_class",
+                "org.apache.derby.jdbc.EmbeddedDriver");
+        configuration.setProperty("hibernate.dialect",
+                "org.hibernate.dialect.DerbyDialect");
+        configuration.setProperty("hibernate.hbm2ddl.auto", "create");
+        return configuration.buildSessionFactory();
+    }
+
+    private static RdfDocumentStore createStore() throws Exception {
+        Repository repository = new SailRepository(new MemoryStore());
+        repository.initialize();
+        return createStore(repository, RdfDocumentStore.StorageMode.MEMORY);
+    }
+
+    private static RdfDocumentStore createNativeStore(File dataDir)
+            throws Exception {
+        Repository repository = new SailRepository(new NativeStore(dataDir,
+                "spoc,posc,cspo"));
+        repository.initialize();
+        return createStore(repository, RdfDocumentStore.StorageMode.NATIVE);
+    }
+
+    private static RdfDocumentStore createStore(Repository repository,
+            RdfDocumentStore.StorageMode storageMode) {
+        return new RdfDocumentStore(repository, storageMode,
+                new RdfGraphCache(1000, 1000000L), new RdfSerialisationCache(
+                        1000, 1024L * 1024L), SerialisationFormat.NTRIPLES);
+    }
+
+    private static URI getContext(RdfDocumentStore store, int i) {
+        return store.getRepository().getValueFactory().createURI(
+                BASE_URI + i + "/");
+    }
+
+    /**
+     * Writes a profile (through a store other than the one under test, as
+     * another node would).
+     */
+    private static void writeProfile(SessionFactory sessionFactory,
+            RdfDocumentStore store, URI context, int knownPeople)
+            throws Exception {
+        RepositoryConnection conn = store.getRepository().getConnection();
+        Session session = sessionFactory.openSession();
+        try {
+            ValueFactory vf = conn.getValueFactory();
+            URI me = vf.createURI(context.toString(), "#me");
+            URI person = vf.createURI(WebidModule.FOAF_NS, "Person");
+            URI knows = vf.createURI(WebidModule.FOAF_NS, "knows");
+            conn.clear(context);
+            conn.add(me, RDF.TYPE, person, context);
+            conn.add(me, vf.createURI(WebidModule.FOAF_NS, "givenName"), vf
+                    .createLiteral("Alice"), context);
+            conn.add(me, vf.createURI(WebidModule.FOAF_NS, "familyName"), vf
+                    .createLiteral("Test"), context);
+            for (int i = 0; i < knownPeople; i++) {
+                URI friend = vf.createURI(context.toString(), "#friend" + i);
+                conn.add(me, knows, friend, context);
+                conn.add(friend, RDF.TYPE, person, context);
+            }
+            session.beginTransaction();
+            store.saveContext(session, conn, context);
+        } finally {
+            session.close();
+            conn.close();
+        }
+    }
+
+    private static long readProfile(SessionFactory sessionFactory,
+            RdfDocumentStore store, URI context) throws Exception {
+        RepositoryConnection conn = store.getRepository().getConnection();
+        Session session = sessionFactory.openSession();
+        try {
+            session.beginTransaction();
+            Assert.assertTrue(store.loadContext(session, conn, context));
+            long size = conn.size(context);
+            session.getTransaction().commit();
+            return size;
+        } finally {
+            session.close();
+            conn.close();
+        }
+    }
+
+    /**
+     * Reads the profiles from several threads, checking that each read sees
+     * a complete profile.
+     */
+    private static void readConcurrently(final SessionFactory sessionFactory,
+            final RdfDocumentStore store, int threadCount) throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; t++) {
+            final int firstProfile = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        for (int i = firstProfile; i < firstProfile
+                                + READS_PER_THREAD; i++) {
+                            long size = readProfile(sessionFactory, store,
+                                    getContext(store, i % PROFILES));
+                            if (size != STATEMENTS_PER_PROFILE) {
+                                throw new AssertionError(String.format(
+                                        "Read %d statements instead of %d.",
+                                        size, STATEMENTS_PER_PROFILE));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        SessionFactory sessionFactory = createSessionFactory();
+        try {
+            RdfDocumentStore writerStore = createStore();
+            for (int i = 0; i < PROFILES; i++) {
+                writeProfile(sessionFactory, writerStore, getContext(
+                        writerStore, i), KNOWN_PEOPLE);
+            }
+
+            RdfDocumentStore store = createStore();
+            RepositoryConnection conn = store.getRepository()
+                    .getConnection();
+            try {
+                readConcurrently(sessionFactory, store, 1);
+                readConcurrently(sessionFactory, store, Math.max(2, Runtime
+                        .getRuntime().availableProcessors()));
+
+                Assert.assertEquals(PROFILES, store.getContextLoadCount());
+                Assert.assertEquals(PROFILES * STATEMENTS_PER_PROFILE, conn
+                        .size());
+
+                /*
+                 * A profile modified in the database is re-loaded once.
+                 */
+                URI context = getContext(store, 0);
+                writeProfile(sessionFactory, writerStore, context,
+                        KNOWN_PEOPLE + 1);
+                Assert.assertEquals(STATEMENTS_PER_PROFILE + 2, readProfile(
+                        sessionFactory, store, context));
+                Assert.assertEquals(STATEMENTS_PER_PROFILE + 2, readProfile(
+                        sessionFactory, store, context));
+                Assert.assertEquals(PROFILES + 1, store
+                        .getContextLoadCount());
+            } finally {
+                conn.close();
+            }
+        } finally {
+            sessionFactory.close();
+        }
+    }
+
+    private static List<Statement> createFriendStatements(ValueFactory vf,
+            URI context, String friendId) {
+        List<Statement> statements = new ArrayList<Statement>();
+        statements.add(vf.createStatement(vf.createURI(context.toString(),
+                "#me"), vf.createURI(WebidModule.FOAF_NS, "knows"), vf
+                .createURI(context.toString(), "#" + friendId)));
+        return statements;
+    }
+
+    /**
+     * Adds a statement to a profile within an update, retrying if the
+     * profile has been modified through another store.
+     * 
+     * @return number of attempts.
+     */
+    private static int addFriend(SessionFactory sessionFactory,
+            RdfDocumentStore store, URI context, String friendId)
+            throws Exception {
+        for (int attempt = 1;; attempt++) {
+            RdfDocumentStore.Update update = store.beginUpdate(context);
+            RepositoryConnection conn = store.getRepository().getConnection();
+            Session session = sessionFactory.openSession();
+            try {
+                session.beginTransaction();
+                Assert.assertTrue(store.loadContext(session, conn, context));
+                List<Statement> statements = createFriendStatements(conn
+                        .getValueFactory(), context, friendId);
+                conn.add(statements, context);
+                store.writeAdditions(session, conn, update, statements);
+                session.getTransaction().commit();
+                return attempt;
+            } catch (StaleStateException e) {
+                session.getTransaction().rollback();
+            } finally {
+                store.endUpdate(update);
+                session.close();
+                conn.close();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final SessionFactory sessionFactory = createSessionFactory();
+        try {
+            final RdfDocumentStore[] stores = new RdfDocumentStore[] {
+                    createStore(), createStore() };
+            final URI sharedContext = getContext(stores[0], 0);
+            writeProfile(sessionFactory, stores[0], sharedContext, 0);
+            for (int t = 0; t < WRITER_THREADS; t++) {
+                writeProfile(sessionFactory, stores[0], getContext(stores[0],
+                        t + 1), 0);
+            }
+
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < WRITER_THREADS; t++) {
+                final int threadId = t;
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            RdfDocumentStore store = stores[threadId
+                                    % stores.length];
+                            URI ownContext = getContext(store, threadId + 1);
+                            for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+                                String friendId = "friend-" + threadId + "-"
+                                        + i;
+                                addFriend(sessionFactory, store,
+                                        sharedContext, friendId);
+                                addFriend(sessionFactory, store, ownContext,
+                                        friendId);
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                };
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+
+            RdfDocumentStore store = createStore();
+            Assert.assertEquals(3 + WRITER_THREADS * UPDATES_PER_THREAD,
+                    readProfile(sessionFactory, store, sharedContext));
+            for (int t = 0; t < WRITER_THREADS; t++) {
+                Assert.assertEquals(3 + UPDATES_PER_THREAD, readProfile(
+                        sessionFactory, store, getContext(store, t + 1)));
+            }
+        } finally {
+            sessionFactory.close();
+        }
+    }
+
+    private static long countDeltas(SessionFactory sessionFactory, URI context) {
+        Session session = sessionFactory.openSession();
+        try {
+            return ((Number) session
+                    .createQuery(
+                            "select count(*) from RdfDocumentDelta d where d.documentId = :id")
+                    .setParameter("id", context.toString()).uniqueResult())
+                    .longValue();
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testDeltaCompaction() throws Exception {
+        SessionFactory sessionFactory = createSessionFactory();
+        try {
+            RdfDocumentStore store = createStore();
+            store.setCompactionThreshold(4);
+            URI context = getContext(store, 0);
+            writeProfile(sessionFactory, store, context, 0);
+
+            for (int i = 0; i < 3; i++) {
+                addFriend(sessionFactory, store, context, "friend" + i);
+                Assert.assertEquals(i + 1, countDeltas(sessionFactory,
+                        context));
+                Assert.assertEquals(3 + i + 1, readProfile(sessionFactory,
+                        createStore(), context));
+            }
+            addFriend(sessionFactory, store, context, "friend3");
+            Assert.assertEquals(0, countDeltas(sessionFactory, context));
+            Assert.assertEquals(3 + 4, readProfile(sessionFactory,
+                    createStore(), context));
+            Assert.assertEquals(3 + 4, readProfile(sessionFactory, store,
+                    context));
+        } finally {
+            sessionFactory.close();
+        }
+    }
+
+    @Test
+    public void testNativeStore() throws Exception {
+        final SessionFactory sessionFactory = createSessionFactory();
+        File dataDir = new File("target/concurrencytestnativestore-"
+                + System.currentTimeMillis());
+        RdfDocumentStore store = null;
+        try {
+            final RdfDocumentStore writerStore = createStore();
+            final URI context = getContext(writerStore, 0);
+            writeProfile(sessionFactory, writerStore, context, 0);
+
+            store = createNativeStore(dataDir);
+            Assert.assertEquals(3, readProfile(sessionFactory, store, context));
+
+            /*
+             * The statements added by an update that doesn't commit don't
+             * remain in the store.
+             */
+            RdfDocumentStore.Update update = store.beginUpdate(context);
+            RepositoryConnection conn = store.getRepository().getConnection();
+            Session session = sessionFactory.openSession();
+            try {
+                session.beginTransaction();
+                Assert.assertTrue(store.loadContext(session, conn, context));
+                List<Statement> statements = createFriendStatements(conn
+                        .getValueFactory(), context, "lost");
+                conn.add(statements, context);
+                store.writeAdditions(session, conn, update, statements);
+                session.getTransaction().rollback();
+            } finally {
+                store.endUpdate(update);
+                session.close();
+                conn.close();
+            }
+            Assert.assertEquals(3, readProfile(sessionFactory, store, context));
+            Assert.assertEquals(2, store.getContextLoadCount());
+            Assert.assertEquals(1, addFriend(sessionFactory, store, context,
+                    "kept"));
+            Assert.assertEquals(4, readProfile(sessionFactory, store, context));
+
+            /*
+             * Modifications made through another node are picked up, even
+             * when they are made while this node is stopped.
+             */
+            writeProfile(sessionFactory, writerStore, context, 1);
+            Assert.assertEquals(5, readProfile(sessionFactory, store, context));
+            store.getRepository().shutDown();
+            store = createNativeStore(dataDir);
+            Assert.assertEquals(5, readProfile(sessionFactory, store, context));
+            Assert.assertEquals(0, store.getContextLoadCount());
+            store.getRepository().shutDown();
+            writeProfile(sessionFactory, writerStore, context, 2);
+            store = createNativeStore(dataDir);
+            Assert.assertEquals(7, readProfile(sessionFactory, store, context));
+            Assert.assertEquals(1, store.getContextLoadCount());
+
+            /*
+             * Concurrent updates through this node and another node.
+             */
+            final RdfDocumentStore[] stores = new RdfDocumentStore[] { store,
+                    writerStore };
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < WRITER_THREADS; t++) {
+                final int threadId = t;
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+                                addFriend(sessionFactory, stores[(threadId + i)
+                                        % stores.length], context, "friend-"
+                                        + threadId + "-" + i);
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                };
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            Assert.assertEquals(7 + WRITER_THREADS * UPDATES_PER_THREAD,
+                    readProfile(sessionFactory, store, context));
+            Assert.assertEquals(7 + WRITER_THREADS * UPDATES_PER_THREAD,
+                    readProfile(sessionFactory, createStore(), context));
+        } finally {
+            if (store != null) {
+                store.getRepository().shutDown();
+            }
+            sessionFactory.close();
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPublicKeySpec;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.Rio;
+
+import uk.ac.manchester.rcs.bruno.keygenapp.base.MiniCaCertGen;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests of the {@link WebidVerifier} with remote profiles served by a local
+ * stub HTTP server, and of its {@link ProfileFetchCache}: caching, negative
+ * caching and coalescing of concurrent fetches.
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class WebidVerifierTest {
+    private HttpServer server;
+    private String baseUri;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private volatile byte[] profile;
+    private volatile long responseDelayMillis = 0;
+
+    private KeyPair caKeyPair;
+
+    @Before
+    public void setUp() throws Exception {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(1024);
+        this.caKeyPair = keyPairGenerator.generateKeyPair();
+
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0),
+                0);
+        this.server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                requestCount.incrementAndGet();
+                try {
+                    Thread.sleep(responseDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] content = profile;
+                if ((content == null)
+                        || !exchange.getRequestURI().getPath().equals(
+                                "/alice")) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    exchange.getResponseHeaders().set("Content-Type",
+                            "text/plain; charset=UTF-8");
+                    exchange.sendResponseHeaders(200, content.length);
+                    OutputStream outputStream = exchange.getResponseBody();
+                    outputStream.write(content);
+                    outputStream.close();
+                }
+                exchange.close();
+            }
+        });
+        this.server.start();
+        this.baseUri = "http://127.0.0.1:"
+                + this.server.getAddress().getPort() + "/";
+    }
+
+    @After
+    public void tearDown() {
+        this.server.stop(0);
+    }
+
+    private static byte[] createProfile(String webid, KeyPair keyPair)
+            throws Exception {
+        ValueFactory vf = new ValueFactoryImpl();
+        List<Statement> statements = ProfileCertificates
+                .createPublicKeyStatements(vf, vf.createURI(webid), keyPair
+                        .getPublic());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        RDFWriter writer = Rio.createWriter(RDFFormat.NTRIPLES, outputStream);
+        writer.startRDF();
+        for (Statement statement : statements) {
+            writer.handleStatement(statement);
+        }
+        writer.endRDF();
+        return outputStream.toByteArray();
+    }
+
+    private X509Certificate createCertificate(KeyPair keyPair, String webid)
+            throws Exception {
+        X509Name name = new X509Name("CN=Test");
+        return MiniCaCertGen.createCert(this.caKeyPair.getPublic(),
+                this.caKeyPair.getPrivate(), keyPair.getPublic(), name, name,
+                null, null, webid, BigInteger.ONE);
+    }
+
+    private static KeyPair generateKeyPair(String algorithm, int keySize)
+            throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator
+                .getInstance(algorithm);
+        keyPairGenerator.initialize(keySize);
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    @Test
+    public void testRemoteVerification() throws Exception {
+        String webid = this.baseUri + "alice#me";
+        KeyPair keyPair = generateKeyPair("RSA", 1024);
+        KeyPair otherKeyPair = generateKeyPair("RSA", 1024);
+        this.profile = createProfile(webid, keyPair);
+
+        WebidVerifier verifier = new WebidVerifier(null,
+                new ProfileFetchCache(100, 60000L, 60000L, 5000, 1024 * 1024));
+
+        X509Certificate certificate = createCertificate(keyPair, webid);
+        List<String> webids = verifier.verify(null, certificate);
+        Assert.assertEquals(1, webids.size());
+        Assert.assertEquals(webid, webids.get(0));
+
+        // The profile is kept.
+        Assert.assertEquals(webids, verifier.verify(null, certificate));
+        Assert.assertEquals(1, this.requestCount.get());
+
+        // Another certificate with the same WebID uses the cached profile.
+        X509Certificate otherCertificate = createCertificate(otherKeyPair,
+                webid);
+        Assert.assertTrue(verifier.verify(null, otherCertificate).isEmpty());
+        Assert.assertEquals(1, this.requestCount.get());
+
+        Assert.assertTrue(verifier.verify(null,
+                createCertificate(keyPair, this.baseUri + "bob#me"))
+                .isEmpty());
+        Assert.assertEquals(2, this.requestCount.get());
+    }
+
+    @Test
+    public void testEcKeyMatch() throws Exception {
+        String webid = "http://example.org/profile/alice#me";
+        KeyPair keyPair = generateKeyPair("EC", 256);
+        ValueFactory vf = new ValueFactoryImpl();
+        List<Statement> statements = ProfileCertificates
+                .createPublicKeyStatements(vf, vf.createURI(webid), keyPair
+                        .getPublic());
+        Assert.assertTrue(WebidVerifier.matchesKey(statements, webid, keyPair
+                .getPublic()));
+        Assert.assertFalse(WebidVerifier.matchesKey(statements,
+                "http://example.org/profile/bob#me", keyPair.getPublic()));
+        Assert.assertFalse(WebidVerifier.matchesKey(statements, webid,
+                generateKeyPair("EC", 256).getPublic()));
+    }
+
+    @Test
+    public void testEcCurveSubstitution() throws Exception {
+        String webid = "http://example.org/profile/alice#me";
+        ECPublicKey publicKey = (ECPublicKey) generateKeyPair("EC", 256)
+                .getPublic();
+        ValueFactory vf = new ValueFactoryImpl();
+        List<Statement> statements = ProfileCertificates
+                .createPublicKeyStatements(vf, vf.createURI(webid), publicKey);
+        Assert.assertNotNull(WebidVerifier.getCurveOid(publicKey));
+
+        /*
+         * The same point, with explicit parameters whose generator is this
+         * point (so that the private key is 1).
+         */
+        ECParameterSpec params = publicKey.getParams();
+        PublicKey substitutedKey = KeyFactory.getInstance("EC",
+                BouncyCastleProvider.PROVIDER_NAME).generatePublic(
+                new ECPublicKeySpec(publicKey.getW(), new ECParameterSpec(
+                        params.getCurve(), publicKey.getW(), params
+                                .getOrder(), params.getCofactor())));
+        Assert.assertNull(WebidVerifier
+                .getCurveOid((ECPublicKey) substitutedKey));
+        Assert.assertFalse(WebidVerifier.matchesKey(statements, webid,
+                substitutedKey));
+    }
+
+    @Test
+    public void testNegativeCaching() throws Exception {
+        ProfileFetchCache cache = new ProfileFetchCache(100, 60000L, 60000L,
+                5000, 1024 * 1024);
+        for (int i = 0; i < 3; i++) {
+            try {
+                cache.getStatements(this.baseUri + "missing");
+                Assert.fail("The document shouldn't be available.");
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+        Assert.assertEquals(1, this.requestCount.get());
+        Assert.assertEquals(1, cache.getFetchCount());
+
+        ProfileFetchCache noNegativeCache = new ProfileFetchCache(100,
+                60000L, 0L, 5000, 1024 * 1024);
+        for (int i = 0; i < 3; i++) {
+            try {
+                noNegativeCache.getStatements(this.baseUri + "missing");
+                Assert.fail("The document shouldn't be available.");
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+        Assert.assertEquals(4, this.requestCount.get());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        this.profile = createProfile(this.baseUri + "alice#me",
+                generateKeyPair("RSA", 1024));
+        ProfileFetchCache cache = new ProfileFetchCache(100, 0L, 0L, 5000,
+                1024 * 1024);
+        cache.getStatements(this.baseUri + "alice");
+        cache.getStatements(this.baseUri + "alice");
+        Assert.assertEquals(2, this.requestCount.get());
+
+        ProfileFetchCache smallCache = new ProfileFetchCache(100, 60000L,
+                60000L, 5000, 16);
+        try {
+            smallCache.getStatements(this.baseUri + "alice");
+            Assert.fail("The document exceeds the maximum size.");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testCoalescedFetches() throws Exception {
+        this.profile = createProfile(this.baseUri + "alice#me",
+                generateKeyPair("RSA", 1024));
+        this.responseDelayMillis = 500;
+        final ProfileFetchCache cache = new ProfileFetchCache(100, 60000L,
+                60000L, 5000, 1024 * 1024);
+
+        final int threadCount = 16;
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startSignal.await();
+                        if (cache.getStatements(baseUri + "alice").isEmpty()) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        startSignal.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, failures.get());
+        Assert.assertEquals(1, this.requestCount.get());
+        Assert.assertTrue(cache.getCoalescedCount() > 0);
+    }
+}
@@ -0,0 +1,163 @@
+/*-----------------------------------------------------------------------
+  
+Copyright (c) 2010, The University of Manchester, United Kingdom.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without 
+modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, 
+      this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright 
+      notice, this list of conditions and the following disclaimer in the 
+      documentation and/or other materials provided with the distribution.
+ * Neither the name of the The University of Manchester nor the names of 
+      its contributors may be used to endorse or promote products derived 
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+POSSIBILITY OF SUCH DAMAGE.
+
+  Author........: Bruno Harbulot
+
+-----------------------------------------------------------------------*/
+package uk.ac.manchester.rcs.bruno.webidrepository.bulk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.manchester.rcs.bruno.webidrepository.RdfDocumentContainer.SerialisationFormat;
+
+/**
+ * Tests of the formats used by the {@link BulkTool}: splitting N-Quads into
+ * documents, tar archives and the mapping of document URIs to tar entries.
+ * 
+ * @author Bruno Harbulot.
+ * 
+ */
+public class BulkFormatsTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testSplitQuad() {
+        String[] quad = NQuadsDocumentReader
+                .splitQuad("<http://a/s> <http://a/p> \"x \\\" <y> .\"@en <http://a/g> .");
+        Assert.assertNotNull(quad);
+        Assert.assertEquals("<http://a/s> <http://a/p> \"x \\\" <y> .\"@en .\n",
+                quad[0]);
+        Assert.assertEquals("http://a/g", quad[1]);
+
+        quad = NQuadsDocumentReader
+                .splitQuad("_:b1 <http://a/p> \"1\"^^<http://www.w3.org/2001/XMLSchema#int> <http://a/g> .");
+        Assert.assertNotNull(quad);
+        Assert.assertEquals("http://a/g", quad[1]);
+
+        Assert.assertNull(NQuadsDocumentReader
+                .splitQuad("<http://a/s> <http://a/p> \"1\"^^<http://a/t> ."));
+        Assert.assertNull(NQuadsDocumentReader
+                .splitQuad("<http://a/s> <http://a/p> \"unterminated <http://a/g> ."));
+    }
+
+    @Test
+    public void testNQuadsRoundTrip() throws IOException {
+        StringWriter quads = new StringWriter();
+        NQuadsDocumentReader.writeQuads("http://a/doc1",
+                "<http://a/s> <http://a/p> \"1\" .\n"
+                        + "<http://a/s> <http://a/p> \"2\" .\n", quads);
+        NQuadsDocumentReader.writeQuads("http://a/doc2",
+                "<http://a/t> <http://a/p> <http://a/s> .\n", quads);
+
+        NQuadsDocumentReader reader = new NQuadsDocumentReader(
+                new StringReader("# comment\n\n" + quads.toString()));
+        NQuadsDocumentReader.Document document = reader.readDocument();
+        Assert.assertEquals("http://a/doc1", document.getId());
+        Assert.assertEquals("<http://a/s> <http://a/p> \"1\" .\n"
+                + "<http://a/s> <http://a/p> \"2\" .\n", new String(document
+                .getNTriples(), UTF8));
+        document = reader.readDocument();
+        Assert.assertEquals("http://a/doc2", document.getId());
+        Assert.assertEquals("<http://a/t> <http://a/p> <http://a/s> .\n",
+                new String(document.getNTriples(), UTF8));
+        Assert.assertNull(reader.readDocument());
+    }
+
+    @Test(expected = IOException.class)
+    public void testNonContiguousQuads() throws IOException {
+        NQuadsDocumentReader reader = new NQuadsDocumentReader(
+                new StringReader("<http://a/s> <http://a/p> \"1\" <http://a/g1> .\n"
+                        + "<http://a/s> <http://a/p> \"2\" <http://a/g2> .\n"
+                        + "<http://a/s> <http://a/p> \"3\" <http://a/g1> .\n"));
+        while (reader.readDocument() != null) {
+        }
+    }
+
+    @Test
+    public void testTarRoundTrip() throws IOException {
+        StringBuilder longPath = new StringBuilder("http/example.org");
+        for (int i = 0; i < 12; i++) {
+            longPath.append("/segment").append(i);
+        }
+        longPath.append(".ttl");
+        byte[] large = new byte[1500];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        TarArchive.Writer writer = new TarArchive.Writer(archive);
+        writer.writeEntry("http/a/doc1.nt", "<a> <b> <c> .\n".getBytes(UTF8),
+                1000000L);
+        writer.writeEntry(longPath.toString(), large, 2000000L);
+        writer.writeEntry("http/a/empty.rdf", new byte[0], 3000000L);
+        writer.finish();
+        Assert.assertEquals(0, archive.size() % 512);
+
+        TarArchive.Reader reader = new TarArchive.Reader(
+                new ByteArrayInputStream(archive.toByteArray()));
+        TarArchive.Entry entry = reader.readEntry();
+        Assert.assertEquals("http/a/doc1.nt", entry.getName());
+        Assert.assertEquals("<a> <b> <c> .\n", new String(entry.getContent(),
+                UTF8));
+        entry = reader.readEntry();
+        Assert.assertEquals(longPath.toString(), entry.getName());
+        Assert.assertArrayEquals(large, entry.getContent());
+        entry = reader.readEntry();
+        Assert.assertEquals("http/a/empty.rdf", entry.getName());
+        Assert.assertEquals(0, entry.getContent().length);
+        Assert.assertNull(reader.readEntry());
+    }
+
+    @Test
+    public void testDocumentEntries() {
+        String name = DocumentEntries.getEntryName(
+                "https://example.org:8443/webid/alice.profile",
+                SerialisationFormat.TURTLE);
+        Assert.assertEquals("https/example.org:8443/webid/alice.profile.ttl",
+                name);
+        Assert.assertEquals("https://example.org:8443/webid/alice.profile",
+                DocumentEntries.getDocumentId(name));
+        Assert.assertEquals(SerialisationFormat.TURTLE, DocumentEntries
+                .getFormat(name));
+
+        Assert.assertNull(DocumentEntries.getEntryName("urn:x:y",
+                SerialisationFormat.NTRIPLES));
+        Assert.assertNull(DocumentEntries.getDocumentId("README"));
+        Assert.assertNull(DocumentEntries.getFormat("http/a/doc.txt"));
+    }
+}